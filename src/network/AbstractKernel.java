@@ -1,6 +1,7 @@
 package network;
 
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
 public abstract class AbstractKernel implements Kernel {
@@ -12,6 +13,8 @@ public abstract class AbstractKernel implements Kernel {
         new CopyOnWriteArrayList<Interface>();
     
     private volatile Thread mainThread;
+    private TimerService timer;
+    private ThreadFactory threadFactory;
     
     public final void setAddress(int address) {
         if (this.address != 0)
@@ -54,6 +57,30 @@ public abstract class AbstractKernel implements Kernel {
         return mainThread;
     }
     
+    public final void setTimerService(TimerService timer) {
+        if (this.timer != null)
+            throw new IllegalStateException(
+                    "Can only set the timer service once");
+        
+        this.timer = timer;
+    }
+    
+    protected final TimerService timer() {
+        return timer;
+    }
+    
+    public final void setThreadFactory(ThreadFactory factory) {
+        if (this.threadFactory != null)
+            throw new IllegalStateException(
+                    "Can only set the thread factory once");
+        
+        this.threadFactory = factory;
+    }
+    
+    protected final ThreadFactory threadFactory() {
+        return threadFactory;
+    }
+    
     public void interfaceAdded(Interface iface) {
         ifaces.add(iface);
     }
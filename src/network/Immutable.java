@@ -0,0 +1,16 @@
+package network;
+
+/**
+ * Marker for message payloads that can never change once constructed. When
+ * the simulator runs in {@link TransportMode#BY_REFERENCE} mode, messages
+ * carrying such payloads are handed to the receiving interface as-is rather
+ * than being copied.
+ * <p>
+ * Implementing this interface is a promise: every field must be final, and
+ * anything reachable from the payload must itself be immutable. Arrays never
+ * qualify, since their elements can always be reassigned. The class should
+ * be final as well, or a subclass could add state that changes.
+ * 
+ * @see SimulatorFactory.SimulatorBuilder#immutableTypes(Class...)
+ */
+public interface Immutable { }
@@ -1,11 +1,16 @@
 package network;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
  * A network interface. Accessed by the {@link Kernel} and the
  * {@link OperatingSystem} to perform the low-level {@link #send(Message)} and
  * {@link #receive()} operations.
+ * <p>
+ * Any number of threads may send and receive through an interface at once;
+ * each message is received by exactly one of them.
  * 
  * @see Simulator#connect(Node, Node)
  *
@@ -20,10 +25,28 @@ public interface Interface {
      * @throws InterruptedException If the thread is interrupted while blocking.
      * @throws NodeNotRunningException If the node containing this interface
      *          has not started or has shut down.
+     * @throws MessageCodecException If the payload can't be encoded.
      */
     void send(Message<?> message)
             throws DisconnectedException, InterruptedException;
     
+    /**
+     * Sends several messages through the interface, in order. This is
+     * equivalent to sending each one in turn, only cheaper: the messages
+     * are encoded together and handed to the other end all at once.
+     * 
+     * @param messages The messages to send.
+     * @throws DisconnectedException If the interface has been disconnected.
+     * @throws InterruptedException If the thread is interrupted while blocking.
+     *          Some of the messages may have been sent by then.
+     * @throws NodeNotRunningException If the node containing this interface
+     *          has not started or has shut down.
+     * @throws MessageCodecException If any of the payloads can't be
+     *          encoded, in which case none of the messages are sent.
+     */
+    void send(List<? extends Message<?>> messages)
+            throws DisconnectedException, InterruptedException;
+    
     /**
      * Receives the next message from the interface, blocking until one is
      * sent.
@@ -47,6 +70,92 @@ public interface Interface {
      */
     Message<?> receive(long time, TimeUnit timeUnit) throws InterruptedException;
     
+    /**
+     * Receives whatever messages are waiting at the interface, up to the
+     * given number, without blocking.
+     * 
+     * @param target The collection to add the messages to, in order.
+     * @param maxMessages The most messages to receive.
+     * @return The number of messages added to <tt>target</tt>.
+     * @throws NodeNotRunningException If the node containing this interface
+     *          has not started or has shut down.
+     */
+    int drainTo(Collection<? super Message<?>> target, int maxMessages);
+    
+    /**
+     * Receives up to the given number of messages, blocking until at least
+     * one is sent or until timeout.
+     * 
+     * @param maxMessages The most messages to receive.
+     * @param time The length of time to wait before timeout.
+     * @param timeUnit The unit of <tt>time</tt>.
+     * @return The messages, in order. Empty if timeout occurs first.
+     * @throws InterruptedException If the thread is interrupted while blocking.
+     * @throws NodeNotRunningException If the node containing this interface
+     *          has not started or has shut down.
+     */
+    List<Message<?>> receiveBatch(int maxMessages, long time, TimeUnit timeUnit)
+            throws InterruptedException;
+    
+    /**
+     * Receives the next message from the interface without decoding its
+     * payload, blocking until one is sent. Only the header is available
+     * until {@link RawMessage#decode()} is called, which makes this the
+     * cheapest way for a router to look at a message it is only going to
+     * pass along with {@link #forwardRaw(RawMessage)}.
+     * 
+     * @return The message sent, still in its raw form.
+     * @throws InterruptedException If the thread is interrupted while blocking.
+     * @throws NodeNotRunningException If the node containing this interface
+     *          has not started or has shut down.
+     */
+    RawMessage receiveRaw() throws InterruptedException;
+    
+    /**
+     * Receives the next message from the interface without decoding its
+     * payload, blocking until one is sent or until timeout.
+     * 
+     * @param time The length of time to wait before timeout.
+     * @param timeUnit The unit of <tt>time</tt>.
+     * @return The message sent, still in its raw form, or <tt>null</tt> if
+     *          timeout occurs first.
+     * @throws InterruptedException If the thread is interrupted while blocking.
+     * @throws NodeNotRunningException If the node containing this interface
+     *          has not started or has shut down.
+     * 
+     * @see #receiveRaw()
+     */
+    RawMessage receiveRaw(long time, TimeUnit timeUnit)
+            throws InterruptedException;
+    
+    /**
+     * Receives whatever messages are waiting at the interface, up to the
+     * given number, without blocking or decoding their payloads.
+     * 
+     * @param target The collection to add the messages to, in order.
+     * @param maxMessages The most messages to receive.
+     * @return The number of messages added to <tt>target</tt>.
+     * @throws NodeNotRunningException If the node containing this interface
+     *          has not started or has shut down.
+     * 
+     * @see #receiveRaw()
+     * @see #drainTo(Collection, int)
+     */
+    int drainRawTo(Collection<? super RawMessage> target, int maxMessages);
+    
+    /**
+     * Sends a message received by {@link #receiveRaw()} out through this
+     * interface, unchanged and without decoding it.
+     * 
+     * @param message The message to send.
+     * @throws DisconnectedException If the interface has been disconnected.
+     * @throws InterruptedException If the thread is interrupted while blocking.
+     * @throws NodeNotRunningException If the node containing this interface
+     *          has not started or has shut down.
+     */
+    void forwardRaw(RawMessage message)
+            throws DisconnectedException, InterruptedException;
+    
     /**
      * Get the index of the interface within the node's list of interfaces.
      * Each interface has a unique index within the node, and it's guaranteed
@@ -56,6 +165,92 @@ public interface Interface {
      */
     int index();
     
+    /**
+     * Get the number of messages sent to this interface that were dropped
+     * because its queue was full. Counts from the creation of the interface,
+     * across all its connections.
+     * 
+     * @return The number of dropped incoming messages.
+     * 
+     * @see LinkOptions#overflowPolicy(OverflowPolicy)
+     */
+    long dropCount();
+    
+    /**
+     * Check whether a message is waiting to be received, without receiving
+     * it. Only a hint if another thread is receiving from this interface at
+     * the same time.
+     * 
+     * @return True if a call to {@link #receive()} would not block.
+     * 
+     * @see InterfaceSelector
+     */
+    boolean hasMessages();
+    
+    /**
+     * Ask to be told whenever a message arrives on this interface. The
+     * listener is called from whichever thread delivered the message, so it
+     * must be quick and must never block.
+     * 
+     * @param listener The listener to add.
+     * 
+     * @see InterfaceSelector
+     */
+    void addReadinessListener(ReadinessListener listener);
+    
+    /**
+     * Stop telling a listener about arrivals on this interface.
+     * 
+     * @param listener The listener to remove. Does nothing if it was never
+     *      added.
+     */
+    void removeReadinessListener(ReadinessListener listener);
+    
+    /**
+     * Callback for arrivals on an interface.
+     * 
+     * @see Interface#addReadinessListener(ReadinessListener)
+     */
+    interface ReadinessListener {
+        /**
+         * Called after one or more messages become available on the
+         * interface. May be called spuriously.
+         * 
+         * @param iface The interface with messages waiting.
+         */
+        void messagesAvailable(Interface iface);
+    }
+    
+    /**
+     * A message as it travels on the wire. The header fields can be read
+     * without touching the payload, which is only decoded on demand.
+     * 
+     * @see Interface#receiveRaw()
+     * @see Interface#forwardRaw(RawMessage)
+     */
+    interface RawMessage {
+        /** @return The {@link Message#source} of the message. */
+        int source();
+        
+        /** @return The {@link Message#destination} of the message. */
+        int destination();
+        
+        /** @return The {@link Message#sourcePort} of the message. */
+        int sourcePort();
+        
+        /** @return The {@link Message#destinationPort} of the message. */
+        int destinationPort();
+        
+        /**
+         * Decode the whole message, payload included. Each call may return
+         * a new copy.
+         * 
+         * @return The decoded message.
+         * @throws MessageCodecException If the payload can't be decoded.
+         */
+        Message<?> decode();
+    }
+    
     /**
      * Exception indicating that an {@link Interface#send(Message)} call was
      * made to an interface that has been disconnected.
@@ -0,0 +1,258 @@
+package network;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Waits for messages on several interfaces at once, so that a kernel with
+ * many interfaces can sleep until one of them has something for it instead
+ * of polling each in turn. Much like {@link java.nio.channels.Selector}, but
+ * level-triggered: an interface is selected whenever it has a message
+ * waiting, whether or not it was selected last time, so there's no harm in
+ * leaving messages behind.
+ * <p>
+ * Interfaces can be registered and unregistered from any thread, even during
+ * a select, but only one thread may select at a time.
+ * <p>
+ * A kernel should make its selectors with its {@link TimerService}, so that
+ * a select lets a simulation in virtual time move on.
+ * 
+ * @see Interface#addReadinessListener(Interface.ReadinessListener)
+ */
+public final class InterfaceSelector {
+    private final CopyOnWriteArrayList<Interface> ifaces =
+        new CopyOnWriteArrayList<Interface>();
+    
+    /** Set when something may have changed since the selector last looked. */
+    private volatile boolean signalled;
+    /** Set by {@link #wakeup()}. */
+    private volatile boolean wakeupRequested;
+    /** The thread blocked in {@link #select}, if any. */
+    private volatile Thread waiter;
+    
+    /** What select waits in, if made with a timer service; else it parks */
+    private final Lock lock;
+    private final Condition changed;
+    
+    private final Interface.ReadinessListener listener =
+        new Interface.ReadinessListener() {
+            public void messagesAvailable(Interface iface) {
+                signal();
+            }
+        };
+    
+    /**
+     * Make a selector that waits in real time.
+     */
+    public InterfaceSelector() {
+        lock = null;
+        changed = null;
+    }
+    
+    /**
+     * Make a selector that waits on the given timer service's clock.
+     * 
+     * @param timer The timer service of the kernel that will select.
+     */
+    public InterfaceSelector(TimerService timer) {
+        lock = new ReentrantLock();
+        changed = timer.newCondition(lock);
+    }
+    
+    /**
+     * Start watching an interface.
+     * 
+     * @param iface The interface to watch. Does nothing if it's already
+     *      registered.
+     */
+    public void register(Interface iface) {
+        if (ifaces.addIfAbsent(iface)) {
+            iface.addReadinessListener(listener);
+            // It may have had messages waiting all along
+            signal();
+        }
+    }
+    
+    /**
+     * Stop watching an interface.
+     * 
+     * @param iface The interface to stop watching. Does nothing if it isn't
+     *      registered.
+     */
+    public void unregister(Interface iface) {
+        if (ifaces.remove(iface))
+            iface.removeReadinessListener(listener);
+    }
+    
+    /**
+     * @return An immutable view of the registered interfaces.
+     */
+    public List<Interface> interfaces() {
+        return Collections.unmodifiableList(ifaces);
+    }
+    
+    /**
+     * Find the interfaces with messages waiting, without blocking.
+     * 
+     * @param ready The collection to add the ready interfaces to.
+     * @return The number of interfaces added to <tt>ready</tt>.
+     */
+    public int selectNow(Collection<? super Interface> ready) {
+        int count = 0;
+        for (Interface iface : ifaces)
+            if (iface.hasMessages()) {
+                ready.add(iface);
+                count++;
+            }
+        return count;
+    }
+    
+    /**
+     * Wait until at least one interface has messages waiting, or until
+     * {@link #wakeup()} is called.
+     * 
+     * @param ready The collection to add the ready interfaces to.
+     * @return The number of interfaces added to <tt>ready</tt>. Only zero if
+     *      {@link #wakeup()} was called.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    public int select(Collection<? super Interface> ready)
+            throws InterruptedException {
+        return select(ready, false, 0);
+    }
+    
+    /**
+     * Wait up to the given time for at least one interface to have messages
+     * waiting, or until {@link #wakeup()} is called.
+     * 
+     * @param ready The collection to add the ready interfaces to.
+     * @param timeout The time to wait.
+     * @param unit The unit of <tt>timeout</tt>.
+     * @return The number of interfaces added to <tt>ready</tt>. Zero if the
+     *      time ran out or {@link #wakeup()} was called.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    public int select(Collection<? super Interface> ready, long timeout,
+            TimeUnit unit) throws InterruptedException {
+        return select(ready, true, unit.toNanos(timeout));
+    }
+    
+    private int select(Collection<? super Interface> ready, boolean timed,
+            long nanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + nanos;
+        final Thread current = Thread.currentThread();
+        
+        while (true) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            
+            // Anything that arrives from here on will set the flag again, so
+            // nothing can slip in between the check and the park
+            signalled = false;
+            final int count = selectNow(ready);
+            if (count > 0)
+                return count;
+            
+            if (wakeupRequested) {
+                wakeupRequested = false;
+                return 0;
+            }
+            
+            if (lock != null) {
+                if (timed && nanos <= 0)
+                    return 0;
+                nanos = await(timed, nanos);
+                continue;
+            }
+            
+            long remaining = 0;
+            if (timed && (remaining = deadline - System.nanoTime()) <= 0)
+                return 0;
+            
+            waiter = current;
+            if (!signalled) {
+                if (timed)
+                    LockSupport.parkNanos(this, remaining);
+                else
+                    LockSupport.park(this);
+            }
+            waiter = null;
+        }
+    }
+    
+    /**
+     * Wait on the condition until signalled.
+     * 
+     * @return The time left.
+     */
+    private long await(boolean timed, long nanos)
+            throws InterruptedException {
+        lock.lock();
+        try {
+            // Set before checking signalled, as signal() sets signalled
+            // before checking this, so one of us sees the other
+            waiter = Thread.currentThread();
+            if (signalled)
+                return nanos;
+            
+            if (timed)
+                return changed.awaitNanos(nanos);
+            changed.await();
+            return nanos;
+        } finally {
+            waiter = null;
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Make the current or next {@link #select} return right away, even if no
+     * interface is ready.
+     */
+    public void wakeup() {
+        wakeupRequested = true;
+        signalled = true;
+        wake(waiter);
+    }
+    
+    private void signal() {
+        // Save the unpark if the selector already knows to look again
+        if (!signalled) {
+            signalled = true;
+            final Thread waiter = this.waiter;
+            if (waiter != null)
+                wake(waiter);
+        }
+    }
+    
+    private void wake(Thread waiter) {
+        if (lock == null) {
+            LockSupport.unpark(waiter);
+            return;
+        }
+        
+        if (waiter != null) {
+            lock.lock();
+            try {
+                changed.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Unregister all interfaces.
+     */
+    public void close() {
+        for (Interface iface : ifaces)
+            unregister(iface);
+    }
+}
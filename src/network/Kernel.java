@@ -1,5 +1,6 @@
 package network;
 
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
 /**
@@ -57,10 +58,32 @@ public interface Kernel {
      * once <em>before</em> {@link #start()}; the thread may or not yet be
      * running.
      * 
-     * @param thread
+     * @param thread The kernel's thread, or null for a
+     *      {@link ReactiveKernel}, which has none.
      */
     void setMainThread(Thread thread);
     
+    /**
+     * Set the timer service the node can use for periodic and delayed
+     * tasks, instead of starting threads of its own to wait in. Will be
+     * called once <em>before</em> {@link #start()}.
+     * 
+     * @param timer The simulator's timer service.
+     */
+    void setTimerService(TimerService timer);
+    
+    /**
+     * Set the factory for any threads the kernel starts of its own. Threads
+     * from it run as the node, and may be virtual threads, so the kernel
+     * shouldn't count on them belonging to any thread group or on their
+     * names. Will be called once <em>before</em> {@link #start()}.
+     * 
+     * @param factory The node's thread factory.
+     * 
+     * @see SimulatorFactory.SimulatorBuilder#threadFactory(ThreadFactory)
+     */
+    void setThreadFactory(ThreadFactory factory);
+    
     /**
      * Handle a new interface. The interface will not yet be connected at the
      * time this is called, though it may become connected immediately after.
@@ -85,7 +108,8 @@ public interface Kernel {
     void interfaceDisconnected(Interface iface);
     
     /**
-     * Boot up the system. Will be called from a new thread.
+     * Boot up the system. Will be called from a new thread, or on an event
+     * loop for a {@link ReactiveKernel}.
      */
     void start() throws InterruptedException;
     
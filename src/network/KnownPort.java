@@ -1,7 +1,7 @@
 package network;
 
 public enum KnownPort {
-    UNKNOWN, RIP, HTTP, KERNEL_WHO;
+    UNKNOWN, RIP, HTTP, KERNEL_WHO, LINK_STATE;
     
     public int number() {
         return ordinal();
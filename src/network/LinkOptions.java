@@ -0,0 +1,206 @@
+package network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parameters for one direction of a connection between two nodes: how much
+ * can be queued, what happens when the queue overflows, and how fast and
+ * how far away the other end is. Each setter returns the object itself, so
+ * options can be chained:
+ * <pre>
+ *   sim.connect(a, b, new LinkOptions()
+ *           .capacity(64)
+ *           .overflowPolicy(OverflowPolicy.TAIL_DROP)
+ *           .delay(20, TimeUnit.MILLISECONDS)
+ *           .bandwidth(10000000));
+ * </pre>
+ * The options are copied when the connection is made, so one object can be
+ * reused for many links.
+ * 
+ * @see Simulator#connect(Node, Node, LinkOptions)
+ * @see Simulator#connect(Node, Node, LinkOptions, LinkOptions)
+ */
+public final class LinkOptions {
+    private int capacity = Integer.MAX_VALUE;
+    private long byteCapacity = Long.MAX_VALUE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private long delayNanos;
+    private long bandwidth = Long.MAX_VALUE;
+    private long jitterNanos;
+    private Jitter jitter = Jitter.UNIFORM;
+    
+    /**
+     * How the random part of a link's latency is distributed.
+     * 
+     * @see LinkOptions#jitter(long, TimeUnit, Jitter)
+     */
+    public enum Jitter {
+        /** Evenly spread between plus and minus the jitter amount. */
+        UNIFORM,
+        /** Normally distributed, with the jitter amount as standard deviation. */
+        NORMAL,
+        /**
+         * Exponentially distributed, with the jitter amount as mean. Only
+         * ever adds to the delay, like queueing in a busy network.
+         */
+        EXPONENTIAL,
+    }
+    
+    /**
+     * Limit the number of messages that can wait in each interface's queue.
+     * Unlimited by default.
+     * 
+     * @param messages The maximum number of queued messages.
+     * @return These options.
+     * @throws IllegalArgumentException If <tt>messages</tt> is not positive.
+     */
+    public LinkOptions capacity(int messages) {
+        if (messages <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        
+        this.capacity = messages;
+        return this;
+    }
+    
+    /**
+     * Limit the total encoded size of the messages that can wait in each
+     * interface's queue. A single message larger than this is still accepted
+     * into an empty queue. Unlimited by default.
+     * 
+     * @param bytes The maximum number of queued bytes.
+     * @return These options.
+     * @throws IllegalArgumentException If <tt>bytes</tt> is not positive.
+     */
+    public LinkOptions byteCapacity(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("Byte capacity must be positive");
+        
+        this.byteCapacity = bytes;
+        return this;
+    }
+    
+    /**
+     * Choose what happens to messages that arrive at a full queue. The
+     * default is {@link OverflowPolicy#BLOCK}.
+     * 
+     * @param policy The overflow policy.
+     * @return These options.
+     */
+    public LinkOptions overflowPolicy(OverflowPolicy policy) {
+        if (policy == null)
+            throw new NullPointerException();
+        
+        this.overflowPolicy = policy;
+        return this;
+    }
+    
+    /**
+     * Set the propagation delay: how long a message takes to reach the other
+     * end once it has been transmitted. Zero by default.
+     * 
+     * @param delay The delay.
+     * @param unit The unit of <tt>delay</tt>.
+     * @return These options.
+     * @throws IllegalArgumentException If <tt>delay</tt> is negative.
+     */
+    public LinkOptions delay(long delay, TimeUnit unit) {
+        if (delay < 0)
+            throw new IllegalArgumentException("Delay must not be negative");
+        
+        this.delayNanos = unit.toNanos(delay);
+        return this;
+    }
+    
+    /**
+     * Set the bandwidth. Each message then takes time to transmit in
+     * proportion to its encoded size, and waits for the messages sent ahead
+     * of it to finish transmitting. Unlimited by default.
+     * 
+     * @param bitsPerSecond The bandwidth, in bits per second.
+     * @return These options.
+     * @throws IllegalArgumentException If <tt>bitsPerSecond</tt> is not
+     *      positive.
+     */
+    public LinkOptions bandwidth(long bitsPerSecond) {
+        if (bitsPerSecond <= 0)
+            throw new IllegalArgumentException("Bandwidth must be positive");
+        
+        this.bandwidth = bitsPerSecond;
+        return this;
+    }
+    
+    /**
+     * Add uniformly distributed jitter to the propagation delay. Same as
+     * {@link #jitter(long, TimeUnit, Jitter)} with {@link Jitter#UNIFORM}.
+     * 
+     * @param amount The maximum deviation from the delay.
+     * @param unit The unit of <tt>amount</tt>.
+     * @return These options.
+     */
+    public LinkOptions jitter(long amount, TimeUnit unit) {
+        return jitter(amount, unit, Jitter.UNIFORM);
+    }
+    
+    /**
+     * Add random jitter to the propagation delay. The total delay never goes
+     * below zero, and messages are never reordered by jitter: a message is
+     * not delivered before the one sent ahead of it. None by default.
+     * 
+     * @param amount The scale of the jitter; see {@link Jitter} for its
+     *      meaning under each distribution.
+     * @param unit The unit of <tt>amount</tt>.
+     * @param distribution How the jitter is distributed.
+     * @return These options.
+     * @throws IllegalArgumentException If <tt>amount</tt> is negative.
+     */
+    public LinkOptions jitter(long amount, TimeUnit unit,
+            Jitter distribution) {
+        if (amount < 0)
+            throw new IllegalArgumentException("Jitter must not be negative");
+        if (distribution == null)
+            throw new NullPointerException();
+        
+        this.jitterNanos = unit.toNanos(amount);
+        this.jitter = distribution;
+        return this;
+    }
+    
+    public int capacity() {
+        return capacity;
+    }
+    
+    public long byteCapacity() {
+        return byteCapacity;
+    }
+    
+    public OverflowPolicy overflowPolicy() {
+        return overflowPolicy;
+    }
+    
+    public long delay(TimeUnit unit) {
+        return unit.convert(delayNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    public long bandwidth() {
+        return bandwidth;
+    }
+    
+    public long jitter(TimeUnit unit) {
+        return unit.convert(jitterNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    public Jitter jitterDistribution() {
+        return jitter;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("LinkOptions [capacity %s, %s bytes, %s, " +
+                "delay %d ns, %s bps, %s jitter %d ns]",
+                capacity == Integer.MAX_VALUE ? "unlimited" : capacity,
+                byteCapacity == Long.MAX_VALUE ? "unlimited" : byteCapacity,
+                overflowPolicy, delayNanos,
+                bandwidth == Long.MAX_VALUE ? "unlimited" : bandwidth,
+                jitter, jitterNanos);
+    }
+}
@@ -0,0 +1,135 @@
+package network;
+
+/**
+ * Limits on the messages a host's process has waiting to be received: how
+ * many can wait on each port and on the node as a whole, what happens when
+ * there's no room, and whether ports the process hasn't bound take messages
+ * at all. Each setter returns the object itself, so options can be chained:
+ * <pre>
+ *   sim.createUserKernel(process, new MailboxOptions()
+ *           .capacity(1000)
+ *           .totalCapacity(10000)
+ *           .overflowPolicy(OverflowPolicy.TAIL_DROP)
+ *           .rejectUnboundPorts(true));
+ * </pre>
+ * Only messages queued for a thread to receive count against the limits;
+ * one that goes straight to a {@link OperatingSystem.MessageHandler handler}
+ * or a waiting receiver never waits. The options are copied when the kernel
+ * is created, so one object can be reused for many kernels.
+ * 
+ * @see Simulator#createUserKernel(Process, MailboxOptions)
+ * @see SimulatorFactory.SimulatorBuilder#mailboxOptions(MailboxOptions)
+ * @see OperatingSystem#bind(int, int)
+ * @see UserKernel#dropCount()
+ */
+public final class MailboxOptions {
+    private int capacity = Integer.MAX_VALUE;
+    private int totalCapacity = Integer.MAX_VALUE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private boolean rejectUnboundPorts;
+    
+    /**
+     * Limit the number of messages that can wait on each port. A port can
+     * be given a limit of its own with {@link OperatingSystem#bind(int,
+     * int)}. Unlimited by default.
+     * 
+     * @param messages The maximum number of queued messages per port.
+     * @return These options.
+     * @throws IllegalArgumentException If <tt>messages</tt> is not positive.
+     */
+    public MailboxOptions capacity(int messages) {
+        if (messages <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        
+        this.capacity = messages;
+        return this;
+    }
+    
+    /**
+     * Limit the number of messages that can wait on all of a node's ports
+     * together. Unlimited by default.
+     * 
+     * @param messages The maximum number of queued messages on the node.
+     * @return These options.
+     * @throws IllegalArgumentException If <tt>messages</tt> is not positive.
+     */
+    public MailboxOptions totalCapacity(int messages) {
+        if (messages <= 0)
+            throw new IllegalArgumentException(
+                    "Total capacity must be positive");
+        
+        this.totalCapacity = messages;
+        return this;
+    }
+    
+    /**
+     * Choose what happens to a message that arrives when its port or the
+     * node is full:
+     * <ul>
+     * <li>{@link OverflowPolicy#BLOCK}, the default, stops taking messages
+     * off the node's interface until a receive makes room. Nothing is
+     * dropped; later messages back up into the link's queue, where its own
+     * capacity and overflow policy apply, whichever port they're for.
+     * <li>{@link OverflowPolicy#TAIL_DROP} drops the incoming message.
+     * <li>{@link OverflowPolicy#HEAD_DROP} drops the oldest message waiting
+     * on the same port, or the incoming one if none is.
+     * </ul>
+     * 
+     * @param policy The overflow policy.
+     * @return These options.
+     * @throws IllegalArgumentException If <tt>policy</tt> is
+     *      {@link OverflowPolicy#RED}, which only applies to links.
+     */
+    public MailboxOptions overflowPolicy(OverflowPolicy policy) {
+        if (policy == null)
+            throw new NullPointerException();
+        if (policy == OverflowPolicy.RED)
+            throw new IllegalArgumentException(
+                    "RED isn't supported for mailboxes");
+        
+        this.overflowPolicy = policy;
+        return this;
+    }
+    
+    /**
+     * Drop messages sent to ports the process hasn't bound, without keeping
+     * anything for them. A port is bound by receiving on it, setting a
+     * handler on it or calling {@link OperatingSystem#bind(int)}. Otherwise,
+     * the default, every port takes messages until the process
+     * {@link OperatingSystem#unbind(int) unbinds} it.
+     * 
+     * @param enabled Whether to drop messages to unbound ports.
+     * @return These options.
+     */
+    public MailboxOptions rejectUnboundPorts(boolean enabled) {
+        this.rejectUnboundPorts = enabled;
+        return this;
+    }
+    
+    public int capacity() {
+        return capacity;
+    }
+    
+    public int totalCapacity() {
+        return totalCapacity;
+    }
+    
+    public OverflowPolicy overflowPolicy() {
+        return overflowPolicy;
+    }
+    
+    public boolean rejectUnboundPorts() {
+        return rejectUnboundPorts;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("MailboxOptions [capacity %s, %s in total, " +
+                "%s, %s unbound ports]",
+                capacity == Integer.MAX_VALUE ? "unlimited" : capacity,
+                totalCapacity == Integer.MAX_VALUE ?
+                        "unlimited" : totalCapacity,
+                overflowPolicy,
+                rejectUnboundPorts ? "rejecting" : "accepting");
+    }
+}
@@ -0,0 +1,14 @@
+package network;
+
+/**
+ * Exception indicating that a message couldn't be encoded to cross a link,
+ * or decoded on the other side: its payload has no codec, say, or its
+ * codec failed. The cause, if any, says what went wrong.
+ */
+public class MessageCodecException extends IllegalStateException {
+    private static final long serialVersionUID = 3118466092742285149L;
+    
+    public MessageCodecException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -135,6 +135,264 @@ public interface OperatingSystem {
     Message<?> receive(KnownPort port, long timeout, TimeUnit unit)
             throws InterruptedException;
     
+    /**
+     * Receive the next message sent to the given port on this node that the
+     * given filter accepts. Blocks until such a message is received. Messages
+     * the filter turns down stay queued for other receivers.
+     * <p>
+     * The messages already queued are each checked once, oldest first; after
+     * that, each message is checked once as it arrives, and only wakes the
+     * thread if accepted. Like a {@link #receiveAsync(int) receive without a
+     * thread}, this gets messages before threads blocked in
+     * {@link #receive(int)}. With a {@link PayloadFilter}, an arriving
+     * message isn't even checked unless its payload is of the class wanted.
+     * <p>
+     * Each receive starts over from the oldest queued message, though, as
+     * nothing says a filter will turn a message down a second time. So a
+     * process that leaves many messages queued that it doesn't want, and
+     * receives selectively in a loop, pays for every one of them on each
+     * receive. Messages it will never want are better sent to another
+     * port, or taken off by a {@link #setHandler(int, MessageHandler)
+     * handler}.
+     * 
+     * @param port The port to listen on.
+     * @param filter Which message to receive, as described under
+     *      {@link MessageFilter}.
+     * @return The next message this node receives that the filter accepts.
+     * @throws InterruptedException If the thread is interrupted. 
+     */
+    Message<?> receive(int port, MessageFilter filter)
+            throws InterruptedException;
+    
+    /**
+     * Receive the next message sent to the given port on this node that the
+     * given filter accepts. Blocks until such a message is received.
+     * 
+     * @param port The port to listen on.
+     * @param filter Which message to receive.
+     * @return The next message this node receives that the filter accepts.
+     * @throws InterruptedException If the thread is interrupted. 
+     * 
+     * @see #receive(int, MessageFilter)
+     */
+    Message<?> receive(KnownPort port, MessageFilter filter)
+            throws InterruptedException;
+    
+    /**
+     * Receive the next message sent to the given port on this node that the
+     * given filter accepts. Blocks until such a message is received or
+     * timeout occurs.
+     * 
+     * @param port The port to listen on.
+     * @param filter Which message to receive.
+     * @param timeout How long to wait before timing out.
+     * @param unit The unit for <tt>timeout</tt>.
+     * @return The next message this node receives that the filter accepts,
+     *          or <tt>null</tt> if timeout occurs before then.
+     * @throws InterruptedException If the thread is interrupted. 
+     * 
+     * @see #receive(int, MessageFilter)
+     */
+    Message<?> receive(int port, MessageFilter filter, long timeout,
+            TimeUnit unit) throws InterruptedException;
+    
+    /**
+     * Receive the next message sent to the given port on this node that the
+     * given filter accepts. Blocks until such a message is received or
+     * timeout occurs.
+     * 
+     * @param port The port to listen on.
+     * @param filter Which message to receive.
+     * @param timeout How long to wait before timing out.
+     * @param unit The unit for <tt>timeout</tt>.
+     * @return The next message this node receives that the filter accepts,
+     *          or <tt>null</tt> if timeout occurs before then.
+     * @throws InterruptedException If the thread is interrupted. 
+     * 
+     * @see #receive(int, MessageFilter)
+     */
+    Message<?> receive(KnownPort port, MessageFilter filter, long timeout,
+            TimeUnit unit) throws InterruptedException;
+    
+    /**
+     * Receive the next message sent to any of the given ports on this node.
+     * Blocks until a message is received. If messages are already queued on
+     * more than one of the ports, the first port listed wins.
+     * <p>
+     * The thread waits once for all the ports, rather than polling each in
+     * turn, and is only woken by a message it receives. Like a
+     * {@link #receiveAsync(int) receive without a thread}, this gets messages
+     * before threads blocked in {@link #receive(int)}.
+     * 
+     * @param ports The ports to listen on.
+     * @return The next message this node receives on any of them; its
+     *          {@link Message#destinationPort} says which.
+     * @throws InterruptedException If the thread is interrupted. 
+     */
+    Message<?> receiveAny(int... ports) throws InterruptedException;
+    
+    /**
+     * Receive the next message sent to any of the given ports on this node.
+     * Blocks until a message is received or timeout occurs.
+     * 
+     * @param timeout How long to wait before timing out.
+     * @param unit The unit for <tt>timeout</tt>.
+     * @param ports The ports to listen on.
+     * @return The next message this node receives on any of them, or
+     *          <tt>null</tt> if timeout occurs before then.
+     * @throws InterruptedException If the thread is interrupted. 
+     * 
+     * @see #receiveAny(int...)
+     */
+    Message<?> receiveAny(long timeout, TimeUnit unit, int... ports)
+            throws InterruptedException;
+    
+    /**
+     * Have the given port take messages, if it didn't. Only needed when
+     * unbound ports are rejected, and then only for a port the process
+     * wants messages queued on before it first receives on it or sets a
+     * handler on it, either of which binds the port anyway.
+     * 
+     * @param port The port to bind.
+     * 
+     * @see MailboxOptions#rejectUnboundPorts(boolean)
+     */
+    void bind(int port);
+    
+    /**
+     * Have the given port take messages, if it didn't, and give it a
+     * capacity of its own in place of the node's
+     * {@link MailboxOptions#capacity(int) default}.
+     * 
+     * @param port The port to bind.
+     * @param capacity The most messages that can wait on the port.
+     * @throws IllegalArgumentException If <tt>capacity</tt> is not positive.
+     */
+    void bind(int port, int capacity);
+    
+    /**
+     * Stop the given port taking messages: those waiting are dropped, along
+     * with any that arrive until it's bound again. Any handler is removed
+     * and any {@link #receiveAsync(int) receive without a thread} is
+     * cancelled; a thread blocked in {@link #receive(int)} keeps waiting.
+     * 
+     * @param port The port to unbind.
+     */
+    void unbind(int port);
+    
+    /**
+     * Get the number of messages sent to the given port that were dropped,
+     * because it was full or unbound, since the process started.
+     * 
+     * @param port The port.
+     * @return The number of messages dropped on the port.
+     * 
+     * @see UserKernel#dropCount()
+     */
+    long dropCount(int port);
+    
+    /**
+     * Receive the next message sent to the given port on this node, without
+     * waiting for it. A process can have any number of these outstanding
+     * at once, on any ports, with no thread apiece. They get messages
+     * before threads blocked in {@link #receive(int)}, oldest first.
+     * Cancelling one gives up its place in line.
+     * <p>
+     * Waiting on the result is measured on the simulation's clock, as
+     * {@link #receive(int)} is.
+     * 
+     * @param port The port to listen on.
+     * @return The next message to arrive at the port, once it does.
+     */
+    Future<Message<?>> receiveAsync(int port);
+    
+    /**
+     * Receive the next message sent to the given port on this node, without
+     * waiting for it.
+     * 
+     * @param port The port to listen on.
+     * @return The next message to arrive at the port, once it does.
+     * 
+     * @see #receiveAsync(int)
+     */
+    Future<Message<?>> receiveAsync(KnownPort port);
+    
+    /**
+     * Receive the next message sent to the given port on this node, without
+     * waiting for it, and pass it to the given handler when it arrives.
+     * 
+     * @param port The port to listen on.
+     * @param handler Called with the message, as described under
+     *      {@link MessageHandler}.
+     * @return The next message to arrive at the port, once it does.
+     * 
+     * @see #receiveAsync(int)
+     */
+    Future<Message<?>> receiveAsync(int port, MessageHandler handler);
+    
+    /**
+     * Have every message sent to the given port on this node passed to a
+     * handler, rather than queued for {@link #receive(int)}. Any messages
+     * already queued go to the handler first. It takes priority over any
+     * {@link #receiveAsync(int) outstanding receives} on the port.
+     * <p>
+     * Handlers only run while the process does: once {@link Process#run}
+     * returns, they're dropped, and outstanding receives are cancelled.
+     * 
+     * @param port The port to listen on.
+     * @param handler The handler, or <code>null</code> to go back to
+     *      queueing messages.
+     */
+    void setHandler(int port, MessageHandler handler);
+    
+    /**
+     * Have every message sent to the given port on this node passed to a
+     * handler, rather than queued for {@link #receive(int)}.
+     * 
+     * @param port The port to listen on.
+     * @param handler The handler, or <code>null</code> to go back to
+     *      queueing messages.
+     * 
+     * @see #setHandler(int, MessageHandler)
+     */
+    void setHandler(KnownPort port, MessageHandler handler);
+    
+    /**
+     * Send a message without waiting for it to leave the interface. Messages
+     * sent this way go out in the order they were given, from one of the
+     * simulator's shared threads. If the link is full, a message waits its
+     * turn for room without holding that thread up.
+     * 
+     * @param message The message to send.
+     * @return Done once the message has left the interface. If the node was
+     *      disconnected, getting the result throws an
+     *      {@link java.util.concurrent.ExecutionException} caused by a
+     *      {@link DisconnectedException}.
+     */
+    Future<Void> sendAsync(Message<?> message);
+    
+    /**
+     * Wait for the given time to pass. Use this rather than
+     * {@link Thread#sleep(long)}, which holds the clock still in a
+     * simulation running in virtual time.
+     * 
+     * @param time The time to wait.
+     * @param unit The unit for <tt>time</tt>.
+     * @throws InterruptedException If the thread is interrupted.
+     * 
+     * @see SimulatorFactory.SimulatorBuilder#virtualTime(boolean)
+     */
+    void sleep(long time, TimeUnit unit) throws InterruptedException;
+    
+    /**
+     * Read the simulation's clock, which is only good for measuring
+     * intervals. In virtual time it counts simulated time; otherwise it's
+     * the same as {@link System#nanoTime()}.
+     * 
+     * @return The current time, in nanoseconds.
+     */
+    long nanoTime();
+    
     // XXX Also we need more exceptions, like RoutingExceptions for when the
     // destination can't be found and such.
     
@@ -148,14 +406,103 @@ public interface OperatingSystem {
     
     /**
      * Spawn a new thread. This should be used instead of built-in Java thread
-     * creation mechanisms so that the threads can be kept track of. 
+     * creation mechanisms so that the threads can be kept track of. If the
+     * simulator or host has a {@link SimulatorFactory.SimulatorBuilder#forkPool
+     * fork pool}, the task runs on one of its workers instead, once one is
+     * free.
      * 
      * @param runnable The Runnable to run in the new thread.
      * @return A {@link Future} that can be used to control the new thread. Its
      * value will always be null.
+     * @see #forkThread(Runnable)
      */
     Future<?> fork(Runnable runnable);
     
+    /**
+     * Spawn a new thread, even if there's a fork pool. Use this for a task
+     * that runs as long as the process does, or waits on others forked
+     * alongside it; on a pool, such tasks could take every worker and leave
+     * the rest waiting for one forever. Otherwise the same as
+     * {@link #fork(Runnable)}.
+     * 
+     * @param runnable The Runnable to run in the new thread.
+     * @return A {@link Future} that can be used to control the new thread. Its
+     * value will always be null.
+     */
+    Future<?> forkThread(Runnable runnable);
+    
+    /**
+     * Handles messages arriving at a port, in place of a thread waiting for
+     * them. Handlers are called one at a time for each process, in order of
+     * arrival, on one of the simulator's shared event loops; like a
+     * {@link ReactiveKernel}'s callbacks, they hold up everything else on
+     * the loop while they run, so they should never wait for anything. A
+     * send from a handler doesn't wait for room on the link, either: if the
+     * link is full, the message is held until there's room, with nothing to
+     * limit how many are held. To find out when a message has gone, send it
+     * with {@link OperatingSystem#sendAsync(Message)}.
+     * 
+     * @see OperatingSystem#setHandler(int, MessageHandler)
+     * @see OperatingSystem#receiveAsync(int, MessageHandler)
+     */
+    interface MessageHandler {
+        /**
+         * Handle a message.
+         * 
+         * @param message The message.
+         */
+        void messageReceived(Message<?> message);
+    }
+    
+    /**
+     * Picks out the messages a {@link OperatingSystem#receive(int,
+     * MessageFilter) selective receive} wants. A filter is called in
+     * whichever thread delivers the message, with the port's mailbox locked,
+     * so it should be quick and never wait for anything. If it throws, the
+     * receive throws the same exception.
+     */
+    interface MessageFilter {
+        /**
+         * Decide whether to receive a message.
+         * 
+         * @param message The message.
+         * @return Whether to receive it.
+         */
+        boolean accept(Message<?> message);
+    }
+    
+    /**
+     * Picks out the messages whose payload is of exactly the given class.
+     * Mailboxes recognize these, and keep their receivers by class, so an
+     * arriving message is only offered to receivers waiting for its class
+     * (and any with filters of their own), however many are waiting for
+     * other classes.
+     */
+    final class PayloadFilter implements MessageFilter {
+        private final Class<?> type;
+        
+        /**
+         * @param type The class of payload to accept. Subclasses don't
+         *      count.
+         */
+        public PayloadFilter(Class<?> type) {
+            if (type == null)
+                throw new NullPointerException();
+            this.type = type;
+        }
+        
+        /**
+         * @return The class of payload this accepts.
+         */
+        public Class<?> type() {
+            return type;
+        }
+        
+        public boolean accept(Message<?> message) {
+            return message.data != null && message.data.getClass() == type;
+        }
+    }
+    
     /**
      * Exception indicating that an {@link OperatingSystem#send(Message)} call
      * was made when the node is not connected to any other.
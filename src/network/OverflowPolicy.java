@@ -0,0 +1,37 @@
+package network;
+
+/**
+ * What an interface does with an incoming message when its queue is already
+ * at capacity.
+ * 
+ * @see LinkOptions#overflowPolicy(OverflowPolicy)
+ */
+public enum OverflowPolicy {
+    /**
+     * Make the sender wait until there is room. Nothing is ever dropped.
+     * This is the default.
+     * <p>
+     * A sender on one of the simulator's shared threads, such as a
+     * {@link ReactiveKernel}'s callback, doesn't wait: its message is held
+     * until there is room, ahead of any other sender's.
+     */
+    BLOCK,
+    
+    /**
+     * Drop the incoming message.
+     */
+    TAIL_DROP,
+    
+    /**
+     * Drop the oldest messages in the queue until the incoming one fits.
+     */
+    HEAD_DROP,
+    
+    /**
+     * Random early detection: once the average queue occupancy passes half
+     * of capacity, drop incoming messages with a probability that grows
+     * linearly up to 10% as the queue approaches full. A message that
+     * arrives when the queue is actually full is always dropped.
+     */
+    RED,
+}
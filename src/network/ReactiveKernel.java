@@ -0,0 +1,52 @@
+package network;
+
+/**
+ * A kernel that needs no thread of its own. Rather than blocking in
+ * {@link #start()} for the life of the node, it's called back whenever
+ * something happens, from a small pool of event loops shared by every
+ * reactive kernel in the simulation, one per processor. Thousands of
+ * routers can then share a handful of threads, each staying on the same
+ * one from message to message.
+ * <p>
+ * {@link #start()} is called on the node's event loop and must return
+ * promptly. After that, messages arriving on each interface are handed to
+ * {@link #onMessage(Interface, Interface.RawMessage)} in order, from one
+ * loop at a time; interfaces are spread over up to {@link #parallelism()}
+ * loops, so callbacks for different interfaces may run at once. Tasks
+ * given to the kernel's {@link TimerService} run on the node's first
+ * loop too, rather than in the timer's own threads.
+ * <p>
+ * Callbacks hold up every other node on the same loop for as long as they
+ * run, so they should never wait for anything. Sends from a callback don't
+ * wait for room on a link either, since whatever would make the room may
+ * be waiting its turn on the same loop: a message that finds its link full
+ * under {@link OverflowPolicy#BLOCK} is held until there's room, and no
+ * more messages are taken off the interface the callback's message came
+ * in on until it's through. There's no main thread:
+ * {@link #setMainThread(Thread)} is passed <code>null</code>. When
+ * {@link #shutDown()} returns, no callback is running and none will be.
+ */
+public interface ReactiveKernel extends Kernel {
+    /**
+     * Handle a message that has arrived on an interface. Only the header
+     * has been read; the payload is decoded by {@link
+     * Interface.RawMessage#decode()}, if at all, so a router can pass it on
+     * with {@link Interface#forwardRaw(Interface.RawMessage)} untouched.
+     * 
+     * @param iface The interface the message arrived on.
+     * @param message The message.
+     * @throws InterruptedException If the simulator is shutting down while
+     *          the kernel is handling the message.
+     */
+    void onMessage(Interface iface, Interface.RawMessage message)
+            throws InterruptedException;
+    
+    /**
+     * Get the most event loops the kernel's interfaces should be spread
+     * over. Read once, when the node is created.
+     * 
+     * @return The number of loops; 1 to have every callback for the node
+     *      come from the same loop, one at a time.
+     */
+    int parallelism();
+}
@@ -1,5 +1,8 @@
 package network;
 
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -27,6 +30,40 @@ public interface Simulator {
      */
     NodeBuilder buildNode(int address);
     
+    /**
+     * Build a whole network at once. For large networks this is much faster
+     * than a {@link NodeBuilder} per node, as the nodes and links are made
+     * in parallel. The nodes get consecutive addresses, in order, and the
+     * usual autogenerated names; each one's interfaces are numbered in the
+     * order its links are given. If the simulation has already started, so
+     * do the new nodes.
+     * 
+     * @param lowerAdjacencies For each node, the lower-numbered nodes it's
+     *      linked to.
+     * @param kernels Makes each node's kernel, or null for this simulator's
+     *      default router kernel throughout.
+     * @return The new nodes, in order.
+     * @throws IllegalArgumentException If a node is linked to itself or to a
+     *      higher-numbered node.
+     */
+    List<Node> buildTopology(BitSet[] lowerAdjacencies, KernelFactory kernels);
+    
+    /**
+     * Build a whole network at once, from a list of links.
+     * 
+     * @param nodeCount The number of nodes.
+     * @param links Each link, as the indices of the two nodes it joins.
+     * @param kernels Makes each node's kernel, or null for this simulator's
+     *      default router kernel throughout.
+     * @return The new nodes, in order.
+     * @throws IllegalArgumentException If a link doesn't join two different
+     *      nodes in range.
+     * 
+     * @see #buildTopology(BitSet[], KernelFactory)
+     */
+    List<Node> buildTopology(int nodeCount, int[][] links,
+            KernelFactory kernels);
+    
     /**
      * Shut down the given node completely and remove it from the simulation.
      * The node should be discarded at this point. 
@@ -60,6 +97,36 @@ public interface Simulator {
      */
     Interface connect(Node a, Node b);
     
+    /**
+     * Connect one node to another, with the given parameters for the link.
+     * Otherwise the same as {@link #connect(Node, Node)}.
+     * 
+     * @param a One of the nodes to connect.
+     * @param b The other node.
+     * @param options The link parameters, applied in both directions.
+     * @return The new interface on <tt>a</tt>, connecting it to <tt>b</tt>.
+     * @throws IllegalArgumentException If either {@code a} or {@code b} is not
+     *      a part of this simulation.
+     */
+    Interface connect(Node a, Node b, LinkOptions options);
+    
+    /**
+     * Connect one node to another, with different parameters for each
+     * direction of the link. Otherwise the same as
+     * {@link #connect(Node, Node)}.
+     * 
+     * @param a One of the nodes to connect.
+     * @param b The other node.
+     * @param aToB The parameters for messages sent from <tt>a</tt> to
+     *      <tt>b</tt>.
+     * @param bToA The parameters for messages sent from <tt>b</tt> to
+     *      <tt>a</tt>.
+     * @return The new interface on <tt>a</tt>, connecting it to <tt>b</tt>.
+     * @throws IllegalArgumentException If either {@code a} or {@code b} is not
+     *      a part of this simulation.
+     */
+    Interface connect(Node a, Node b, LinkOptions aToB, LinkOptions bToA);
+    
     /**
      * Disconnect an interface, destroying it and its peer on the other node.
      * 
@@ -76,6 +143,27 @@ public interface Simulator {
      */
     Kernel createRouterKernel();
     
+    /**
+     * Create an instance of this simulator's default kernel for router nodes,
+     * forwarding messages on several of the simulator's event loops at
+     * once. Each interface is served by one loop, so messages arriving on
+     * the same interface stay in order.
+     * 
+     * @param forwardingThreads The number of loops to forward messages on.
+     * @return A new {@link Kernel} object with routing capabilities.
+     */
+    Kernel createRouterKernel(int forwardingThreads);
+    
+    /**
+     * Create a kernel for router nodes that uses link-state routing instead
+     * of RIP. Routes settle and recover from failures faster, at the cost of
+     * every router keeping a map of the whole network. All routers in a
+     * network should use the same kind of kernel.
+     * 
+     * @return A new {@link Kernel} object with routing capabilities.
+     */
+    Kernel createLinkStateRouterKernel();
+    
     /**
      * Create an instance of this simulator's default kernel for hosts.
      * 
@@ -98,6 +186,20 @@ public interface Simulator {
      */
     UserKernel createUserKernel(Process process);
     
+    /**
+     * Create an instance of this simulator's default kernel for hosts,
+     * preloaded with the given process, with its own limits on the messages
+     * waiting to be received.
+     * 
+     * @param process The process to load into the new kernel, or
+     *      <code>null</code> for none yet.
+     * @param options The limits for the kernel's mailboxes.
+     * @return A new {@link UserKernel} object containing the given process.
+     * 
+     * @see SimulatorFactory.SimulatorBuilder#mailboxOptions(MailboxOptions)
+     */
+    UserKernel createUserKernel(Process process, MailboxOptions options);
+    
     /**
      * Begin the simulation.
      */
@@ -109,6 +211,19 @@ public interface Simulator {
      */
     void destroy();
     
+    /**
+     * End the simulation as {@link #destroy()} does, but only wait so long
+     * for the nodes to stop. Every node is cut off and told to shut down at
+     * once, then they're all waited for together, so even a large
+     * simulation goes down about as fast as its slowest node.
+     * 
+     * @param timeout The most time to wait.
+     * @param unit The unit of <tt>timeout</tt>.
+     * @return True if every node stopped in time. If not, the threads still
+     *      running have been interrupted and left to finish on their own.
+     */
+    boolean destroy(long timeout, TimeUnit unit);
+    
     /**
      * Get the logger used by the simulator for top-level messages.
      * 
@@ -116,6 +231,23 @@ public interface Simulator {
      */
     Logger logger();
     
+    /**
+     * Makes the kernels for a network built all at once.
+     * 
+     * @see Simulator#buildTopology(BitSet[], KernelFactory)
+     */
+    interface KernelFactory {
+        /**
+         * Make the kernel for one node. May be called from several threads
+         * at once.
+         * 
+         * @param index The node's index in the topology.
+         * @return A new kernel, or null for this simulator's default router
+         *      kernel.
+         */
+        Kernel createKernel(int index);
+    }
+    
     /**
      * A constructor object for {@link Node} objects. 
      *
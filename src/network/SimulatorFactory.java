@@ -2,6 +2,8 @@ package network;
 
 import java.util.Iterator;
 import java.util.ServiceLoader;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Entry point to the network simulator. Use {@link #instance()} to find an
@@ -25,5 +27,156 @@ public abstract class SimulatorFactory {
             return iter.next();
     }
     
-    public abstract Simulator createSimulator();
+    /**
+     * Create a simulator with all the default settings. Equivalent to
+     * <code>buildSimulator().create()</code>.
+     * 
+     * @return A new simulator.
+     */
+    public Simulator createSimulator() {
+        return buildSimulator().create();
+    }
+    
+    /**
+     * Begin constructing a simulator with non-default settings.
+     * 
+     * @return A {@link SimulatorBuilder} object to parameterize and create
+     *      the new simulator.
+     */
+    public abstract SimulatorBuilder buildSimulator();
+    
+    /**
+     * A constructor object for {@link Simulator} objects.
+     * 
+     * @see SimulatorFactory#buildSimulator()
+     */
+    public interface SimulatorBuilder {
+        /**
+         * Choose how messages are passed between interfaces. The default is
+         * {@link TransportMode#COPY}.
+         * 
+         * @param mode The transport mode to use.
+         * @return This simulator builder.
+         */
+        SimulatorBuilder transportMode(TransportMode mode);
+        
+        /**
+         * Declare the given payload types to be immutable, as if they
+         * implemented {@link Immutable}. Only consulted in
+         * {@link TransportMode#BY_REFERENCE} mode. Strings, boxed primitives
+         * and enums are always considered immutable. Cumulative with other
+         * calls to this method.
+         * 
+         * @param types The classes to treat as immutable. Only the exact
+         *      classes are affected, not their subclasses.
+         * @return This simulator builder.
+         */
+        SimulatorBuilder immutableTypes(Class<?> ... types);
+        
+        /**
+         * Have the simulator compute each router's routes from the
+         * topology, instead of leaving the routers to find them with their
+         * routing protocol. The routes are installed before
+         * {@link Simulator#start()} returns, so traffic can flow right away,
+         * and are updated before each {@link Simulator#connect(Node, Node)}
+         * or {@link Simulator#disconnect(Interface)} returns. Only the
+         * routers the simulator creates are affected. Off by default.
+         * 
+         * @param enabled Whether to compute routes from the topology.
+         * @return This simulator builder.
+         */
+        SimulatorBuilder oracleRouting(boolean enabled);
+        
+        /**
+         * Choose how the simulator creates the threads nodes run in: each
+         * node's kernel thread, the event loops shared by routers and other
+         * {@link ReactiveKernel}s, and a process's own thread along with its
+         * message processor and any threads it forks. The factory's threads
+         * are renamed to say what they're for. By default, they're plain
+         * platform threads.
+         * <p>
+         * On a Java runtime with virtual threads, passing
+         * <code>Thread.ofVirtual().factory()</code> lets a simulation have
+         * far more nodes than the platform could give threads to. The
+         * simulator only ever blocks these threads in
+         * {@link java.util.concurrent.locks.LockSupport#park} and the
+         * {@link java.util.concurrent.locks.Lock}s built on it, never in a
+         * monitor, so a receiving node doesn't tie up a carrier thread.
+         * 
+         * @param factory The factory for node threads, or null for the
+         *      default.
+         * @return This simulator builder.
+         */
+        SimulatorBuilder threadFactory(ThreadFactory factory);
+        
+        /**
+         * Run the simulation in virtual time, as a discrete-event
+         * simulation. The clock stands still while any node is doing
+         * anything, and when every node is waiting, it jumps straight to
+         * the next thing due to happen: a timeout, the end of a
+         * {@link OperatingSystem#sleep}, a link delay or a routing update.
+         * Simulations that mostly wait then run as fast as the work in them
+         * allows, and come out the same way from one run to the next far
+         * more often. Off by default.
+         * <p>
+         * Only waiting done through the simulator lets the clock move: in
+         * {@link OperatingSystem#receive(int, long, TimeUnit)} and
+         * {@link OperatingSystem#sleep}, in the {@link Interface} methods,
+         * and, in kernels, through their {@link TimerService}. A node
+         * thread in {@link Thread#sleep}, for instance, holds the clock
+         * still for as long as it really sleeps. Threads outside the
+         * simulation, like a test's, can't hold the clock still, and wait
+         * in real time.
+         * 
+         * @param enabled Whether to run in virtual time.
+         * @return This simulator builder.
+         * @see OperatingSystem#nanoTime()
+         */
+        SimulatorBuilder virtualTime(boolean enabled);
+        
+        /**
+         * Set the limits on the messages waiting to be received at each
+         * host that {@link Simulator#createUserKernel(Process)} creates.
+         * Unlimited by default. The options are copied, so later changes
+         * to them have no effect.
+         * 
+         * @param options The limits for hosts' mailboxes.
+         * @return This simulator builder.
+         * @see Simulator#createUserKernel(Process, MailboxOptions)
+         */
+        SimulatorBuilder mailboxOptions(MailboxOptions options);
+        
+        /**
+         * Run the tasks hosts' processes {@link OperatingSystem#fork fork}
+         * on one pool of worker threads they all share, rather than
+         * starting a thread for each. A burst of forks then queues for the
+         * workers instead of creating threads, and idle workers steal queued
+         * tasks from busy ones. By default, or given 0, each forked task
+         * gets a thread of its own. A host can be given a pool of its own
+         * with {@link UserKernel#setForkPool(int)}.
+         * <p>
+         * The pool is only as big as it's told to be, so a forked task that
+         * waits, for a message say, keeps a worker from the other tasks
+         * until it's done. Give a pool to forks that do a bounded amount of
+         * work; long-lived loops and conversations are better off in threads
+         * of their own, from {@link OperatingSystem#forkThread}, or in
+         * {@link OperatingSystem.MessageHandler handlers}. The pool's workers
+         * are always platform threads, not made by the
+         * {@link #threadFactory(ThreadFactory) thread factory}.
+         * 
+         * @param parallelism How many workers the pool has, or 0 for no
+         *      pool.
+         * @return This simulator builder.
+         * @throws IllegalArgumentException If <tt>parallelism</tt> is
+         *      negative.
+         */
+        SimulatorBuilder forkPool(int parallelism);
+        
+        /**
+         * Create the simulator as parameterized.
+         * 
+         * @return The simulator created by this builder.
+         */
+        Simulator create();
+    }
 }
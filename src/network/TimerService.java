@@ -0,0 +1,98 @@
+package network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Runs kernels' timed tasks: periodic updates, retransmissions and the like.
+ * One is shared by every kernel in a simulation, so a thousand routers don't
+ * need a thousand threads just to wake up every few seconds.
+ * <p>
+ * Tasks run in a small pool of threads shared by all the kernels, so they
+ * shouldn't block for long, and a kernel's tasks may run at the same time as
+ * each other and as the kernel's own threads. Sends from a task never wait
+ * for room on a link: a message that finds its link full under
+ * {@link OverflowPolicy#BLOCK} is held until there's room.
+ * <p>
+ * It's also the simulation's clock. In a simulator running in virtual time,
+ * kernels must tell time with {@link #nanoTime()}, and wait with
+ * {@link #sleep} and conditions from {@link #newCondition(Lock)}, for time
+ * to pass while they wait.
+ * 
+ * @see Kernel#setTimerService(TimerService)
+ * @see SimulatorFactory.SimulatorBuilder#virtualTime(boolean)
+ */
+public interface TimerService {
+    /**
+     * A task that has been scheduled.
+     */
+    interface Timeout {
+        /**
+         * Keep the task from running again. A run already in progress is
+         * left to finish.
+         * 
+         * @return False if the task had already been cancelled, or was a
+         *      one-shot task that has already started.
+         */
+        boolean cancel();
+    }
+    
+    /**
+     * Run a task once, after the given delay.
+     * 
+     * @param task The task to run.
+     * @param delay The time to wait.
+     * @param unit The unit of <tt>delay</tt>.
+     * @return A handle for cancelling the task.
+     * @throws IllegalStateException If the simulator has been destroyed.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit);
+    
+    /**
+     * Run a task after the given delay, then again and again with the given
+     * delay between the end of one run and the start of the next. Each delay
+     * after the first is varied at random by up to a tenth either way, so
+     * that tasks started together spread out rather than all coming due at
+     * once.
+     * 
+     * @param task The task to run.
+     * @param initialDelay The time to wait before the first run.
+     * @param delay The time to wait between runs, on average.
+     * @param unit The unit of <tt>initialDelay</tt> and <tt>delay</tt>.
+     * @return A handle for cancelling the task.
+     * @throws IllegalStateException If the simulator has been destroyed.
+     */
+    Timeout scheduleWithFixedDelay(Runnable task, long initialDelay,
+            long delay, TimeUnit unit);
+    
+    /**
+     * Read the simulation's clock. Only good for measuring intervals, like
+     * {@link System#nanoTime()}, which it is unless the simulator runs in
+     * virtual time.
+     * 
+     * @return The current time, in nanoseconds.
+     */
+    long nanoTime();
+    
+    /**
+     * Wait for the given time to pass on the simulation's clock.
+     * 
+     * @param time The time to wait.
+     * @param unit The unit of <tt>time</tt>.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    void sleep(long time, TimeUnit unit) throws InterruptedException;
+    
+    /**
+     * Make a condition whose timed waits are measured on the simulation's
+     * clock. In virtual time, a node thread waiting in one lets the clock
+     * move on, and {@link Condition#awaitUntil} waits for as long as the
+     * deadline is from now in real time.
+     * 
+     * @param lock The lock the condition goes with. Each wait must hold it
+     *      exactly once.
+     * @return A new condition.
+     */
+    Condition newCondition(Lock lock);
+}
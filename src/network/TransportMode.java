@@ -0,0 +1,24 @@
+package network;
+
+/**
+ * How messages travel from one {@link Interface} to its peer.
+ * 
+ * @see SimulatorFactory.SimulatorBuilder#transportMode(TransportMode)
+ */
+public enum TransportMode {
+    /**
+     * Every message is encoded to bytes when sent and decoded into a fresh
+     * copy when received, just as if it had gone over a real wire. This is
+     * the default, and it guarantees that no two nodes ever share an object.
+     */
+    COPY,
+    
+    /**
+     * Messages whose payloads are known to be immutable are passed to the
+     * peer by reference, skipping the encode and decode steps entirely. All
+     * other messages are still copied.
+     * 
+     * @see Immutable
+     */
+    BY_REFERENCE,
+}
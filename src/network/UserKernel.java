@@ -7,4 +7,30 @@ package network;
  */
 public interface UserKernel extends Kernel {
     void setProcess(Process process);
+    
+    /**
+     * Get the number of messages sent to this node that were dropped before
+     * a process could receive them, because their port was full or unbound
+     * or the node was full.
+     * 
+     * @return The number of messages dropped.
+     * 
+     * @see MailboxOptions
+     */
+    long dropCount();
+    
+    /**
+     * Give this host a pool of worker threads of its own to run the tasks
+     * its processes {@link OperatingSystem#fork fork}, in place of the
+     * simulator's. The pool is made along with the first fork and goes when
+     * the node shuts down.
+     * 
+     * @param parallelism How many workers the pool has, or 0 to go back to
+     *      the simulator's choice.
+     * @throws IllegalArgumentException If <tt>parallelism</tt> is negative.
+     * @throws IllegalStateException If the host has already made its pool.
+     * 
+     * @see SimulatorFactory.SimulatorBuilder#forkPool(int)
+     */
+    void setForkPool(int parallelism);
 }
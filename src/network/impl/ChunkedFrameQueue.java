@@ -0,0 +1,480 @@
+package network.impl;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The fields written by producers. The classes up to {@link ChunkedFrameQueue}
+ * exist only to control field layout: the JVM groups fields by type within a
+ * class, but lays out a superclass's fields before its subclass's, so this
+ * is the only reliable way to keep the producers' and the consumer's fields
+ * on different cache lines.
+ */
+abstract class ChunkedFrameQueueProducerFields {
+    volatile ChunkedFrameQueue.Chunk tail;
+    /** A consumed chunk waiting to be reused by the owner, if any. */
+    volatile ChunkedFrameQueue.Chunk spare;
+    volatile Thread owner;
+    volatile boolean ownerBusy, multiProducer, switched;
+}
+
+abstract class ChunkedFrameQueuePadding
+        extends ChunkedFrameQueueProducerFields {
+    long p0, p1, p2, p3, p4, p5, p6, p7;
+}
+
+abstract class ChunkedFrameQueueConsumerFields
+        extends ChunkedFrameQueuePadding {
+    ChunkedFrameQueue.Chunk head;
+    int headIndex;
+    volatile Thread waiter;
+    volatile boolean closed;
+    volatile Thread consumer;
+    volatile boolean consumerBusy, multiConsumer, consumerSwitched;
+    /** Made by the second thread to consume, if there ever is one. */
+    volatile ReentrantLock consumerLock;
+}
+
+/**
+ * An unbounded, lock-free queue of frames. Frames are
+ * stored in preallocated arrays ("chunks") linked end to end, so nothing is
+ * allocated per frame; a new chunk is only needed every
+ * {@link Chunk#SIZE} frames. The first chunk is smaller, so that an idle
+ * queue costs little.
+ * <p>
+ * The queue starts out in single-producer mode, owned by the first thread
+ * to add to it; the owner claims slots with plain ordered writes and no
+ * atomic read-modify-write. The first time a different thread adds a frame,
+ * the queue switches permanently to multiple-producer mode, where slots are
+ * claimed with an atomic increment. The switch is a Dekker-style handshake:
+ * the owner announces each add on {@link #ownerBusy} before checking
+ * {@link #multiProducer}, and the newcomer sets {@link #multiProducer} and
+ * then waits for the owner to be idle, so the two can never claim a slot
+ * the old way and the new way at the same time.
+ * <p>
+ * A consumer with nothing to do parks itself after publishing itself as
+ * {@link #waiter}; producers unpark it after publishing a frame.
+ * <p>
+ * Consumers switch the same way. The first thread to take a frame becomes
+ * the {@link #consumer} and takes frames without locking. The first time a
+ * different thread takes one, it makes the {@link #consumerLock}, which
+ * every consumer holds from then on, waits included, so that there's only
+ * ever one waiter; the old consumer is woken in case it was waiting, so it
+ * can wait its turn for the lock instead.
+ * <p>
+ * So that a steady stream of frames allocates nothing at all, the queue also
+ * passes garbage back to the owner: in single-producer mode, the consumer
+ * hands each chunk it finishes back as the {@link #spare}, and frames the
+ * consumer is done with can be {@link #recycle(Frame) recycled} for the
+ * owner to {@link #reuse()}.
+ */
+final class ChunkedFrameQueue extends ChunkedFrameQueueConsumerFields {
+    long q0, q1, q2, q3, q4, q5, q6, q7;
+    
+    /** How many recycled frames to keep. Must be a power of two. */
+    private static final int FREE_FRAMES = 64;
+    
+    /**
+     * Recycled frames, in a ring buffer with the consumer adding at
+     * {@link #freeTail} and the owner taking from {@link #freeHead}.
+     */
+    private final Frame[] free = new Frame[FREE_FRAMES];
+    private final AtomicLong
+        freeHead = new AtomicLong(),
+        freeTail = new AtomicLong();
+    
+    private static final
+        AtomicReferenceFieldUpdater<ChunkedFrameQueueProducerFields, Thread>
+            OWNER = AtomicReferenceFieldUpdater.newUpdater(
+                    ChunkedFrameQueueProducerFields.class, Thread.class,
+                    "owner");
+    private static final
+        AtomicReferenceFieldUpdater<ChunkedFrameQueueProducerFields, Chunk>
+            TAIL = AtomicReferenceFieldUpdater.newUpdater(
+                    ChunkedFrameQueueProducerFields.class, Chunk.class,
+                    "tail");
+    private static final
+        AtomicReferenceFieldUpdater<ChunkedFrameQueueConsumerFields, Thread>
+            CONSUMER = AtomicReferenceFieldUpdater.newUpdater(
+                    ChunkedFrameQueueConsumerFields.class, Thread.class,
+                    "consumer"),
+            WAITER = AtomicReferenceFieldUpdater.newUpdater(
+                    ChunkedFrameQueueConsumerFields.class, Thread.class,
+                    "waiter");
+    
+    static final class Chunk {
+        static final int SIZE = 256;
+        /**
+         * The size of a queue's first chunk. Most links in a big simulation
+         * never carry much, so they needn't pay for a full chunk each.
+         */
+        static final int FIRST_SIZE = 16;
+        private static final AtomicReferenceFieldUpdater<Chunk, Chunk> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(
+                    Chunk.class, Chunk.class, "next");
+        
+        final int size;
+        final AtomicReferenceArray<Frame> slots;
+        /** Slots handed out so far. Can overshoot size when contended. */
+        final AtomicInteger claimed = new AtomicInteger();
+        volatile Chunk next;
+        
+        Chunk(int size) {
+            this.size = size;
+            this.slots = new AtomicReferenceArray<Frame>(size);
+        }
+    }
+    
+    ChunkedFrameQueue() {
+        head = tail = new Chunk(Chunk.FIRST_SIZE);
+    }
+    
+    /**
+     * Add a frame without waking the consumer; call {@link #wake()}
+     * afterward. Never blocks.
+     */
+    void add(Frame frame) {
+        final Thread current = Thread.currentThread();
+        
+        if (owner == current ||
+                (owner == null && OWNER.compareAndSet(this, null, current))) {
+            ownerBusy = true;
+            if (!multiProducer) {
+                addSingle(frame);
+                ownerBusy = false;
+                return;
+            }
+            ownerBusy = false;
+        } else if (!switched) {
+            multiProducer = true;
+            // Let the owner finish any add it started the old way
+            while (ownerBusy)
+                Thread.yield();
+            switched = true;
+        }
+        
+        addMulti(frame);
+    }
+    
+    private void addSingle(Frame frame) {
+        final Chunk chunk = tail;
+        final int ix = chunk.claimed.get();
+        
+        if (ix < chunk.size) {
+            chunk.claimed.lazySet(ix + 1);
+            chunk.slots.set(ix, frame);
+        } else {
+            Chunk next = spare;
+            if (next != null)
+                spare = null;
+            else
+                next = new Chunk(Chunk.SIZE);
+            next.claimed.lazySet(1);
+            next.slots.set(0, frame);
+            chunk.next = next;
+            tail = next;
+        }
+    }
+    
+    private void addMulti(Frame frame) {
+        while (true) {
+            final Chunk chunk = tail;
+            final int ix = chunk.claimed.getAndIncrement();
+            if (ix < chunk.size) {
+                chunk.slots.set(ix, frame);
+                return;
+            }
+            
+            // Full; make sure there's a next chunk, then help move on to it
+            Chunk next = chunk.next;
+            if (next == null) {
+                final Chunk fresh = new Chunk(Chunk.SIZE);
+                next = Chunk.NEXT.compareAndSet(chunk, null, fresh) ?
+                        fresh : chunk.next;
+            }
+            TAIL.compareAndSet(this, chunk, next);
+        }
+    }
+    
+    /**
+     * Wake the consumer, if it's waiting.
+     */
+    void wake() {
+        final Thread waiter = this.waiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+    }
+    
+    /**
+     * Check for a frame without taking it. Only a hint if called from a
+     * thread other than the consumer.
+     */
+    boolean isEmpty() {
+        Chunk chunk = head;
+        int ix = headIndex;
+        
+        // The two can be out of step when read from another thread
+        if (ix >= chunk.size) {
+            chunk = chunk.next;
+            if (chunk == null)
+                return true;
+            ix = 0;
+        }
+        
+        return chunk.slots.get(ix) == null;
+    }
+    
+    /**
+     * Get ready to take frames, following the same handshake as producers.
+     * 
+     * @return Whether the caller must hold {@link #consumerLock}. If not,
+     *      it must clear {@link #consumerBusy} once it's done.
+     */
+    private boolean enterConsumer() {
+        final Thread current = Thread.currentThread();
+        
+        if (consumer == current || (consumer == null &&
+                CONSUMER.compareAndSet(this, null, current))) {
+            consumerBusy = true;
+            if (!multiConsumer)
+                return false;
+            consumerBusy = false;
+        } else if (!consumerSwitched)
+            switchConsumers();
+        
+        return true;
+    }
+    
+    private synchronized void switchConsumers() {
+        if (consumerSwitched)
+            return;
+        
+        consumerLock = new ReentrantLock();
+        multiConsumer = true;
+        // Let the old consumer finish any poll it started the old way
+        while (consumerBusy)
+            Thread.yield();
+        LockSupport.unpark(consumer);
+        consumerSwitched = true;
+    }
+    
+    /**
+     * Take the next frame if there is one.
+     */
+    Frame poll() {
+        if (!enterConsumer())
+            try {
+                return next();
+            } finally {
+                consumerBusy = false;
+            }
+        
+        // Held only by a consumer that's taking a frame or waiting for one,
+        // which would get there first anyway
+        final ReentrantLock lock = consumerLock;
+        if (!lock.tryLock())
+            return null;
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private Frame next() {
+        Chunk chunk = head;
+        int ix = headIndex;
+        
+        if (ix == chunk.size) {
+            final Chunk next = chunk.next;
+            if (next == null)
+                return null;
+            
+            // Once a second producer is around, a chunk can't be reused
+            // safely, since a producer may still be looking at it. Until
+            // then, the owner linked in the next chunk before moving on to
+            // it, and a newcomer waits for that before claiming anything.
+            if (!multiProducer && spare == null) {
+                chunk.claimed.set(0);
+                chunk.next = null;
+                spare = chunk;
+            }
+            
+            head = chunk = next;
+            headIndex = ix = 0;
+        }
+        
+        // A claimed slot that's still empty is as good as an empty queue; its
+        // producer will wake us when it's done
+        final Frame frame = chunk.slots.get(ix);
+        if (frame == null)
+            return null;
+        
+        // Don't hold on to the frame longer than the consumer does
+        chunk.slots.lazySet(ix, null);
+        headIndex = ix + 1;
+        return frame;
+    }
+    
+    /**
+     * Take the next frame, waiting as long as necessary.
+     * 
+     * @return The frame, or null if the queue was closed.
+     */
+    Frame take() throws InterruptedException {
+        return poll(-1);
+    }
+    
+    /**
+     * Take the next frame, waiting up to the given time.
+     * 
+     * @param nanos The time to wait, or a negative number to wait forever.
+     * @return The frame, or null on timeout or if the queue was closed.
+     */
+    Frame poll(long nanos) throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (nanos == 0)
+            return poll();
+        
+        final long deadline = System.nanoTime() + nanos;
+        final Thread current = Thread.currentThread();
+        ReentrantLock lock = null;
+        try {
+            while (true) {
+                if (lock == null && enterConsumer()) {
+                    if (!lock(consumerLock, nanos, deadline))
+                        return null;
+                    lock = consumerLock;
+                }
+                
+                try {
+                    Frame frame = next();
+                    if (frame != null || closed)
+                        return frame;
+                    
+                    waiter = current;
+                    // Check again now that producers can see us, or we might
+                    // miss the wakeup for a frame added in between
+                    if ((frame = next()) != null) {
+                        WAITER.compareAndSet(this, current, null);
+                        return frame;
+                    }
+                } finally {
+                    if (lock == null)
+                        consumerBusy = false;
+                }
+                
+                if (nanos < 0)
+                    LockSupport.park(this);
+                else {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        WAITER.compareAndSet(this, current, null);
+                        return null;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+                // Another consumer may have taken over as the waiter
+                WAITER.compareAndSet(this, current, null);
+                
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        } finally {
+            if (lock != null)
+                lock.unlock();
+        }
+    }
+    
+    /**
+     * @return Whether the lock was acquired before the deadline.
+     */
+    private static boolean lock(ReentrantLock lock, long nanos, long deadline)
+            throws InterruptedException {
+        if (nanos < 0) {
+            lock.lockInterruptibly();
+            return true;
+        }
+        return lock.tryLock(deadline - System.nanoTime(),
+                TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Take up to <tt>max</tt> frames without waiting.
+     * 
+     * @return The number of frames added to <tt>target</tt>.
+     */
+    int drainTo(Collection<? super Frame> target, int max) {
+        int count = 0;
+        Frame frame;
+        while (count < max && (frame = poll()) != null) {
+            target.add(frame);
+            count++;
+        }
+        return count;
+    }
+    
+    /**
+     * Hand back a frame the consumer is done with, so that the owner can
+     * reuse it. Does nothing if enough frames are waiting already, or once
+     * more than one thread has consumed, since only one may add to the ring.
+     */
+    void recycle(Frame frame) {
+        if (multiConsumer || consumer != Thread.currentThread())
+            return;
+        
+        final long tail = freeTail.get();
+        if (tail - freeHead.get() == FREE_FRAMES)
+            return;
+        
+        free[(int) tail & (FREE_FRAMES - 1)] = frame;
+        freeTail.lazySet(tail + 1);
+    }
+    
+    /**
+     * Take back a recycled frame, if the current thread is the owner and
+     * there is one.
+     */
+    Frame reuse() {
+        if (owner != Thread.currentThread())
+            return null;
+        
+        final long head = freeHead.get();
+        if (head == freeTail.get())
+            return null;
+        
+        final int ix = (int) head & (FREE_FRAMES - 1);
+        final Frame frame = free[ix];
+        free[ix] = null;
+        freeHead.lazySet(head + 1);
+        return frame;
+    }
+    
+    /**
+     * Retire the queue, waking the consumer if it's waiting. Frames still
+     * in the queue are abandoned.
+     */
+    void close() {
+        closed = true;
+        wake();
+    }
+    
+    boolean isClosed() {
+        return closed;
+    }
+    
+    @Override
+    public String toString() {
+        return "ChunkedFrameQueue [" +
+            (multiProducer ? "multiple producers" : "single producer") +
+            (multiConsumer ? ", multiple consumers" : "") +
+            (closed ? ", closed]" : "]");
+    }
+}
@@ -0,0 +1,637 @@
+package network.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import network.Message;
+import network.protocols.HTTP;
+import network.protocols.LinkState;
+import network.protocols.RIP;
+
+/**
+ * Registry of {@link MessageCodec}s, and the wire format built on them.
+ * <p>
+ * An encoded message is a fixed-size header followed by the payload:
+ * <pre>
+ *   int   source
+ *   int   destination
+ *   int   source port
+ *   int   destination port
+ *   short payload tag
+ *   ...   payload
+ * </pre>
+ * The tag is {@link #NULL_TAG} for a null payload, {@link #SERIALIZED_TAG}
+ * if the payload had no codec and was written with Java serialization, or
+ * the tag assigned to the payload's codec when it was registered. Tags are
+ * only meaningful within a single JVM, which is all the simulator needs.
+ * <p>
+ * Codecs for strings, boxed primitives, {@link RIP} datagrams,
+ * {@link LinkState} advertisements and {@link HTTP} requests and responses
+ * are registered automatically.
+ */
+public final class Codecs {
+    /** Size in bytes of the fixed message header. */
+    public static final int HEADER_SIZE = 18;
+    
+    static final int
+        SOURCE_OFFSET = 0,
+        DESTINATION_OFFSET = 4,
+        SOURCE_PORT_OFFSET = 8,
+        DESTINATION_PORT_OFFSET = 12,
+        TAG_OFFSET = 16;
+    
+    static final short
+        NULL_TAG = 0,
+        SERIALIZED_TAG = 1,
+        FIRST_CODEC_TAG = 2;
+    
+    private static final Map<Class<?>, Short> tagsByType =
+        new ConcurrentHashMap<Class<?>, Short>();
+    private static volatile MessageCodec<?>[] codecsByTag =
+        new MessageCodec<?>[0];
+    
+    static {
+        register(new StringCodec());
+        register(new BooleanCodec());
+        register(new CharacterCodec());
+        register(new ByteCodec());
+        register(new ShortCodec());
+        register(new IntegerCodec());
+        register(new LongCodec());
+        register(new FloatCodec());
+        register(new DoubleCodec());
+        register(new RIPEntryCodec());
+        register(new RIPDatagramCodec());
+        register(new LinkStateAdvertisementCodec());
+        register(new HTTPRequestCodec());
+        register(new HTTPResponseCodec());
+    }
+    
+    /**
+     * Register a codec, to be used for every subsequent message whose
+     * payload is of exactly the codec's {@link MessageCodec#type() type}.
+     * 
+     * @param codec The codec to register.
+     * @throws IllegalArgumentException If a codec is already registered for
+     *      the same type.
+     */
+    public static synchronized void register(MessageCodec<?> codec) {
+        final Class<?> type = codec.type();
+        if (tagsByType.containsKey(type))
+            throw new IllegalArgumentException(
+                    "Codec already registered for " + type.getName());
+        
+        final MessageCodec<?>[] oldCodecs = codecsByTag;
+        if (FIRST_CODEC_TAG + oldCodecs.length > Short.MAX_VALUE)
+            throw new IllegalStateException("Too many codecs registered");
+        
+        final MessageCodec<?>[] newCodecs =
+            Arrays.copyOf(oldCodecs, oldCodecs.length + 1);
+        newCodecs[oldCodecs.length] = codec;
+        
+        // Publish the codec before its tag, so that anyone who can find the
+        // tag can also decode it
+        codecsByTag = newCodecs;
+        tagsByType.put(type, (short) (FIRST_CODEC_TAG + oldCodecs.length));
+    }
+    
+    /**
+     * Encode a message in the wire format.
+     * 
+     * @param message The message to encode.
+     * @return The encoded message.
+     * @throws IOException If the payload's codec fails, or the payload has no
+     *      codec and cannot be serialized.
+     */
+    public static byte[] encode(Message<?> message) throws IOException {
+        final Encoder encoder = encoder();
+        encoder.encode(message);
+        return encoder.toByteArray();
+    }
+    
+    private static final ThreadLocal<Encoder> encoders =
+        new ThreadLocal<Encoder>() {
+            @Override
+            protected Encoder initialValue() {
+                return new Encoder();
+            }
+        };
+    
+    private static final ThreadLocal<Decoder> decoders =
+        new ThreadLocal<Decoder>() {
+            @Override
+            protected Decoder initialValue() {
+                return new Decoder();
+            }
+        };
+    
+    /**
+     * @return The current thread's encoder.
+     */
+    static Encoder encoder() {
+        final Encoder encoder = encoders.get();
+        // A codec may encode a message of its own while we're in the middle
+        // of one; it can't have our buffer
+        return encoder.busy ? new Encoder() : encoder;
+    }
+    
+    /**
+     * Encodes messages into a buffer that is kept from one message to the
+     * next, so that encoding a codec-backed payload allocates nothing. Each
+     * thread has its own; see {@link Codecs#encoder()}.
+     */
+    static final class Encoder {
+        private final Buffer bytes = new Buffer();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private boolean busy;
+        
+        private Encoder() { }
+        
+        /**
+         * Encode a message into the buffer, replacing what was there.
+         * 
+         * @return The length of the encoded message.
+         */
+        int encode(Message<?> message) throws IOException {
+            bytes.reset();
+            busy = true;
+            try {
+                writeMessage(message, out);
+            } finally {
+                busy = false;
+            }
+            return bytes.size();
+        }
+        
+        /**
+         * Copy the last message encoded into the given array, which must be
+         * big enough to hold it.
+         */
+        void copyTo(byte[] dest) {
+            System.arraycopy(bytes.buffer(), 0, dest, 0, bytes.size());
+        }
+        
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+    
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(64);
+        }
+        
+        byte[] buffer() {
+            return buf;
+        }
+    }
+    
+    /**
+     * Reads messages out of arrays without allocating any streams of its own.
+     * Each thread has its own.
+     */
+    private static final class Decoder {
+        private final Input bytes = new Input();
+        private final DataInputStream in = new DataInputStream(bytes);
+        private boolean busy;
+        
+        Message<?> decode(byte[] bytes, int length)
+                throws IOException, ClassNotFoundException {
+            this.bytes.reset(bytes, length);
+            busy = true;
+            try {
+                return readMessage(this.bytes, in);
+            } finally {
+                busy = false;
+                // Don't keep the array alive
+                this.bytes.reset(null, 0);
+            }
+        }
+    }
+    
+    private static final class Input extends ByteArrayInputStream {
+        Input() {
+            super(new byte[0]);
+        }
+        
+        void reset(byte[] bytes, int length) {
+            this.buf = bytes;
+            this.pos = 0;
+            this.mark = 0;
+            this.count = length;
+        }
+    }
+    
+    private static void writeMessage(Message<?> message, DataOutputStream out)
+            throws IOException {
+        out.writeInt(message.source);
+        out.writeInt(message.destination);
+        out.writeInt(message.sourcePort);
+        out.writeInt(message.destinationPort);
+        
+        final Serializable data = message.data;
+        if (data == null) {
+            out.writeShort(NULL_TAG);
+        } else {
+            final Short tag = tagsByType.get(data.getClass());
+            if (tag != null) {
+                out.writeShort(tag);
+                encodeWith(codecsByTag[tag - FIRST_CODEC_TAG], data, out);
+            } else {
+                out.writeShort(SERIALIZED_TAG);
+                final ObjectOutputStream objOut = new ObjectOutputStream(out);
+                objOut.writeObject(data);
+                objOut.flush();
+            }
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T extends Serializable> void encodeWith(
+            MessageCodec<T> codec, Serializable data, DataOutput out)
+                throws IOException {
+        codec.encode((T) data, out);
+    }
+    
+    /**
+     * Decode a message written by {@link #encode(Message)}.
+     * 
+     * @param bytes The encoded message.
+     * @return A new message equivalent to the one encoded.
+     * @throws IOException If the data is malformed.
+     * @throws ClassNotFoundException If the payload was serialized and its
+     *      class cannot be found.
+     */
+    public static Message<?> decode(byte[] bytes)
+            throws IOException, ClassNotFoundException {
+        return decode(bytes, bytes.length);
+    }
+    
+    /**
+     * Decode a message from the start of an array that may be longer than
+     * the message.
+     */
+    static Message<?> decode(byte[] bytes, int length)
+            throws IOException, ClassNotFoundException {
+        Decoder decoder = decoders.get();
+        if (decoder.busy)
+            decoder = new Decoder();
+        return decoder.decode(bytes, length);
+    }
+    
+    private static Message<?> readMessage(
+            ByteArrayInputStream byteIn, DataInputStream in)
+                throws IOException, ClassNotFoundException {
+        final int source = in.readInt();
+        final int destination = in.readInt();
+        final int sourcePort = in.readInt();
+        final int destinationPort = in.readInt();
+        final short tag = in.readShort();
+        
+        final Serializable data;
+        if (tag == NULL_TAG) {
+            data = null;
+        } else if (tag == SERIALIZED_TAG) {
+            data = (Serializable) new ObjectInputStream(byteIn).readObject();
+        } else {
+            final MessageCodec<?>[] codecs = codecsByTag;
+            final int ix = tag - FIRST_CODEC_TAG;
+            if (ix < 0 || ix >= codecs.length)
+                throw new StreamCorruptedException("Unknown payload tag: " + tag);
+            data = codecs[ix].decode(in);
+        }
+        
+        return new Message<Serializable>(
+                source, destination, sourcePort, destinationPort, data);
+    }
+    
+    /**
+     * Write a string, which may be null or of any length. Strings that are
+     * mostly ASCII take about one byte per character.
+     * 
+     * @param string The string to write.
+     * @param out The destination.
+     * @throws IOException If the destination throws it.
+     * 
+     * @see #readString(DataInput)
+     */
+    public static void writeString(String string, DataOutput out)
+            throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        
+        final int length = string.length();
+        out.writeInt(length);
+        for (int ix = 0; ix < length; ix++) {
+            final char c = string.charAt(ix);
+            if (c != 0 && c < 0x80) {
+                out.writeByte(c);
+            } else if (c < 0x800) {
+                out.writeByte(0xc0 | (c >> 6));
+                out.writeByte(0x80 | (c & 0x3f));
+            } else {
+                out.writeByte(0xe0 | (c >> 12));
+                out.writeByte(0x80 | ((c >> 6) & 0x3f));
+                out.writeByte(0x80 | (c & 0x3f));
+            }
+        }
+    }
+    
+    /**
+     * Read a string written by {@link #writeString(String, DataOutput)}.
+     * 
+     * @param in The source.
+     * @return The string read, possibly null.
+     * @throws IOException If the data is malformed or the source throws it.
+     */
+    public static String readString(DataInput in) throws IOException {
+        final int length = in.readInt();
+        if (length == -1)
+            return null;
+        if (length < 0)
+            throw new StreamCorruptedException("Bad string length: " + length);
+        
+        final char[] chars = new char[length];
+        for (int ix = 0; ix < length; ix++) {
+            final int b = in.readUnsignedByte();
+            if (b < 0x80)
+                chars[ix] = (char) b;
+            else if (b < 0xe0)
+                chars[ix] = (char) (((b & 0x1f) << 6) |
+                        (in.readUnsignedByte() & 0x3f));
+            else
+                chars[ix] = (char) (((b & 0x0f) << 12) |
+                        ((in.readUnsignedByte() & 0x3f) << 6) |
+                        (in.readUnsignedByte() & 0x3f));
+        }
+        
+        return new String(chars);
+    }
+    
+    private static final class StringCodec implements MessageCodec<String> {
+        public Class<String> type() { return String.class; }
+        
+        public void encode(String value, DataOutput out) throws IOException {
+            writeString(value, out);
+        }
+        
+        public String decode(DataInput in) throws IOException {
+            return readString(in);
+        }
+    }
+    
+    private static final class BooleanCodec implements MessageCodec<Boolean> {
+        public Class<Boolean> type() { return Boolean.class; }
+        
+        public void encode(Boolean value, DataOutput out) throws IOException {
+            out.writeBoolean(value);
+        }
+        
+        public Boolean decode(DataInput in) throws IOException {
+            return in.readBoolean();
+        }
+    }
+    
+    private static final class CharacterCodec
+            implements MessageCodec<Character> {
+        public Class<Character> type() { return Character.class; }
+        
+        public void encode(Character value, DataOutput out) throws IOException {
+            out.writeChar(value);
+        }
+        
+        public Character decode(DataInput in) throws IOException {
+            return in.readChar();
+        }
+    }
+    
+    private static final class ByteCodec implements MessageCodec<Byte> {
+        public Class<Byte> type() { return Byte.class; }
+        
+        public void encode(Byte value, DataOutput out) throws IOException {
+            out.writeByte(value);
+        }
+        
+        public Byte decode(DataInput in) throws IOException {
+            return in.readByte();
+        }
+    }
+    
+    private static final class ShortCodec implements MessageCodec<Short> {
+        public Class<Short> type() { return Short.class; }
+        
+        public void encode(Short value, DataOutput out) throws IOException {
+            out.writeShort(value);
+        }
+        
+        public Short decode(DataInput in) throws IOException {
+            return in.readShort();
+        }
+    }
+    
+    private static final class IntegerCodec implements MessageCodec<Integer> {
+        public Class<Integer> type() { return Integer.class; }
+        
+        public void encode(Integer value, DataOutput out) throws IOException {
+            out.writeInt(value);
+        }
+        
+        public Integer decode(DataInput in) throws IOException {
+            return in.readInt();
+        }
+    }
+    
+    private static final class LongCodec implements MessageCodec<Long> {
+        public Class<Long> type() { return Long.class; }
+        
+        public void encode(Long value, DataOutput out) throws IOException {
+            out.writeLong(value);
+        }
+        
+        public Long decode(DataInput in) throws IOException {
+            return in.readLong();
+        }
+    }
+    
+    private static final class FloatCodec implements MessageCodec<Float> {
+        public Class<Float> type() { return Float.class; }
+        
+        public void encode(Float value, DataOutput out) throws IOException {
+            out.writeFloat(value);
+        }
+        
+        public Float decode(DataInput in) throws IOException {
+            return in.readFloat();
+        }
+    }
+    
+    private static final class DoubleCodec implements MessageCodec<Double> {
+        public Class<Double> type() { return Double.class; }
+        
+        public void encode(Double value, DataOutput out) throws IOException {
+            out.writeDouble(value);
+        }
+        
+        public Double decode(DataInput in) throws IOException {
+            return in.readDouble();
+        }
+    }
+    
+    private static final class RIPEntryCodec
+            implements MessageCodec<RIP.Datagram.Entry> {
+        public Class<RIP.Datagram.Entry> type() {
+            return RIP.Datagram.Entry.class;
+        }
+        
+        public void encode(RIP.Datagram.Entry value, DataOutput out)
+                throws IOException {
+            out.writeInt(value.destination);
+            out.writeByte(value.metric);
+        }
+        
+        public RIP.Datagram.Entry decode(DataInput in) throws IOException {
+            return new RIP.Datagram.Entry(in.readInt(), in.readByte());
+        }
+    }
+    
+    private static final class RIPDatagramCodec
+            implements MessageCodec<RIP.Datagram> {
+        private final RIPEntryCodec entryCodec = new RIPEntryCodec();
+        
+        public Class<RIP.Datagram> type() {
+            return RIP.Datagram.class;
+        }
+        
+        public void encode(RIP.Datagram value, DataOutput out)
+                throws IOException {
+            final RIP.Datagram.Entry[] entries = value.entries;
+            if (entries == null) {
+                out.writeInt(-1);
+                return;
+            }
+            
+            out.writeInt(entries.length);
+            for (RIP.Datagram.Entry entry : entries)
+                entryCodec.encode(entry, out);
+        }
+        
+        public RIP.Datagram decode(DataInput in) throws IOException {
+            final int count = in.readInt();
+            if (count == -1)
+                return RIP.Datagram.notARouter();
+            if (count < 0)
+                throw new StreamCorruptedException("Bad entry count: " + count);
+            
+            final RIP.Datagram.Entry[] entries = new RIP.Datagram.Entry[count];
+            for (int ix = 0; ix < count; ix++)
+                entries[ix] = entryCodec.decode(in);
+            return new RIP.Datagram(entries);
+        }
+    }
+    
+    private static final class LinkStateAdvertisementCodec
+            implements MessageCodec<LinkState.Advertisement> {
+        public Class<LinkState.Advertisement> type() {
+            return LinkState.Advertisement.class;
+        }
+        
+        public void encode(LinkState.Advertisement value, DataOutput out)
+                throws IOException {
+            out.writeInt(value.origin);
+            out.writeLong(value.sequence);
+            writeAddresses(value.routers(), out);
+            writeAddresses(value.hosts(), out);
+        }
+        
+        private static void writeAddresses(int[] addresses, DataOutput out)
+                throws IOException {
+            out.writeInt(addresses.length);
+            for (int address : addresses)
+                out.writeInt(address);
+        }
+        
+        public LinkState.Advertisement decode(DataInput in)
+                throws IOException {
+            final int origin = in.readInt();
+            final long sequence = in.readLong();
+            return new LinkState.Advertisement(origin, sequence,
+                    readAddresses(in), readAddresses(in));
+        }
+        
+        private static int[] readAddresses(DataInput in) throws IOException {
+            final int count = in.readInt();
+            if (count < 0)
+                throw new StreamCorruptedException(
+                        "Bad address count: " + count);
+            
+            final int[] addresses = new int[count];
+            for (int ix = 0; ix < count; ix++)
+                addresses[ix] = in.readInt();
+            return addresses;
+        }
+    }
+    
+    private static final class HTTPRequestCodec
+            implements MessageCodec<HTTP.Request> {
+        private static final HTTP.Request.Method[] METHODS =
+            HTTP.Request.Method.values();
+        
+        public Class<HTTP.Request> type() {
+            return HTTP.Request.class;
+        }
+        
+        public void encode(HTTP.Request value, DataOutput out)
+                throws IOException {
+            out.writeByte(value.method.ordinal());
+            writeString(value.resource, out);
+        }
+        
+        public HTTP.Request decode(DataInput in) throws IOException {
+            final int method = in.readUnsignedByte();
+            if (method >= METHODS.length)
+                throw new StreamCorruptedException("Bad method: " + method);
+            
+            return new HTTP.Request(METHODS[method], readString(in));
+        }
+    }
+    
+    private static final class HTTPResponseCodec
+            implements MessageCodec<HTTP.Response> {
+        private static final HTTP.Response.Status[] STATUSES =
+            HTTP.Response.Status.values();
+        
+        public Class<HTTP.Response> type() {
+            return HTTP.Response.class;
+        }
+        
+        public void encode(HTTP.Response value, DataOutput out)
+                throws IOException {
+            out.writeByte(value.status.ordinal());
+            writeString(value.content, out);
+        }
+        
+        public HTTP.Response decode(DataInput in) throws IOException {
+            final int status = in.readUnsignedByte();
+            if (status >= STATUSES.length)
+                throw new StreamCorruptedException("Bad status: " + status);
+            
+            return new HTTP.Response(STATUSES[status], readString(in));
+        }
+    }
+    
+    private Codecs() { }
+}
@@ -0,0 +1,157 @@
+package network.impl;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import network.TimerService;
+
+/**
+ * The result of an asynchronous operation, set once by whoever carries it
+ * out. Waits are measured on the simulator's clock, so in virtual time a
+ * thread waiting for a result lets the clock move on, as it couldn't while
+ * parked in a {@link java.util.concurrent.FutureTask}.
+ * 
+ * @param <T> The type of the result.
+ */
+class Completion<T> implements Future<T> {
+    private static final int
+        PENDING = 0, SUCCEEDED = 1, FAILED = 2, CANCELLED = 3;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition finished;
+    /** Guarded by lock */
+    private int state = PENDING;
+    /** Guarded by lock */
+    private T value;
+    /** Guarded by lock */
+    private Throwable failure;
+    
+    Completion(TimerService clock) {
+        finished = clock.newCondition(lock);
+    }
+    
+    /**
+     * Set the result, unless it's already set or cancelled.
+     * 
+     * @return Whether the result was set.
+     */
+    boolean succeed(T value) {
+        if (!finish(SUCCEEDED, value, null))
+            return false;
+        succeeded(value);
+        return true;
+    }
+    
+    /**
+     * Record that the operation failed, unless the result is already set or
+     * cancelled.
+     * 
+     * @return Whether the failure was recorded.
+     */
+    boolean fail(Throwable cause) {
+        return finish(FAILED, null, cause);
+    }
+    
+    /**
+     * Called once the result is set, in the thread that set it. Does
+     * nothing by default.
+     */
+    void succeeded(T value) {
+        // Nothing to do
+    }
+    
+    private boolean finish(int state, T value, Throwable failure) {
+        lock.lock();
+        try {
+            if (this.state != PENDING)
+                return false;
+            
+            this.state = state;
+            this.value = value;
+            this.failure = failure;
+            finished.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(CANCELLED, null, null);
+    }
+    
+    public boolean isCancelled() {
+        lock.lock();
+        try {
+            return state == CANCELLED;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean isDone() {
+        lock.lock();
+        try {
+            return state != PENDING;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public T get() throws InterruptedException, ExecutionException {
+        lock.lockInterruptibly();
+        try {
+            while (state == PENDING)
+                finished.await();
+            return result();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public T get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        long nanos = unit.toNanos(timeout);
+        
+        lock.lockInterruptibly();
+        try {
+            while (state == PENDING) {
+                if (nanos <= 0)
+                    throw new TimeoutException();
+                nanos = finished.awaitNanos(nanos);
+            }
+            return result();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /** Call with the lock held, once finished */
+    private T result() throws ExecutionException {
+        switch (state) {
+            case SUCCEEDED:
+                return value;
+            case FAILED:
+                throw new ExecutionException(failure);
+            default:
+                throw new CancellationException();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "Completion [" + (state == PENDING ? "pending" :
+                state == SUCCEEDED ? "succeeded: " + value :
+                state == FAILED ? "failed: " + failure : "cancelled") + "]";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
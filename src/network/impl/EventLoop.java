@@ -0,0 +1,221 @@
+package network.impl;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import network.TimerService;
+
+/**
+ * One thread running tasks in the order they were given, on behalf of any
+ * number of {@link network.ReactiveKernel}s. The simulator keeps one per
+ * processor. It waits for work on the simulator's clock, so an idle loop
+ * lets a simulation in virtual time move on.
+ * <p>
+ * Tasks never wait for room on a link; a send that would is held instead,
+ * as the task's {@link Stall}.
+ */
+final class EventLoop implements Executor {
+    private final Logger logger;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty;
+    /** Guarded by lock */
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    /** Guarded by lock */
+    private boolean stopped;
+    private final Thread thread;
+    /** Only touched by the loop */
+    private final Stall.Tasks stalls = new Stall.Tasks(this);
+    
+    EventLoop(SimulatorImpl sim, String name) {
+        this.logger = sim.logger();
+        this.notEmpty = sim.timerService().newCondition(lock);
+        
+        Runnable runner = new Runnable() {
+            public void run() {
+                EventLoop.this.run();
+            }
+        };
+        if (sim.clock != null) {
+            sim.clock.enter();
+            runner = sim.clock.counted(runner);
+        }
+        
+        final ThreadFactory factory = sim.threadFactory;
+        if (factory == null) {
+            thread = new Thread(runner, name);
+            thread.setDaemon(true);
+        } else {
+            thread = factory.newThread(runner);
+            if (thread == null)
+                throw new RejectedExecutionException(
+                        "Thread factory refused to create a thread");
+            thread.setName(name);
+        }
+        thread.start();
+    }
+    
+    /**
+     * Run a task on the loop, after everything already given to it. Never
+     * blocks.
+     * 
+     * @throws RejectedExecutionException If the loop has been stopped.
+     */
+    public void execute(Runnable task) {
+        lock.lock();
+        try {
+            if (stopped)
+                throw new RejectedExecutionException("Event loop stopped");
+            tasks.addLast(task);
+            if (tasks.size() == 1)
+                notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * @return Whether the calling thread is this loop's.
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+    
+    /**
+     * @return The running task's stall, or null if none of its sends has had
+     *      to be held for room on a link. Only call from the loop.
+     */
+    Stall stalled() {
+        return stalls.current();
+    }
+    
+    /**
+     * Make a timer service that runs tasks on this loop rather than in the
+     * timer's own threads. A periodic task's delay counts from when it was
+     * handed to the loop, not from when it finished.
+     * 
+     * @param timer The timer service to wait on.
+     */
+    TimerService timerService(final TimerService timer) {
+        return new TimerService() {
+            public Timeout schedule(Runnable task, long delay,
+                    TimeUnit unit) {
+                final Scheduled scheduled = new Scheduled(task);
+                scheduled.timeout = timer.schedule(scheduled, delay, unit);
+                return scheduled;
+            }
+            
+            public Timeout scheduleWithFixedDelay(Runnable task,
+                    long initialDelay, long delay, TimeUnit unit) {
+                final Scheduled scheduled = new Scheduled(task);
+                scheduled.timeout = timer.scheduleWithFixedDelay(scheduled,
+                        initialDelay, delay, unit);
+                return scheduled;
+            }
+            
+            public long nanoTime() {
+                return timer.nanoTime();
+            }
+            
+            public void sleep(long time, TimeUnit unit)
+                    throws InterruptedException {
+                timer.sleep(time, unit);
+            }
+            
+            public Condition newCondition(Lock lock) {
+                return timer.newCondition(lock);
+            }
+        };
+    }
+    
+    /**
+     * A timed task that, when due, is handed to the loop.
+     */
+    private final class Scheduled
+            implements Runnable, TimerService.Timeout {
+        private final Runnable task;
+        private volatile boolean cancelled;
+        volatile TimerService.Timeout timeout;
+        
+        private final Runnable onLoop = new Runnable() {
+            public void run() {
+                // It may have been cancelled while waiting its turn
+                if (!cancelled)
+                    task.run();
+            }
+        };
+        
+        Scheduled(Runnable task) {
+            this.task = task;
+        }
+        
+        public void run() {
+            if (cancelled)
+                return;
+            try {
+                execute(onLoop);
+            } catch (RejectedExecutionException e) {
+                // The simulator is shutting down
+            }
+        }
+        
+        public boolean cancel() {
+            cancelled = true;
+            return timeout.cancel();
+        }
+    }
+    
+    /**
+     * Stop the loop, dropping any tasks it hasn't got to. A task already
+     * running is interrupted.
+     */
+    void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            tasks.clear();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        thread.interrupt();
+    }
+    
+    private void run() {
+        stalls.bind();
+        while (true) {
+            final Runnable task;
+            lock.lock();
+            try {
+                while (tasks.isEmpty() && !stopped)
+                    try {
+                        notEmpty.await();
+                    } catch (InterruptedException e) {
+                        // Only stop() interrupts us
+                    }
+                if (stopped)
+                    return;
+                task = tasks.removeFirst();
+            } finally {
+                lock.unlock();
+            }
+            
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Uncaught exception in event loop",
+                        e);
+            }
+            stalls.finished();
+            // Don't let one task's interrupt leak into the next
+            Thread.interrupted();
+        }
+    }
+}
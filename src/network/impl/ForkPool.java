@@ -0,0 +1,131 @@
+package network.impl;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A fixed number of worker threads that processes' forked tasks run on, in
+ * place of a thread apiece. Tasks are taken in the order they're given,
+ * since forked tasks are never joined, and idle workers steal tasks queued
+ * for busy ones.
+ * <p>
+ * In virtual time, a task counts as busy from when it's given to a worker,
+ * as a new thread would from when it's made. Tasks that come when every
+ * worker has one wait in a queue of our own, not counted, so that if the
+ * workers' tasks all wait, the clock can move on until one finishes and
+ * hands its worker to the next.
+ * <p>
+ * Workers don't clear interrupts between tasks on their own, so we do, as
+ * a task cancelled just as it finished, or one that kept its interrupt for
+ * whoever came next, would otherwise interrupt another node's task.
+ */
+final class ForkPool {
+    private final ForkJoinPool pool;
+    /** The clock in virtual time, or null to run in real time */
+    private final VirtualClock clock;
+    private final int parallelism;
+    /** Tasks waiting for a worker, in virtual time. Guarded by this. */
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<Runnable>();
+    /** Tasks given to workers, in virtual time. Guarded by this. */
+    private int running;
+    
+    /**
+     * @param parallelism How many workers to have.
+     * @param name What to call the workers, before their number.
+     * @param clock The clock in virtual time, or null to run in real time.
+     */
+    ForkPool(int parallelism, final String name, VirtualClock clock) {
+        this.parallelism = parallelism;
+        this.clock = clock;
+        pool = new ForkJoinPool(parallelism,
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                        final ForkJoinWorkerThread ans = ForkJoinPool
+                            .defaultForkJoinWorkerThreadFactory
+                            .newThread(pool);
+                        ans.setName(name + " " + ans.getPoolIndex());
+                        return ans;
+                    }
+                }, null, true);
+    }
+    
+    /**
+     * Run a task on one of the workers, once one's free.
+     * 
+     * @throws RejectedExecutionException If the pool's been shut down.
+     */
+    void execute(final Runnable task) {
+        if (clock == null) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        // Don't let one task's interrupt leak into the next
+                        Thread.interrupted();
+                    }
+                }
+            });
+            return;
+        }
+        
+        synchronized (this) {
+            if (running == parallelism) {
+                waiting.addLast(task);
+                return;
+            }
+            running++;
+        }
+        start(task);
+    }
+    
+    private void start(final Runnable task) {
+        clock.enter();
+        try {
+            pool.execute(clock.counted(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        Thread.interrupted();
+                        // Counted before this one stops being, so the clock
+                        // can't slip forward in between
+                        next();
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            // It never started, so it isn't busy and doesn't hold a worker
+            clock.exit();
+            synchronized (this) {
+                running--;
+            }
+            throw e;
+        }
+    }
+    
+    private void next() {
+        final Runnable task;
+        synchronized (this) {
+            task = waiting.pollFirst();
+            if (task == null) {
+                running--;
+                return;
+            }
+        }
+        try {
+            start(task);
+        } catch (RejectedExecutionException e) {
+            // The simulator's gone, clock and all
+        }
+    }
+    
+    /**
+     * Stop the workers, interrupting any tasks still running.
+     */
+    void shutdownNow() {
+        pool.shutdownNow();
+    }
+}
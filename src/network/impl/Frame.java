@@ -0,0 +1,160 @@
+package network.impl;
+
+import java.io.IOException;
+
+import network.Interface;
+import network.KnownPort;
+import network.Message;
+import network.MessageCodecException;
+
+/**
+ * A single message in transit between two interfaces. Depending on the
+ * {@link Transport} in use, a frame carries either the message's encoded
+ * bytes or, when the message is safe to share, the message object itself.
+ * <p>
+ * Frames are also what {@link Interface#receiveRaw()} hands out. The header
+ * of an encoded frame is read directly from its fixed position in the bytes
+ * (see {@link Codecs}), so a router can forward a frame without ever
+ * decoding its payload.
+ * 
+ * @see Transport#encode(Message)
+ * @see Transport#decode(Frame)
+ */
+final class Frame implements Interface.RawMessage {
+    /**
+     * The encoded message, or null if the frame is by-reference. May be
+     * longer than the message; see {@link #length}.
+     */
+    private byte[] bytes;
+    /** The length of the encoded message. */
+    private int length;
+    /** The message itself, or null if the frame is encoded. */
+    final Message<?> message;
+    /**
+     * Whether the frame has been forwarded, in which case whoever received
+     * it as a {@link Interface.RawMessage} may still hold on to it, so it
+     * must never be recycled.
+     */
+    boolean shared;
+    /**
+     * When the frame reaches the far end of the link it's on, by the
+     * simulator's clock. Set by the {@link WireQueue} that holds it; a
+     * frame is only ever in one queue at a time.
+     */
+    long deliverAt;
+    
+    private Frame(byte[] bytes, Message<?> message) {
+        this.bytes = bytes;
+        this.length = bytes != null ? bytes.length : 0;
+        this.message = message;
+    }
+    
+    static Frame encoded(byte[] bytes) {
+        return new Frame(bytes, null);
+    }
+    
+    static Frame byReference(Message<?> message) {
+        return new Frame(null, message);
+    }
+    
+    /**
+     * Whether this frame can be reused for an encoded message of the given
+     * length.
+     */
+    boolean canHold(int length) {
+        return recyclable() && bytes.length >= length;
+    }
+    
+    /**
+     * Whether this frame can be reused once its message has been decoded.
+     */
+    boolean recyclable() {
+        return bytes != null && !shared;
+    }
+    
+    /**
+     * Reuse this frame for a new encoded message.
+     * 
+     * @param length The length of the new message.
+     * @return The array to write the message into.
+     * @see #canHold(int)
+     */
+    byte[] refill(int length) {
+        assert canHold(length);
+        this.length = length;
+        return bytes;
+    }
+    
+    boolean isByReference() {
+        return message != null;
+    }
+    
+    /**
+     * The number of bytes the frame occupies on the wire. A by-reference
+     * frame was never encoded, so only its header is counted.
+     */
+    int size() {
+        return message != null ? Codecs.HEADER_SIZE : length;
+    }
+    
+    public int source() {
+        return message != null ?
+                message.source : readInt(Codecs.SOURCE_OFFSET);
+    }
+    
+    public int destination() {
+        return message != null ?
+                message.destination : readInt(Codecs.DESTINATION_OFFSET);
+    }
+    
+    public int sourcePort() {
+        return message != null ?
+                message.sourcePort : readInt(Codecs.SOURCE_PORT_OFFSET);
+    }
+    
+    public int destinationPort() {
+        return message != null ?
+                message.destinationPort :
+                readInt(Codecs.DESTINATION_PORT_OFFSET);
+    }
+    
+    private int readInt(int offset) {
+        return (bytes[offset] << 24)
+            | ((bytes[offset + 1] & 0xff) << 16)
+            | ((bytes[offset + 2] & 0xff) << 8)
+            | (bytes[offset + 3] & 0xff);
+    }
+    
+    public Message<?> decode() {
+        if (message != null)
+            return message;
+        
+        try {
+            return Codecs.decode(bytes, length);
+        } catch (IOException e) {
+            throw new MessageCodecException("Couldn't decode message", e);
+        } catch (ClassNotFoundException e) {
+            throw new MessageCodecException("Couldn't decode message", e);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        if (isByReference())
+            return "Frame [by reference]: " + message;
+        
+        final StringBuilder builder = new StringBuilder("Frame [");
+        
+        builder.append(Integer.toHexString(source())).append(':');
+        KnownPort.formatPort(sourcePort(), builder);
+        
+        builder.append(" => ");
+        
+        builder.append(Integer.toHexString(destination())).append(':');
+        KnownPort.formatPort(destinationPort(), builder);
+        
+        builder.append("]: ").append(length).append(" bytes");
+        
+        return builder.toString();
+    }
+}
@@ -1,20 +1,20 @@
 package network.impl;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import network.Interface;
+import network.LinkOptions;
 import network.Message;
+import network.MessageCodecException;
 import network.NodeNotRunningException;
 
 final class InterfaceImpl extends SimulationObject<Interface>
@@ -23,16 +23,20 @@ final class InterfaceImpl extends SimulationObject<Interface>
     
     final NodeImpl node;
     final int index;
-    private final Logger logger;
+    /** Made on first use, as making a logger is slow */
+    private volatile Logger logger;
     private volatile Wire wire;
     private volatile InterfaceImpl peer;
-    private final BlockingQueue<byte[]> queue =
-        // TODO Explore using things like a bounded buffer, or a 
-        // DelayedBlockingQueue for adding latency, etc.
-        new LinkedBlockingQueue<byte[]>();
+    private final WireQueue queue = new WireQueue(sim, this);
     private final AtomicLong 
         sendCount = new AtomicLong(),
         receiveCount = new AtomicLong();
+    /**
+     * Copied on write. An array rather than a CopyOnWriteArrayList so that
+     * telling the listeners doesn't allocate an iterator per message.
+     */
+    private volatile ReadinessListener[] listeners =
+        new ReadinessListener[0];
         
     
     interface NewInterfaceCallback {
@@ -43,19 +47,43 @@ final class InterfaceImpl extends SimulationObject<Interface>
         super(node.sim);
         this.node = node;
         this.index = callback.registerInterface(this);
-        this.logger =
-            Logger.getLogger(LOG_NAME_PREFIX +
+    }
+    
+    private Logger logger() {
+        Logger logger = this.logger;
+        if (logger == null)
+            // Any thread racing us gets the same one
+            this.logger = logger = Logger.getLogger(LOG_NAME_PREFIX +
                     NodeImpl.loggerNameSuffix(node.name(), node.address()) +
                     ".[" + index + "]");
+        return logger;
     }
     
-    void connect(InterfaceImpl other) {
-        new Wire(this, other).connect();
+    void connect(InterfaceImpl other,
+            LinkOptions toOther, LinkOptions fromOther) {
+        new Wire(this, other).connect(this, toOther, fromOther, true);
         
-        logger.log(Level.INFO, "Interfaces connected: {0} to {1}",
+        logger().log(Level.INFO, "Interfaces connected: {0} to {1}",
                 new Object[] { this, peer });
     }
+    
+    /**
+     * Connect as one of many links in a topology built in bulk: not logged,
+     * and without bringing the routing oracle up to date, which is left to
+     * the caller.
+     */
+    void connectQuietly(InterfaceImpl other, LinkOptions options) {
+        new Wire(this, other).connect(this, options, options, false);
+    }
         
+    /**
+     * @return The interface at the other end of the link, or null if not
+     *      connected.
+     */
+    InterfaceImpl peer() {
+        return peer;
+    }
+    
     void disconnect() {
         final Wire wire = this.wire;
         if (wire != null)
@@ -85,7 +113,17 @@ final class InterfaceImpl extends SimulationObject<Interface>
             this.right = right;
         }
         
-        private void connect() {
+        /**
+         * @param from One end of the wire.
+         * @param outbound The options for the direction away from
+         *      <tt>from</tt>.
+         * @param inbound The options for the direction towards <tt>from</tt>.
+         * @param reroute Whether to tell the routing oracle.
+         */
+        private void connect(InterfaceImpl from,
+                LinkOptions outbound, LinkOptions inbound, boolean reroute) {
+            final InterfaceImpl to = from == left ? right : left;
+            
             if (left.node.shuttingDown() || right.node.shuttingDown())
                 throw new IllegalStateException("Node shutting down");
             
@@ -96,11 +134,21 @@ final class InterfaceImpl extends SimulationObject<Interface>
                     
                     assert left.peer == null && right.peer == null;
                     
+                    to.queue.configure(outbound);
+                    from.queue.configure(inbound);
+                    
                     left.wire = right.wire = this;
                     left.peer = right;
                     right.peer = left;
                 }
             }
+            
+            left.node.connected(left);
+            right.node.connected(right);
+            
+            final RoutingOracle oracle = left.sim.oracle;
+            if (oracle != null && reroute)
+                oracle.linkChanged(left.node, right.node, true);
         }
         
         private void disconnect() {
@@ -116,30 +164,96 @@ final class InterfaceImpl extends SimulationObject<Interface>
             
             left.node.disconnected(left);
             right.node.disconnected(right);
+            
+            final RoutingOracle oracle = left.sim.oracle;
+            if (oracle != null)
+                oracle.linkChanged(left.node, right.node, false);
         }
     }
 
     public void send(Message<?> message) throws DisconnectedException,
             InterruptedException {
-        if (!node.running())
-            throw new NodeNotRunningException(node);
+        final InterfaceImpl peer = checkSend();
         
-        final InterfaceImpl peer = this.peer;
-        if (peer == null)
-            throw new DisconnectedException();
+        if (logger().isLoggable(Level.FINER))
+            logger().log(Level.FINER, "Sent {0,number,###0}: {1}",
+                    new Object[] { sendCount.getAndIncrement(), message });
+        else
+            sendCount.getAndIncrement();
         
-        logger.log(Level.FINER, "Sent {0,number,###0}: {1}",
-                new Object[] { sendCount.getAndIncrement(), message });
+        final Frame frame;
+        try {
+            frame = sim.transport.encode(message, peer.queue);
+        } catch (IOException e) {
+            throw new MessageCodecException("Couldn't encode message", e);
+        }
+        
+        enqueue(peer, frame);
+    }
+    
+    public void send(List<? extends Message<?>> messages)
+            throws DisconnectedException, InterruptedException {
+        final InterfaceImpl peer = checkSend();
+        if (messages.isEmpty())
+            return;
+        
+        if (logger().isLoggable(Level.FINER))
+            for (Message<?> message : messages)
+                logger().log(Level.FINER, "Sent {0,number,###0}: {1}",
+                        new Object[] { sendCount.getAndIncrement(), message });
+        else
+            sendCount.addAndGet(messages.size());
         
-        final byte[] data;
+        final Frame[] frames;
         try {
-            data = serialize(message);
+            frames = sim.transport.encode(messages);
         } catch (IOException e) {
-            // TODO Need a better exception.
-            throw new RuntimeException(e);
+            throw new MessageCodecException("Couldn't encode message", e);
         }
         
-        peer.queue.put(data);
+        final int accepted = peer.queue.putAll(frames);
+        if (accepted < frames.length && peer.logger().isLoggable(Level.FINE))
+            peer.logger().log(Level.FINE, "Queue full; dropped {0} of {1}",
+                    new Object[] { frames.length - accepted, frames.length });
+    }
+    
+    public void forwardRaw(RawMessage message) throws DisconnectedException,
+            InterruptedException {
+        if (!(message instanceof Frame)) {
+            // Not one of ours, so there are no bytes to reuse
+            send(message.decode());
+            return;
+        }
+        
+        final InterfaceImpl peer = checkSend();
+        
+        if (logger().isLoggable(Level.FINER))
+            logger().log(Level.FINER, "Fwd  {0,number,###0}: {1}",
+                    new Object[] { sendCount.getAndIncrement(), message });
+        else
+            sendCount.getAndIncrement();
+        
+        // Whoever received it may still have it, so it's not ours to reuse
+        final Frame frame = (Frame) message;
+        frame.shared = true;
+        enqueue(peer, frame);
+    }
+    
+    private void enqueue(InterfaceImpl peer, Frame frame)
+            throws InterruptedException {
+        if (!peer.queue.put(frame) && peer.logger().isLoggable(Level.FINE))
+            peer.logger().log(Level.FINE, "Queue full; dropped: {0}", frame);
+    }
+    
+    private InterfaceImpl checkSend() throws DisconnectedException {
+        if (!node.running())
+            throw new NodeNotRunningException(node);
+        
+        final InterfaceImpl peer = this.peer;
+        if (peer == null)
+            throw new DisconnectedException();
+        
+        return peer;
     }
     
     public Message<?> receive() throws InterruptedException {
@@ -147,53 +261,138 @@ final class InterfaceImpl extends SimulationObject<Interface>
     }
     
     public Message<?> receive(long timeout, TimeUnit unit) throws InterruptedException {
-        if (!node.running())
-            throw new NodeNotRunningException(node);
+        final Frame frame = receiveFrame(timeout, unit);
+        if (frame == null)
+            return null;
         
-        final byte[] data;
-        if (unit != null)
-            data = queue.poll(timeout, unit);
+        return decode(frame);
+    }
+    
+    public int drainTo(Collection<? super Message<?>> target,
+            int maxMessages) {
+        checkReceive();
+        
+        final List<Frame> frames = new ArrayList<Frame>();
+        queue.drainTo(frames, maxMessages);
+        for (Frame frame : frames)
+            target.add(decode(frame));
+        
+        return frames.size();
+    }
+    
+    public List<Message<?>> receiveBatch(int maxMessages,
+            long timeout, TimeUnit unit) throws InterruptedException {
+        checkReceive();
+        
+        final List<Frame> frames = new ArrayList<Frame>();
+        if (queue.drainTo(frames, maxMessages, timeout, unit) == 0)
+            return Collections.emptyList();
+        
+        final List<Message<?>> messages =
+            new ArrayList<Message<?>>(frames.size());
+        for (Frame frame : frames)
+            messages.add(decode(frame));
+        
+        return messages;
+    }
+    
+    private Message<?> decode(Frame frame) {
+        final Message<?> message = sim.transport.decode(frame);
+        // Nobody else has seen this frame, so the sender can have it back
+        if (frame.recyclable())
+            queue.recycle(frame);
+        
+        if (logger().isLoggable(Level.FINER))
+            logger().log(Level.FINER, "Rcvd {0,number,###0}: {1}",
+                    new Object[] { receiveCount.getAndIncrement(), message });
         else
-            data = queue.take();
+            receiveCount.getAndIncrement();
         
-        if (data == null)
+        return message;
+    }
+    
+    public RawMessage receiveRaw() throws InterruptedException {
+        return receiveRaw(-1, null);
+    }
+    
+    public RawMessage receiveRaw(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        final Frame frame = receiveFrame(timeout, unit);
+        if (frame == null)
             return null;
         
-        final Message<?> message;
-        try {
-            message = (Message<?>) deserialize(data);
-        } catch (IOException e) {
-            // TODO Need a better exception.
-            throw new RuntimeException(e);
-        } catch (ClassNotFoundException e) {
-            // TODO Need a better exception.
-            throw new RuntimeException(e);
-        }
+        if (logger().isLoggable(Level.FINER))
+            logger().log(Level.FINER, "Rcvd {0,number,###0}: {1}",
+                    new Object[] { receiveCount.getAndIncrement(), frame });
+        else
+            receiveCount.getAndIncrement();
         
-        logger.log(Level.FINER, "Rcvd {0,number,###0}: {1}",
-                new Object[] { receiveCount.getAndIncrement(), message });
+        return frame;
+    }
+    
+    public int drainRawTo(Collection<? super RawMessage> target,
+            int maxMessages) {
+        checkReceive();
         
-        return message;
+        final int count = queue.drainTo(target, maxMessages);
+        receiveCount.addAndGet(count);
+        return count;
     }
     
-    private static byte[] serialize(Serializable object) throws IOException {
-        final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
-        final ObjectOutputStream objOut = new ObjectOutputStream(out);
-        objOut.writeObject(object);
-        return out.toByteArray();
+    private Frame receiveFrame(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        checkReceive();
+        
+        if (unit != null)
+            return queue.poll(timeout, unit);
+        else
+            return queue.take();
     }
     
-    private static Object deserialize(byte[] data)
-            throws IOException, ClassNotFoundException {
-        final ByteArrayInputStream in = new ByteArrayInputStream(data);
-        final ObjectInputStream objIn = new ObjectInputStream(in);
-        return objIn.readObject();
-    } 
+    private void checkReceive() {
+        if (!node.running())
+            throw new NodeNotRunningException(node);
+    }
     
     public int index() {
         return index;
     }
     
+    public long dropCount() {
+        return queue.dropCount();
+    }
+    
+    public boolean hasMessages() {
+        return !queue.isEmpty();
+    }
+    
+    public synchronized void addReadinessListener(
+            ReadinessListener listener) {
+        if (listener == null)
+            throw new NullPointerException();
+        
+        final ReadinessListener[] newListeners =
+            Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[listeners.length] = listener;
+        listeners = newListeners;
+    }
+    
+    public synchronized void removeReadinessListener(
+            ReadinessListener listener) {
+        final List<ReadinessListener> newListeners =
+            new ArrayList<ReadinessListener>(Arrays.asList(listeners));
+        if (newListeners.remove(listener))
+            listeners = newListeners.toArray(new ReadinessListener[0]);
+    }
+    
+    /**
+     * Called by the queue when frames become available to receive.
+     */
+    void messagesAvailable() {
+        for (ReadinessListener listener : listeners)
+            listener.messagesAvailable(this);
+    }
+    
     public String toString() {
         final InterfaceImpl peer = this.peer;
         
@@ -0,0 +1,439 @@
+package network.impl;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import network.Message;
+import network.OperatingSystem;
+import network.OverflowPolicy;
+
+/**
+ * The messages that have arrived at one port of a node, waiting for the
+ * process to receive them. Waits are measured on the simulator's clock, so
+ * in virtual time a process waiting for a message lets the clock move on.
+ * <p>
+ * A message goes to the port's handler if it has one, or else to the
+ * oldest receiver waiting without a thread that accepts it, or else into
+ * the queue for whichever thread receives next. Each message is offered to
+ * the receivers waiting when it arrives, and each receiver looks through
+ * the messages queued when it starts, so neither is ever looked at twice
+ * on the other's account. A message nobody accepts is looked at again by
+ * every receiver that comes after, though, since filters may change their
+ * minds.
+ * <p>
+ * Receivers with a {@link OperatingSystem.PayloadFilter} are kept by the
+ * class they want, so an arriving message only goes through the ones
+ * waiting for its class, and the ones whose filters have to be asked.
+ * <p>
+ * Only the queue counts against the port's capacity, and the node's, which
+ * is kept by the {@link Mailboxes}. Whatever takes a message off the queue
+ * tells them there's room once it's let go of the lock, so that delivery
+ * can pick up where it stopped without our lock held.
+ */
+final class Mailbox {
+    final int port;
+    private final Mailboxes owner;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty;
+    /** Guarded by lock */
+    private final ArrayDeque<Message<?>> messages =
+        new ArrayDeque<Message<?>>();
+    /**
+     * Receivers waiting without a thread whose filters have to be asked,
+     * oldest first. Ones that finished elsewhere are only cleared out now
+     * and then. Guarded by lock.
+     */
+    private final ArrayDeque<Waiter> pending = new ArrayDeque<Waiter>();
+    /**
+     * Receivers waiting without a thread for a class of payload, oldest
+     * first for each class. Guarded by lock.
+     */
+    private final HashMap<Class<?>, ArrayDeque<Waiter>> typed =
+        new HashMap<Class<?>, ArrayDeque<Waiter>>();
+    /** Receivers in pending and typed together. Guarded by lock. */
+    private int waiting;
+    /** How many can be waiting before we clear them out. Guarded by lock. */
+    private int purgeAt = MIN_PURGE;
+    /** Guarded by lock */
+    private long nextSequence;
+    /** Guarded by lock */
+    private OperatingSystem.MessageHandler handler;
+    /** Most messages to queue. Guarded by lock. */
+    private int capacity;
+    /** Whether to take messages at all. Guarded by lock. */
+    private boolean bound = true;
+    /** Guarded by lock */
+    private long dropCount;
+    
+    private static final int MIN_PURGE = 16;
+    
+    /**
+     * A receiver waiting here, and which came first of those waiting.
+     */
+    private static final class Waiter {
+        final Receiver receiver;
+        final long sequence;
+        
+        Waiter(Receiver receiver, long sequence) {
+            this.receiver = receiver;
+            this.sequence = sequence;
+        }
+    }
+    
+    /**
+     * @param owner The node's mailboxes, which this one shares a clock,
+     *      an executor and a capacity with.
+     * @param port The port this is the mailbox for.
+     * @param capacity The most messages to queue.
+     */
+    Mailbox(Mailboxes owner, int port, int capacity) {
+        this.port = port;
+        this.owner = owner;
+        this.capacity = capacity;
+        notEmpty = owner.clock.newCondition(lock);
+    }
+    
+    /**
+     * Deliver a message to the port, or drop it if the port is unbound or
+     * full and the overflow policy says to.
+     * 
+     * @return Whether the message has been dealt with, which it always has
+     *      unless the policy is {@link OverflowPolicy#BLOCK} and there's no
+     *      room for it yet.
+     */
+    boolean put(Message<?> message) {
+        lock.lock();
+        try {
+            if (!bound) {
+                drop();
+                return true;
+            }
+            
+            if (handler != null) {
+                dispatch(handler, message);
+                return true;
+            }
+            
+            if (offer(message))
+                return true;
+            
+            // Short-circuits, so a full port doesn't take the node's room
+            final boolean portFull = messages.size() >= capacity;
+            if (portFull || !owner.reserve()) {
+                switch (owner.overflowPolicy) {
+                    case BLOCK:
+                        return false;
+                    case HEAD_DROP:
+                        if (!messages.isEmpty()) {
+                            // The incoming message takes over its room
+                            messages.removeFirst();
+                            drop();
+                            break;
+                        }
+                        drop();
+                        return true;
+                    default:
+                        drop();
+                        return true;
+                }
+            }
+            
+            messages.addLast(message);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Hand a message to the oldest receiver waiting that accepts it. Of the
+     * receivers kept by class, only those waiting for the message's are
+     * looked at. Call with the lock held.
+     * 
+     * @return Whether a receiver took it.
+     */
+    private boolean offer(Message<?> message) {
+        final Class<?> type =
+            message.data == null ? null : message.data.getClass();
+        final ArrayDeque<Waiter> sameType = type == null ? null :
+            typed.get(type);
+        final Iterator<Waiter> it = pending.iterator();
+        Waiter next = it.hasNext() ? it.next() : null;
+        while (true) {
+            final Waiter first =
+                sameType == null ? null : sameType.peekFirst();
+            // Any filter that came before it gets first refusal
+            while (next != null &&
+                    (first == null || next.sequence < first.sequence)) {
+                final Receiver receiver = next.receiver;
+                if (receiver.isDone()) {
+                    it.remove();
+                    waiting--;
+                } else if (receiver.accepts(message)
+                        && receiver.succeed(message)) {
+                    it.remove();
+                    waiting--;
+                    return true;
+                }
+                next = it.hasNext() ? it.next() : null;
+            }
+            if (first == null)
+                return false;
+            
+            // Whether it takes the message or finished elsewhere, it's done
+            sameType.removeFirst();
+            waiting--;
+            if (sameType.isEmpty())
+                typed.remove(type);
+            if (first.receiver.succeed(message))
+                return true;
+        }
+    }
+    
+    /** Call with the lock held */
+    private void drop() {
+        dropCount++;
+        owner.dropped();
+    }
+    
+    Message<?> take() throws InterruptedException {
+        final Message<?> ans;
+        lock.lockInterruptibly();
+        try {
+            bound = true;
+            while (messages.isEmpty())
+                notEmpty.await();
+            ans = remove();
+        } finally {
+            lock.unlock();
+        }
+        owner.roomMade();
+        return ans;
+    }
+    
+    /**
+     * @return The next message, or null if none arrived in time.
+     */
+    Message<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        
+        final Message<?> ans;
+        lock.lockInterruptibly();
+        try {
+            bound = true;
+            while (messages.isEmpty()) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            ans = remove();
+        } finally {
+            lock.unlock();
+        }
+        owner.roomMade();
+        return ans;
+    }
+    
+    /** Call with the lock held */
+    private Message<?> remove() {
+        final Message<?> message = messages.removeFirst();
+        owner.release(1);
+        // Another receiver may be waiting on the same port
+        if (!messages.isEmpty())
+            notEmpty.signal();
+        return message;
+    }
+    
+    /**
+     * Hand the next message the given receiver accepts to it, now if
+     * there's one waiting, or else once it arrives. Never blocks.
+     */
+    void receiveAsync(Receiver receiver) {
+        lock.lock();
+        try {
+            bound = true;
+            final Iterator<Message<?>> messageIt = messages.iterator();
+            while (messageIt.hasNext()) {
+                final Message<?> message = messageIt.next();
+                if (receiver.accepts(message)) {
+                    if (receiver.succeed(message)) {
+                        messageIt.remove();
+                        owner.release(1);
+                    }
+                    return;
+                }
+            }
+            // Done already if another mailbox beat us to it, or the filter
+            // failed
+            if (receiver.isDone())
+                return;
+            
+            if (waiting >= purgeAt)
+                purge();
+            final Waiter waiter = new Waiter(receiver, nextSequence++);
+            final Class<?> type = receiver.payloadType();
+            if (type == null) {
+                pending.addLast(waiter);
+            } else {
+                ArrayDeque<Waiter> sameType = typed.get(type);
+                if (sameType == null) {
+                    sameType = new ArrayDeque<Waiter>();
+                    typed.put(type, sameType);
+                }
+                sameType.addLast(waiter);
+            }
+            waiting++;
+        } finally {
+            lock.unlock();
+            owner.roomMade();
+        }
+    }
+    
+    /**
+     * Clear out the receivers that finished elsewhere. Call with the lock
+     * held.
+     */
+    private void purge() {
+        waiting = purge(pending);
+        final Iterator<ArrayDeque<Waiter>> typeIt =
+            typed.values().iterator();
+        while (typeIt.hasNext()) {
+            final int left = purge(typeIt.next());
+            if (left == 0)
+                typeIt.remove();
+            waiting += left;
+        }
+        purgeAt = Math.max(MIN_PURGE, 2 * waiting);
+    }
+    
+    /**
+     * @return How many are left.
+     */
+    private static int purge(ArrayDeque<Waiter> waiters) {
+        final Iterator<Waiter> it = waiters.iterator();
+        while (it.hasNext())
+            if (it.next().receiver.isDone())
+                it.remove();
+        return waiters.size();
+    }
+    
+    /**
+     * Hand every message from now on to the given handler, starting with
+     * any already waiting.
+     * 
+     * @param handler The handler, or null to go back to queueing messages.
+     */
+    void setHandler(OperatingSystem.MessageHandler handler) {
+        lock.lock();
+        try {
+            bound = true;
+            this.handler = handler;
+            if (handler != null && !messages.isEmpty()) {
+                owner.release(messages.size());
+                Message<?> message;
+                while ((message = messages.pollFirst()) != null)
+                    dispatch(handler, message);
+            }
+        } finally {
+            lock.unlock();
+            owner.roomMade();
+        }
+    }
+    
+    /**
+     * Run a handler on a message on the executor. Never blocks.
+     */
+    void dispatch(final OperatingSystem.MessageHandler handler,
+            final Message<?> message) {
+        try {
+            owner.executor.execute(new Runnable() {
+                public void run() {
+                    handler.messageReceived(message);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The simulation is over; nobody's listening
+        }
+    }
+    
+    /**
+     * Take messages from now on, if the port was unbound.
+     * 
+     * @param capacity The most messages to queue from now on, or zero to
+     *      leave it as it is.
+     */
+    void bind(int capacity) {
+        lock.lock();
+        try {
+            bound = true;
+            if (capacity > 0)
+                this.capacity = capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Drop every message waiting and every one arriving from now on, until
+     * the port is bound again. The handler goes, and receivers waiting
+     * without a thread are cancelled.
+     */
+    void unbind() {
+        lock.lock();
+        try {
+            bound = false;
+            handler = null;
+            cancelPending();
+            
+            final int dropped = messages.size();
+            messages.clear();
+            for (int ix = 0; ix < dropped; ix++)
+                drop();
+            owner.release(dropped);
+        } finally {
+            lock.unlock();
+            owner.roomMade();
+        }
+    }
+    
+    long dropCount() {
+        lock.lock();
+        try {
+            return dropCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Drop the handler and cancel every receiver waiting without a thread,
+     * as the process is finished with the port.
+     */
+    void close() {
+        lock.lock();
+        try {
+            handler = null;
+            cancelPending();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /** Call with the lock held */
+    private void cancelPending() {
+        Waiter waiter;
+        while ((waiter = pending.pollFirst()) != null)
+            waiter.receiver.cancel(false);
+        for (ArrayDeque<Waiter> sameType : typed.values())
+            for (Waiter each : sameType)
+                each.receiver.cancel(false);
+        typed.clear();
+        waiting = 0;
+    }
+}
@@ -0,0 +1,252 @@
+package network.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import network.MailboxOptions;
+import network.Message;
+import network.OverflowPolicy;
+import network.TimerService;
+
+/**
+ * A process's mailboxes, by port. A port's mailbox is made the first time
+ * it's used, whether by a message arriving or a process waiting on it, and
+ * kept for the life of the process. If unbound ports are rejected, only
+ * the process makes them, so a flood to stray ports leaves nothing behind.
+ * <p>
+ * Looking a mailbox up never locks, boxes the port or allocates. The known
+ * ports and other small numbers index an array directly; the rest are
+ * found in an open-addressed hash table, which is only locked to add to.
+ * <p>
+ * Also keeps count of the messages queued across all the mailboxes, for
+ * the node's capacity. When a message has to wait for room, delivery stops
+ * until whatever makes room calls {@link #roomMade()}, which sets it going
+ * again.
+ */
+final class Mailboxes {
+    /** Ports below this are looked up directly. */
+    private static final int DIRECT_PORTS = 64;
+    
+    final TimerService clock;
+    final Executor executor;
+    final OverflowPolicy overflowPolicy;
+    private final int capacity, totalCapacity;
+    private final boolean rejectUnbound;
+    /** Messages queued in all the mailboxes, if there's a limit to count to */
+    private final AtomicInteger queued = new AtomicInteger();
+    /** The node's count, which outlives us */
+    private final AtomicLong dropCount;
+    /** Sets delivery going again once it's stalled */
+    private final Runnable resume;
+    /** Whether delivery is waiting for room */
+    private volatile boolean stalled;
+    private final AtomicReferenceArray<Mailbox> direct =
+        new AtomicReferenceArray<Mailbox>(DIRECT_PORTS);
+    /**
+     * The other ports' mailboxes, by linear probing. At most half full, and
+     * replaced whole when it grows, so a reader holding an old table still
+     * finds an empty slot to stop at.
+     */
+    private volatile AtomicReferenceArray<Mailbox> hashed =
+        new AtomicReferenceArray<Mailbox>(16);
+    /** Guarded by this */
+    private int hashedCount;
+    
+    /**
+     * @param clock The clock for the mailboxes to wait on.
+     * @param executor Runs the mailboxes' handlers.
+     * @param options The limits on what the mailboxes hold.
+     * @param dropCount Counts the messages dropped.
+     * @param resume Sets delivery going again, once there's room.
+     */
+    Mailboxes(TimerService clock, Executor executor, MailboxOptions options,
+            AtomicLong dropCount, Runnable resume) {
+        this.clock = clock;
+        this.executor = executor;
+        this.overflowPolicy = options.overflowPolicy();
+        this.capacity = options.capacity();
+        this.totalCapacity = options.totalCapacity();
+        this.rejectUnbound = options.rejectUnboundPorts();
+        this.dropCount = dropCount;
+        this.resume = resume;
+    }
+    
+    /**
+     * Put a message in its port's mailbox, or drop it if the port's
+     * unbound or full and the overflow policy says to.
+     * 
+     * @return Whether the message has been dealt with. If not, it has to
+     *      wait for room, and delivery should stop until {@link #resume}
+     *      is run.
+     */
+    boolean deliver(Message<?> message) {
+        final int port = message.destinationPort;
+        final Mailbox mailbox = rejectUnbound ? lookUp(port) : get(port);
+        if (mailbox == null) {
+            dropped();
+            return true;
+        }
+        
+        if (mailbox.put(message))
+            return true;
+        // In case room was made before we said we were waiting for it
+        stalled = true;
+        if (!mailbox.put(message))
+            return false;
+        stalled = false;
+        return true;
+    }
+    
+    /**
+     * Whether delivery is waiting for room.
+     */
+    boolean stalled() {
+        return stalled;
+    }
+    
+    /**
+     * Set delivery going again if it's waiting for room. Call after taking
+     * messages out of a mailbox, without holding its lock.
+     */
+    void roomMade() {
+        if (stalled) {
+            stalled = false;
+            resume.run();
+        }
+    }
+    
+    /**
+     * Take room for a message in the node's capacity.
+     * 
+     * @return Whether there was room.
+     */
+    boolean reserve() {
+        if (totalCapacity == Integer.MAX_VALUE)
+            return true;
+        
+        for (;;) {
+            final int count = queued.get();
+            if (count >= totalCapacity)
+                return false;
+            if (queued.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+    
+    /**
+     * Give back room reserved for messages that have left their mailboxes.
+     */
+    void release(int messages) {
+        if (totalCapacity != Integer.MAX_VALUE && messages > 0)
+            queued.addAndGet(-messages);
+    }
+    
+    void dropped() {
+        dropCount.incrementAndGet();
+    }
+    
+    /**
+     * Get the number of messages dropped on a port.
+     */
+    long dropCount(int port) {
+        final Mailbox mailbox = lookUp(port);
+        return mailbox == null ? 0 : mailbox.dropCount();
+    }
+    
+    /**
+     * Get the mailbox for a port, making it if need be.
+     */
+    Mailbox get(int port) {
+        if (port >= 0 && port < DIRECT_PORTS) {
+            final Mailbox mailbox = direct.get(port);
+            if (mailbox != null)
+                return mailbox;
+            
+            final Mailbox fresh = new Mailbox(this, port, capacity);
+            return direct.compareAndSet(port, null, fresh) ?
+                    fresh : direct.get(port);
+        }
+        
+        final Mailbox mailbox = find(hashed, port);
+        return mailbox != null ? mailbox : add(port);
+    }
+    
+    /**
+     * Get the mailbox for a port, if it's been made.
+     */
+    private Mailbox lookUp(int port) {
+        if (port >= 0 && port < DIRECT_PORTS)
+            return direct.get(port);
+        return find(hashed, port);
+    }
+    
+    private synchronized Mailbox add(int port) {
+        AtomicReferenceArray<Mailbox> table = hashed;
+        final Mailbox existing = find(table, port);
+        if (existing != null)
+            return existing;
+        
+        if (2 * (hashedCount + 1) > table.length()) {
+            final AtomicReferenceArray<Mailbox> bigger =
+                new AtomicReferenceArray<Mailbox>(2 * table.length());
+            for (int ix = 0; ix < table.length(); ix++) {
+                final Mailbox mailbox = table.get(ix);
+                if (mailbox != null)
+                    insert(bigger, mailbox);
+            }
+            hashed = table = bigger;
+        }
+        
+        final Mailbox fresh = new Mailbox(this, port, capacity);
+        insert(table, fresh);
+        hashedCount++;
+        return fresh;
+    }
+    
+    /**
+     * Close every mailbox made so far.
+     * 
+     * @see Mailbox#close()
+     */
+    void close() {
+        for (int port = 0; port < DIRECT_PORTS; port++) {
+            final Mailbox mailbox = direct.get(port);
+            if (mailbox != null)
+                mailbox.close();
+        }
+        
+        final AtomicReferenceArray<Mailbox> table = hashed;
+        for (int slot = 0; slot < table.length(); slot++) {
+            final Mailbox mailbox = table.get(slot);
+            if (mailbox != null)
+                mailbox.close();
+        }
+    }
+    
+    private static Mailbox find(AtomicReferenceArray<Mailbox> table,
+            int port) {
+        final int mask = table.length() - 1;
+        for (int slot = hash(port) & mask; ; slot = (slot + 1) & mask) {
+            final Mailbox mailbox = table.get(slot);
+            if (mailbox == null || mailbox.port == port)
+                return mailbox;
+        }
+    }
+    
+    private static void insert(AtomicReferenceArray<Mailbox> table,
+            Mailbox mailbox) {
+        final int mask = table.length() - 1;
+        int slot = hash(mailbox.port) & mask;
+        while (table.get(slot) != null)
+            slot = (slot + 1) & mask;
+        table.set(slot, mailbox);
+    }
+    
+    private static int hash(int port) {
+        // Fibonacci hashing; spreads runs of ports across the table
+        final int h = port * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,46 @@
+package network.impl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A hand-written binary encoding for one payload type. Payloads with a
+ * registered codec are written to the wire in this compact form; all others
+ * fall back to Java serialization.
+ * <p>
+ * Implementations must be stateless (or at least thread-safe), since a
+ * single codec is shared by every interface in every simulator.
+ * 
+ * @param <T> The payload type handled by this codec.
+ * 
+ * @see Codecs#register(MessageCodec)
+ */
+public interface MessageCodec<T extends Serializable> {
+    /**
+     * The payload class this codec handles. Only payloads of exactly this
+     * class use the codec; subclasses do not.
+     * 
+     * @return The class handled by this codec.
+     */
+    Class<T> type();
+    
+    /**
+     * Write a payload.
+     * 
+     * @param value The payload to write. Never null.
+     * @param out The destination.
+     * @throws IOException If the destination throws it.
+     */
+    void encode(T value, DataOutput out) throws IOException;
+    
+    /**
+     * Read back a payload written by {@link #encode(Serializable, DataOutput)}.
+     * 
+     * @param in The source, positioned just after the codec's tag.
+     * @return The decoded payload.
+     * @throws IOException If the data is malformed or the source throws it.
+     */
+    T decode(DataInput in) throws IOException;
+}
@@ -1,15 +1,27 @@
 package network.impl;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import network.Interface;
 import network.Kernel;
+import network.LinkOptions;
 import network.Node;
+import network.ReactiveKernel;
 
 class NodeImpl extends SimulationObject<Node> implements Node {
     private final int address;
@@ -19,14 +31,33 @@ class NodeImpl extends SimulationObject<Node> implements Node {
         new CopyOnWriteArrayList<InterfaceImpl>();
     private final BlockingQueue<InterfaceImpl> unusedInterfaces =
         new LinkedBlockingQueue<InterfaceImpl>();
-    private final ThreadGroup kernelThreadGroup;
-    private final KernelThread kernelThread;
+    private final ThreadFactory threadFactory = this.new NodeThreadFactory();
+    /**
+     * The node's threads that have been started and haven't finished, so
+     * shutting down can wait for them. Guarded by itself.
+     */
+    private final Set<Thread> liveThreads = new HashSet<Thread>();
+    /** Null if the kernel is reactive */
+    private final Thread kernelThread;
+    /** The kernel, if it's reactive; it then has no thread of its own */
+    private final ReactiveKernel reactiveKernel;
+    /** Where a reactive kernel's event loops start, and how many it uses */
+    private final int firstLoop, parallelism;
+    private final CopyOnWriteArrayList<Dispatcher> dispatchers =
+        new CopyOnWriteArrayList<Dispatcher>();
     private final Logger kernelLogger;
     final Logger logger;
     
     private volatile boolean running;
     private volatile boolean shuttingDown;
+    /** Whether a reactive kernel is started and should get its messages */
+    private volatile boolean dispatching;
     
+    /**
+     * Most messages to hand a reactive kernel from one interface before
+     * letting the others on the event loop have a turn
+     */
+    private static final int MAX_BATCH = 64;
     private static final String
         NODE_LOG_NAME_BASE = "network.Node.",
         KERNEL_LOG_NAME_BASE = "network.Kernel.";
@@ -37,9 +68,21 @@ class NodeImpl extends SimulationObject<Node> implements Node {
 
         this.address = address;
         this.name = name;
-        this.kernelThreadGroup = new ThreadGroup(name);
-        this.kernelThread = this.new KernelThread();
         this.kernel = kernel != null ? kernel : sim.createRouterKernel();
+        if (this.kernel instanceof ReactiveKernel) {
+            this.reactiveKernel = (ReactiveKernel) this.kernel;
+            this.parallelism = Math.max(1, reactiveKernel.parallelism());
+            this.firstLoop = sim.assignEventLoop();
+            this.kernelThread = null;
+        } else {
+            this.reactiveKernel = null;
+            this.parallelism = 0;
+            this.firstLoop = 0;
+            // Not counted by a virtual clock until it's started
+            final Runnable runner = tracked(this.new KernelRunner());
+            this.kernelThread = newThread(sim.clock != null ?
+                    sim.clock.counted(runner) : runner, KernelRunner.NAME);
+        }
         
         {
             final String suffix = loggerNameSuffix(name, address);
@@ -50,9 +93,17 @@ class NodeImpl extends SimulationObject<Node> implements Node {
         this.kernel.setAddress(address);
         this.kernel.setName(name);
         this.kernel.setLogger(this.kernelLogger);
+        this.kernel.setMainThread(this.kernelThread);
+        // A reactive kernel's timed tasks run on its event loop too
+        this.kernel.setTimerService(reactiveKernel == null ?
+                sim.timerService() :
+                sim.eventLoop(firstLoop).timerService(sim.timerService()));
+        this.kernel.setThreadFactory(this.threadFactory);
         
-        for (NodeImpl node : neighbors)
-            connectTo(node);
+        for (NodeImpl node : neighbors) {
+            final LinkOptions options = new LinkOptions();
+            connectTo(node, options, options);
+        }
     }
     
     static String loggerNameSuffix(String name, int address) {
@@ -60,13 +111,14 @@ class NodeImpl extends SimulationObject<Node> implements Node {
                 name.replace("_", "__").replace('.', '_'), address);
     }
     
-    InterfaceImpl connectTo(NodeImpl node) {
+    InterfaceImpl connectTo(NodeImpl node,
+            LinkOptions toNode, LinkOptions fromNode) {
         final InterfaceImpl iface = this.unusedInterface();
-        iface.connect(node.unusedInterface());
+        iface.connect(node.unusedInterface(), toNode, fromNode);
         return iface;
     }
     
-    private InterfaceImpl unusedInterface() {
+    InterfaceImpl unusedInterface() {
         final InterfaceImpl unused = unusedInterfaces.poll();
         if (unused != null) {
             logger.log(Level.FINER, 
@@ -85,8 +137,14 @@ class NodeImpl extends SimulationObject<Node> implements Node {
                 });
         }
         
-        if (ans != null)
+        if (ans != null) {
             kernel.interfaceAdded(ans);
+            if (reactiveKernel != null) {
+                final Dispatcher dispatcher = new Dispatcher(ans);
+                dispatchers.add(dispatcher);
+                ans.addReadinessListener(dispatcher);
+            }
+        }
         
         return ans;
     }
@@ -104,20 +162,98 @@ class NodeImpl extends SimulationObject<Node> implements Node {
     
     void startUp() {
         logger.info("Starting");
+        // Running from here on, so it can be sent to at once, even before
+        // the kernel gets going
+        running = true;
         
+        if (reactiveKernel != null) {
+            try {
+                sim.eventLoop(firstLoop).execute(new ReactiveStarter());
+            } catch (RejectedExecutionException e) {
+                // The simulator is shutting down
+            }
+            return;
+        }
+        
+        if (sim.clock != null)
+            sim.clock.enter();
+        track(kernelThread);
         kernelThread.start();
     }
     
-    private class KernelThread extends Thread {
-        private static final String NAME = "Kernel";
+    /**
+     * Make a thread that runs as this node: with the simulator's thread
+     * factory if it has one, or else a plain one.
+     */
+    private Thread newThread(Runnable runnable, String name) {
+        final ThreadFactory factory = sim.threadFactory;
+        if (factory == null)
+            return new Thread(runnable, name);
         
-        private KernelThread() {
-            super(kernelThreadGroup, NAME);
+        final Thread ans = factory.newThread(runnable);
+        if (ans == null)
+            throw new RejectedExecutionException(
+                    "Thread factory refused to create a thread");
+        ans.setName(name);
+        return ans;
+    }
+    
+    /**
+     * Note down a thread that's about to start, until it finishes. Its
+     * runnable must be {@link #tracked(Runnable)}.
+     */
+    private void track(Thread thread) {
+        synchronized (liveThreads) {
+            liveThreads.add(thread);
         }
+    }
+    
+    private Runnable tracked(final Runnable runnable) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    synchronized (liveThreads) {
+                        liveThreads.remove(Thread.currentThread());
+                        liveThreads.notifyAll();
+                    }
+                }
+            }
+        };
+    }
+    
+    /**
+     * Makes the threads the kernel asks for. They count as live, and in
+     * virtual time as busy, from the moment they're made, since whoever
+     * made one is about to start it.
+     */
+    private class NodeThreadFactory implements ThreadFactory {
+        private static final String NAME_PREFIX = "Node thread ";
+        
+        private final AtomicInteger nextThreadNum = new AtomicInteger(0);
+        
+        public Thread newThread(Runnable runnable) {
+            final String name = NAME_PREFIX + nextThreadNum.getAndIncrement();
+            
+            runnable = tracked(runnable);
+            final VirtualClock clock = sim.clock;
+            if (clock != null) {
+                clock.enter();
+                runnable = clock.counted(runnable);
+            }
+            
+            final Thread ans = NodeImpl.this.newThread(runnable, name);
+            track(ans);
+            return ans;
+        }
+    }
+    
+    private class KernelRunner implements Runnable {
+        private static final String NAME = "Kernel";
         
         public void run() {
             logger.fine("Kernel thread started");
-            running = true;
 
             try {
                 logger.log(Level.FINE, "Starting kernel: {0}", kernel);
@@ -128,6 +264,145 @@ class NodeImpl extends SimulationObject<Node> implements Node {
         }
     }
     
+    /**
+     * Starts a reactive kernel on its event loop, then lets the messages
+     * flow.
+     */
+    private class ReactiveStarter implements Runnable {
+        public void run() {
+            try {
+                logger.log(Level.FINE, "Starting kernel: {0}", kernel);
+                kernel.start();
+            } catch (InterruptedException e) {
+                // The simulator is shutting down
+                return;
+            }
+            
+            dispatching = true;
+            // Anything that arrived before now was held back
+            for (Dispatcher dispatcher : dispatchers)
+                dispatcher.messagesAvailable(dispatcher.iface);
+        }
+    }
+    
+    /**
+     * Hands the messages arriving on one interface to a reactive kernel, on
+     * the interface's event loop. It's only ever queued on the loop once at
+     * a time, so the kernel gets the messages in order.
+     * <p>
+     * If the kernel sends something that has to be held for room on a link,
+     * the rest of the batch waits, and nothing more is taken off the
+     * interface, until it's through; then the dispatcher is queued again.
+     * The backlog carries back to the interface's own link, and so on to
+     * whoever's sending, just as if the kernel had waited.
+     */
+    private class Dispatcher
+            implements Runnable, Interface.ReadinessListener {
+        final InterfaceImpl iface;
+        private final EventLoop loop;
+        private final AtomicBoolean queued = new AtomicBoolean();
+        /**
+         * Only touched on the loop. Grows to MAX_BATCH only if the interface
+         * ever gets that busy.
+         */
+        private final List<Interface.RawMessage> batch =
+            new ArrayList<Interface.RawMessage>();
+        /** How much of batch is handed over. Only touched on the loop. */
+        private int handled;
+        
+        Dispatcher(InterfaceImpl iface) {
+            this.iface = iface;
+            this.loop = sim.eventLoop(firstLoop + iface.index() % parallelism);
+        }
+        
+        public void messagesAvailable(Interface ignored) {
+            if (dispatching && queued.compareAndSet(false, true))
+                queue();
+        }
+        
+        private void queue() {
+            try {
+                loop.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The simulator is shutting down
+            }
+        }
+        
+        public void run() {
+            if (!dispatching) {
+                batch.clear();
+                handled = 0;
+                queued.set(false);
+                return;
+            }
+            
+            // Pick up where we stalled, if we did
+            if (handled == batch.size()) {
+                batch.clear();
+                handled = 0;
+                iface.drainRawTo(batch, MAX_BATCH);
+            }
+            while (handled < batch.size()) {
+                final Interface.RawMessage message = batch.get(handled++);
+                try {
+                    reactiveKernel.onMessage(iface, message);
+                } catch (InterruptedException e) {
+                    // The simulator is shutting down
+                    queued.set(false);
+                    return;
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING,
+                            "Kernel failed to handle " + message, e);
+                }
+                
+                // Still queued, as far as messagesAvailable() is concerned
+                final Stall stall = loop.stalled();
+                if (stall != null) {
+                    stall.then(this);
+                    return;
+                }
+            }
+            
+            // Let the other nodes on the loop have a turn before the rest
+            if (iface.hasMessages()) {
+                queue();
+                return;
+            }
+            queued.set(false);
+            // Anything arriving since we looked found us still queued
+            if (iface.hasMessages() && queued.compareAndSet(false, true))
+                queue();
+        }
+    }
+    
+    /**
+     * Wait for whatever a reactive kernel's event loops are doing for it to
+     * finish, by running a task on each after it.
+     */
+    private void awaitEventLoops() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(parallelism);
+        final Runnable countDown = new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        };
+        
+        for (int ix = 0; ix < parallelism; ix++) {
+            final EventLoop loop = sim.eventLoop(firstLoop + ix);
+            try {
+                // Called back by the kernel, we're the only thing it's doing
+                if (!loop.inLoop()) {
+                    loop.execute(countDown);
+                    continue;
+                }
+            } catch (RejectedExecutionException e) {
+                // Stopped, it's doing nothing
+            }
+            done.countDown();
+        }
+        done.await();
+    }
+    
     boolean running() {
         return running;
     }
@@ -137,6 +412,15 @@ class NodeImpl extends SimulationObject<Node> implements Node {
     }
     
     void shutDown() {
+        beginShutDown();
+        finishShutDown(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * The quick part of shutting down: cut the node off from its
+     * neighbors, and stop it taking any more interfaces.
+     */
+    void beginShutDown() {
         logger.info("Shutting down");
         
         shuttingDown = true;
@@ -144,22 +428,67 @@ class NodeImpl extends SimulationObject<Node> implements Node {
         // No interfaces are allowed to be added now, so this is safe
         for (InterfaceImpl iface : interfaces)
             iface.disconnect();
+    }
+    
+    /**
+     * Stop the kernel, after {@link #beginShutDown()}, and wait for the
+     * node's threads to finish. Any still going when the time runs out are
+     * interrupted and left to finish on their own.
+     * 
+     * @return Whether every thread finished in time.
+     */
+    boolean finishShutDown(long timeout, TimeUnit unit) {
+        final long start = System.nanoTime(), nanos = unit.toNanos(timeout);
         
+        boolean stopped = false;
         try {
-            kernel.shutDown();
-            // Wait until the main thread finishes
-            kernelThread.join();
-            // Commenting this out, as it seems highly race-prone and isn't
-            // strictly necessary; it's *meant* to guard against extra threads
-            // left running ...
-//            kernelThreadGroup.destroy();
-            running = false;
+            if (reactiveKernel != null) {
+                dispatching = false;
+                kernel.shutDown();
+                awaitEventLoops();
+            } else
+                kernel.shutDown();
+            stopped = awaitThreads(nanos - (System.nanoTime() - start));
         } catch (InterruptedException e) {
             logger.warning("Interrupted during shutdown");
             Thread.currentThread().interrupt();
         }
         
+        if (!stopped) {
+            logger.warning("Threads still running after shutdown");
+            interruptThreads();
+        }
+        running = false;
         shuttingDown = false;
+        return stopped;
+    }
+    
+    /**
+     * Wait for every thread the node started to finish.
+     * 
+     * @return Whether they did in time.
+     */
+    private boolean awaitThreads(long nanos) throws InterruptedException {
+        final long start = System.nanoTime();
+        synchronized (liveThreads) {
+            while (!liveThreads.isEmpty()) {
+                final long remaining = nanos - (System.nanoTime() - start);
+                if (remaining <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(liveThreads, remaining);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Interrupt whatever threads the node still has running.
+     */
+    void interruptThreads() {
+        synchronized (liveThreads) {
+            for (Thread thread : liveThreads)
+                thread.interrupt();
+        }
     }
     
     public int address() {
@@ -0,0 +1,48 @@
+package network.impl;
+
+import network.Message;
+import network.OperatingSystem;
+import network.TimerService;
+
+/**
+ * A receive waiting without a thread for the first message it accepts. One
+ * receiver can wait on several mailboxes at once; whichever completes it
+ * first gets to hand over its message, and the rest find it done and pass
+ * it by.
+ */
+class Receiver extends Completion<Message<?>> {
+    private final OperatingSystem.MessageFilter filter;
+    
+    /**
+     * @param clock The clock to wait on.
+     * @param filter Which messages to accept, or null for any message.
+     */
+    Receiver(TimerService clock, OperatingSystem.MessageFilter filter) {
+        super(clock);
+        this.filter = filter;
+    }
+    
+    /**
+     * @return The class of payload this receiver waits for, if its filter is
+     *      a {@link OperatingSystem.PayloadFilter}, or else null.
+     */
+    final Class<?> payloadType() {
+        return filter instanceof OperatingSystem.PayloadFilter ?
+            ((OperatingSystem.PayloadFilter) filter).type() : null;
+    }
+    
+    /**
+     * Whether this receiver wants the given message. If the filter throws,
+     * the receive fails with the exception, and wants nothing more.
+     */
+    final boolean accepts(Message<?> message) {
+        if (filter == null)
+            return true;
+        try {
+            return filter.accept(message);
+        } catch (RuntimeException e) {
+            fail(e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package network.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import network.Interface;
+import network.impl.kernel.RouterKernel;
+
+/**
+ * Computes every router's routes straight from the topology and installs
+ * them, for simulations where how the routes are found doesn't matter. Each
+ * router's routes come from a breadth-first search over the links, with
+ * the searches run in parallel on a {@link ForkJoinPool}. Only routers
+ * forward, so the searches don't go through other nodes.
+ * <p>
+ * Once started, every link that comes or goes is checked against each
+ * router's last search, and only the routers whose shortest paths it could
+ * change search again. The new routes are installed before
+ * {@link SimulatorImpl#connect} or {@link SimulatorImpl#disconnect} returns.
+ * 
+ * @see network.SimulatorFactory.SimulatorBuilder#oracleRouting(boolean)
+ */
+final class RoutingOracle {
+    private final ForkJoinPool pool = new ForkJoinPool();
+    
+    /** Guarded by this */
+    private boolean running;
+    /** The hop count to each node from each router, by address. */
+    private final Map<NodeImpl, Map<Integer, Integer>> distances =
+        new HashMap<NodeImpl, Map<Integer, Integer>>();
+    
+    /**
+     * The result of a search from one router.
+     */
+    private static final class Search {
+        final Map<Integer, Integer> distances =
+            new HashMap<Integer, Integer>();
+        final Map<Integer, Interface> routes =
+            new HashMap<Integer, Interface>();
+    }
+    
+    private static boolean isRouter(NodeImpl node) {
+        return node.kernel() instanceof RouterKernel;
+    }
+    
+    private static List<NodeImpl> routers(Collection<NodeImpl> nodes) {
+        final List<NodeImpl> ans = new ArrayList<NodeImpl>();
+        for (NodeImpl node : nodes)
+            if (isRouter(node))
+                ans.add(node);
+        return ans;
+    }
+    
+    /**
+     * Compute and install every router's routes, and start keeping them up
+     * to date.
+     */
+    synchronized void start(Collection<NodeImpl> nodes) {
+        running = true;
+        update(routers(nodes));
+    }
+    
+    /**
+     * Stop keeping routes up to date, and let go of the threads.
+     */
+    synchronized void stop() {
+        running = false;
+        distances.clear();
+        pool.shutdown();
+    }
+    
+    /**
+     * Install routes for a router added since {@link #start}.
+     */
+    synchronized void nodeAdded(NodeImpl node) {
+        if (running && isRouter(node))
+            update(Collections.singletonList(node));
+    }
+    
+    /**
+     * Install routes for a whole network added since {@link #start}, linked
+     * only among itself, all at once.
+     */
+    synchronized void nodesAdded(Collection<NodeImpl> nodes) {
+        if (running)
+            update(routers(nodes));
+    }
+    
+    /**
+     * Forget a router that has been destroyed.
+     */
+    synchronized void nodeRemoved(NodeImpl node) {
+        distances.remove(node);
+    }
+    
+    /**
+     * Bring routes up to date after a link between two nodes was added or
+     * removed.
+     */
+    synchronized void linkChanged(NodeImpl a, NodeImpl b, boolean added) {
+        if (!running)
+            return;
+        
+        final List<NodeImpl> affected = new ArrayList<NodeImpl>();
+        for (Map.Entry<NodeImpl, Map<Integer, Integer>> entry :
+                distances.entrySet()) {
+            final Map<Integer, Integer> hops = entry.getValue();
+            final Integer hopsA = hops.get(a.address()),
+                hopsB = hops.get(b.address());
+            
+            final boolean changes;
+            if (added)
+                // Only a shortcut if it's more than one hop the long way
+                changes = hopsA == null || hopsB == null ||
+                    Math.abs(hopsA - hopsB) > 1;
+            else
+                // Can only have been on a shortest path if it led one hop
+                // further out
+                changes = hopsA != null && hopsB != null &&
+                    Math.abs(hopsA - hopsB) == 1;
+            
+            if (changes)
+                affected.add(entry.getKey());
+        }
+        
+        update(affected);
+    }
+    
+    /**
+     * Search from each of the given routers in parallel, and install the
+     * results.
+     */
+    private void update(List<NodeImpl> routers) {
+        if (routers.isEmpty())
+            return;
+        
+        final List<Callable<Search>> searches =
+            new ArrayList<Callable<Search>>(routers.size());
+        for (final NodeImpl router : routers)
+            searches.add(new Callable<Search>() {
+                public Search call() {
+                    return search(router);
+                }
+            });
+        
+        final List<Future<Search>> results = pool.invokeAll(searches);
+        for (int ix = 0; ix < routers.size(); ix++) {
+            final NodeImpl router = routers.get(ix);
+            final Search search;
+            try {
+                search = results.get(ix).get();
+            } catch (InterruptedException e) {
+                // Can't happen; invokeAll() already waited for everything
+                throw new AssertionError(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            
+            distances.put(router, search.distances);
+            ((RouterKernel) router.kernel()).installRoutes(search.routes);
+        }
+    }
+    
+    /**
+     * Breadth-first search from a router, going through other routers but
+     * not through any other nodes.
+     */
+    private static Search search(NodeImpl source) {
+        final Search ans = new Search();
+        ans.distances.put(source.address(), 0);
+        
+        final Queue<NodeImpl> queue = new ArrayDeque<NodeImpl>();
+        queue.add(source);
+        
+        NodeImpl node;
+        while ((node = queue.poll()) != null) {
+            final int distance = ans.distances.get(node.address());
+            for (InterfaceImpl iface : node.interfaces()) {
+                final InterfaceImpl peer = iface.peer();
+                if (peer == null ||
+                        ans.distances.containsKey(peer.node.address()))
+                    continue;
+                
+                final NodeImpl next = peer.node;
+                ans.distances.put(next.address(), distance + 1);
+                // Everything beyond a neighbor goes the same way it does
+                ans.routes.put(next.address(), node == source ?
+                        iface : ans.routes.get(node.address()));
+                if (isRouter(next))
+                    queue.add(next);
+            }
+        }
+        
+        return ans;
+    }
+}
@@ -1,10 +1,88 @@
 package network.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import network.MailboxOptions;
 import network.Simulator;
 import network.SimulatorFactory;
+import network.TransportMode;
 
 public class SimulatorFactoryImpl extends SimulatorFactory {
-    public Simulator createSimulator() {
-        return new SimulatorImpl();
+    public SimulatorBuilder buildSimulator() {
+        return new SimulatorBuilder() {
+            private TransportMode transportMode = TransportMode.COPY;
+            private boolean oracleRouting;
+            private ThreadFactory threadFactory;
+            private boolean virtualTime;
+            private MailboxOptions mailboxOptions = new MailboxOptions();
+            private int forkParallelism;
+            private final List<Class<?>> immutableTypes =
+                new ArrayList<Class<?>>();
+            private final AtomicBoolean used = new AtomicBoolean(false);
+            
+            public SimulatorBuilder transportMode(TransportMode mode) {
+                if (mode == null)
+                    throw new NullPointerException();
+                
+                this.transportMode = mode;
+                return this;
+            }
+            
+            public SimulatorBuilder immutableTypes(Class<?> ... types) {
+                immutableTypes.addAll(Arrays.asList(types));
+                return this;
+            }
+            
+            public SimulatorBuilder oracleRouting(boolean enabled) {
+                this.oracleRouting = enabled;
+                return this;
+            }
+            
+            public SimulatorBuilder threadFactory(ThreadFactory factory) {
+                this.threadFactory = factory;
+                return this;
+            }
+            
+            public SimulatorBuilder virtualTime(boolean enabled) {
+                this.virtualTime = enabled;
+                return this;
+            }
+            
+            public SimulatorBuilder mailboxOptions(MailboxOptions options) {
+                if (options == null)
+                    throw new NullPointerException();
+                
+                this.mailboxOptions = new MailboxOptions()
+                    .capacity(options.capacity())
+                    .totalCapacity(options.totalCapacity())
+                    .overflowPolicy(options.overflowPolicy())
+                    .rejectUnboundPorts(options.rejectUnboundPorts());
+                return this;
+            }
+            
+            public SimulatorBuilder forkPool(int parallelism) {
+                if (parallelism < 0)
+                    throw new IllegalArgumentException(
+                            "Parallelism must not be negative");
+                
+                this.forkParallelism = parallelism;
+                return this;
+            }
+            
+            public Simulator create() {
+                if (used.getAndSet(true))
+                    throw new IllegalStateException(
+                            "Can only use a SimulatorBuilder once");
+                
+                return new SimulatorImpl(
+                        new Transport(transportMode, immutableTypes),
+                        oracleRouting, threadFactory, virtualTime,
+                        mailboxOptions, forkParallelism);
+            }
+        };
     }
 }
@@ -1,10 +1,21 @@
 package network.impl;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Formatter;
@@ -14,13 +25,53 @@ import java.util.logging.Logger;
 
 import network.Interface;
 import network.Kernel;
+import network.LinkOptions;
+import network.MailboxOptions;
 import network.Node;
 import network.Process;
 import network.Simulator;
+import network.TimerService;
 import network.UserKernel;
 import network.impl.kernel.KernelImpl;
+import network.impl.kernel.LinkStateKernel;
 
 class SimulatorImpl implements Simulator {
+    final Transport transport;
+    /**
+     * Delivers frames on links with delay or limited bandwidth. Shared by
+     * all the links in the simulation; the thread is only started once a
+     * link actually needs it.
+     */
+    final ScheduledExecutorService timer =
+        new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "Link timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    /** Runs every kernel's timed tasks, so they need no threads to wait in */
+    final TimingWheel timers = new TimingWheel(log, "Kernel timer");
+    /** The clock in virtual time, or null to run in real time */
+    final VirtualClock clock;
+    /** Computes routes from the topology, or null to leave it to routers */
+    final RoutingOracle oracle;
+    /** Creates the nodes' threads, or null for plain threads */
+    final ThreadFactory threadFactory;
+    /** Limits for hosts' mailboxes, unless they're given their own */
+    private final MailboxOptions mailboxOptions;
+    /** Workers in the pool all hosts fork onto, or 0 for no pool */
+    private final int forkParallelism;
+    /** Made along with the first fork onto it. Guarded by this. */
+    private ForkPool forkPool;
+    /**
+     * Run the reactive kernels, one per processor. Made along with the
+     * first reactive node; only changed while holding this.
+     */
+    private volatile EventLoop[] loops;
+    /** Guarded by this */
+    private int nextLoop;
+    
     private final AtomicInteger autoNodeNameIx = new AtomicInteger();
     private final AtomicInteger nextAddress = new AtomicInteger(1);
     private final ConcurrentMap<Integer, NodeImpl> nodes =
@@ -43,6 +94,69 @@ class SimulatorImpl implements Simulator {
         log = Logger.getLogger("network.Simulator");
     }
     
+    SimulatorImpl(Transport transport, boolean oracleRouting,
+            ThreadFactory threadFactory, boolean virtualTime,
+            MailboxOptions mailboxOptions, int forkParallelism) {
+        this.transport = transport;
+        this.oracle = oracleRouting ? new RoutingOracle() : null;
+        this.threadFactory = threadFactory;
+        this.mailboxOptions = mailboxOptions;
+        this.forkParallelism = forkParallelism;
+        this.clock =
+            virtualTime ? new VirtualClock(log, "Virtual clock") : null;
+    }
+    
+    /**
+     * @return The simulation's clock and timer, real or virtual.
+     */
+    TimerService timerService() {
+        return clock != null ? clock : timers;
+    }
+    
+    
+    /**
+     * Pick the event loop for a new reactive node to start from, making
+     * the loops if they haven't been yet. Nodes are dealt out in turn.
+     * 
+     * @return The index to pass to {@link #eventLoop(int)}.
+     */
+    synchronized int assignEventLoop() {
+        EventLoop[] loops = this.loops;
+        if (loops == null) {
+            loops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+            for (int ix = 0; ix < loops.length; ix++)
+                loops[ix] = new EventLoop(this, "Event loop " + ix);
+            this.loops = loops;
+        }
+        final int ans = nextLoop;
+        nextLoop = (nextLoop + 1) % loops.length;
+        return ans;
+    }
+    
+    /**
+     * @param ix Any index at or after one from {@link #assignEventLoop()};
+     *      it wraps round.
+     * @return The event loop.
+     */
+    EventLoop eventLoop(int ix) {
+        return loops[ix % loops.length];
+    }
+    
+    /**
+     * @return The pool hosts without one of their own fork onto, or null if
+     *      each forked task gets a thread.
+     */
+    ForkPool forkPool() {
+        if (forkParallelism == 0)
+            return null;
+        
+        synchronized (this) {
+            if (forkPool == null)
+                forkPool = new ForkPool(forkParallelism, "Fork pool", clock);
+            return forkPool;
+        }
+    }
+    
     public NodeBuilder buildNode() {
         return buildNode(0);
     }
@@ -124,8 +238,11 @@ class SimulatorImpl implements Simulator {
                         throw new IllegalStateException(
                                 "Shutting down; cannot add nodes");
                     nodes.put(address, node);
-                    if (started)
+                    if (started) {
+                        if (oracle != null)
+                            oracle.nodeAdded(node);
                         node.startUp();
+                    }
                 }
                 
                 return node;
@@ -139,6 +256,151 @@ class SimulatorImpl implements Simulator {
         };
     }
     
+    public List<Node> buildTopology(BitSet[] lowerAdjacencies,
+            KernelFactory kernels) {
+        int count = 0;
+        for (BitSet adjacent : lowerAdjacencies)
+            count += adjacent.cardinality();
+        
+        final int[][] links = new int[count][];
+        int link = 0;
+        for (int ix = 0; ix < lowerAdjacencies.length; ix++) {
+            final BitSet adjacent = lowerAdjacencies[ix];
+            if (adjacent.length() > ix)
+                throw new IllegalArgumentException(
+                        "Node " + ix + " linked to a higher node");
+            for (int other = adjacent.nextSetBit(0); other != -1;
+                    other = adjacent.nextSetBit(other + 1))
+                links[link++] = new int[] { ix, other };
+        }
+        
+        return buildTopology(lowerAdjacencies.length, links, kernels);
+    }
+    
+    public List<Node> buildTopology(final int nodeCount, final int[][] links,
+            final KernelFactory kernels) {
+        // Which of each node's interfaces each link uses: they're numbered
+        // in the order the links are listed
+        final int[] degrees = new int[nodeCount];
+        final int[][] ends = new int[links.length][];
+        for (int ix = 0; ix < links.length; ix++) {
+            final int[] link = links[ix];
+            if (link.length != 2 || link[0] == link[1] ||
+                    link[0] < 0 || link[0] >= nodeCount ||
+                    link[1] < 0 || link[1] >= nodeCount)
+                throw new IllegalArgumentException(
+                        "Bad link: " + Arrays.toString(link));
+            ends[ix] = new int[] { degrees[link[0]]++, degrees[link[1]]++ };
+        }
+        
+        if (shuttingDown)
+            throw new IllegalStateException("Shutting down; cannot add nodes");
+        
+        // One block of addresses and names for the lot
+        final int firstAddress = nextAddress.getAndAdd(nodeCount);
+        final int firstName = autoNodeNameIx.getAndAdd(nodeCount);
+        
+        final NodeImpl[] built = new NodeImpl[nodeCount];
+        final InterfaceImpl[][] ifaces = new InterfaceImpl[nodeCount][];
+        inParallel(nodeCount, new Chunk() {
+            public void run(int from, int to) {
+                for (int ix = from; ix < to; ix++) {
+                    final NodeImpl node = new NodeImpl(SimulatorImpl.this,
+                            firstAddress + ix, "Node " + (firstName + ix),
+                            kernels != null ? kernels.createKernel(ix) : null,
+                            Collections.<NodeImpl>emptyList());
+                    ifaces[ix] = new InterfaceImpl[degrees[ix]];
+                    for (int jx = 0; jx < degrees[ix]; jx++)
+                        ifaces[ix][jx] = node.unusedInterface();
+                    built[ix] = node;
+                }
+            }
+        });
+        
+        final LinkOptions options = new LinkOptions();
+        inParallel(links.length, new Chunk() {
+            public void run(int from, int to) {
+                for (int ix = from; ix < to; ix++)
+                    ifaces[links[ix][0]][ends[ix][0]].connectQuietly(
+                            ifaces[links[ix][1]][ends[ix][1]], options);
+            }
+        });
+        
+        final List<NodeImpl> nodeList = Arrays.asList(built);
+        synchronized (this) {
+            if (shuttingDown)
+                throw new IllegalStateException(
+                        "Shutting down; cannot add nodes");
+            for (NodeImpl node : built)
+                nodes.put(node.address(), node);
+            if (started) {
+                // Routes go in first, so traffic can flow at once
+                if (oracle != null)
+                    oracle.nodesAdded(nodeList);
+                for (NodeImpl node : built)
+                    node.startUp();
+            }
+        }
+        
+        logger().log(Level.INFO, "Created {0} nodes and {1} links",
+                new Object[] { nodeCount, links.length });
+        return Collections.<Node>unmodifiableList(nodeList);
+    }
+    
+    /**
+     * A share of some work to do in parallel.
+     */
+    private interface Chunk {
+        void run(int from, int to);
+    }
+    
+    /**
+     * Split work on the given number of items into chunks, and do them on
+     * every processor at once.
+     */
+    private static void inParallel(int count, final Chunk chunk) {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final int size = Math.max(1024, (count + threads - 1) / threads);
+        if (count <= size) {
+            chunk.run(0, count);
+            return;
+        }
+        
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int start = 0; start < count; start += size) {
+            final int from = start, to = Math.min(count, start + size);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    chunk.run(from, to);
+                    return null;
+                }
+            });
+        }
+        
+        final ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(threads, tasks.size()), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread =
+                            new Thread(runnable, "Topology builder");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks))
+                result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted building topology");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
     private void increaseNextAddressBeyond(int address) {
         // Increase nextAddress to something at least as big as the
         // given address. The loop avoids a race condition where
@@ -156,6 +418,8 @@ class SimulatorImpl implements Simulator {
         final NodeImpl nodeImpl = checkOwnership(node);
         nodeImpl.shutDown();
         nodes.remove(nodeImpl.address());
+        if (oracle != null)
+            oracle.nodeRemoved(nodeImpl);
     }
     
     public Node nodeAt(int address) {
@@ -163,8 +427,17 @@ class SimulatorImpl implements Simulator {
     }
     
     public Interface connect(Node a, Node b) {
+        return connect(a, b, new LinkOptions());
+    }
+    
+    public Interface connect(Node a, Node b, LinkOptions options) {
+        return connect(a, b, options, options);
+    }
+    
+    public Interface connect(Node a, Node b,
+            LinkOptions aToB, LinkOptions bToA) {
         final NodeImpl aImpl = checkOwnership(a), bImpl = checkOwnership(b);
-        return aImpl.connectTo(bImpl);
+        return aImpl.connectTo(bImpl, aToB, bToA);
     }
     
     public void disconnect(Interface iface) {
@@ -176,29 +449,114 @@ class SimulatorImpl implements Simulator {
         return new KernelImpl();
     }
     
+    public Kernel createRouterKernel(int forwardingThreads) {
+        return new KernelImpl(forwardingThreads);
+    }
+    
+    public Kernel createLinkStateRouterKernel() {
+        return new LinkStateKernel();
+    }
+    
     public UserKernel createUserKernel() {
-        return new UserKernelImpl();
+        return createUserKernel(null);
     }
     
     public UserKernel createUserKernel(Process process) {
-        return new UserKernelImpl(process);
+        return new UserKernelImpl(this, process, mailboxOptions);
+    }
+    
+    public UserKernel createUserKernel(Process process,
+            MailboxOptions options) {
+        if (options == null)
+            throw new NullPointerException();
+        
+        return new UserKernelImpl(this, process, options);
     }
     
     public synchronized void start() {
         started = true;
+        // Routes go in before any router starts, so traffic can flow at once
+        if (oracle != null)
+            oracle.start(nodes.values());
         for (NodeImpl node : nodes.values())
             node.startUp();
     }
     
     public void destroy() {
-        // Prevent more nodes from being added to the map
-        shuttingDown = true;
+        destroy(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    
+    public boolean destroy(long timeout, TimeUnit unit) {
+        final long start = System.nanoTime(), nanos = unit.toNanos(timeout);
         
-        for (Iterator<NodeImpl> iter = nodes.values().iterator();
-                iter.hasNext();) {
-            iter.next().shutDown();
-            iter.remove();
+        final List<NodeImpl> stopping;
+        synchronized (this) {
+            // Prevent more nodes from being added to the map
+            shuttingDown = true;
+            stopping = new ArrayList<NodeImpl>(nodes.values());
+            nodes.clear();
         }
+        // Don't bother rerouting around every link as it goes down
+        if (oracle != null)
+            oracle.stop();
+        
+        // Cut every link first, so nobody is left waiting on a node that's
+        // already gone ...
+        for (NodeImpl node : stopping)
+            node.beginShutDown();
+        
+        // ... then stop them all at once. Mostly they just wait for their
+        // threads to finish, so there can be more stoppers than processors.
+        final AtomicBoolean allStopped = new AtomicBoolean(true);
+        final ExecutorService stoppers = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(stopping.size(),
+                        4 * Runtime.getRuntime().availableProcessors())),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "Shutdown");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        for (final NodeImpl node : stopping)
+            stoppers.execute(new Runnable() {
+                public void run() {
+                    if (!node.finishShutDown(
+                            nanos - (System.nanoTime() - start),
+                            TimeUnit.NANOSECONDS))
+                        allStopped.set(false);
+                }
+            });
+        stoppers.shutdown();
+        
+        boolean finished = false;
+        try {
+            finished = stoppers.awaitTermination(
+                    nanos - (System.nanoTime() - start), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!finished) {
+            log.warning("Gave up waiting for the nodes to shut down");
+            // Interrupting the stoppers makes them give up too
+            stoppers.shutdownNow();
+            for (NodeImpl node : stopping)
+                node.interruptThreads();
+        }
+        
+        synchronized (this) {
+            if (loops != null)
+                for (EventLoop loop : loops)
+                    loop.stop();
+            if (forkPool != null)
+                forkPool.shutdownNow();
+        }
+        timer.shutdownNow();
+        timers.stop();
+        if (clock != null)
+            clock.stop();
+        
+        return finished && allStopped.get();
     }
     
     public Logger logger() {
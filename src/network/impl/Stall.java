@@ -0,0 +1,130 @@
+package network.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import network.OverflowPolicy;
+
+/**
+ * The sends one task made, on a thread the simulator shares among many
+ * nodes, that had to be held for room on a link. Such a thread must never
+ * wait for a link to drain, since whatever would drain it may be queued
+ * behind it: on an event loop, the next router along, say. So a send from
+ * one that finds a link full under {@link OverflowPolicy#BLOCK} is held by
+ * the link's queue instead, still counting as sent, and goes in as soon as
+ * there's room.
+ * <p>
+ * A task that mustn't carry on until its sends are through, as a router's
+ * dispatcher mustn't take any more messages off its interface, can look
+ * for its stall after sending and ask to be run again once they are.
+ */
+final class Stall {
+    /** The current thread's tasks, if it's a shared one */
+    private static final ThreadLocal<Tasks> TASKS = new ThreadLocal<Tasks>();
+    
+    /**
+     * Keeps track of the stall of whichever task a shared thread is
+     * running. Only touched by that thread.
+     */
+    static final class Tasks {
+        private final Executor executor;
+        private Stall current;
+        
+        /**
+         * @param executor Where to run tasks again once their sends are
+         *      through, or null if they can't ask to be.
+         */
+        Tasks(Executor executor) {
+            this.executor = executor;
+        }
+        
+        /**
+         * Make the calling thread a shared one, running these tasks.
+         */
+        void bind() {
+            TASKS.set(this);
+        }
+        
+        /**
+         * @return The running task's stall, or null if none of its sends
+         *      has been held.
+         */
+        Stall current() {
+            return current;
+        }
+        
+        /**
+         * Call after each task, whether or not it stalled.
+         */
+        void finished() {
+            final Stall stall = current;
+            if (stall != null) {
+                current = null;
+                stall.sent();
+            }
+        }
+    }
+    
+    private final Executor executor;
+    /** Held sends not yet through, plus one until the task is finished */
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private volatile Runnable then;
+    
+    private Stall(Executor executor) {
+        this.executor = executor;
+    }
+    
+    /**
+     * Call after each task on a shared thread with no {@link Tasks} of its
+     * own to hand, such as a timer's worker.
+     */
+    static void taskFinished() {
+        final Tasks tasks = TASKS.get();
+        if (tasks != null)
+            tasks.finished();
+    }
+    
+    /**
+     * Count one more send the current task has had held.
+     * 
+     * @return The task's stall, or null if the current thread isn't a
+     *      shared one and can wait for room itself.
+     */
+    static Stall hold() {
+        final Tasks tasks = TASKS.get();
+        if (tasks == null)
+            return null;
+        
+        Stall stall = tasks.current;
+        if (stall == null)
+            tasks.current = stall = new Stall(tasks.executor);
+        stall.pending.incrementAndGet();
+        return stall;
+    }
+    
+    /**
+     * Have a task run on the thread's executor once every held send is
+     * through. Only the stalled task itself can ask, before it finishes.
+     */
+    void then(Runnable task) {
+        then = task;
+    }
+    
+    /**
+     * Count one held send as through, whether it went in or was dropped
+     * with its link.
+     */
+    void sent() {
+        if (pending.decrementAndGet() != 0)
+            return;
+        
+        final Runnable then = this.then;
+        if (then != null && executor != null)
+            try {
+                executor.execute(then);
+            } catch (RejectedExecutionException e) {
+                // The simulator is shutting down
+            }
+    }
+}
@@ -0,0 +1,292 @@
+package network.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import network.TimerService;
+
+/**
+ * The simulator's {@link TimerService}: a hashed timing wheel. Time is cut
+ * into ticks, and each task goes in the slot of the wheel for the tick it's
+ * due, along with how many more times round the wheel to wait. One thread
+ * turns the wheel, sleeping until the next slot with anything in it, and
+ * hands whatever is due to a small pool of workers; scheduling or cancelling
+ * a task is constant time, however many there are.
+ * <p>
+ * Tasks may run up to a tick late, but never early. Time is real time.
+ * <p>
+ * The workers are shared by every node, so a task's sends never wait for
+ * room on a link; see {@link Stall}.
+ */
+final class TimingWheel implements TimerService {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    /** Must be a power of two */
+    private static final int WHEEL_SIZE = 512;
+    /** How far periodic delays are varied either way, as a fraction */
+    private static final double JITTER = 0.1;
+    /** How long to sleep with nothing scheduled at all */
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+    
+    private static final int WAITING = 0, RUNNING = 1, CANCELLED = 2;
+    
+    private final Logger logger;
+    private final List<List<Entry>> wheel =
+        new ArrayList<List<Entry>>(WHEEL_SIZE);
+    /** Newly scheduled tasks, waiting for the wheel thread to place them */
+    private final Queue<Entry> added = new ConcurrentLinkedQueue<Entry>();
+    private final ExecutorService workers;
+    private final Random random = new Random();
+    
+    private volatile Thread thread;
+    private volatile boolean stopped;
+    /** When the wheel thread means to wake up next, by System.nanoTime() */
+    private volatile long wakeAt;
+    
+    // Only touched by the wheel thread
+    private long startNanos;
+    /** The next tick to process */
+    private long tick;
+    /** Entries in the wheel, including cancelled ones not yet cleared out */
+    private int count;
+    
+    /**
+     * A scheduled task.
+     */
+    private final class Entry implements Timeout, Runnable {
+        final Runnable task;
+        /** Zero for a one-shot task */
+        final long delayNanos;
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        long deadline;
+        long rounds;
+        
+        Entry(Runnable task, long deadline, long delayNanos) {
+            this.task = task;
+            this.deadline = deadline;
+            this.delayNanos = delayNanos;
+        }
+        
+        public boolean cancel() {
+            final int old = state.getAndSet(CANCELLED);
+            return old == WAITING || old == RUNNING && delayNanos != 0;
+        }
+        
+        public void run() {
+            if (!state.compareAndSet(WAITING, RUNNING))
+                return;
+            
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Timer task failed: " + task, e);
+            } finally {
+                // Even after an Error, so the task's held sends are settled
+                Stall.taskFinished();
+                
+                if (delayNanos != 0 &&
+                        state.compareAndSet(RUNNING, WAITING)) {
+                    deadline = System.nanoTime() + jitter(delayNanos);
+                    add(this);
+                }
+            }
+        }
+    }
+    
+    TimingWheel(Logger logger, final String threadName) {
+        this.logger = logger;
+        for (int ix = 0; ix < WHEEL_SIZE; ix++)
+            wheel.add(new ArrayList<Entry>());
+        
+        workers = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    private final AtomicInteger nextThreadNum =
+                        new AtomicInteger();
+                    
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(new Runnable() {
+                            public void run() {
+                                new Stall.Tasks(null).bind();
+                                runnable.run();
+                            }
+                        }, threadName + " " + nextThreadNum.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+    
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        checkRunning();
+        return add(new Entry(task, System.nanoTime() + unit.toNanos(delay),
+                0));
+    }
+    
+    public Timeout scheduleWithFixedDelay(Runnable task, long initialDelay,
+            long delay, TimeUnit unit) {
+        if (delay <= 0)
+            throw new IllegalArgumentException("Delay must be positive");
+        checkRunning();
+        
+        return add(new Entry(task,
+                System.nanoTime() + unit.toNanos(initialDelay),
+                unit.toNanos(delay)));
+    }
+    
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+    
+    public void sleep(long time, TimeUnit unit) throws InterruptedException {
+        unit.sleep(time);
+    }
+    
+    public Condition newCondition(Lock lock) {
+        return lock.newCondition();
+    }
+    
+    private long jitter(long nanos) {
+        final double factor;
+        synchronized (random) {
+            factor = 1 + JITTER * (2 * random.nextDouble() - 1);
+        }
+        return (long) (nanos * factor);
+    }
+    
+    private void checkRunning() {
+        if (stopped)
+            throw new IllegalStateException("Simulator destroyed");
+    }
+    
+    private Entry add(Entry entry) {
+        added.add(entry);
+        if (thread == null)
+            startThread();
+        else if (entry.deadline - wakeAt < 0)
+            // Due before the wheel thread means to look again
+            LockSupport.unpark(thread);
+        return entry;
+    }
+    
+    private synchronized void startThread() {
+        if (thread != null)
+            return;
+        
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                turn();
+            }
+        }, "Timing wheel");
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+    }
+    
+    /**
+     * Stop running tasks, for good.
+     */
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+        workers.shutdownNow();
+    }
+    
+    /**
+     * The wheel thread's main loop.
+     */
+    private void turn() {
+        startNanos = System.nanoTime();
+        
+        while (!stopped) {
+            placeAdded();
+            
+            // Process every tick that has come due
+            final long now = System.nanoTime();
+            while (tick <= (now - startNanos) / TICK_NANOS && count > 0)
+                expire(tick++);
+            if (count == 0)
+                // Nothing to wait for; the clock can jump straight to now
+                tick = (now - startNanos) / TICK_NANOS + 1;
+            
+            // Sleep until the next slot with anything in it
+            final long sleepTo = count > 0 ?
+                startNanos + nextBusyTick() * TICK_NANOS :
+                now + IDLE_NANOS;
+            wakeAt = sleepTo;
+            // A task added from here on will see the new wakeAt
+            if (!added.isEmpty())
+                continue;
+            
+            final long sleep = sleepTo - System.nanoTime();
+            if (sleep > 0)
+                LockSupport.parkNanos(this, sleep);
+        }
+    }
+    
+    /**
+     * Put newly scheduled tasks in their slots.
+     */
+    private void placeAdded() {
+        Entry entry;
+        while ((entry = added.poll()) != null) {
+            if (entry.state.get() == CANCELLED)
+                continue;
+            
+            // Round up, so nothing runs early; anything overdue goes in the
+            // very next slot
+            final long due = Math.max(tick,
+                    (entry.deadline - startNanos + TICK_NANOS - 1) /
+                    TICK_NANOS);
+            entry.rounds = (due - tick) / WHEEL_SIZE;
+            wheel.get((int) (due & (WHEEL_SIZE - 1))).add(entry);
+            count++;
+        }
+    }
+    
+    private void expire(long tick) {
+        final List<Entry> slot = wheel.get((int) (tick & (WHEEL_SIZE - 1)));
+        for (Iterator<Entry> iter = slot.iterator(); iter.hasNext();) {
+            final Entry entry = iter.next();
+            if (entry.state.get() != CANCELLED && entry.rounds-- > 0)
+                continue;
+            
+            iter.remove();
+            count--;
+            if (entry.state.get() == CANCELLED)
+                continue;
+            
+            try {
+                workers.execute(entry);
+            } catch (RejectedExecutionException e) {
+                // We're stopping
+                return;
+            }
+        }
+    }
+    
+    /**
+     * @return The first tick from now on whose slot has anything in it.
+     */
+    private long nextBusyTick() {
+        for (long next = tick; next < tick + WHEEL_SIZE; next++)
+            if (!wheel.get((int) (next & (WHEEL_SIZE - 1))).isEmpty())
+                return next;
+        
+        throw new AssertionError("No entries, but count is " + count);
+    }
+}
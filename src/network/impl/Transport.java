@@ -0,0 +1,106 @@
+package network.impl;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import network.Immutable;
+import network.Message;
+import network.TransportMode;
+
+/**
+ * Turns messages into {@link Frame}s and back again, according to the
+ * simulator's {@link TransportMode}. Copied messages use the wire format
+ * defined by {@link Codecs}. There is one of these per simulator, shared by
+ * all its interfaces.
+ */
+final class Transport {
+    private static final Set<Class<?>> BUILT_IN_IMMUTABLE_TYPES =
+        Collections.unmodifiableSet(new HashSet<Class<?>>(Arrays.asList(
+                String.class, Boolean.class, Character.class, Byte.class,
+                Short.class, Integer.class, Long.class, Float.class,
+                Double.class)));
+    
+    private final TransportMode mode;
+    private final Set<Class<?>> immutableTypes;
+    
+    Transport(TransportMode mode, Collection<Class<?>> extraImmutableTypes) {
+        if (mode == null)
+            throw new NullPointerException();
+        
+        this.mode = mode;
+        
+        final Set<Class<?>> types =
+            new HashSet<Class<?>>(BUILT_IN_IMMUTABLE_TYPES);
+        types.addAll(extraImmutableTypes);
+        this.immutableTypes = Collections.unmodifiableSet(types);
+    }
+    
+    TransportMode mode() {
+        return mode;
+    }
+    
+    Frame encode(Message<?> message) throws IOException {
+        return encode(message, null);
+    }
+    
+    /**
+     * Encode a message bound for the given queue, reusing one of its
+     * recycled frames if it has one.
+     */
+    Frame encode(Message<?> message, WireQueue destination)
+            throws IOException {
+        if (mode == TransportMode.BY_REFERENCE && isImmutable(message.data))
+            return Frame.byReference(message);
+        
+        final Codecs.Encoder encoder = Codecs.encoder();
+        final int length = encoder.encode(message);
+        
+        final Frame recycled =
+            destination != null ? destination.reusableFrame() : null;
+        if (recycled != null && recycled.canHold(length)) {
+            encoder.copyTo(recycled.refill(length));
+            return recycled;
+        }
+        
+        return Frame.encoded(encoder.toByteArray());
+    }
+    
+    Frame[] encode(List<? extends Message<?>> messages) throws IOException {
+        final Frame[] frames = new Frame[messages.size()];
+        
+        int ix = 0;
+        for (Message<?> message : messages)
+            frames[ix++] = encode(message);
+        
+        return frames;
+    }
+    
+    Message<?> decode(Frame frame) {
+        if (frame.isByReference())
+            return frame.message;
+        
+        return frame.decode();
+    }
+    
+    /**
+     * Decide whether a payload can be shared between nodes. Enums are
+     * included, since deserializing one gives back the very same constant
+     * anyway.
+     */
+    private boolean isImmutable(Object data) {
+        return data == null
+            || data instanceof Immutable
+            || data instanceof Enum<?>
+            || immutableTypes.contains(data.getClass());
+    }
+    
+    @Override
+    public String toString() {
+        return "Transport [" + mode + "]";
+    }
+}
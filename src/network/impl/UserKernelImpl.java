@@ -1,43 +1,128 @@
 package network.impl;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import network.AbstractKernel;
 import network.Interface;
 import network.KnownPort;
+import network.MailboxOptions;
 import network.Message;
+import network.NodeNotRunningException;
 import network.OperatingSystem;
 import network.Process;
 import network.UserKernel;
 import network.protocols.RIP;
 
 public class UserKernelImpl extends AbstractKernel implements UserKernel {
-    private volatile ExecutorService executor;
+    /** Most messages to take off the interface at once */
+    private static final int MAX_BATCH = 64;
+    
+    private volatile ProcessExecutor executor;
+    
+    private final SimulatorImpl sim;
+    /**
+     * Where the process's asynchronous operations and handlers run. Picked
+     * the first time one's needed, so a process that never uses them
+     * doesn't start the simulator's event loops.
+     */
+    private volatile EventLoop loop;
     
-    private ThreadGroup processThreadGroup;
     private final AtomicReference<Process> nextProcess;
+    /** Our own copy, so later changes to the caller's don't affect us */
+    private final MailboxOptions mailboxOptions;
+    /** Messages dropped by every process's mailboxes */
+    private final AtomicLong dropCount = new AtomicLong();
+    /** Workers in the node's own fork pool, or 0 to use the simulator's */
+    private volatile int forkParallelism;
+    /** Made along with the first fork that needs it. Guarded by this. */
+    private ForkPool forkPool;
     
-    public UserKernelImpl() {
-        this(null);
+    UserKernelImpl(SimulatorImpl sim, Process process,
+            MailboxOptions options) {
+        this.sim = sim;
+        nextProcess = new AtomicReference<Process>(process);
+        mailboxOptions = new MailboxOptions()
+            .capacity(options.capacity())
+            .totalCapacity(options.totalCapacity())
+            .overflowPolicy(options.overflowPolicy())
+            .rejectUnboundPorts(options.rejectUnboundPorts());
     }
     
-    public UserKernelImpl(Process process) {
-        nextProcess = new AtomicReference<Process>(process);
+    private EventLoop eventLoop() {
+        EventLoop loop = this.loop;
+        if (loop == null)
+            synchronized (this) {
+                loop = this.loop;
+                if (loop == null)
+                    this.loop = loop = sim.eventLoop(sim.assignEventLoop());
+            }
+        return loop;
+    }
+    
+    /**
+     * Runs tasks on the process's event loop.
+     */
+    private final Executor asyncExecutor = new Executor() {
+        public void execute(Runnable task) {
+            eventLoop().execute(task);
+        }
+    };
+    
+    public long dropCount() {
+        return dropCount.get();
+    }
+    
+    public void setForkPool(int parallelism) {
+        if (parallelism < 0)
+            throw new IllegalArgumentException(
+                    "Parallelism must not be negative");
+        
+        synchronized (this) {
+            if (forkPool != null)
+                throw new IllegalStateException("Fork pool already in use");
+            forkParallelism = parallelism;
+        }
+    }
+    
+    /**
+     * @return The pool to run forked tasks on, or null to give each a thread
+     *      of its own.
+     */
+    private ForkPool forkPool() {
+        if (forkParallelism == 0)
+            return sim.forkPool();
+        
+        synchronized (this) {
+            if (forkPool == null)
+                forkPool = new ForkPool(forkParallelism,
+                        name() + " fork pool", sim.clock);
+            return forkPool;
+        }
     }
 
     public void setProcess(Process process) {
@@ -63,19 +148,17 @@ public class UserKernelImpl extends AbstractKernel implements UserKernel {
     public void start() throws InterruptedException {
         logger().info("Starting up");
         
-        processThreadGroup = new ThreadGroup("Process");
-        
         Process process;
         while ((process = nextProcess.getAndSet(null)) != null) {
             assert this.executor == null : "Preexisting executor found";
             
-            final ExecutorService executor = this.executor = createExecutor();
+            final ProcessExecutor executor = this.new ProcessExecutor();
+            this.executor = executor;
             
             try {
                 executor.execute(new ProcessRunner(process));
                 // Keep on going until someone calls executor.shutdownNow()
-                while (!executor.awaitTermination(5, TimeUnit.SECONDS))
-                    continue;
+                executor.awaitFinished();
             } catch (InterruptedException e) {
                 logger().warning("Interrupted; shutting down now");
                 executor.shutdownNow();
@@ -86,35 +169,140 @@ public class UserKernelImpl extends AbstractKernel implements UserKernel {
         }
     }
 
-    private ExecutorService createExecutor() {
-        return new ThreadPoolExecutor(
-                0, Integer.MAX_VALUE, 0, TimeUnit.NANOSECONDS,
+    /**
+     * Runs a process and whatever it forks, each in a thread of its own,
+     * unless there's a fork pool to run forked tasks on. The kernel thread
+     * waits for it all to finish on the simulator's clock, so in virtual
+     * time, a node that's just running a process doesn't hold the clock
+     * still.
+     */
+    private class ProcessExecutor extends ThreadPoolExecutor {
+        private final Lock lock = new ReentrantLock();
+        private final Condition finished = timer().newCondition(lock);
+        /** Guarded by lock */
+        private boolean done;
+        /** Forked tasks given to a pool and not yet over. Guarded by lock. */
+        private final Set<FutureTask<?>> pooled = new HashSet<FutureTask<?>>();
+        
+        ProcessExecutor() {
+            super(0, Integer.MAX_VALUE, 0, TimeUnit.NANOSECONDS,
                     new SynchronousQueue<Runnable>(),
-                    this.new ProcessThreadFactory());
+                    UserKernelImpl.this.new ProcessThreadFactory());
+        }
+        
+        @Override
+        protected void terminated() {
+            lock.lock();
+            try {
+                done = true;
+                finished.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Run a forked task on the fork pool, if there is one, or else in a
+         * thread of its own. A pooled task is interrupted by shutting the
+         * executor down, just as a thread of its own would be.
+         */
+        Future<?> fork(Runnable runnable) {
+            final ForkPool pool = forkPool();
+            if (pool == null)
+                return submit(runnable);
+            
+            final FutureTask<Void> task = new FutureTask<Void>(runnable, null);
+            lock.lock();
+            try {
+                if (isShutdown())
+                    throw new RejectedExecutionException("Process is over");
+                pooled.add(task);
+            } finally {
+                lock.unlock();
+            }
+            
+            try {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            forkOver(task);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Only once the simulator's gone, clock and all
+                forkOver(task);
+                throw e;
+            }
+            return task;
+        }
+        
+        private void forkOver(FutureTask<?> task) {
+            lock.lock();
+            try {
+                pooled.remove(task);
+                if (pooled.isEmpty())
+                    finished.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override
+        public List<Runnable> shutdownNow() {
+            final List<Runnable> ans = super.shutdownNow();
+            
+            // No more get added once we're shut down
+            final List<FutureTask<?>> cancelling;
+            lock.lock();
+            try {
+                cancelling = new ArrayList<FutureTask<?>>(pooled);
+            } finally {
+                lock.unlock();
+            }
+            for (FutureTask<?> task : cancelling)
+                task.cancel(true);
+            return ans;
+        }
+        
+        /**
+         * Wait until the executor has shut down and every thread and pooled
+         * task is done.
+         */
+        void awaitFinished() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (!done || !pooled.isEmpty())
+                    finished.await();
+            } finally {
+                lock.unlock();
+            }
+        }
     }
     
     public void shutDown() throws InterruptedException {
         logger().info("Shutting down");
         
-        final ExecutorService executor = this.executor;
-        if (executor == null)
-            return;
-        
-        executor.shutdownNow();
-        try {
-            while (!executor.awaitTermination(5, TimeUnit.SECONDS))
-                continue;
-        } catch (InterruptedException e) {
-            logger().warning("Interrupted during shutdown");
-            throw e;
+        final ProcessExecutor executor = this.executor;
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitFinished();
+            } catch (InterruptedException e) {
+                logger().warning("Interrupted during shutdown");
+                throw e;
+            }
         }
-
-        // It may be one of the Executor's worker threads themselves that
-        // signalled its termination, so we can't destroy the process group
-        // quite yet
-        Thread.sleep(100);
         
-        processThreadGroup.destroy();
+        // A fresh one if we're started again
+        synchronized (this) {
+            if (forkPool != null) {
+                forkPool.shutdownNow();
+                forkPool = null;
+            }
+        }
     }
     
     private class ProcessThreadFactory implements ThreadFactory {
@@ -128,8 +316,9 @@ public class UserKernelImpl extends AbstractKernel implements UserKernel {
         public Thread newThread(Runnable runnable) {
             final int num = nextThreadNum.getAndIncrement();
             
-            final Thread ans = new Thread(processThreadGroup, runnable,
-                    num == 0 ? PROCESS_NAME : FORK_NAME_PREFIX + num);
+            // The node's threads, which may be virtual
+            final Thread ans = threadFactory().newThread(runnable);
+            ans.setName(num == 0 ? PROCESS_NAME : FORK_NAME_PREFIX + num);
             
             logger().log(Level.FINER,
                     "Creating new thread for runnable: {0}", ans);
@@ -154,6 +343,8 @@ public class UserKernelImpl extends AbstractKernel implements UserKernel {
             } catch (InterruptedException e) {
                 logger().fine("Process interrupted");
                 // Do nothing; we're shutting down as expected
+            } finally {
+                os.stop();
             }
             
             final ExecutorService executor = UserKernelImpl.this.executor;
@@ -167,8 +358,17 @@ public class UserKernelImpl extends AbstractKernel implements UserKernel {
             OS_LOG_NAME_BASE = "network.OperatingSystem.",
             PROCESS_LOG_NAME_BASE = "network.Process.";
         
-        private ConcurrentMap<Integer, BlockingQueue<Message<?>>> msgQByPort =
-            new ConcurrentHashMap<Integer, BlockingQueue<Message<?>>>();
+        private final Mailboxes mailboxes = new Mailboxes(timer(),
+                asyncExecutor, mailboxOptions, dropCount, new Runnable() {
+                    public void run() {
+                        final Interface iface = listening;
+                        if (iface != null)
+                            delivery.messagesAvailable(iface);
+                    }
+                });
+        private final Delivery delivery = this.new Delivery();
+        /** The interface we're taking messages from, if any */
+        private volatile Interface listening;
         
         private final Logger osLogger, processLogger;
         {
@@ -179,14 +379,30 @@ public class UserKernelImpl extends AbstractKernel implements UserKernel {
         
         // The O.S. should have the same executor over its lifetime; make sure
         // of this by locking in the current value of the executor now
-        private final ExecutorService executor = UserKernelImpl.this.executor;
+        private final ProcessExecutor executor = UserKernelImpl.this.executor;
         
         public Logger logger() {
             return processLogger;
         }
         
         private void start() {
-            executor.execute(new PutMessagesInMap());
+            if (interfaces().isEmpty()) {
+                osLogger.warning("No interfaces; nothing will arrive");
+                return;
+            }
+            
+            final Interface iface = iface();
+            listening = iface;
+            iface.addReadinessListener(delivery);
+            // Anything that arrived before we were listening
+            delivery.messagesAvailable(iface);
+        }
+        
+        private void stop() {
+            final Interface iface = listening;
+            if (iface != null)
+                iface.removeReadinessListener(delivery);
+            mailboxes.close();
         }
 
         // We only support one interface in a UserKernel, so this method
@@ -217,30 +433,97 @@ public class UserKernelImpl extends AbstractKernel implements UserKernel {
             return receive(port.number(), timeout, unit);
         }
 
-        private BlockingQueue<Message<?>> queue(int port) {
-            BlockingQueue<Message<?>> ans = msgQByPort.get(port);
-            if (ans != null)
-                return ans;
-            
-            final BlockingQueue<Message<?>> newQueue =
-                new LinkedBlockingQueue<Message<?>>();
-            ans = msgQByPort.putIfAbsent(port, newQueue);
-            
-            // If ans isn't null, someone else beat us to it
-            return ans == null ? newQueue : ans;
-        }
-
         public Message<?> receive(int port, long timeout, TimeUnit unit)
                 throws InterruptedException {
-            final BlockingQueue<Message<?>> queue = queue(port);
+            final Mailbox mailbox = mailboxes.get(port);
             
             final Message<?> ans;
             if (unit != null) {
-                ans = queue.poll(timeout, unit);
+                ans = mailbox.poll(timeout, unit);
             } else {
-                ans = queue.take();
+                ans = mailbox.take();
             }
 	        	        
+            logReceived(ans, timeout, unit);
+            return ans;
+        }
+        
+        public Message<?> receive(int port, MessageFilter filter)
+                throws InterruptedException {
+            return receive(port, filter, 0, null);
+        }
+        
+        public Message<?> receive(KnownPort port, MessageFilter filter)
+                throws InterruptedException {
+            return receive(port.number(), filter);
+        }
+        
+        public Message<?> receive(int port, MessageFilter filter,
+                long timeout, TimeUnit unit) throws InterruptedException {
+            final Receiver receiver = new Receiver(timer(), filter);
+            mailboxes.get(port).receiveAsync(receiver);
+            return await(receiver, timeout, unit);
+        }
+        
+        public Message<?> receive(KnownPort port, MessageFilter filter,
+                long timeout, TimeUnit unit) throws InterruptedException {
+            return receive(port.number(), filter, timeout, unit);
+        }
+        
+        public Message<?> receiveAny(int... ports)
+                throws InterruptedException {
+            return receiveAny(0, null, ports);
+        }
+        
+        public Message<?> receiveAny(long timeout, TimeUnit unit,
+                int... ports) throws InterruptedException {
+            if (ports.length == 0)
+                throw new IllegalArgumentException("No ports to listen on");
+            
+            final Receiver receiver = new Receiver(timer(), null);
+            for (int port : ports) {
+                mailboxes.get(port).receiveAsync(receiver);
+                if (receiver.isDone())
+                    break;
+            }
+            return await(receiver, timeout, unit);
+        }
+        
+        /**
+         * Wait for a receiver to get its message, or until the timeout if
+         * there is one.
+         */
+        private Message<?> await(Receiver receiver, long timeout,
+                TimeUnit unit) throws InterruptedException {
+            Message<?> ans;
+            try {
+                try {
+                    ans = unit == null ?
+                        receiver.get() : receiver.get(timeout, unit);
+                } catch (TimeoutException e) {
+                    ans = receiver.cancel(false) ? null : receiver.get();
+                } catch (InterruptedException e) {
+                    if (receiver.cancel(false))
+                        throw e;
+                    // Too late to give the message back; keep it, and the
+                    // interrupt for next time
+                    ans = receiver.get();
+                    Thread.currentThread().interrupt();
+                }
+            } catch (ExecutionException e) {
+                // Only a filter throwing fails a receive
+                throw (RuntimeException) e.getCause();
+            } catch (CancellationException e) {
+                // The port was unbound, or the process has stopped
+                throw new InterruptedException("Receive cancelled");
+            }
+            
+            logReceived(ans, timeout, unit);
+            return ans;
+        }
+        
+        private void logReceived(Message<?> ans, long timeout,
+                TimeUnit unit) {
             if (ans == null)
                 osLogger.log(Level.FINER,
                         "receive() timed out after {0}",
@@ -248,7 +531,98 @@ public class UserKernelImpl extends AbstractKernel implements UserKernel {
             else
                 osLogger.log(Level.FINER,
                         "Message received: {0}", ans);
-
+        }
+        
+        public void bind(int port) {
+            mailboxes.get(port).bind(0);
+        }
+        
+        public void bind(int port, int capacity) {
+            if (capacity <= 0)
+                throw new IllegalArgumentException(
+                        "Capacity must be positive");
+            mailboxes.get(port).bind(capacity);
+        }
+        
+        public void unbind(int port) {
+            mailboxes.get(port).unbind();
+        }
+        
+        public long dropCount(int port) {
+            return mailboxes.dropCount(port);
+        }
+        
+        public Future<Message<?>> receiveAsync(int port) {
+            return receiveAsync(port, null);
+        }
+        
+        public Future<Message<?>> receiveAsync(KnownPort port) {
+            return receiveAsync(port.number(), null);
+        }
+        
+        public Future<Message<?>> receiveAsync(int port,
+                final MessageHandler handler) {
+            final Mailbox mailbox = mailboxes.get(port);
+            final Receiver ans = handler == null ?
+                new Receiver(timer(), null) :
+                new Receiver(timer(), null) {
+                    @Override
+                    void succeeded(Message<?> message) {
+                        mailbox.dispatch(handler, message);
+                    }
+                };
+            
+            mailbox.receiveAsync(ans);
+            return ans;
+        }
+        
+        public void setHandler(int port, MessageHandler handler) {
+            mailboxes.get(port).setHandler(handler);
+        }
+        
+        public void setHandler(KnownPort port, MessageHandler handler) {
+            setHandler(port.number(), handler);
+        }
+        
+        public Future<Void> sendAsync(final Message<?> message) {
+            final Completion<Void> ans = new Completion<Void>(timer());
+            try {
+                final EventLoop loop = eventLoop();
+                loop.execute(new Runnable() {
+                    public void run() {
+                        if (ans.isCancelled())
+                            return;
+                        try {
+                            // Never waits on the loop; if the link's full,
+                            // the message is held until there's room
+                            send(message);
+                        } catch (DisconnectedException e) {
+                            ans.fail(e);
+                            return;
+                        } catch (InterruptedException e) {
+                            // Only when the simulator is stopping the loop
+                            ans.fail(e);
+                            return;
+                        } catch (RuntimeException e) {
+                            ans.fail(e);
+                            return;
+                        }
+                        
+                        final Stall stall = loop.stalled();
+                        if (stall == null) {
+                            ans.succeed(null);
+                            return;
+                        }
+                        stall.then(new Runnable() {
+                            public void run() {
+                                ans.succeed(null);
+                            }
+                        });
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                ans.fail(e);
+            }
             return ans;
         }
         
@@ -284,7 +658,20 @@ public class UserKernelImpl extends AbstractKernel implements UserKernel {
             send(dest, sourcePort.number(), destPort.number(), content);
         }
         
+        public void sleep(long time, TimeUnit unit)
+                throws InterruptedException {
+            timer().sleep(time, unit);
+        }
+        
+        public long nanoTime() {
+            return timer().nanoTime();
+        }
+        
         public Future<?> fork(Runnable runnable) {
+            return executor.fork(runnable);
+        }
+        
+        public Future<?> forkThread(Runnable runnable) {
             return executor.submit(runnable);
         }
         
@@ -295,35 +682,85 @@ public class UserKernelImpl extends AbstractKernel implements UserKernel {
         }
         
         /**
-         * Class that checks to see if we have any messages to process in the
-         * interface
+         * Moves messages straight from the interface into their ports'
+         * mailboxes, in whichever thread delivered them to the interface,
+         * so a process waiting for a message wakes as soon as it's there.
+         * Only one thread drains the interface at a time; one that finds
+         * another at it leaves the new messages to that one.
+         * <p>
+         * A message that has to wait for room in its mailbox is held, along
+         * with the rest of its batch, and nothing more is taken off the
+         * interface until a receive makes room.
          */
-        private class PutMessagesInMap implements Runnable {
-            @Override
-            public void run() {
-                Thread.currentThread().setName("Message Processor");
-                
+        private class Delivery implements Interface.ReadinessListener {
+            private final AtomicBoolean draining = new AtomicBoolean();
+            /** Only touched while draining */
+            private final List<Message<?>> batch =
+                new ArrayList<Message<?>>();
+            /** How much of batch is delivered. Only touched while draining. */
+            private int delivered;
+            /** Whether batch has messages still to deliver */
+            private volatile boolean holding;
+            
+            public void messagesAvailable(Interface iface) {
+                // Check again after letting go, in case a message came, or
+                // room was made, just as we finished and whoever it was
+                // found us still at it
+                while (!mailboxes.stalled() &&
+                        (holding || iface.hasMessages()) &&
+                        draining.compareAndSet(false, true))
+                    try {
+                        drain(iface);
+                    } finally {
+                        draining.set(false);
+                    }
+            }
+            
+            private void drain(Interface iface) {
                 try {
-                    while (true) {
-                        final Message<?> message = iface().receive();
-                        final int destPort = message.destinationPort;
-                        
-                        if (KnownPort.KERNEL_WHO.is(destPort)) {
-                            try {
-                                send(message.source, KnownPort.KERNEL_WHO,
-                                        KnownPort.KERNEL_WHO,
-                                        RIP.Datagram.notARouter());
-                            } catch (DisconnectedException e) {
-                                // We got disconnected after they send the
-                                // WHO message; doesn't matter
+                    do {
+                        for (; delivered < batch.size(); delivered++)
+                            if (!deliver(batch.get(delivered))) {
+                                holding = true;
+                                return;
                             }
-                        } else
-                            queue(destPort).add(message);
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+                        batch.clear();
+                        delivered = 0;
+                        holding = false;
+                    } while (iface.drainTo(batch, MAX_BATCH) > 0);
+                } catch (NodeNotRunningException e) {
+                    // Shutting down; nobody's waiting for these
+                    discard();
+                } catch (RuntimeException e) {
+                    osLogger.log(Level.WARNING,
+                            "Couldn't deliver message", e);
+                    discard();
                 }
             }
+            
+            private void discard() {
+                batch.clear();
+                delivered = 0;
+                holding = false;
+            }
+            
+            /**
+             * @return Whether the message was dealt with, rather than having
+             *      to wait for room.
+             */
+            private boolean deliver(Message<?> message) {
+                if (!KnownPort.KERNEL_WHO.is(message.destinationPort))
+                    return mailboxes.deliver(message);
+                
+                // Tell the router we're not one. This thread may well be the
+                // router's own event loop, so the answer mustn't wait here
+                // for room on the link; it goes from our loop instead. If
+                // we've been disconnected since, it doesn't matter.
+                sendAsync(new Message<RIP.Datagram>(address(), message.source,
+                        KnownPort.KERNEL_WHO, KnownPort.KERNEL_WHO,
+                        RIP.Datagram.notARouter()));
+                return true;
+            }
         }
 
         @Override
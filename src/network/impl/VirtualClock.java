@@ -0,0 +1,515 @@
+package network.impl;
+
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import network.TimerService;
+
+/**
+ * The simulator's {@link TimerService} in virtual time: a discrete-event
+ * scheduler. The clock stands still while any node thread is running, and
+ * once every one of them is waiting, whether for a message, a timeout or the
+ * end of a sleep, it jumps straight to the next timed event. A simulated hour
+ * spent mostly waiting takes only as long as the work done in it.
+ * <p>
+ * Node threads count as busy from when they're created until they end,
+ * except while they wait in one of the clock's conditions or sleep. Whatever
+ * wakes a waiting thread counts it as busy again on its behalf, before it
+ * even runs, so the clock can't slip forward in between. Timed tasks run in
+ * the clock's own threads, busy while the task runs. Events due at the same
+ * time happen one at a time, in the order they were scheduled.
+ * <p>
+ * A node thread blocked any other way, in {@link Thread#sleep} or a monitor
+ * say, is still busy, so the clock waits for it in real time. Threads from
+ * outside the simulation, like a test's main thread, aren't counted at all;
+ * they can use the clock's conditions, but their timed waits are in real
+ * time.
+ * 
+ * @see network.SimulatorFactory.SimulatorBuilder#virtualTime(boolean)
+ */
+final class VirtualClock implements TimerService {
+    /** How far periodic delays are varied either way, as a fraction */
+    private static final double JITTER = 0.1;
+    
+    private static final int WAITING = 0, RUNNING = 1, CANCELLED = 2;
+    
+    private final Logger logger;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled whenever the clock might be able to move on */
+    private final Condition quiet = lock.newCondition();
+    /** Timed tasks and waits, soonest first. Guarded by lock. */
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    /** Seeded, so each run jitters the same way. Guarded by lock. */
+    private final Random random = new Random(0);
+    private final ExecutorService workers;
+    /** Whether the current thread is counted */
+    private final ThreadLocal<Boolean> participant =
+        new ThreadLocal<Boolean>();
+    
+    /** Only changed with the lock held */
+    private volatile long now;
+    /** Guarded by lock */
+    private long nextSequence;
+    /** Node threads and tasks running, not waiting. Guarded by lock. */
+    private int busy;
+    /** Whether the clock has been shut down. Guarded by lock. */
+    private boolean stopped;
+    
+    /**
+     * Something due to happen at a given time.
+     */
+    private abstract static class Event implements Comparable<Event> {
+        long time;
+        long sequence;
+        
+        public int compareTo(Event other) {
+            if (time != other.time)
+                return time < other.time ? -1 : 1;
+            return sequence < other.sequence ? -1 :
+                sequence == other.sequence ? 0 : 1;
+        }
+        
+        /** Whether it's been overtaken, and shouldn't move the clock */
+        abstract boolean stale();
+        
+        /** Make it happen. Called with the lock held. */
+        abstract void fire();
+    }
+    
+    /**
+     * A scheduled task.
+     */
+    private final class Entry extends Event implements Timeout, Runnable {
+        final Runnable task;
+        /** Zero for a one-shot task */
+        final long delayNanos;
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        
+        Entry(Runnable task, long delayNanos) {
+            this.task = task;
+            this.delayNanos = delayNanos;
+        }
+        
+        public boolean cancel() {
+            final int old = state.getAndSet(CANCELLED);
+            return old == WAITING || old == RUNNING && delayNanos != 0;
+        }
+        
+        boolean stale() {
+            return state.get() != WAITING;
+        }
+        
+        void fire() {
+            if (!state.compareAndSet(WAITING, RUNNING))
+                return;
+            
+            busy++;
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                // We're stopping
+                busy--;
+            }
+        }
+        
+        public void run() {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Timer task failed: " + task, e);
+            } finally {
+                // Even after an Error, or the clock would wait on us forever
+                Stall.taskFinished();
+                
+                lock.lock();
+                try {
+                    if (delayNanos != 0 &&
+                            state.compareAndSet(RUNNING, WAITING))
+                        add(this, jitter(delayNanos));
+                    leave();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+    
+    /**
+     * A thread waiting in a condition or asleep, until it's woken or its
+     * time comes.
+     */
+    private final class Waiter extends Event {
+        final Thread thread = Thread.currentThread();
+        /** Whether the thread is counted as busy while it runs */
+        final boolean counted;
+        /** Long.MAX_VALUE if it waits for good */
+        final long deadline;
+        /** Only changed with the lock held */
+        volatile boolean woken;
+        
+        Waiter(boolean counted, long deadline) {
+            this.counted = counted;
+            this.deadline = deadline;
+        }
+        
+        boolean stale() {
+            return woken;
+        }
+        
+        void fire() {
+            wake(this);
+        }
+    }
+    
+    /**
+     * A condition whose waiters let the clock move on.
+     */
+    private final class VirtualCondition implements Condition {
+        private final Lock owner;
+        /** Guarded by owner */
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+        
+        VirtualCondition(Lock owner) {
+            this.owner = owner;
+        }
+        
+        public void await() throws InterruptedException {
+            await(-1);
+        }
+        
+        public long awaitNanos(long nanos) throws InterruptedException {
+            return nanos <= 0 ? nanos : await(nanos);
+        }
+        
+        public boolean await(long time, TimeUnit unit)
+                throws InterruptedException {
+            return awaitNanos(unit.toNanos(time)) > 0;
+        }
+        
+        public void awaitUninterruptibly() {
+            try {
+                await(-1);
+            } catch (InterruptedException e) {
+                // Returning early is as good as a spurious wakeup
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        /**
+         * Wait for however long the deadline is from now in real time,
+         * counted out in virtual time, as there's no virtual date.
+         */
+        public boolean awaitUntil(Date deadline)
+                throws InterruptedException {
+            return awaitNanos(TimeUnit.MILLISECONDS.toNanos(
+                    deadline.getTime() - System.currentTimeMillis())) > 0;
+        }
+        
+        /**
+         * @param nanos The time to wait, or -1 to wait until signalled.
+         * @return The time left.
+         */
+        private long await(long nanos) throws InterruptedException {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            
+            final Waiter waiter = idle(nanos);
+            waiters.add(waiter);
+            owner.unlock();
+            try {
+                return park(waiter);
+            } finally {
+                owner.lock();
+                waiters.remove(waiter);
+            }
+        }
+        
+        public void signal() {
+            Waiter waiter;
+            while ((waiter = waiters.poll()) != null)
+                if (wake(waiter))
+                    return;
+        }
+        
+        public void signalAll() {
+            Waiter waiter;
+            while ((waiter = waiters.poll()) != null)
+                wake(waiter);
+        }
+    }
+    
+    VirtualClock(Logger logger, final String threadName) {
+        this.logger = logger;
+        
+        workers = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger nextThreadNum = new AtomicInteger();
+            
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        participant.set(Boolean.TRUE);
+                        // Shared by every node, like the timing wheel's
+                        new Stall.Tasks(null).bind();
+                        runnable.run();
+                    }
+                }, threadName + " " + nextThreadNum.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        final Thread dispatcher = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, threadName);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+    
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return schedule(new Entry(task, 0), unit.toNanos(delay));
+    }
+    
+    public Timeout scheduleWithFixedDelay(Runnable task, long initialDelay,
+            long delay, TimeUnit unit) {
+        if (delay <= 0)
+            throw new IllegalArgumentException("Delay must be positive");
+        
+        return schedule(new Entry(task, unit.toNanos(delay)),
+                unit.toNanos(initialDelay));
+    }
+    
+    private Entry schedule(Entry entry, long delayNanos) {
+        lock.lock();
+        try {
+            if (stopped)
+                throw new IllegalStateException("Simulator destroyed");
+            
+            add(entry, Math.max(0, delayNanos));
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long nanoTime() {
+        return now;
+    }
+    
+    public void sleep(long time, TimeUnit unit) throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (time > 0)
+            park(idle(unit.toNanos(time)));
+    }
+    
+    public Condition newCondition(Lock lock) {
+        return new VirtualCondition(lock);
+    }
+    
+    /**
+     * Count a node thread as busy, before it starts.
+     */
+    void enter() {
+        lock.lock();
+        try {
+            busy++;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Wrap the work of a node thread counted by {@link #enter()}, so that
+     * it stops being counted when it ends.
+     */
+    Runnable counted(final Runnable runnable) {
+        return new Runnable() {
+            public void run() {
+                participant.set(Boolean.TRUE);
+                try {
+                    runnable.run();
+                } finally {
+                    exit();
+                }
+            }
+        };
+    }
+    
+    /**
+     * Stop counting a node thread counted by {@link #enter()}: when it
+     * ends, or if it never gets to start.
+     */
+    void exit() {
+        lock.lock();
+        try {
+            leave();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Stop moving the clock and running tasks, for good.
+     */
+    void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            quiet.signal();
+        } finally {
+            lock.unlock();
+        }
+        workers.shutdownNow();
+    }
+    
+    /**
+     * Put an event on the schedule. Must hold the lock.
+     */
+    private void add(Event event, long delayNanos) {
+        event.time = delayNanos < Long.MAX_VALUE - now ?
+            now + delayNanos : Long.MAX_VALUE;
+        event.sequence = nextSequence++;
+        events.add(event);
+        if (busy == 0)
+            quiet.signal();
+    }
+    
+    /**
+     * Stop counting one thread or task as busy. Must hold the lock.
+     */
+    private void leave() {
+        assert busy > 0 : "Clock's busy count went negative";
+        if (--busy == 0)
+            quiet.signal();
+    }
+    
+    private long jitter(long nanos) {
+        return (long) (nanos * (1 + JITTER * (2 * random.nextDouble() - 1)));
+    }
+    
+    /**
+     * Get ready for the current thread to wait, so far as the clock's
+     * concerned; a counted thread stops being busy, and its deadline goes
+     * on the schedule.
+     * 
+     * @param nanos The time to wait, or -1 to wait until woken.
+     */
+    private Waiter idle(long nanos) {
+        final boolean counted = participant.get() != null;
+        if (!counted)
+            // Outsiders wait in real time
+            return new Waiter(false, nanos < 0 ? Long.MAX_VALUE :
+                    System.nanoTime() + nanos);
+        
+        lock.lock();
+        try {
+            final boolean timed = nanos >= 0 && nanos < Long.MAX_VALUE - now;
+            final Waiter waiter =
+                new Waiter(true, timed ? now + nanos : Long.MAX_VALUE);
+            if (timed)
+                add(waiter, nanos);
+            leave();
+            return waiter;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Wait until the waiter is woken, or interrupted.
+     * 
+     * @return The time left before the waiter's deadline.
+     * @throws InterruptedException If interrupted before anything woke the
+     *      waiter; it's counted as busy again all the same.
+     */
+    private long park(Waiter waiter) throws InterruptedException {
+        while (!waiter.woken) {
+            if (waiter.counted || waiter.deadline == Long.MAX_VALUE)
+                LockSupport.park(this);
+            else {
+                final long remaining = waiter.deadline - System.nanoTime();
+                if (remaining <= 0)
+                    wake(waiter);
+                else
+                    LockSupport.parkNanos(this, remaining);
+            }
+            
+            if (Thread.interrupted()) {
+                if (wake(waiter))
+                    throw new InterruptedException();
+                // Something else woke us first; let the caller see it, and
+                // the interrupt next time
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        return waiter.deadline -
+            (waiter.counted ? now : System.nanoTime());
+    }
+    
+    /**
+     * Wake a waiting thread, counting it as busy, unless it has already
+     * been woken.
+     * 
+     * @return Whether this call woke it.
+     */
+    private boolean wake(Waiter waiter) {
+        lock.lock();
+        try {
+            if (waiter.woken)
+                return false;
+            
+            waiter.woken = true;
+            if (waiter.counted)
+                busy++;
+        } finally {
+            lock.unlock();
+        }
+        
+        LockSupport.unpark(waiter.thread);
+        return true;
+    }
+    
+    /**
+     * The main loop: whenever nothing is busy, move the clock on to the next
+     * event and make it happen.
+     */
+    private void dispatch() {
+        lock.lock();
+        try {
+            while (!stopped) {
+                final Event next = events.peek();
+                if (busy > 0 || next == null) {
+                    quiet.awaitUninterruptibly();
+                    continue;
+                }
+                
+                events.poll();
+                if (next.stale())
+                    continue;
+                
+                if (next.time > now)
+                    now = next.time;
+                next.fire();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package network.impl;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import network.LinkOptions;
+import network.OverflowPolicy;
+import network.TimerService;
+
+/**
+ * The queue of frames waiting to be received by an interface, together with
+ * the model of the link leading to it. Limits on message count and total
+ * bytes, the policy for what to do when they're exceeded, and the link's
+ * delay, bandwidth and jitter come from the {@link LinkOptions} of the
+ * current connection.
+ * <p>
+ * A frame that can't be delivered right away is held in flight, still
+ * counting against the limits, until the simulator's shared timer moves it
+ * into the queue proper. Each queue keeps at most one timer task
+ * outstanding, for the earliest frame in flight; delivery times never
+ * decrease, so that is always the head.
+ * <p>
+ * All of that needs the lock. A plain link, one with no limits and no
+ * delay, needs none of it, so it uses a lock-free
+ * {@link ChunkedFrameQueue} instead, which only takes a lock of its own
+ * once a second thread receives.
+ * <p>
+ * In virtual time, all times come from the simulator's clock, and every
+ * link takes the locked path, whose waits the clock knows about.
+ * <p>
+ * A sender on one of the simulator's shared threads never waits for room.
+ * If it would have to, its frame is held, outside the limits, and let in
+ * ahead of any other sender's as soon as there's room; its task's
+ * {@link Stall} is told once it's in.
+ */
+final class WireQueue {
+    /** Average occupancy at which {@link OverflowPolicy#RED} starts dropping. */
+    private static final double RED_MIN_THRESHOLD = 0.5;
+    /** Drop probability as the average occupancy reaches capacity. */
+    private static final double RED_MAX_PROBABILITY = 0.1;
+    /** Weight of each new sample in the moving average of occupancy. */
+    private static final double RED_WEIGHT = 0.125;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty, notFull;
+    /** Frames that have arrived and can be received. */
+    private final ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+    /** Frames still in transit, in order of delivery time. */
+    private final ArrayDeque<Frame> inFlight = new ArrayDeque<Frame>();
+    /** Frames from shared threads, waiting for room. */
+    private final ArrayDeque<Held> held = new ArrayDeque<Held>();
+    /** Total size of the frames in both queues. */
+    private long bytes;
+    
+    private int capacity = Integer.MAX_VALUE;
+    private long byteCapacity = Long.MAX_VALUE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    
+    private long delayNanos;
+    private long bandwidth = Long.MAX_VALUE;
+    private long jitterNanos;
+    private LinkOptions.Jitter jitter = LinkOptions.Jitter.UNIFORM;
+    /** Whether frames can take any time at all to arrive. */
+    private boolean delayed;
+    /** When the link finishes transmitting the frames sent so far. */
+    private long busyUntil;
+    /** When the most recently sent frame will arrive. */
+    private long lastDeliverAt;
+    
+    private double averageOccupancy;
+    private final Random random = new Random();
+    
+    private final SimulatorImpl sim;
+    private final TimerService clock;
+    /** Told whenever frames become available to receive. */
+    private final InterfaceImpl owner;
+    private boolean arrivalScheduled;
+    private final Runnable arrivalTask = new Runnable() {
+        public void run() {
+            arrive();
+        }
+    };
+    
+    /** The lock-free queue, if the current link is a plain one. */
+    private volatile ChunkedFrameQueue fast;
+    
+    private volatile long dropCount;
+    
+    /**
+     * A frame waiting for room, and the stall of the task that sent it.
+     */
+    private static final class Held {
+        final Frame frame;
+        final Stall stall;
+        
+        Held(Frame frame, Stall stall) {
+            this.frame = frame;
+            this.stall = stall;
+        }
+    }
+    
+    WireQueue(SimulatorImpl sim, InterfaceImpl owner) {
+        this.sim = sim;
+        this.owner = owner;
+        this.clock = sim.timerService();
+        this.notEmpty = clock.newCondition(lock);
+        this.notFull = clock.newCondition(lock);
+    }
+    
+    void configure(LinkOptions options) {
+        lock.lock();
+        try {
+            capacity = options.capacity();
+            byteCapacity = options.byteCapacity();
+            overflowPolicy = options.overflowPolicy();
+            averageOccupancy = 0;
+            
+            delayNanos = options.delay(TimeUnit.NANOSECONDS);
+            bandwidth = options.bandwidth();
+            jitterNanos = options.jitter(TimeUnit.NANOSECONDS);
+            jitter = options.jitterDistribution();
+            delayed = delayNanos > 0 || jitterNanos > 0 ||
+                bandwidth != Long.MAX_VALUE;
+            busyUntil = lastDeliverAt = clock.nanoTime();
+            
+            final ChunkedFrameQueue oldFast = fast;
+            fast = sim.clock == null && !delayed &&
+                capacity == Integer.MAX_VALUE &&
+                byteCapacity == Long.MAX_VALUE ? new ChunkedFrameQueue() : null;
+            if (oldFast != null)
+                oldFast.close();
+            
+            // Held frames may fit now, or have no limits to wait for at all
+            if (fast != null && !held.isEmpty()) {
+                Held next;
+                while ((next = held.pollFirst()) != null) {
+                    fast.add(next.frame);
+                    next.stall.sent();
+                }
+                fast.wake();
+                owner.messagesAvailable();
+            } else
+                admitHeld();
+            
+            // Blocked senders may fit now, and waiting receivers may need to
+            // move to the other kind of queue
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Add a frame to the queue, subject to the overflow policy.
+     * 
+     * @return Whether the frame was accepted. If false, it was dropped.
+     */
+    boolean put(Frame frame) throws InterruptedException {
+        final ChunkedFrameQueue fast = this.fast;
+        if (fast != null) {
+            fast.add(frame);
+            fast.wake();
+            owner.messagesAvailable();
+            return true;
+        }
+        
+        lock.lockInterruptibly();
+        try {
+            final boolean accepted = admit(frame);
+            if (!frames.isEmpty()) {
+                notEmpty.signal();
+                owner.messagesAvailable();
+            }
+            return accepted;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Add several frames to the queue, in order, each subject to the
+     * overflow policy. Waiting receivers are only woken once, at the end.
+     * 
+     * @return The number of frames accepted; the rest were dropped.
+     */
+    int putAll(Frame[] batch) throws InterruptedException {
+        final ChunkedFrameQueue fast = this.fast;
+        if (fast != null) {
+            for (Frame frame : batch)
+                fast.add(frame);
+            fast.wake();
+            owner.messagesAvailable();
+            return batch.length;
+        }
+        
+        lock.lockInterruptibly();
+        try {
+            int accepted = 0;
+            try {
+                for (Frame frame : batch)
+                    if (admit(frame))
+                        accepted++;
+            } finally {
+                // Even if interrupted, let them at what did get through
+                if (!frames.isEmpty()) {
+                    notEmpty.signal();
+                    owner.messagesAvailable();
+                }
+            }
+            return accepted;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Apply the overflow policy to a frame and, if it survives, add it to
+     * the queue or put it in flight, or hold it if it has to wait for room
+     * and the sender can't. The caller must hold the lock and is
+     * responsible for signalling {@link #notEmpty}.
+     */
+    private boolean admit(Frame frame) throws InterruptedException {
+        final int size = frame.size();
+        
+        switch (overflowPolicy) {
+            case BLOCK:
+                // Held frames go first
+                if (!held.isEmpty() || !fits(size)) {
+                    final Stall stall = Stall.hold();
+                    if (stall != null) {
+                        held.addLast(new Held(frame, stall));
+                        return true;
+                    }
+                    while (!held.isEmpty() || !fits(size))
+                        notFull.await();
+                }
+                break;
+            case TAIL_DROP:
+                if (!fits(size))
+                    return drop();
+                break;
+            case HEAD_DROP:
+                while (!fits(size)) {
+                    final ArrayDeque<Frame> oldest =
+                        frames.isEmpty() ? inFlight : frames;
+                    bytes -= oldest.removeFirst().size();
+                    dropCount++;
+                }
+                break;
+            case RED:
+                if (!fits(size) || earlyDrop())
+                    return drop();
+                break;
+        }
+        
+        accept(frame);
+        return true;
+    }
+    
+    /**
+     * Add a frame that has room to the queue, or put it in flight. Must
+     * hold the lock.
+     */
+    private void accept(Frame frame) {
+        final int size = frame.size();
+        bytes += size;
+        
+        if (delayed) {
+            final long now = clock.nanoTime();
+            frame.deliverAt = deliveryTime(size, now);
+            
+            if (frame.deliverAt - now > 0 || !inFlight.isEmpty()) {
+                inFlight.addLast(frame);
+                scheduleArrival(now);
+                return;
+            }
+        }
+        
+        frames.addLast(frame);
+    }
+    
+    /**
+     * Let in as many held frames as there's room for, in the order they
+     * were sent. Must hold the lock.
+     */
+    private void admitHeld() {
+        if (held.isEmpty())
+            return;
+        
+        final boolean wasEmpty = frames.isEmpty();
+        Held next;
+        while ((next = held.peekFirst()) != null &&
+                fits(next.frame.size())) {
+            held.removeFirst();
+            accept(next.frame);
+            next.stall.sent();
+        }
+        
+        if (wasEmpty && !frames.isEmpty()) {
+            notEmpty.signal();
+            owner.messagesAvailable();
+        }
+    }
+    
+    private boolean fits(int size) {
+        // An oversized frame still fits if it's alone, or else it never would
+        final int count = frames.size() + inFlight.size();
+        return count == 0 || (count < capacity && bytes + size <= byteCapacity);
+    }
+    
+    private long deliveryTime(int size, long now) {
+        long sent = now;
+        if (bandwidth != Long.MAX_VALUE) {
+            // Wait for the link to finish with earlier frames, then take
+            // as long as the frame's size demands
+            final long start = busyUntil - now > 0 ? busyUntil : now;
+            sent = busyUntil =
+                start + size * 8L * TimeUnit.SECONDS.toNanos(1) / bandwidth;
+        }
+        
+        long deliverAt = sent + Math.max(0, delayNanos + jitter());
+        // Jitter mustn't let a frame overtake the one ahead of it
+        if (deliverAt - lastDeliverAt < 0)
+            deliverAt = lastDeliverAt;
+        
+        return lastDeliverAt = deliverAt;
+    }
+    
+    private long jitter() {
+        if (jitterNanos == 0)
+            return 0;
+        
+        switch (jitter) {
+            case UNIFORM:
+                return (long) ((random.nextDouble() * 2 - 1) * jitterNanos);
+            case NORMAL:
+                return (long) (random.nextGaussian() * jitterNanos);
+            case EXPONENTIAL:
+                return (long) (-Math.log(1 - random.nextDouble()) * jitterNanos);
+            default:
+                throw new AssertionError(jitter);
+        }
+    }
+    
+    private void scheduleArrival(long now) {
+        if (arrivalScheduled)
+            return;
+        
+        final long delay = inFlight.getFirst().deliverAt - now;
+        try {
+            // Only a virtual clock can tell when link delays are up in
+            // virtual time
+            if (sim.clock != null)
+                sim.clock.schedule(arrivalTask, delay, TimeUnit.NANOSECONDS);
+            else
+                sim.timer.schedule(arrivalTask, delay, TimeUnit.NANOSECONDS);
+            arrivalScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // The simulation is over; nobody is waiting for these anyway
+        } catch (IllegalStateException e) {
+            // Likewise
+        }
+    }
+    
+    private void arrive() {
+        lock.lock();
+        try {
+            arrivalScheduled = false;
+            
+            final long now = clock.nanoTime();
+            Frame frame;
+            while ((frame = inFlight.peekFirst()) != null &&
+                    frame.deliverAt - now <= 0)
+                frames.addLast(inFlight.removeFirst());
+            
+            if (!frames.isEmpty()) {
+                notEmpty.signal();
+                owner.messagesAvailable();
+            }
+            if (frame != null)
+                scheduleArrival(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private boolean earlyDrop() {
+        final double occupancy = Math.max(
+                (double) (frames.size() + inFlight.size()) / capacity,
+                (double) bytes / byteCapacity);
+        averageOccupancy += RED_WEIGHT * (occupancy - averageOccupancy);
+        
+        if (averageOccupancy < RED_MIN_THRESHOLD)
+            return false;
+        
+        final double probability = RED_MAX_PROBABILITY *
+            (averageOccupancy - RED_MIN_THRESHOLD) / (1 - RED_MIN_THRESHOLD);
+        return random.nextDouble() < probability;
+    }
+    
+    private boolean drop() {
+        dropCount++;
+        return false;
+    }
+    
+    Frame take() throws InterruptedException {
+        return poll(false, 0);
+    }
+    
+    Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return poll(true, unit.toNanos(timeout));
+    }
+    
+    private Frame poll(boolean timed, long nanos) throws InterruptedException {
+        final long deadline = clock.nanoTime() + nanos;
+        
+        while (true) {
+            final ChunkedFrameQueue fast = this.fast;
+            final Frame frame = fast != null ?
+                    fast.poll(timed ? nanos : -1) : pollLocked(timed, nanos);
+            
+            // Unless the link was reconfigured while we waited, null means
+            // timeout
+            if (frame != null || this.fast == fast)
+                return frame;
+            
+            if (timed)
+                nanos = Math.max(0, deadline - clock.nanoTime());
+        }
+    }
+    
+    /**
+     * @return The next frame, or null on timeout or if the link switched to
+     *      the lock-free queue.
+     */
+    private Frame pollLocked(boolean timed, long nanos)
+            throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (frames.isEmpty()) {
+                if (fast != null || (timed && nanos <= 0))
+                    return null;
+                
+                if (timed)
+                    nanos = notEmpty.awaitNanos(nanos);
+                else
+                    notEmpty.await();
+            }
+            
+            return remove();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Remove up to <tt>max</tt> frames without waiting.
+     * 
+     * @return The number of frames added to <tt>target</tt>.
+     */
+    int drainTo(Collection<? super Frame> target, int max) {
+        final ChunkedFrameQueue fast = this.fast;
+        if (fast != null)
+            return fast.drainTo(target, max);
+        
+        lock.lock();
+        try {
+            return removeTo(target, max);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Remove up to <tt>max</tt> frames, waiting for at least one.
+     * 
+     * @return The number of frames added to <tt>target</tt>, or zero on
+     *      timeout.
+     */
+    int drainTo(Collection<? super Frame> target, int max,
+            long timeout, TimeUnit unit) throws InterruptedException {
+        if (max <= 0)
+            return 0;
+        
+        if (fast == null) {
+            lock.lockInterruptibly();
+            try {
+                // Take everything under the one lock if we needn't wait
+                if (fast == null && !frames.isEmpty())
+                    return removeTo(target, max);
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        final Frame first = poll(timeout, unit);
+        if (first == null)
+            return 0;
+        
+        target.add(first);
+        return 1 + drainTo(target, max - 1);
+    }
+    
+    private Frame remove() {
+        final Frame frame = frames.removeFirst();
+        bytes -= frame.size();
+        admitHeld();
+        // Frames vary in size, so the next waiter in line might still not
+        // fit where another would
+        notFull.signalAll();
+        // Producers only signal once per batch, so pass it on
+        if (!frames.isEmpty())
+            notEmpty.signal();
+        return frame;
+    }
+    
+    private int removeTo(Collection<? super Frame> target, int max) {
+        int count = 0;
+        while (count < max && !frames.isEmpty()) {
+            final Frame frame = frames.removeFirst();
+            bytes -= frame.size();
+            target.add(frame);
+            count++;
+        }
+        
+        if (count > 0) {
+            admitHeld();
+            notFull.signalAll();
+            if (!frames.isEmpty())
+                notEmpty.signal();
+        }
+        return count;
+    }
+    
+    void clear() {
+        lock.lock();
+        try {
+            frames.clear();
+            inFlight.clear();
+            bytes = 0;
+            // Dropped with the rest, so their senders can carry on
+            Held next;
+            while ((next = held.pollFirst()) != null)
+                next.stall.sent();
+            notFull.signalAll();
+            
+            // Until the link is configured again, receivers wait here under
+            // the lock; configure() wakes them
+            final ChunkedFrameQueue oldFast = fast;
+            if (oldFast != null) {
+                fast = null;
+                oldFast.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Check whether there's a frame ready to receive. Only a hint if called
+     * from a thread other than the receiver.
+     */
+    boolean isEmpty() {
+        final ChunkedFrameQueue fast = this.fast;
+        if (fast != null)
+            return fast.isEmpty();
+        
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Get a frame the receiver is done with, for a sender to fill in again,
+     * if there is one. Only plain links recycle frames.
+     * 
+     * @see ChunkedFrameQueue#reuse()
+     */
+    Frame reusableFrame() {
+        final ChunkedFrameQueue fast = this.fast;
+        return fast != null ? fast.reuse() : null;
+    }
+    
+    /**
+     * Hand back a frame the receiver is done with. Receiver only.
+     * 
+     * @see ChunkedFrameQueue#recycle(Frame)
+     */
+    void recycle(Frame frame) {
+        final ChunkedFrameQueue fast = this.fast;
+        if (fast != null)
+            fast.recycle(frame);
+    }
+    
+    long dropCount() {
+        return dropCount;
+    }
+    
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            final ChunkedFrameQueue fast = this.fast;
+            if (fast != null)
+                return "WireQueue [" + fast + "]";
+            
+            return String.format("WireQueue [%d frames, %d in flight, " +
+                    "%d held, %d bytes, %d dropped]", frames.size(),
+                    inFlight.size(), held.size(), bytes, dropCount);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
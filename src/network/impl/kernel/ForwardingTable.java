@@ -0,0 +1,157 @@
+package network.impl.kernel;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import network.Interface;
+
+/**
+ * The forwarding table (FIB): which interface to send a message on, by
+ * destination address. Built from the routing table after each change and
+ * never modified, so the forwarding threads can look routes up without
+ * locking, boxing or allocating anything.
+ * <p>
+ * Addresses are usually handed out densely, so the table is normally just
+ * an array indexed by address. If the addresses are too spread out for
+ * that, it falls back to an open-addressed hash table.
+ */
+final class ForwardingTable {
+    static final ForwardingTable EMPTY =
+        build(Collections.<KernelNode>emptyList());
+    
+    private static final int NO_ROUTE = -1;
+    /**
+     * How many array slots per route to allow before switching to a hash
+     * table, beyond a fixed allowance for small tables.
+     */
+    private static final int MAX_SLOTS_PER_ROUTE = 4, MIN_DIRECT_SLOTS = 64;
+    
+    /** The interfaces routes point to, by {@link Interface#index()}. */
+    private final Interface[] links;
+    /** Interface index by address, or null if hashed. */
+    private final int[] direct;
+    /** Hashed addresses and their interface indices, or null if direct. */
+    private final int[] keys, values;
+    private final int mask;
+    
+    private ForwardingTable(Interface[] links, int[] direct,
+            int[] keys, int[] values) {
+        this.links = links;
+        this.direct = direct;
+        this.keys = keys;
+        this.values = values;
+        this.mask = keys != null ? keys.length - 1 : 0;
+    }
+    
+    /**
+     * Build a table from the current routes, skipping unreachable ones.
+     */
+    static ForwardingTable build(Collection<KernelNode> routes) {
+        int count = 0;
+        final int[] addresses = new int[routes.size()];
+        final Interface[] routeLinks = new Interface[routes.size()];
+        
+        for (KernelNode route : routes) {
+            // Read the link once; RIP may be changing it
+            final Interface link = route.getLink();
+            if (link == null || route.getCost() == Byte.MAX_VALUE ||
+                    route.getAddress() < 0 || count == addresses.length)
+                continue;
+            
+            addresses[count] = route.getAddress();
+            routeLinks[count] = link;
+            count++;
+        }
+        
+        return build(addresses, routeLinks, count);
+    }
+    
+    /**
+     * Build a table from a map of addresses, which must not be negative, to
+     * the interfaces leading to them.
+     */
+    static ForwardingTable build(Map<Integer, ? extends Interface> routes) {
+        int count = 0;
+        final int[] addresses = new int[routes.size()];
+        final Interface[] routeLinks = new Interface[routes.size()];
+        
+        for (Map.Entry<Integer, ? extends Interface> route :
+                routes.entrySet()) {
+            addresses[count] = route.getKey();
+            routeLinks[count] = route.getValue();
+            count++;
+        }
+        
+        return build(addresses, routeLinks, count);
+    }
+    
+    /**
+     * Build a table from parallel arrays of addresses, which must not be
+     * negative, and the interfaces leading to them.
+     * 
+     * @param count How many entries of the arrays to use.
+     */
+    static ForwardingTable build(int[] addresses, Interface[] routeLinks,
+            int count) {
+        int maxAddress = -1, maxIndex = -1;
+        for (int ix = 0; ix < count; ix++) {
+            maxAddress = Math.max(maxAddress, addresses[ix]);
+            maxIndex = Math.max(maxIndex, routeLinks[ix].index());
+        }
+        
+        final Interface[] links = new Interface[maxIndex + 1];
+        for (int ix = 0; ix < count; ix++)
+            links[routeLinks[ix].index()] = routeLinks[ix];
+        
+        if (maxAddress < MIN_DIRECT_SLOTS + MAX_SLOTS_PER_ROUTE * count) {
+            final int[] direct = new int[maxAddress + 1];
+            Arrays.fill(direct, NO_ROUTE);
+            for (int ix = 0; ix < count; ix++)
+                direct[addresses[ix]] = routeLinks[ix].index();
+            return new ForwardingTable(links, direct, null, null);
+        }
+        
+        // At most half full
+        final int capacity = Integer.highestOneBit(count) << 2;
+        final int[] keys = new int[capacity], values = new int[capacity];
+        Arrays.fill(values, NO_ROUTE);
+        for (int ix = 0; ix < count; ix++) {
+            int slot = hash(addresses[ix]) & (capacity - 1);
+            while (values[slot] != NO_ROUTE && keys[slot] != addresses[ix])
+                slot = (slot + 1) & (capacity - 1);
+            keys[slot] = addresses[ix];
+            values[slot] = routeLinks[ix].index();
+        }
+        return new ForwardingTable(links, null, keys, values);
+    }
+    
+    private static int hash(int address) {
+        // Fibonacci hashing; spreads runs of addresses across the table
+        final int h = address * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * Look up the interface leading to an address.
+     * 
+     * @return The interface, or null if there's no route.
+     */
+    Interface route(int address) {
+        final int index;
+        if (direct != null)
+            index = address >= 0 && address < direct.length ?
+                    direct[address] : NO_ROUTE;
+        else {
+            int slot = hash(address) & mask;
+            int found;
+            while ((found = values[slot]) != NO_ROUTE &&
+                    keys[slot] != address)
+                slot = (slot + 1) & mask;
+            index = found;
+        }
+        
+        return index != NO_ROUTE ? links[index] : null;
+    }
+}
@@ -1,17 +1,25 @@
 package network.impl.kernel;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 import network.AbstractKernel;
 import network.Interface;
 import network.KnownPort;
 import network.Message;
+import network.ReactiveKernel;
+import network.TimerService;
 import network.Interface.DisconnectedException;
 import network.protocols.RIP;
 
@@ -20,195 +28,420 @@ import network.protocols.RIP;
  * that is running the RIP algorithm to check for new nodes and
  * a check message system to pass along messages that arrive in the
  * router from one node and are going to another node.
+ * <p>
+ * Changes to the routing table go out to the neighbors as they happen, and
+ * only the routes that changed; the whole table is only sent every
+ * RIP_TASK_PERIOD, in case anything was lost. Routes are never advertised
+ * back through the interface they use (split horizon with poison reverse).
+ * <p>
+ * The router is a {@link ReactiveKernel}: it has no threads of its own, and
+ * forwards each message as the simulator's event loops hand it over. Its
+ * interfaces can be spread over several loops, so that it forwards on more
+ * than one processor at once; each interface is served by exactly one of
+ * them, so messages arriving on the same interface (and hence every flow
+ * between two nodes) keep their order.
+ * <p>
+ * If routes are installed with {@link #installRoutes(Map)}, RIP is turned
+ * off and the router just forwards by them.
  * 
  * @author Anthony Wittig
  */
-public class KernelImpl extends AbstractKernel {
+public class KernelImpl extends AbstractKernel
+        implements RouterKernel, ReactiveKernel {
     private static final long
         RIP_TASK_DELAY = 1,
-        RIP_TASK_PERIOD = 1000;
+        RIP_TASK_PERIOD = 10000,
+        // How long to wait for more changes before sending a triggered update
+        TRIGGER_DELAY = 20;
     
     private ConcurrentMap<Integer, KernelNode> routingTable = new ConcurrentHashMap<Integer, KernelNode>();
+    /**
+     * What onMessage() actually uses: a snapshot of routingTable,
+     * rebuilt whenever it changes
+     */
+    private volatile ForwardingTable forwardingTable = ForwardingTable.EMPTY;
 	/** a list of the messages that need to be processed by the routing table */
-	private ConcurrentMap<Interface, Message<RIP.Datagram>> toRoute = new ConcurrentHashMap<Interface, Message<RIP.Datagram>>();
+	private final Queue<ReceivedUpdate> toRoute = new ConcurrentLinkedQueue<ReceivedUpdate>();
+	/** Held while reading or changing the routing table for RIP */
+	private final Object ripLock = new Object();
+	/** Routes that changed since the last update went out. Guarded by ripLock. */
+	private final Set<KernelNode> changedRoutes = new LinkedHashSet<KernelNode>();
+	/** Neighbors owed the whole routing table. Guarded by ripLock. */
+	private final Set<Interface> fullUpdateTo = new LinkedHashSet<Interface>();
+	/** Neighbors to ask for their whole routing tables. Guarded by ripLock. */
+	private final Set<Interface> requestTo = new LinkedHashSet<Interface>();
+	/** Whether a TriggeredUpdate is scheduled and hasn't started yet */
+	private final AtomicBoolean triggerPending = new AtomicBoolean();
+	/** Set once routes are installed from outside; RIP is off from then on */
+	private volatile boolean routesInstalled;
 	public static boolean printRipTable = false;
-	private volatile ScheduledExecutorService checkNeighbors;
+	/** Whether RIP tasks should run. Only changed while holding ripLock. */
+	private volatile boolean running;
+	/** Set by shutDown(), even if it comes before start(). Guarded by ripLock. */
+	private boolean stopped;
+	/** The periodic full update, on the node's event loop */
+	private TimerService.Timeout ripTask;
+	/** How many event loops to spread the interfaces over */
+	private final int parallelism;
 	
 	/**
-	 * Shutdown router
+	 * Create a router that forwards messages on one event loop.
 	 */
-	public void shutDown() throws InterruptedException {
-	    checkNeighbors.shutdownNow();
-	    while (!checkNeighbors.awaitTermination(1, TimeUnit.SECONDS))
-	        continue;
+	public KernelImpl() {
+	    this(1);
 	}
-
+	
 	/**
-	 * Start up router. Set RIP algorithm to run every second. Router will check messages every 50ms
+	 * Create a router that forwards messages on several event loops.
+	 * 
+	 * @param forwardingThreads The number of loops to forward messages
+	 *     on. The interfaces are divided among them.
 	 */
-	public void start() {
-		// Runs the RIP algorithm every RIP_TASK_PERIOD milliseconds.
-		checkNeighbors = Executors.newScheduledThreadPool(2);
-		checkNeighbors.scheduleWithFixedDelay(
-		        new RIPTask(), RIP_TASK_DELAY, RIP_TASK_PERIOD, TimeUnit.MILLISECONDS);
-		checkNeighbors.execute(new CheckMessages());
+	public KernelImpl(int forwardingThreads) {
+	    if (forwardingThreads < 1)
+	        throw new IllegalArgumentException(
+	                "Need at least one forwarding thread");
+	    
+	    parallelism = forwardingThreads;
+	}
+	
+	public int parallelism() {
+	    return parallelism;
+	}
+	
+	/**
+	 * Shutdown router
+	 */
+	public void shutDown() {
+	    synchronized (ripLock) {
+	        // Once we have the lock, no RIP task is running, and none will
+	        stopped = true;
+	        running = false;
+	        if (ripTask != null)
+	            ripTask.cancel();
+	    }
 	}
 
 	/**
-	 * Class that checks to see if we have any messages to process in the
-	 * interfaces
+	 * Start up router. Set RIP algorithm to send the whole routing table every
+	 * RIP_TASK_PERIOD, and changes as they happen. Messages are checked as the
+	 * event loops hand them over, and RIP's timed tasks run on the node's
+	 * loop, so this returns right away.
 	 */
-	class CheckMessages implements Runnable {
+	public void start() {
+	    synchronized (ripLock) {
+	        if (stopped)
+	            return;
+	        running = true;
+	        
+	        // Runs the RIP algorithm every RIP_TASK_PERIOD milliseconds.
+	        if (!routesInstalled)
+	            ripTask = timer().scheduleWithFixedDelay(new RIPTask(),
+	                    RIP_TASK_DELAY, RIP_TASK_PERIOD, TimeUnit.MILLISECONDS);
+	    }
+	}
 
-		public void createDiscError(Message<?> rm) {
-			logger().log(Level.WARNING, "Interface disconnected or route not found: {0}", rm);
-		}
-		
-		@Override
-		public void run() {
-		    while (true) {
-    			// we want to check all of the interfaces to see if they have any
-    			// messages for us to process:
-    		    for (Interface iface : interfaces()) {
-    				try {
-    					Message<?> receivedMessage = iface.receive(0, TimeUnit.MILLISECONDS);
-    					
-    					// This is for case a message timeout
-    					if(receivedMessage == null){
-    						// no messages for us, ignore.
-    					} else if(receivedMessage.sentToPort(KnownPort.KERNEL_WHO)){
-    					    final Message<RIP.Datagram> message =
-    					        receivedMessage.asType(RIP.Datagram.class);
-    					    
-    					    // rip message:
-    						// see if it's from a router:
-    						if (message.data.entries != null) {
-    							toRoute.put(iface, message);
-    						} else {
-    							// this is just from a regular computer, add it to the list:
-    							RIP.Datagram fakeDatagram =
-    							    new RIP.Datagram(new RIP.Datagram.Entry[] {
-    						            new RIP.Datagram.Entry(receivedMessage.source, (byte) 0)
-    						        });
-    							Message<RIP.Datagram> fakeMessage = new Message<RIP.Datagram>(receivedMessage.source, receivedMessage.destination, receivedMessage.sourcePort, receivedMessage.destinationPort, fakeDatagram);
-    							toRoute.put(iface, fakeMessage);
-    						}
-    					} else {
-    						
-    						int dest = receivedMessage.destination;						
-    						KernelNode destNode = routingTable.get(dest);						
-    						
-    						if(destNode != null) {
-    							
-    							Interface sendIface = destNode.getLink();
-    							
-    							try {
-    								sendIface.send(receivedMessage);
-    							} catch (DisconnectedException e) {
-    							    createDiscError(receivedMessage);
-    							}
-    						} else {
-    							createDiscError(receivedMessage);
-    						}						
-    						
-    					}
-    
-    				} catch (InterruptedException e) {
-    					// We're shutting down
-    				    Thread.currentThread().interrupt();
-    				    return;
-    				}
-    			}
-    		}
-		}
+	public void createDiscError(Interface.RawMessage rm) {
+		logger().log(Level.WARNING, "Interface disconnected or route not found: {0}", rm);
 	}
 	
 	/**
-	 * Class that runs the RIP algorithm to find all neighbors and add them to
-	 * Kernel's routing table.
+	 * Check a message that arrived in the router: RIP messages go to the
+	 * routing table, and anything else is passed along toward its
+	 * destination. Only the header is needed to forward a message, so
+	 * nothing we're not going to read is decoded.
 	 */
-	class RIPTask implements Runnable {
-		// TODO Clean up and fix RIP algorithm (current implementation of rip
-		// might be n^n...)
-		public void run() {			
-			for (Interface i : interfaces()) {
-				try {
-					final KernelNode[] nodes =
-					    routingTable.values().toArray(new KernelNode[0]);
-				    final int count = nodes.length;
-				    
-				    final RIP.Datagram datagram =
-				        new RIP.Datagram(new RIP.Datagram.Entry[count]);
-				    
-				    for (int ix = 0; ix < count; ix++)
-				        datagram.entries[ix] =
-				            new RIP.Datagram.Entry(nodes[ix].getAddress(),
-				                    nodes[ix].getCost());
-				    
-					Message<RIP.Datagram> findNeighbors = new Message<RIP.Datagram>(
-							address(), 255, KnownPort.KERNEL_WHO,
-							KnownPort.KERNEL_WHO, datagram);
-					i.send(findNeighbors);
-
-				} catch (DisconnectedException e) {
-					// TODO Handle disconnects according to RIP.
-				} catch (InterruptedException e) {
-				    Thread.currentThread().interrupt();
-					return;
-				}
+	public void onMessage(Interface iface, Interface.RawMessage rawMessage)
+	        throws InterruptedException {
+		if(KnownPort.KERNEL_WHO.is(rawMessage.destinationPort())){
+		    final Message<?> receivedMessage = rawMessage.decode();
+		    final Message<RIP.Datagram> message =
+		        receivedMessage.asType(RIP.Datagram.class);
+		    
+		    // rip message:
+			// see if it's from a router:
+			if (message.data.entries != null) {
+				received(iface, message);
+			} else {
+				// this is just from a regular computer, add it to the list:
+				RIP.Datagram fakeDatagram =
+				    new RIP.Datagram(new RIP.Datagram.Entry[] {
+			            new RIP.Datagram.Entry(receivedMessage.source, (byte) 0)
+			        });
+				Message<RIP.Datagram> fakeMessage = new Message<RIP.Datagram>(receivedMessage.source, receivedMessage.destination, receivedMessage.sourcePort, receivedMessage.destinationPort, fakeDatagram);
+				received(iface, fakeMessage);
 			}
+		} else {
 			
-			//see if anyone sent us a back their info
-			for (Map.Entry<Interface, Message<RIP.Datagram>> pair : toRoute
-					.entrySet()) {
-			    final Interface iface = pair.getKey();
-			    final Message<RIP.Datagram> message =
-			        pair.getValue().asType(RIP.Datagram.class);
-			    
-			    KernelNode neighbor = routingTable.get(message.source);
-			    if (neighbor == null) {
-			        final KernelNode newNeighbor =
-			            new KernelNode(message.source, iface, (byte) 0, (byte) 1);
-			        routingTable.putIfAbsent(message.source, newNeighbor);
-			    } else {
-			        neighbor.update(iface, (byte) 0, (byte) 1);
-			    }
+			Interface sendIface =
+			    forwardingTable.route(rawMessage.destination());
+			
+			if(sendIface != null) {
 				
-				//now see if our updated node has any information that is better than what we have:
-				for (RIP.Datagram.Entry entry : message.data.entries){					
-					checkAndAdd(entry, iface);
-				}				
-
-			}			
-
-			// Print routing table
-			if(printRipTable) {
-				String toPrint = (name() + " - Check routing table:");
-							
-				for (KernelNode node : routingTable.values()) {
-					toPrint += ("\n\t" + node);
+				try {
+					sendIface.forwardRaw(rawMessage);
+				} catch (DisconnectedException e) {
+				    createDiscError(rawMessage);
 				}
-							
-				logger().info(toPrint);
+			} else {
+				createDiscError(rawMessage);
 			}
-
 		}
+	}
+	
+	/**
+	 * Queue a RIP message to be applied to the routing table shortly.
+	 * Messages arriving close together are applied together, and any changes
+	 * go out in a single triggered update.
+	 */
+	private void received(Interface iface, Message<RIP.Datagram> message) {
+	    if (routesInstalled)
+	        return;
+	    toRoute.add(new ReceivedUpdate(iface, message));
+	    trigger();
+	}
+	
+	/**
+	 * Make sure a TriggeredUpdate will run soon.
+	 */
+	private void trigger() {
+	    // Before start(), the first full update will take care of everything
+	    if (!running || routesInstalled ||
+	            !triggerPending.compareAndSet(false, true))
+	        return;
+	    
+	    try {
+	        timer().schedule(new TriggeredUpdate(),
+	                TRIGGER_DELAY, TimeUnit.MILLISECONDS);
+	    } catch (IllegalStateException e) {
+	        // The simulator is shutting down
+	    }
+	}
+	
+	public void installRoutes(Map<Integer, ? extends Interface> routes) {
+	    routesInstalled = true;
+	    forwardingTable = ForwardingTable.build(routes);
+	}
+	
+	@Override
+	public void interfaceConnected(Interface iface) {
+	    // Introduce ourselves right away rather than at the next full update,
+	    // and ask the new neighbor to do the same
+	    synchronized (ripLock) {
+	        fullUpdateTo.add(iface);
+	        requestTo.add(iface);
+	    }
+	    trigger();
+	}
+	
+	@Override
+	public void interfaceDisconnected(Interface iface) {
+	    synchronized (ripLock) {
+	        boolean lost = false;
+	        for (KernelNode node : routingTable.values())
+	            if (node.getLink() == iface && node.clear()) {
+	                changedRoutes.add(node);
+	                lost = true;
+	            }
+	        fullUpdateTo.remove(iface);
+	        requestTo.remove(iface);
+	        
+	        if (lost) {
+	            forwardingTable = ForwardingTable.build(routingTable.values());
+	            // Someone else may know another way; don't wait for the next
+	            // full update to find out
+	            for (Interface other : interfaces())
+	                if (other != iface)
+	                    requestTo.add(other);
+	        }
+	    }
+	    trigger();
+	}
+	
+	/**
+	 * A RIP message waiting to be applied to the routing table.
+	 */
+	private static final class ReceivedUpdate {
+	    final Interface iface;
+	    final Message<RIP.Datagram> message;
+	    
+	    ReceivedUpdate(Interface iface, Message<RIP.Datagram> message) {
+	        this.iface = iface;
+	        this.message = message;
+	    }
+	}
+	
+	/**
+	 * Apply all the RIP messages received so far to the routing table,
+	 * noting which routes changed. Must hold ripLock.
+	 */
+	private void applyUpdates() {
+	    boolean changed = false;
+	    
+	    ReceivedUpdate update;
+	    while ((update = toRoute.poll()) != null) {
+	        final Interface iface = update.iface;
+	        final Message<RIP.Datagram> message = update.message;
+	        
+	        KernelNode neighbor = routingTable.get(message.source);
+	        if (neighbor == null) {
+	            neighbor =
+	                new KernelNode(message.source, iface, (byte) 0, (byte) 1);
+	            routingTable.put(message.source, neighbor);
+	            changedRoutes.add(neighbor);
+	            changed = true;
+	        } else if (neighbor.update(iface, (byte) 0, (byte) 1)) {
+	            changedRoutes.add(neighbor);
+	            changed = true;
+	        }
+	        
+	        if (message.data.isRequest()) {
+	            fullUpdateTo.add(iface);
+	            continue;
+	        }
+	        
+	        //now see if our updated node has any information that is better than what we have:
+	        for (RIP.Datagram.Entry entry : message.data.entries)
+	            changed |= checkAndAdd(entry, iface);
+	    }
+	    
+	    // Give the forwarding threads a fresh copy to read
+	    if (changed)
+	        forwardingTable = ForwardingTable.build(routingTable.values());
+	}
+	
+	/**
+	 * checks to see if the information should be added to our routing table
+	 * @param info the info to check (and add if needed)
+	 * @return whether the routing table changed
+	 */
+	private boolean checkAndAdd(RIP.Datagram.Entry info, Interface iface){
+		KernelNode node = routingTable.get(info.destination);
+		if (node == null) {
+		    if (info.metric == Byte.MAX_VALUE || info.destination == address())
+		        return false;
+		    
+		    node = new KernelNode(info.destination, iface, info.metric, (byte) 1);
+		    routingTable.put(info.destination, node);
+		} else if (!node.update(iface, info.metric, (byte) 1))
+		    return false;
 		
-		/**
-		 * checks to see if the information should be added to our routing table
-		 * @param info the info to check (and add if needed)
-		 */
-		private void checkAndAdd(RIP.Datagram.Entry info, Interface iface){
-			final KernelNode node = routingTable.get(info.destination);
-			if (node == null) {
-			    if (info.metric != Byte.MAX_VALUE && info.destination != address()) {
-                    final KernelNode newNode =
-                        new KernelNode(info.destination, iface, info.metric, (byte) 1);
-                    routingTable.putIfAbsent(info.destination, newNode);
-			    }
-			} else {
-			    node.update(iface, info.metric, (byte) 1);
-			}
+		changedRoutes.add(node);
+		return true;
+	}
+	
+	/**
+	 * Send routes to a neighbor. Split horizon with poison reverse: a route
+	 * through the neighbor itself is advertised as unreachable, so that the
+	 * neighbor never tries to reach it through us. Must hold ripLock.
+	 */
+	private void sendUpdate(Interface iface, Collection<KernelNode> routes,
+	        boolean full) throws InterruptedException {
+	    if (routes.isEmpty() && !full)
+	        return;
+	    
+	    final RIP.Datagram.Entry[] entries =
+	        new RIP.Datagram.Entry[routes.size()];
+	    int ix = 0;
+	    for (KernelNode node : routes)
+	        entries[ix++] = new RIP.Datagram.Entry(node.getAddress(),
+	                node.getLink() == iface ? Byte.MAX_VALUE : node.getCost());
+	    
+	    send(iface, new RIP.Datagram(entries));
+	}
+	
+	/**
+	 * Send a RIP message. Never waits, being on the event loop: if the link
+	 * is full, it's held until there's room, so a full link can't hold up
+	 * the other nodes on the loop while we have ripLock.
+	 */
+	private void send(Interface iface, RIP.Datagram datagram)
+	        throws InterruptedException {
+	    try {
+	        iface.send(new Message<RIP.Datagram>(
+	                address(), 255, KnownPort.KERNEL_WHO,
+	                KnownPort.KERNEL_WHO, datagram));
+	    } catch (DisconnectedException e) {
+	        // interfaceDisconnected() will take care of it
+	    }
+	}
+	
+	/**
+	 * Class that runs the RIP algorithm to find all neighbors and add them to
+	 * Kernel's routing table. Sends the whole routing table to every
+	 * neighbor, as a backstop for any triggered updates that went astray.
+	 */
+	class RIPTask implements Runnable {
+		public void run() {			
+		    synchronized (ripLock) {
+		        if (!running)
+		            return;
+		        
+		        applyUpdates();
+		        
+		        final List<KernelNode> routes =
+		            new ArrayList<KernelNode>(routingTable.values());
+		        try {
+		            for (Interface iface : interfaces())
+		                sendUpdate(iface, routes, true);
+		        } catch (InterruptedException e) {
+		            Thread.currentThread().interrupt();
+		            return;
+		        }
+		        // Everyone's up to date now
+		        changedRoutes.clear();
+		        fullUpdateTo.clear();
+		        
+		        // Print routing table
+		        if(printRipTable) {
+		            String toPrint = (name() + " - Check routing table:");
+		            
+		            for (KernelNode node : routes) {
+		                toPrint += ("\n\t" + node);
+		            }
+		            
+		            logger().info(toPrint);
+		        }
+		    }
 		}
 	}
+	
+	/**
+	 * Applies the RIP messages that have arrived since the last update and
+	 * tells the neighbors about only the routes that changed.
+	 */
+	class TriggeredUpdate implements Runnable {
+	    public void run() {
+	        // Anything arriving from here on needs another run
+	        triggerPending.set(false);
+	        
+	        synchronized (ripLock) {
+	            if (!running)
+	                return;
+	            
+	            applyUpdates();
+	            
+	            final List<KernelNode> changed =
+	                new ArrayList<KernelNode>(changedRoutes);
+	            final List<KernelNode> routes =
+	                new ArrayList<KernelNode>(routingTable.values());
+	            try {
+	                for (Interface iface : requestTo)
+	                    send(iface, RIP.Datagram.request());
+	                for (Interface iface : interfaces()) {
+	                    if (fullUpdateTo.contains(iface))
+	                        sendUpdate(iface, routes, true);
+	                    else
+	                        sendUpdate(iface, changed, false);
+	                }
+	            } catch (InterruptedException e) {
+	                Thread.currentThread().interrupt();
+	                return;
+	            }
+	            changedRoutes.clear();
+	            fullUpdateTo.clear();
+	            requestTo.clear();
+	        }
+	    }
+	}
 }
@@ -13,14 +13,16 @@ class KernelNode {
 	private final int address;
 	
 	/**
-	 * The current count for the # of hops away it is
+	 * The current count for the # of hops away it is. Volatile so that it
+	 * can be read without locking.
 	 */
-	private byte cost;
+	private volatile byte cost;
 	
 	/**
-	 * Which interface leads to the node
+	 * Which interface leads to the node. Volatile so that the forwarding
+	 * threads can read it without locking.
 	 */
-	private Interface link;
+	private volatile Interface link;
 	
 	private static byte addCosts(byte fromNeighbor, byte linkCost) {
 	    return (byte) Math.min(fromNeighbor + linkCost, Byte.MAX_VALUE);
@@ -44,17 +46,31 @@ class KernelNode {
 		return link;
 	}
 	
-	synchronized void clear() {
+	/**
+	 * Mark the node unreachable.
+	 * @return whether it was reachable before
+	 */
+	synchronized boolean clear() {
+	    if (cost == Byte.MAX_VALUE)
+	        return false;
 	    this.cost = Byte.MAX_VALUE;
+	    return true;
 	}
 
-	synchronized void update(Interface link, byte costFromNeighbor, byte linkCost) {
+	/**
+	 * @return whether the route changed
+	 */
+	synchronized boolean update(Interface link, byte costFromNeighbor, byte linkCost) {
 	    final byte cost = addCosts(costFromNeighbor, linkCost);
 	    if (cost < this.cost) {
 	        this.link = link;
 	        this.cost = cost;
-	    } else if (this.link == link)
+	        return true;
+	    } else if (this.link == link && cost != this.cost) {
 	        this.cost = cost;
+	        return true;
+	    }
+	    return false;
 	}
 	
 	int getAddress() {
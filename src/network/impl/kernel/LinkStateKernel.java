@@ -0,0 +1,479 @@
+package network.impl.kernel;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import network.AbstractKernel;
+import network.Interface;
+import network.InterfaceSelector;
+import network.KnownPort;
+import network.Message;
+import network.TimerService;
+import network.Interface.DisconnectedException;
+import network.protocols.LinkState;
+import network.protocols.RIP;
+
+/**
+ * Kernel for routers that uses link-state routing, as an alternative to the
+ * distance-vector {@link KernelImpl}. Each router floods an advertisement of
+ * its neighbors whenever they change and keeps the latest advertisement from
+ * every other router, so every router has the same map of the network. Routes
+ * come from a {@link ShortestPathTree} over that map, which is updated
+ * incrementally as advertisements arrive. A failed link is forgotten
+ * everywhere as soon as the news has been flooded; there's no counting to
+ * infinity.
+ * <p>
+ * Neighbors are found as {@link KernelImpl} finds them, by sending a
+ * {@link RIP.Datagram} on {@link KnownPort#KERNEL_WHO}; hosts answer with
+ * {@link RIP.Datagram#notARouter()}, and link-state routers with one of
+ * their own.
+ * <p>
+ * If routes are installed with {@link #installRoutes(Map)}, no
+ * advertisements are sent and the router just forwards by them.
+ * 
+ * @see network.Simulator#createLinkStateRouterKernel()
+ * @see LinkState
+ */
+public class LinkStateKernel extends AbstractKernel
+        implements RouterKernel {
+    /** How long to wait for more news before recomputing routes, in ms */
+    private static final long SPF_DELAY = 10;
+    /**
+     * How often to flood our advertisement and say hello even if nothing
+     * changed, in case anything was lost, in ms
+     */
+    private static final long REFRESH_PERIOD = 30000;
+    /** Most messages to take from one interface before checking the next */
+    private static final int MAX_BATCH = 64;
+    
+    /** Made by selector() */
+    private InterfaceSelector selector;
+    private volatile ForwardingTable forwardingTable = ForwardingTable.EMPTY;
+    /** Whether control tasks should run. Only changed while holding lock. */
+    private volatile boolean running;
+    
+    /** Control messages waiting for an Update to look at them */
+    private final Queue<Received> received =
+        new ConcurrentLinkedQueue<Received>();
+    /** Whether an Update is scheduled and hasn't started yet */
+    private final AtomicBoolean updatePending = new AtomicBoolean();
+    /** Set once routes are installed from outside; flooding is off then */
+    private volatile boolean routesInstalled;
+    
+    /** Guards everything below */
+    private final Object lock = new Object();
+    /** Set by shutDown(), even if it comes before start() */
+    private boolean stopped;
+    /** The periodic refresh, on the simulator's timer */
+    private TimerService.Timeout refresh;
+    /** Neighbors by the interface leading to them */
+    private final Map<Interface, Integer>
+        routers = new HashMap<Interface, Integer>(),
+        hosts = new HashMap<Interface, Integer>();
+    /** The latest advertisement from each router, including this one */
+    private final Map<Integer, LinkState.Advertisement> database =
+        new HashMap<Integer, LinkState.Advertisement>();
+    private ShortestPathTree tree;
+    private long sequence;
+    private boolean neighborsChanged;
+    /** Interfaces owed a hello */
+    private final Set<Interface> helloTo = new LinkedHashSet<Interface>();
+    /** New router neighbors owed the whole database */
+    private final Set<Interface> syncTo = new LinkedHashSet<Interface>();
+    
+    /**
+     * A control message waiting to be looked at.
+     */
+    private static final class Received {
+        final Interface iface;
+        final Message<?> message;
+        
+        Received(Interface iface, Message<?> message) {
+            this.iface = iface;
+            this.message = message;
+        }
+    }
+    
+    @Override
+    public void interfaceAdded(Interface iface) {
+        super.interfaceAdded(iface);
+        selector().register(iface);
+    }
+    
+    /**
+     * Get the selector, making it the first time. It waits on the timer
+     * service's clock, which isn't set in the constructor.
+     */
+    private synchronized InterfaceSelector selector() {
+        if (selector == null)
+            selector = new InterfaceSelector(timer());
+        return selector;
+    }
+    
+    public void installRoutes(Map<Integer, ? extends Interface> routes) {
+        routesInstalled = true;
+        forwardingTable = ForwardingTable.build(routes);
+    }
+    
+    @Override
+    public void interfaceConnected(Interface iface) {
+        synchronized (lock) {
+            helloTo.add(iface);
+        }
+        trigger();
+    }
+    
+    @Override
+    public void interfaceDisconnected(Interface iface) {
+        synchronized (lock) {
+            if (routers.remove(iface) != null | hosts.remove(iface) != null)
+                neighborsChanged = true;
+            helloTo.remove(iface);
+            syncTo.remove(iface);
+        }
+        trigger();
+    }
+    
+    /**
+     * Forward messages in the kernel's own thread; everything else runs on
+     * the simulator's timer.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (stopped)
+                return;
+            running = true;
+            
+            tree = new ShortestPathTree(address());
+            helloTo.addAll(interfaces());
+            if (!routesInstalled)
+                refresh = timer().scheduleWithFixedDelay(new Refresh(),
+                        REFRESH_PERIOD, REFRESH_PERIOD, TimeUnit.MILLISECONDS);
+        }
+        trigger();
+        
+        // Returns once shutDown() interrupts us
+        new Forward().run();
+    }
+    
+    public void shutDown() {
+        synchronized (lock) {
+            // Once we have the lock, no control task is running or will
+            stopped = true;
+            running = false;
+            if (refresh != null)
+                refresh.cancel();
+        }
+        
+        mainThread().interrupt();
+        selector().close();
+    }
+    
+    /**
+     * Make sure an Update will run soon.
+     */
+    private void trigger() {
+        // Before start(), start() will take care of it
+        if (!running || routesInstalled ||
+                !updatePending.compareAndSet(false, true))
+            return;
+        
+        try {
+            timer().schedule(new Update(), SPF_DELAY, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException e) {
+            // The simulator is shutting down
+        }
+    }
+    
+    /**
+     * Forwards messages, and passes control messages on to an Update.
+     */
+    private class Forward implements Runnable {
+        public void run() {
+            final List<Interface.RawMessage> batch =
+                new ArrayList<Interface.RawMessage>(MAX_BATCH);
+            final List<Interface> ready = new ArrayList<Interface>();
+            final InterfaceSelector selector = selector();
+            
+            while (!Thread.currentThread().isInterrupted()) {
+                ready.clear();
+                try {
+                    selector.select(ready);
+                } catch (InterruptedException e) {
+                    // We're shutting down
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                
+                for (Interface iface : ready) {
+                    batch.clear();
+                    iface.drainRawTo(batch, MAX_BATCH);
+                    
+                    try {
+                        for (Interface.RawMessage message : batch)
+                            handle(iface, message);
+                    } catch (InterruptedException e) {
+                        // We're shutting down
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+        
+        private void handle(Interface iface, Interface.RawMessage message)
+                throws InterruptedException {
+            final int port = message.destinationPort();
+            if (KnownPort.KERNEL_WHO.is(port) || LinkState.PORT.is(port)) {
+                if (routesInstalled)
+                    return;
+                received.add(new Received(iface, message.decode()));
+                trigger();
+                return;
+            }
+            
+            final Interface sendIface =
+                forwardingTable.route(message.destination());
+            try {
+                if (sendIface == null)
+                    throw new DisconnectedException();
+                sendIface.forwardRaw(message);
+            } catch (DisconnectedException e) {
+                logger().log(Level.WARNING,
+                        "Interface disconnected or route not found: {0}",
+                        message);
+            }
+        }
+    }
+    
+    /**
+     * Takes in control messages and link changes, floods any news, and
+     * updates the routes.
+     */
+    private class Update implements Runnable {
+        public void run() {
+            // Anything arriving from here on needs another run
+            updatePending.set(false);
+            
+            synchronized (lock) {
+                if (!running)
+                    return;
+                try {
+                    update();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Floods our advertisement and says hello to everyone, in case anything
+     * was lost.
+     */
+    private class Refresh implements Runnable {
+        public void run() {
+            synchronized (lock) {
+                neighborsChanged = true;
+                helloTo.addAll(interfaces());
+            }
+            trigger();
+        }
+    }
+    
+    /**
+     * Must hold the lock.
+     */
+    private void update() throws InterruptedException {
+        final Set<Integer> changed = new HashSet<Integer>();
+        
+        Received item;
+        while ((item = received.poll()) != null) {
+            final Object data = item.message.data;
+            final int source = item.message.source;
+            
+            if (data instanceof RIP.Datagram) {
+                if (((RIP.Datagram) data).entries == null)
+                    neighbor(item.iface, source, false);
+                else if (neighbor(item.iface, source, true))
+                    // They may not have heard from us yet either
+                    helloTo.add(item.iface);
+            } else if (data instanceof LinkState.Advertisement) {
+                // Only routers send these, and always with their own address
+                neighbor(item.iface, source, true);
+                
+                final LinkState.Advertisement advertisement =
+                    (LinkState.Advertisement) data;
+                if (install(advertisement)) {
+                    changed.add(advertisement.origin);
+                    flood(advertisement, item.iface);
+                }
+            }
+        }
+        
+        if (neighborsChanged) {
+            neighborsChanged = false;
+            final LinkState.Advertisement advertisement =
+                new LinkState.Advertisement(address(), ++sequence,
+                        addresses(routers), addresses(hosts));
+            database.put(address(), advertisement);
+            changed.add(address());
+            flood(advertisement, null);
+        }
+        
+        for (Interface iface : helloTo)
+            send(iface, KnownPort.KERNEL_WHO,
+                    new RIP.Datagram(new RIP.Datagram.Entry[0]));
+        helloTo.clear();
+        for (Interface iface : syncTo)
+            for (LinkState.Advertisement advertisement : database.values())
+                send(iface, LinkState.PORT, advertisement);
+        syncTo.clear();
+        
+        if (!changed.isEmpty())
+            updateRoutes(changed);
+    }
+    
+    /**
+     * Note a neighbor.
+     * 
+     * @return Whether it's a new router neighbor.
+     */
+    private boolean neighbor(Interface iface, int address, boolean router) {
+        final Map<Interface, Integer> kind = router ? routers : hosts;
+        final Integer old = kind.put(iface, address);
+        (router ? hosts : routers).remove(iface);
+        
+        if (old != null && old == address)
+            return false;
+        
+        neighborsChanged = true;
+        if (router)
+            syncTo.add(iface);
+        return router;
+    }
+    
+    private static int[] addresses(Map<Interface, Integer> neighbors) {
+        final int[] ans = new int[neighbors.size()];
+        int ix = 0;
+        for (int address : neighbors.values())
+            ans[ix++] = address;
+        return ans;
+    }
+    
+    /**
+     * Store an advertisement if it's news.
+     * 
+     * @return Whether it was news.
+     */
+    private boolean install(LinkState.Advertisement advertisement) {
+        if (advertisement.origin == address()) {
+            // An old one of ours from before we restarted, say; make sure our
+            // next one supersedes it
+            if (advertisement.sequence >= sequence) {
+                sequence = advertisement.sequence;
+                neighborsChanged = true;
+            }
+            return false;
+        }
+        
+        final LinkState.Advertisement old =
+            database.get(advertisement.origin);
+        if (old != null && old.sequence >= advertisement.sequence)
+            return false;
+        
+        database.put(advertisement.origin, advertisement);
+        return true;
+    }
+    
+    /**
+     * Send an advertisement to every neighboring router but the one it came
+     * from.
+     */
+    private void flood(LinkState.Advertisement advertisement, Interface from)
+            throws InterruptedException {
+        for (Interface iface : routers.keySet())
+            if (iface != from)
+                send(iface, LinkState.PORT, advertisement);
+    }
+    
+    private void send(Interface iface, KnownPort port, Serializable data)
+            throws InterruptedException {
+        try {
+            iface.send(new Message<Serializable>(
+                    address(), 255, port, port, data));
+        } catch (DisconnectedException e) {
+            // interfaceDisconnected() will take care of it
+        }
+    }
+    
+    /**
+     * Bring the shortest-path tree up to date with the advertisements that
+     * changed, then work out the routes to hosts from it and publish a new
+     * forwarding table.
+     */
+    private void updateRoutes(Set<Integer> changed) {
+        for (int origin : changed) {
+            if (origin == address()) {
+                final Map<Integer, Interface> neighbors =
+                    new HashMap<Integer, Interface>();
+                for (Map.Entry<Interface, Integer> entry : routers.entrySet())
+                    neighbors.put(entry.getValue(), entry.getKey());
+                tree.setRootNeighbors(neighbors);
+            } else
+                tree.setNeighbors(origin, database.get(origin).routers());
+        }
+        
+        // Hosts aren't in the tree; each one hangs off the nearest router
+        // that claims it
+        final Map<Integer, Integer> hostDistances =
+            new HashMap<Integer, Integer>();
+        final Map<Integer, Interface> hostLinks =
+            new HashMap<Integer, Interface>();
+        for (Map.Entry<Interface, Integer> entry : hosts.entrySet()) {
+            hostDistances.put(entry.getValue(), 1);
+            hostLinks.put(entry.getValue(), entry.getKey());
+        }
+        for (LinkState.Advertisement advertisement : database.values()) {
+            final Interface link = tree.firstHop(advertisement.origin);
+            if (link == null)
+                continue;
+            
+            final int distance = tree.distance(advertisement.origin) + 1;
+            for (int host : advertisement.hosts()) {
+                final Integer best = hostDistances.get(host);
+                if (best == null || distance < best) {
+                    hostDistances.put(host, distance);
+                    hostLinks.put(host, link);
+                }
+            }
+        }
+        
+        final Map<Integer, Interface> routerLinks = tree.firstHops();
+        final int size = routerLinks.size() + hostLinks.size();
+        final int[] addresses = new int[size];
+        final Interface[] links = new Interface[size];
+        int count = 0;
+        for (Map.Entry<Integer, Interface> entry : routerLinks.entrySet()) {
+            addresses[count] = entry.getKey();
+            links[count++] = entry.getValue();
+        }
+        for (Map.Entry<Integer, Interface> entry : hostLinks.entrySet()) {
+            addresses[count] = entry.getKey();
+            links[count++] = entry.getValue();
+        }
+        
+        forwardingTable = ForwardingTable.build(addresses, links, count);
+    }
+}
@@ -0,0 +1,26 @@
+package network.impl.kernel;
+
+import java.util.Map;
+
+import network.Interface;
+import network.Kernel;
+
+/**
+ * A kernel for routers that can be handed its routes rather than working
+ * them out itself, as happens when the simulator computes routes from the
+ * topology.
+ * 
+ * @see network.SimulatorFactory.SimulatorBuilder#oracleRouting(boolean)
+ */
+public interface RouterKernel extends Kernel {
+    /**
+     * Forward by the given routes from now on. Once any routes have been
+     * installed, the kernel stops running its routing protocol and only
+     * forwards; later calls replace the routes wholesale. May be called
+     * before {@link #start()}.
+     * 
+     * @param routes The interface leading to each reachable address. Not
+     *      kept, so the caller may reuse it.
+     */
+    void installRoutes(Map<Integer, ? extends Interface> routes);
+}
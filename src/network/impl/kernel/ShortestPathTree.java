@@ -0,0 +1,255 @@
+package network.impl.kernel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import network.Interface;
+
+/**
+ * A shortest-path tree over the routers in a link-state database, rooted at
+ * this router and kept up to date incrementally as links come and go. Every
+ * link costs one hop, and a link only counts once both ends advertise it,
+ * so a router that disappeared without a word can't attract traffic.
+ * <p>
+ * Adding a link only revisits the routers it brings closer. Removing a link
+ * that isn't in the tree changes nothing at all; removing one that is only
+ * recomputes the subtree that hung from it. Either way the rest of the tree
+ * is left alone, rather than rerunning Dijkstra from scratch.
+ * <p>
+ * Not thread-safe.
+ */
+final class ShortestPathTree {
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+    
+    private final int root;
+    /** The router neighbors each router advertises. */
+    private final Map<Integer, Set<Integer>> advertised =
+        new HashMap<Integer, Set<Integer>>();
+    /** The links both ends advertise. */
+    private final Map<Integer, Set<Integer>> links =
+        new HashMap<Integer, Set<Integer>>();
+    /** The interface to each of the root's neighbors. */
+    private final Map<Integer, Interface> interfaces =
+        new HashMap<Integer, Interface>();
+    
+    private final Map<Integer, Integer> distances =
+        new HashMap<Integer, Integer>();
+    private final Map<Integer, Integer> parents =
+        new HashMap<Integer, Integer>();
+    private final Map<Integer, Set<Integer>> children =
+        new HashMap<Integer, Set<Integer>>();
+    /** The interface leading to each reachable router. */
+    private final Map<Integer, Interface> firstHops =
+        new HashMap<Integer, Interface>();
+    
+    /**
+     * A way to reach a router, waiting to be considered in Dijkstra order.
+     */
+    private static final class Candidate implements Comparable<Candidate> {
+        final int distance, router, parent;
+        
+        Candidate(int distance, int router, int parent) {
+            this.distance = distance;
+            this.router = router;
+            this.parent = parent;
+        }
+        
+        public int compareTo(Candidate other) {
+            return distance < other.distance ? -1 :
+                distance > other.distance ? 1 : 0;
+        }
+    }
+    
+    ShortestPathTree(int root) {
+        this.root = root;
+        distances.put(root, 0);
+    }
+    
+    /**
+     * @return The number of hops to a router, or {@link Integer#MAX_VALUE}
+     *      if it can't be reached.
+     */
+    int distance(int router) {
+        final Integer distance = distances.get(router);
+        return distance != null ? distance : UNREACHABLE;
+    }
+    
+    /**
+     * @return The interface leading to a router, or null if it can't be
+     *      reached (or is the root).
+     */
+    Interface firstHop(int router) {
+        return firstHops.get(router);
+    }
+    
+    /**
+     * @return An immutable view of the interface leading to each reachable
+     *      router other than the root.
+     */
+    Map<Integer, Interface> firstHops() {
+        return Collections.unmodifiableMap(firstHops);
+    }
+    
+    /**
+     * Record the routers another router advertises as its neighbors, and
+     * update the tree to match.
+     */
+    void setNeighbors(int router, int[] neighbors) {
+        final Set<Integer> newNeighbors = new HashSet<Integer>();
+        for (int neighbor : neighbors)
+            if (neighbor != router)
+                newNeighbors.add(neighbor);
+        
+        final Set<Integer> oldNeighbors = advertised.put(router, newNeighbors);
+        if (oldNeighbors != null)
+            for (int neighbor : oldNeighbors)
+                if (!newNeighbors.contains(neighbor) &&
+                        advertises(neighbor, router))
+                    removeLink(router, neighbor);
+        
+        for (int neighbor : newNeighbors)
+            if ((oldNeighbors == null || !oldNeighbors.contains(neighbor)) &&
+                    advertises(neighbor, router))
+                addLink(router, neighbor);
+    }
+    
+    /**
+     * Record the root's own neighbors and the interfaces leading to them,
+     * and update the tree to match.
+     */
+    void setRootNeighbors(Map<Integer, Interface> neighbors) {
+        // A neighbor that moved to another interface is as good as gone; take
+        // it away first, then put it back with the new interface
+        final List<Integer> unchanged = new ArrayList<Integer>();
+        for (Map.Entry<Integer, Interface> entry : interfaces.entrySet())
+            if (entry.getValue() == neighbors.get(entry.getKey()))
+                unchanged.add(entry.getKey());
+        setNeighbors(root, toArray(unchanged));
+        
+        interfaces.clear();
+        interfaces.putAll(neighbors);
+        setNeighbors(root, toArray(neighbors.keySet()));
+    }
+    
+    private static int[] toArray(Collection<Integer> values) {
+        final int[] ans = new int[values.size()];
+        int ix = 0;
+        for (int value : values)
+            ans[ix++] = value;
+        return ans;
+    }
+    
+    private boolean advertises(int router, int neighbor) {
+        final Set<Integer> neighbors = advertised.get(router);
+        return neighbors != null && neighbors.contains(neighbor);
+    }
+    
+    private Set<Integer> links(int router) {
+        Set<Integer> ans = links.get(router);
+        if (ans == null)
+            links.put(router, ans = new HashSet<Integer>());
+        return ans;
+    }
+    
+    private void addLink(int a, int b) {
+        links(a).add(b);
+        links(b).add(a);
+        
+        final int distanceA = distance(a), distanceB = distance(b);
+        final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+        if (distanceA != UNREACHABLE && distanceA + 1 < distanceB)
+            queue.add(new Candidate(distanceA + 1, b, a));
+        else if (distanceB != UNREACHABLE && distanceB + 1 < distanceA)
+            queue.add(new Candidate(distanceB + 1, a, b));
+        
+        // Only the routers that got closer are touched
+        settle(queue);
+    }
+    
+    private void removeLink(int a, int b) {
+        links(a).remove(b);
+        links(b).remove(a);
+        
+        final Integer parentA = parents.get(a), parentB = parents.get(b);
+        if (parentB != null && parentB == a)
+            reattach(b);
+        else if (parentA != null && parentA == b)
+            reattach(a);
+        // Otherwise the link wasn't in the tree, so nothing changes
+    }
+    
+    /**
+     * Cut off the subtree under a router and find new paths to everything in
+     * it.
+     */
+    private void reattach(int subtreeRoot) {
+        final List<Integer> orphans = new ArrayList<Integer>();
+        orphans.add(subtreeRoot);
+        for (int ix = 0; ix < orphans.size(); ix++) {
+            final Set<Integer> orphanChildren = children.get(orphans.get(ix));
+            if (orphanChildren != null)
+                orphans.addAll(orphanChildren);
+        }
+        
+        for (int orphan : orphans)
+            detach(orphan);
+        
+        // Everything outside the subtree is as close as it ever was, so the
+        // only new paths worth trying start from there
+        final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+        for (int orphan : orphans)
+            for (int neighbor : links(orphan)) {
+                final int distance = distance(neighbor);
+                if (distance != UNREACHABLE)
+                    queue.add(new Candidate(distance + 1, orphan, neighbor));
+            }
+        settle(queue);
+    }
+    
+    /**
+     * Dijkstra's algorithm, from whatever candidates are in the queue.
+     */
+    private void settle(PriorityQueue<Candidate> queue) {
+        Candidate candidate;
+        while ((candidate = queue.poll()) != null) {
+            if (candidate.distance >= distance(candidate.router))
+                continue;
+            
+            attach(candidate.router, candidate.parent, candidate.distance);
+            for (int next : links(candidate.router))
+                if (candidate.distance + 1 < distance(next))
+                    queue.add(new Candidate(
+                            candidate.distance + 1, next, candidate.router));
+        }
+    }
+    
+    private void attach(int router, int parent, int distance) {
+        detach(router);
+        
+        distances.put(router, distance);
+        parents.put(router, parent);
+        Set<Integer> siblings = children.get(parent);
+        if (siblings == null)
+            children.put(parent, siblings = new HashSet<Integer>());
+        siblings.add(router);
+        
+        // Dijkstra settles the parent first, so its first hop is up to date
+        firstHops.put(router,
+                parent == root ? interfaces.get(router) : firstHops.get(parent));
+    }
+    
+    private void detach(int router) {
+        final Integer parent = parents.remove(router);
+        if (parent != null)
+            children.get(parent).remove(router);
+        distances.remove(router);
+        firstHops.remove(router);
+    }
+}
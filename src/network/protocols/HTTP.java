@@ -2,6 +2,7 @@ package network.protocols;
 
 import java.io.Serializable;
 
+import network.Immutable;
 import network.KnownPort;
 
 /**
@@ -14,7 +15,7 @@ import network.KnownPort;
 public final class HTTP {
     public static final KnownPort PORT = KnownPort.HTTP;
     
-    public static class Request implements Serializable {
+    public static final class Request implements Serializable, Immutable {
         public static enum Method {
             GET,
             PUT,
@@ -41,7 +42,7 @@ public final class HTTP {
         private static final long serialVersionUID = 1L;
     }
     
-    public static class Response implements Serializable {
+    public static final class Response implements Serializable, Immutable {
         public static enum Status {
             OK,
             REDIRECT,
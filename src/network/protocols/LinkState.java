@@ -0,0 +1,68 @@
+package network.protocols;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import network.Immutable;
+import network.KnownPort;
+
+/**
+ * The protocol spoken by link-state routers. Each router floods an
+ * {@link Advertisement} listing its neighbors whenever they change; every
+ * router collects the latest advertisement from each origin and works out
+ * its routes from the whole picture.
+ * <p>
+ * Routers find their neighbors the same way {@link RIP} routers do: a
+ * {@link RIP.Datagram} on {@link KnownPort#KERNEL_WHO}, which hosts answer
+ * with {@link RIP.Datagram#notARouter()}.
+ */
+public final class LinkState {
+    public static final KnownPort PORT = KnownPort.LINK_STATE;
+    
+    /**
+     * A router's neighbors, as of a given sequence number. Only the highest
+     * sequence number from each origin counts.
+     */
+    public static final class Advertisement implements Serializable, Immutable {
+        public final int origin;
+        public final long sequence;
+        private final int[] routers, hosts;
+        
+        /**
+         * @param origin The router that originated the advertisement.
+         * @param sequence Increases with each new advertisement from the
+         *      same origin.
+         * @param routers The addresses of the neighboring routers.
+         * @param hosts The addresses of the neighboring hosts.
+         */
+        public Advertisement(int origin, long sequence,
+                int[] routers, int[] hosts) {
+            this.origin = origin;
+            this.sequence = sequence;
+            this.routers = routers.clone();
+            this.hosts = hosts.clone();
+        }
+        
+        /**
+         * @return The addresses of the neighboring routers.
+         */
+        public int[] routers() {
+            return routers.clone();
+        }
+        
+        /**
+         * @return The addresses of the neighboring hosts.
+         */
+        public int[] hosts() {
+            return hosts.clone();
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("LSA %04x #%d routers %s hosts %s", origin,
+                    sequence, Arrays.toString(routers), Arrays.toString(hosts));
+        }
+        
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -3,13 +3,14 @@ package network.protocols;
 import java.io.Serializable;
 import java.util.Arrays;
 
+import network.Immutable;
 import network.KnownPort;
 
 public final class RIP {
     public static final KnownPort PORT = KnownPort.KERNEL_WHO;
     
     public static final class Datagram implements Serializable {
-        public static final class Entry implements Serializable {
+        public static final class Entry implements Serializable, Immutable {
             public final int destination;
             public final byte metric;
             
@@ -36,11 +37,25 @@ public final class RIP {
             return new Datagram(null);
         }
         
+        /**
+         * A request for the recipient's whole routing table. As in RFC 2453,
+         * this is a single entry for address 0 with an infinite metric.
+         */
+        public static Datagram request() {
+            return new Datagram(new Entry[] { new Entry(0, Byte.MAX_VALUE) });
+        }
+        
+        public boolean isRequest() {
+            return entries != null && entries.length == 1 &&
+                entries[0].destination == 0 &&
+                entries[0].metric == Byte.MAX_VALUE;
+        }
+        
         @Override
         public String toString() {
             return "RIP " +
-                (entries != null ? Arrays.toString(entries) :
-                    "(not a router)");
+                (entries == null ? "(not a router)" :
+                    isRequest() ? "(request)" : Arrays.toString(entries));
         }
         
         private static final long serialVersionUID = 1L;
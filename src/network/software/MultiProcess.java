@@ -3,8 +3,7 @@ package network.software;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -13,7 +12,8 @@ import network.AbstractProcess;
 import network.Process;
 
 public class MultiProcess extends AbstractProcess {
-    private volatile ExecutorService executor;
+    private final List<Future<?>> running =
+        Collections.synchronizedList(new ArrayList<Future<?>>());
     private final AtomicReference<List<Process>> pending =
         new AtomicReference<List<Process>>(
                 Collections.synchronizedList(new ArrayList<Process>()));
@@ -46,28 +46,29 @@ public class MultiProcess extends AbstractProcess {
 
     private void execute(Process process) {
         try {
-            executor.execute(new ProcessRunner(process));
+            // A thread each, since they run for as long as we do
+            running.add(os().forkThread(new ProcessRunner(process)));
         } catch (RejectedExecutionException e) {
             throw new IllegalStateException("Shutting down", e);
         }
     }
     
     protected void run() throws InterruptedException {
-        executor = Executors.newCachedThreadPool();
         final List<Process> pending = this.pending.getAndSet(null);
         
         for (Process process : pending)
             execute(process);
         
+        // Just wait to be interrupted, in a way that neither pins a virtual
+        // thread nor holds a virtual clock still
         try {
-            while (true)
-                synchronized (this) {
-                    wait();
-                }
+            os().sleep(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
         } catch (InterruptedException e) { }
         
-        executor.shutdownNow();
-        while (!executor.awaitTermination(5, TimeUnit.SECONDS))
-            continue;
+        // The kernel waits for forked threads to finish as it shuts down
+        synchronized (running) {
+            for (Future<?> future : running)
+                future.cancel(true);
+        }
     }
 }
\ No newline at end of file
@@ -1,12 +1,23 @@
 package test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import network.Interface;
+import network.KnownPort;
+import network.LinkOptions;
+import network.Message;
+import network.Node;
 import network.Simulator;
 import network.SimulatorFactory;
+import network.protocols.RIP;
 
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeSuite;
 
 /**
@@ -34,4 +45,205 @@ public abstract class AbstractTest {
     protected Simulator sim() {
         return simulator();
     }
+    
+    /** Simulators to destroy once the current test is over */
+    private final List<Simulator> testSimulators = new ArrayList<Simulator>();
+    
+    /**
+     * Make a simulator with the default settings, to be destroyed once the
+     * current test is over.
+     */
+    protected Simulator newSimulator() {
+        return destroyAfterTest(SimulatorFactory.instance().createSimulator());
+    }
+    
+    /**
+     * Have a simulator destroyed once the current test is over, however it
+     * ends.
+     * 
+     * @return The simulator.
+     */
+    protected Simulator destroyAfterTest(Simulator sim) {
+        testSimulators.add(sim);
+        return sim;
+    }
+    
+    /**
+     * Destroy the simulators made for the current test. Runs after each
+     * test, but a test that makes several in turn can call it early.
+     */
+    @AfterMethod(alwaysRun = true)
+    public void destroySimulators() {
+        for (Simulator sim : testSimulators)
+            sim.destroy();
+        testSimulators.clear();
+    }
+    
+    /**
+     * Add a host whose interfaces the test works directly, with nothing
+     * running on it to get in the way.
+     */
+    protected static Node createHost(Simulator sim, int address, String name) {
+        return sim.buildNode(address)
+            .name(name)
+            .kernel(new TrivialKernel())
+            .create();
+    }
+    
+    /**
+     * Two hosts made by {@link #createHost}, A at address 1 and B at
+     * address 2, with a link between them.
+     */
+    protected static final class Hosts {
+        final Simulator sim;
+        final Node a, b;
+        /** A's and B's ends of the link */
+        final Interface aSide, bSide;
+        
+        private Hosts(Simulator sim, Node a, Node b, Interface aSide) {
+            this.sim = sim;
+            this.a = a;
+            this.b = b;
+            this.aSide = aSide;
+            this.bSide = b.interfaces().get(0);
+        }
+    }
+    
+    /**
+     * Connect hosts A and B on a simulator of their own with a plain link
+     * and start it.
+     */
+    protected Hosts startHosts() {
+        return startHosts(new LinkOptions());
+    }
+    
+    /**
+     * Connect hosts A and B on the given simulator with a plain link and
+     * start it. The simulator is destroyed once the current test is over.
+     */
+    protected Hosts startHosts(Simulator sim) {
+        return startHosts(sim, new LinkOptions(), new LinkOptions());
+    }
+    
+    /**
+     * Connect hosts A and B on a simulator of their own and start it.
+     */
+    protected Hosts startHosts(LinkOptions options) {
+        return startHosts(options, options);
+    }
+    
+    /**
+     * Connect hosts A and B on a simulator of their own, with a different
+     * link each way, and start it.
+     */
+    protected Hosts startHosts(LinkOptions aToB, LinkOptions bToA) {
+        return startHosts(newSimulator(), aToB, bToA);
+    }
+    
+    /**
+     * Connect hosts A and B on the given simulator, with a different link
+     * each way, and start it. The simulator is destroyed once the current
+     * test is over.
+     */
+    protected Hosts startHosts(Simulator sim,
+            LinkOptions aToB, LinkOptions bToA) {
+        destroyAfterTest(sim);
+        final Node a = createHost(sim, 1, "A"), b = createHost(sim, 2, "B");
+        final Hosts hosts = new Hosts(sim, a, b, sim.connect(a, b, aToB, bToA));
+        // Nodes are running by the time this returns
+        sim.start();
+        return hosts;
+    }
+    
+    /**
+     * Hosts 1 and 2 on opposite sides of a ring of four routers, as made by
+     * {@link AbstractTest#startRing}.
+     */
+    protected static final class Ring {
+        final Simulator sim;
+        final Interface host1, host2;
+        /** Routers 3 to 6, in order round the ring */
+        final Node[] routers;
+        
+        private Ring(Simulator sim, Interface host1, Interface host2,
+                Node[] routers) {
+            this.sim = sim;
+            this.host1 = host1;
+            this.host2 = host2;
+            this.routers = routers;
+        }
+        
+        /**
+         * Keep sending from host 1 to host 2 until something gets through.
+         * This is in real time, so limits on it want plenty of slack.
+         * 
+         * @return How long it took, in milliseconds.
+         */
+        long timeToDeliver(long timeoutMillis) throws Exception {
+            final long start = System.nanoTime();
+            final long deadline = start +
+                TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            
+            while (System.nanoTime() < deadline) {
+                host1.send(new Message<String>(1, 2, 42, 42, "Hi"));
+                
+                Message<?> message;
+                while ((message = host2.receive(50, TimeUnit.MILLISECONDS))
+                        != null)
+                    if (!KnownPort.KERNEL_WHO.is(message.destinationPort)) {
+                        Assert.assertEquals(message.data, "Hi");
+                        return TimeUnit.NANOSECONDS.toMillis(
+                                System.nanoTime() - start);
+                    }
+            }
+            
+            Assert.fail("Nothing arrived in " + timeoutMillis + "ms");
+            return -1;
+        }
+    }
+    
+    /**
+     * Build a ring of four routers on the given simulator, with host 1 on
+     * one side and host 2 on the other, start it and have each host
+     * introduce itself to its router. The simulator is destroyed once the
+     * current test is over.
+     * 
+     * @param kernels Makes each router's kernel, or null for the
+     *      simulator's default router kernel.
+     */
+    protected Ring startRing(Simulator sim, Simulator.KernelFactory kernels)
+            throws Exception {
+        destroyAfterTest(sim);
+        final Node a = createHost(sim, 1, "Host 1");
+        final Node b = createHost(sim, 2, "Host 2");
+        final Node[] routers = new Node[4];
+        for (int ix = 0; ix < routers.length; ix++)
+            routers[ix] = sim.buildNode(3 + ix)
+                .name("Router " + (3 + ix))
+                .kernel(kernels != null ? kernels.createKernel(ix) : null)
+                .create();
+        for (int ix = 0; ix < routers.length; ix++)
+            sim.connect(routers[ix], routers[(ix + 1) % routers.length]);
+        final Ring ring = new Ring(sim, sim.connect(a, routers[0]),
+                sim.connect(b, routers[2]), routers);
+        
+        sim.start();
+        // Give the kernel threads a moment to come up
+        TimeUnit.MILLISECONDS.sleep(100);
+        
+        introduce(ring.host1, 1);
+        introduce(ring.host2, 2);
+        return ring;
+    }
+    
+    /**
+     * Tell the routers on the far side of the given interface that the host
+     * with the given address is there, and isn't a router.
+     */
+    private static void introduce(Interface host, int address)
+            throws Exception {
+        host.send(new Message<RIP.Datagram>(address, 255,
+                KnownPort.KERNEL_WHO, KnownPort.KERNEL_WHO,
+                RIP.Datagram.notARouter()));
+    }
 }
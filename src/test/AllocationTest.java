@@ -0,0 +1,56 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+
+import network.Interface;
+import network.Message;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that sending and receiving over a plain link allocates nothing but
+ * the received message itself.
+ */
+public class AllocationTest extends AbstractTest {
+    private static final int WARMUP = 20000, ITERATIONS = 10000;
+    /** Enough for a Message, but not for a frame and its bytes as well. */
+    private static final long MAX_BYTES_PER_MESSAGE = 64;
+    
+    @Test
+    public void sendReceive() throws Exception {
+        final java.lang.management.ThreadMXBean bean =
+            ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            throw new SkipException("Can't measure allocation on this JVM");
+        final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported())
+            throw new SkipException("Can't measure allocation on this JVM");
+        threads.setThreadAllocatedMemoryEnabled(true);
+        
+        final Hosts hosts = startHosts();
+        final Interface sender = hosts.aSide;
+        final Interface receiver = hosts.bSide;
+        // Small enough to come out of the Integer cache when decoded
+        final Message<Integer> message = new Message<Integer>(1, 2, 42, 42, 7);
+        
+        for (int count = 0; count < WARMUP; count++) {
+            sender.send(message);
+            receiver.receive();
+        }
+        
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int count = 0; count < ITERATIONS; count++) {
+            sender.send(message);
+            receiver.receive();
+        }
+        final long allocated =
+            threads.getThreadAllocatedBytes(threadId) - before;
+        
+        Assert.assertTrue(allocated / ITERATIONS < MAX_BYTES_PER_MESSAGE,
+                "Allocated " + allocated / ITERATIONS + " bytes per message");
+    }
+}
@@ -0,0 +1,224 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import network.AbstractProcess;
+import network.Interface;
+import network.LinkOptions;
+import network.Message;
+import network.Node;
+import network.OperatingSystem;
+import network.Simulator;
+import network.SimulatorFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for receiving and sending without a thread waiting on each.
+ */
+public class AsyncTest extends AbstractTest {
+    private static final int PORT = 42;
+    
+    private Interface client;
+    
+    /**
+     * A process that sets itself up, then waits until it's told to stop.
+     */
+    private abstract static class Waiting extends AbstractProcess {
+        final CountDownLatch ready = new CountDownLatch(1);
+        
+        protected final void run() throws InterruptedException {
+            setUp();
+            ready.countDown();
+            os().sleep(1, TimeUnit.HOURS);
+        }
+        
+        protected abstract void setUp() throws InterruptedException;
+    }
+    
+    /**
+     * Host 1, with a plain kernel to drive things from, linked to host 2,
+     * running the given process.
+     */
+    private void createHosts(Waiting process, boolean virtualTime)
+            throws InterruptedException {
+        createHosts(process, virtualTime, new LinkOptions());
+    }
+    
+    private void createHosts(Waiting process, boolean virtualTime,
+            LinkOptions options) throws InterruptedException {
+        final Simulator sim = destroyAfterTest(SimulatorFactory.instance()
+            .buildSimulator()
+            .virtualTime(virtualTime)
+            .create());
+        final Node a = createHost(sim, 1, "Host 1");
+        final Node b = sim.buildNode(2)
+            .kernel(sim.createUserKernel(process))
+            .create();
+        client = sim.connect(a, b, options);
+        
+        sim.start();
+        Assert.assertTrue(process.ready.await(5, TimeUnit.SECONDS),
+                "Process never got going");
+    }
+    
+    /**
+     * A handler answering every message, without a thread of its own.
+     */
+    @Test
+    public void handler() throws Exception {
+        final Waiting server = new Waiting() {
+            protected void setUp() {
+                os().setHandler(PORT, new OperatingSystem.MessageHandler() {
+                    public void messageReceived(Message<?> message) {
+                        os().sendAsync(new Message<Integer>(2,
+                                message.source, PORT, message.sourcePort,
+                                (Integer) message.data + 1));
+                    }
+                });
+            }
+        };
+        createHosts(server, false);
+        
+        final int count = 1000;
+        for (int ix = 0; ix < count; ix++)
+            client.send(new Message<Integer>(1, 2, PORT, PORT, ix));
+        for (int ix = 0; ix < count; ix++) {
+            final Message<?> reply = client.receive(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(reply, "Reply " + ix + " missing");
+            Assert.assertEquals(reply.data, ix + 1, "Out of order");
+        }
+    }
+    
+    /**
+     * Sending asynchronously onto a full link doesn't hold the event loop
+     * up: handlers still run while the messages wait their turn.
+     */
+    @Test(timeOut = 30000)
+    public void sendAsyncFullLink() throws Exception {
+        final int count = 100;
+        final List<Future<Void>> sent = new ArrayList<Future<Void>>();
+        final CountDownLatch handled = new CountDownLatch(1);
+        final Waiting server = new Waiting() {
+            protected void setUp() {
+                os().setHandler(PORT, new OperatingSystem.MessageHandler() {
+                    public void messageReceived(Message<?> message) {
+                        handled.countDown();
+                    }
+                });
+                for (int ix = 0; ix < count; ix++)
+                    sent.add(os().sendAsync(
+                            new Message<Integer>(2, 1, PORT, PORT, ix)));
+            }
+        };
+        createHosts(server, false, new LinkOptions().capacity(2));
+        
+        // Nothing's been received, so the link back is full
+        client.send(new Message<Integer>(1, 2, PORT, PORT, 0));
+        Assert.assertTrue(handled.await(5, TimeUnit.SECONDS),
+                "Handler held up by the sends");
+        Assert.assertFalse(sent.get(count - 1).isDone(),
+                "Sent before there was room");
+        
+        for (int ix = 0; ix < count; ix++) {
+            final Message<?> message = client.receive(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(message, "Message " + ix + " missing");
+            Assert.assertEquals(message.data, ix, "Out of order");
+        }
+        for (Future<Void> future : sent)
+            future.get(5, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Many receives outstanding at once, each on a port of its own.
+     */
+    @Test
+    public void manyReceives() throws Exception {
+        final int sessions = 1000;
+        final List<Future<Message<?>>> results =
+            new ArrayList<Future<Message<?>>>();
+        final AtomicInteger handled = new AtomicInteger();
+        final CountDownLatch allHandled = new CountDownLatch(sessions);
+        final Waiting receiver = new Waiting() {
+            protected void setUp() {
+                for (int ix = 0; ix < sessions; ix++)
+                    results.add(os().receiveAsync(1000 + ix,
+                            new OperatingSystem.MessageHandler() {
+                                public void messageReceived(
+                                        Message<?> message) {
+                                    handled.incrementAndGet();
+                                    allHandled.countDown();
+                                }
+                            }));
+            }
+        };
+        createHosts(receiver, false);
+        
+        for (int ix = sessions - 1; ix >= 0; ix--)
+            client.send(new Message<Integer>(1, 2, 1000 + ix, 1000 + ix, ix));
+        
+        for (int ix = 0; ix < sessions; ix++)
+            Assert.assertEquals(
+                    results.get(ix).get(5, TimeUnit.SECONDS).data, ix);
+        Assert.assertTrue(allHandled.await(5, TimeUnit.SECONDS),
+                handled.get() + " handled");
+    }
+    
+    /**
+     * A cancelled receive gives up its message to the next receiver.
+     */
+    @Test
+    public void cancel() throws Exception {
+        final CountDownLatch received = new CountDownLatch(1);
+        final Waiting receiver = new Waiting() {
+            protected void setUp() throws InterruptedException {
+                final Future<Message<?>> result = os().receiveAsync(PORT);
+                Assert.assertTrue(result.cancel(false));
+                ready.countDown();
+                
+                final Message<?> message =
+                    os().receive(PORT, 5, TimeUnit.SECONDS);
+                if (message != null && "Hi".equals(message.data))
+                    received.countDown();
+            }
+        };
+        createHosts(receiver, false);
+        
+        client.send(new Message<String>(1, 2, PORT, PORT, "Hi"));
+        Assert.assertTrue(received.await(5, TimeUnit.SECONDS),
+                "Message went to the cancelled receive");
+    }
+    
+    /**
+     * Waiting on an asynchronous receive takes simulated time, not real.
+     */
+    @Test
+    public void virtualTime() throws Exception {
+        final CountDownLatch timedOut = new CountDownLatch(1);
+        final Waiting receiver = new Waiting() {
+            protected void setUp() throws InterruptedException {
+                try {
+                    os().receiveAsync(PORT).get(1, TimeUnit.MINUTES);
+                } catch (TimeoutException e) {
+                    timedOut.countDown();
+                } catch (java.util.concurrent.ExecutionException e) {
+                    // Shouldn't happen; the latch stays up
+                }
+            }
+        };
+        
+        final long start = System.nanoTime();
+        createHosts(receiver, true);
+        Assert.assertTrue(timedOut.await(5, TimeUnit.SECONDS),
+                "Never timed out");
+        Assert.assertTrue(System.nanoTime() - start <
+                TimeUnit.SECONDS.toNanos(5), "Took too long in real time");
+    }
+}
@@ -0,0 +1,155 @@
+package test;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import network.Interface;
+import network.LinkOptions;
+import network.Message;
+import network.MessageCodecException;
+import network.OverflowPolicy;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link Interface#send(List)}, {@link Interface#drainTo},
+ * {@link Interface#receiveBatch} and {@link Interface#drainRawTo}.
+ */
+public class BatchTest extends AbstractTest {
+    private Interface sender, receiver;
+    
+    private void connect(LinkOptions options) {
+        final Hosts hosts = startHosts(options);
+        sender = hosts.aSide;
+        receiver = hosts.bSide;
+    }
+    
+    private static List<Message<Integer>> messages(int count) {
+        final List<Message<Integer>> messages =
+            new ArrayList<Message<Integer>>();
+        for (int num = 0; num < count; num++)
+            messages.add(new Message<Integer>(1, 2, 42, 42, num));
+        return messages;
+    }
+    
+    @Test
+    public void receiveBatch() throws Exception {
+        connect(new LinkOptions());
+        
+        sender.send(messages(10));
+        
+        final List<Message<?>> received =
+            receiver.receiveBatch(100, 1, TimeUnit.SECONDS);
+        Assert.assertEquals(received.size(), 10);
+        for (int num = 0; num < 10; num++)
+            Assert.assertEquals(received.get(num).data, num);
+        
+        Assert.assertTrue(
+                receiver.receiveBatch(100, 10, TimeUnit.MILLISECONDS).isEmpty());
+    }
+    
+    @Test
+    public void drainTo() throws Exception {
+        connect(new LinkOptions());
+        
+        sender.send(messages(10));
+        
+        final List<Object> received = new ArrayList<Object>();
+        Assert.assertEquals(receiver.drainTo(received, 3), 3);
+        Assert.assertEquals(receiver.drainTo(received, 100), 7);
+        Assert.assertEquals(receiver.drainTo(received, 100), 0);
+        
+        Assert.assertEquals(received.size(), 10);
+        for (int num = 0; num < 10; num++)
+            Assert.assertEquals(((Message<?>) received.get(num)).data, num);
+    }
+    
+    @Test
+    public void drainRawTo() throws Exception {
+        connect(new LinkOptions());
+        
+        sender.send(messages(5));
+        
+        final List<Interface.RawMessage> received =
+            new ArrayList<Interface.RawMessage>();
+        Assert.assertEquals(receiver.drainRawTo(received, 100), 5);
+        for (int num = 0; num < 5; num++) {
+            Assert.assertEquals(received.get(num).destination(), 2);
+            Assert.assertEquals(received.get(num).decode().data, num);
+        }
+    }
+    
+    @Test
+    public void partialDrop() throws Exception {
+        connect(new LinkOptions()
+                .capacity(4)
+                .overflowPolicy(OverflowPolicy.TAIL_DROP));
+        
+        sender.send(messages(10));
+        
+        Assert.assertEquals(receiver.dropCount(), 6);
+        final List<Message<?>> received =
+            receiver.receiveBatch(100, 1, TimeUnit.SECONDS);
+        Assert.assertEquals(received.size(), 4);
+        for (int num = 0; num < 4; num++)
+            Assert.assertEquals(received.get(num).data, num);
+    }
+    
+    @Test
+    public void delayedBatch() throws Exception {
+        connect(new LinkOptions().delay(100, TimeUnit.MILLISECONDS));
+        
+        sender.send(messages(10));
+        Assert.assertTrue(
+                receiver.receiveBatch(100, 0, TimeUnit.SECONDS).isEmpty());
+        
+        // Each message arrives in its own time, so keep going until they're
+        // all here
+        final List<Message<?>> received = new ArrayList<Message<?>>();
+        while (received.size() < 10) {
+            final List<Message<?>> batch =
+                receiver.receiveBatch(100, 1, TimeUnit.SECONDS);
+            Assert.assertFalse(batch.isEmpty());
+            received.addAll(batch);
+        }
+        
+        for (int num = 0; num < 10; num++)
+            Assert.assertEquals(received.get(num).data, num);
+    }
+    
+    /**
+     * Can't be written out.
+     */
+    static final class Unencodable implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            throw new InvalidObjectException("Not today");
+        }
+    }
+    
+    @Test
+    public void unencodable() throws Exception {
+        connect(new LinkOptions());
+        
+        final List<Message<?>> batch = new ArrayList<Message<?>>();
+        batch.addAll(messages(3));
+        batch.add(new Message<Unencodable>(1, 2, 42, 42, new Unencodable()));
+        try {
+            sender.send(batch);
+            Assert.fail("Encoded the unencodable");
+        } catch (MessageCodecException e) {
+            Assert.assertTrue(e.getCause() instanceof InvalidObjectException,
+                    "" + e.getCause());
+        }
+        
+        // All or nothing
+        Assert.assertNull(receiver.receive(0, TimeUnit.SECONDS));
+    }
+}
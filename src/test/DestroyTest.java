@@ -0,0 +1,121 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import network.AbstractProcess;
+import network.Node;
+import network.Simulator;
+import network.SimulatorFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for tearing down whole simulations.
+ */
+public class DestroyTest extends AbstractTest {
+    /**
+     * Waits for a message that never comes.
+     */
+    private static final class Waiter extends AbstractProcess {
+        private final CountDownLatch started;
+        
+        Waiter(CountDownLatch started) {
+            this.started = started;
+        }
+        
+        protected void run() throws InterruptedException {
+            started.countDown();
+            os().receive(42);
+        }
+    }
+    
+    /**
+     * Won't stop until it's told to, however often it's interrupted.
+     */
+    private static final class Stubborn extends AbstractProcess {
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile boolean stop;
+        
+        protected void run() {
+            started.countDown();
+            while (!stop)
+                try {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                } catch (InterruptedException e) {
+                    // Keep going
+                }
+        }
+    }
+    
+    /**
+     * Hosts each running a process, hanging off a line of routers.
+     */
+    @Test(timeOut = 120000)
+    public void manyNodes() throws Exception {
+        final int before = ManagementFactory.getThreadMXBean().getThreadCount();
+        
+        final Simulator sim = SimulatorFactory.instance().createSimulator();
+        final int routers = 1000, hosts = 500;
+        final CountDownLatch started = new CountDownLatch(hosts);
+        Node previous = null;
+        for (int ix = 0; ix < routers; ix++) {
+            final Simulator.NodeBuilder builder = sim.buildNode(1 + ix)
+                .kernel(sim.createRouterKernel());
+            if (previous != null)
+                builder.connections(previous);
+            previous = builder.create();
+        }
+        for (int ix = 0; ix < hosts; ix++)
+            sim.buildNode(1 + routers + ix)
+                .kernel(sim.createUserKernel(new Waiter(started)))
+                .connections(sim.nodeAt(1 + 2 * ix))
+                .create();
+        sim.start();
+        Assert.assertTrue(started.await(60, TimeUnit.SECONDS),
+                "Processes never started");
+        
+        final long start = System.nanoTime();
+        Assert.assertTrue(sim.destroy(30, TimeUnit.SECONDS),
+                "Nodes didn't all stop");
+        final long took = System.nanoTime() - start;
+        Assert.assertTrue(took < TimeUnit.SECONDS.toNanos(10),
+                "Took " + TimeUnit.NANOSECONDS.toMillis(took) + "ms");
+        
+        // Everything the nodes started has finished. Give the executors'
+        // threads a moment to actually exit.
+        TimeUnit.MILLISECONDS.sleep(500);
+        final int threads =
+            ManagementFactory.getThreadMXBean().getThreadCount() - before;
+        Assert.assertTrue(threads < 10, threads + " threads left over");
+    }
+    
+    /**
+     * A node that won't stop shouldn't hold up destroying the simulation
+     * past the deadline.
+     */
+    @Test(timeOut = 30000)
+    public void deadline() throws Exception {
+        final Simulator sim = SimulatorFactory.instance().createSimulator();
+        final Stubborn stubborn = new Stubborn();
+        final Node host = sim.buildNode(1)
+            .kernel(sim.createUserKernel(stubborn))
+            .create();
+        sim.buildNode(2).connections(host).create();
+        sim.start();
+        Assert.assertTrue(stubborn.started.await(5, TimeUnit.SECONDS));
+        
+        try {
+            final long start = System.nanoTime();
+            Assert.assertFalse(sim.destroy(500, TimeUnit.MILLISECONDS),
+                    "Stubborn process stopped");
+            final long took = System.nanoTime() - start;
+            Assert.assertTrue(took < TimeUnit.SECONDS.toNanos(3),
+                    "Took " + TimeUnit.NANOSECONDS.toMillis(took) + "ms");
+        } finally {
+            stubborn.stop = true;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import network.AbstractProcess;
+import network.Simulator;
+import network.SimulatorFactory;
+import network.UserKernel;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that forked tasks run on a bounded pool, when there's one.
+ */
+public class ForkPoolTest extends AbstractTest {
+    /**
+     * Forks a batch of tasks that each take a while, noting how many ran at
+     * once and in which threads.
+     */
+    private static final class Forker extends AbstractProcess {
+        final CountDownLatch done;
+        final Set<String> threads =
+            Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger mostRunning = new AtomicInteger();
+        private final int tasks;
+        private final long sleep;
+        private final TimeUnit unit;
+        
+        Forker(int tasks, long sleep, TimeUnit unit) {
+            this.tasks = tasks;
+            this.sleep = sleep;
+            this.unit = unit;
+            done = new CountDownLatch(tasks);
+        }
+        
+        protected void run() throws InterruptedException {
+            for (int ix = 0; ix < tasks; ix++)
+                os().fork(new Runnable() {
+                    public void run() {
+                        threads.add(Thread.currentThread().getName());
+                        final int now = running.incrementAndGet();
+                        int most;
+                        while (now > (most = mostRunning.get()) &&
+                                !mostRunning.compareAndSet(most, now))
+                            continue;
+                        try {
+                            os().sleep(sleep, unit);
+                        } catch (InterruptedException e) {
+                            return;
+                        } finally {
+                            running.decrementAndGet();
+                        }
+                        done.countDown();
+                    }
+                });
+            // On the clock, so virtual time can move on while we wait
+            while (done.getCount() > 0)
+                os().sleep(sleep, unit);
+        }
+    }
+    
+    private static void start(Simulator sim, UserKernel kernel) {
+        sim.buildNode(1)
+            .name("Host")
+            .kernel(kernel)
+            .create();
+        sim.start();
+    }
+    
+    /**
+     * A burst of forks shares the simulator's workers.
+     */
+    @Test
+    public void shared() throws Exception {
+        final Simulator sim = destroyAfterTest(SimulatorFactory.instance()
+            .buildSimulator()
+            .forkPool(2)
+            .create());
+        final Forker forker = new Forker(100, 2, TimeUnit.MILLISECONDS);
+        start(sim, sim.createUserKernel(forker));
+        
+        Assert.assertTrue(forker.done.await(10, TimeUnit.SECONDS),
+                "Tasks never finished");
+        Assert.assertTrue(forker.mostRunning.get() <= 2,
+                forker.mostRunning + " ran at once");
+        Assert.assertTrue(forker.threads.size() <= 2, "" + forker.threads);
+        for (String name : forker.threads)
+            Assert.assertTrue(name.startsWith("Fork pool "), name);
+    }
+    
+    /**
+     * A host with a pool of its own uses it instead.
+     */
+    @Test
+    public void perNode() throws Exception {
+        final Simulator sim = destroyAfterTest(SimulatorFactory.instance()
+            .buildSimulator()
+            .forkPool(4)
+            .create());
+        final Forker forker = new Forker(20, 1, TimeUnit.MILLISECONDS);
+        final UserKernel kernel = sim.createUserKernel(forker);
+        kernel.setForkPool(1);
+        start(sim, kernel);
+        
+        Assert.assertTrue(forker.done.await(10, TimeUnit.SECONDS),
+                "Tasks never finished");
+        Assert.assertEquals(forker.mostRunning.get(), 1);
+        Assert.assertEquals(forker.threads.size(), 1);
+        Assert.assertTrue(forker.threads.iterator().next()
+                .contains("fork pool"), "" + forker.threads);
+        
+        try {
+            kernel.setForkPool(2);
+            Assert.fail("Changed a pool in use");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+    
+    /**
+     * Pooled tasks are interrupted when the process ends, as forked threads
+     * are.
+     */
+    @Test
+    public void interruptedWithProcess() throws Exception {
+        final Simulator sim = destroyAfterTest(SimulatorFactory.instance()
+            .buildSimulator()
+            .forkPool(1)
+            .create());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        start(sim, sim.createUserKernel(new AbstractProcess() {
+            protected void run() throws InterruptedException {
+                os().fork(new Runnable() {
+                    public void run() {
+                        started.countDown();
+                        try {
+                            os().receive(42);
+                        } catch (InterruptedException e) {
+                            interrupted.countDown();
+                        }
+                    }
+                });
+                started.await();
+            }
+        }));
+        
+        Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS),
+                "Fork outlived its process");
+    }
+    
+    /**
+     * A task cancelled along with its process doesn't leave its worker
+     * interrupted for the next host's task, waiting behind it.
+     */
+    @Test
+    public void interruptNotLeaked() throws Exception {
+        final Simulator sim = destroyAfterTest(SimulatorFactory.instance()
+            .buildSimulator()
+            .forkPool(1)
+            .create());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch queued = new CountDownLatch(1);
+        final CountDownLatch checked = new CountDownLatch(1);
+        final AtomicInteger interrupted = new AtomicInteger();
+        sim.buildNode(1)
+            .name("Cancelled")
+            .kernel(sim.createUserKernel(new AbstractProcess() {
+                protected void run() throws InterruptedException {
+                    os().fork(new Runnable() {
+                        public void run() {
+                            started.countDown();
+                            try {
+                                os().sleep(1, TimeUnit.HOURS);
+                            } catch (InterruptedException e) {
+                                // The usual idiom, keeping it for the caller
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+                    // Ending cancels the task
+                    started.await();
+                    queued.await();
+                }
+            }))
+            .create();
+        sim.buildNode(2)
+            .name("Next")
+            .kernel(sim.createUserKernel(new AbstractProcess() {
+                protected void run() throws InterruptedException {
+                    started.await();
+                    os().fork(new Runnable() {
+                        public void run() {
+                            if (Thread.currentThread().isInterrupted())
+                                interrupted.incrementAndGet();
+                            try {
+                                os().sleep(10, TimeUnit.MILLISECONDS);
+                            } catch (InterruptedException e) {
+                                interrupted.incrementAndGet();
+                            }
+                            checked.countDown();
+                        }
+                    });
+                    queued.countDown();
+                    checked.await();
+                }
+            }))
+            .create();
+        sim.start();
+        
+        Assert.assertTrue(checked.await(5, TimeUnit.SECONDS),
+                "Next host's task never ran");
+        Assert.assertEquals(interrupted.get(), 0,
+                "Next host's task was interrupted");
+    }
+    
+    /**
+     * Tasks waiting on a pool's workers still let virtual time move on once
+     * they're all waiting.
+     */
+    @Test
+    public void virtualTime() throws Exception {
+        final Simulator sim = destroyAfterTest(SimulatorFactory.instance()
+            .buildSimulator()
+            .forkPool(2)
+            .virtualTime(true)
+            .create());
+        final Forker forker = new Forker(10, 1, TimeUnit.HOURS);
+        start(sim, sim.createUserKernel(forker));
+        
+        Assert.assertTrue(forker.done.await(10, TimeUnit.SECONDS),
+                "Tasks never finished");
+        Assert.assertTrue(forker.mostRunning.get() <= 2,
+                forker.mostRunning + " ran at once");
+    }
+}
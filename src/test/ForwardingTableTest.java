@@ -0,0 +1,70 @@
+package test;
+
+import java.util.concurrent.TimeUnit;
+
+import network.Interface;
+import network.KnownPort;
+import network.Message;
+import network.Node;
+import network.Simulator;
+import network.protocols.RIP;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Routes messages through a router between hosts with close together and
+ * far apart addresses, which the router's forwarding table stores
+ * differently.
+ */
+public class ForwardingTableTest extends AbstractTest {
+    private void route(int fromAddress, int toAddress, int routerAddress)
+            throws Exception {
+        final Simulator sim = newSimulator();
+        
+        final Node from = createHost(sim, fromAddress, "From");
+        final Node to = createHost(sim, toAddress, "To");
+        final Node router = sim.buildNode(routerAddress)
+            .name("Router")
+            .kernel(sim.createRouterKernel())
+            .create();
+        final Interface fromIface = sim.connect(from, router);
+        final Interface toIface = sim.connect(to, router);
+        
+        sim.start();
+        // Give the kernel threads a moment to come up
+        TimeUnit.MILLISECONDS.sleep(100);
+        
+        // Introduce the hosts and wait for the router to take note
+        fromIface.send(new Message<RIP.Datagram>(fromAddress, routerAddress,
+                KnownPort.KERNEL_WHO, KnownPort.KERNEL_WHO,
+                RIP.Datagram.notARouter()));
+        toIface.send(new Message<RIP.Datagram>(toAddress, routerAddress,
+                KnownPort.KERNEL_WHO, KnownPort.KERNEL_WHO,
+                RIP.Datagram.notARouter()));
+        TimeUnit.MILLISECONDS.sleep(2500);
+        
+        fromIface.send(
+                new Message<String>(fromAddress, toAddress, 42, 42, "Hi"));
+        
+        Message<?> message;
+        do {
+            message = toIface.receive(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(message, "Message never arrived");
+            // Skip the router's RIP broadcasts
+        } while (KnownPort.KERNEL_WHO.is(message.destinationPort));
+        
+        Assert.assertEquals(message.source, fromAddress);
+        Assert.assertEquals(message.data, "Hi");
+    }
+    
+    @Test
+    public void denseAddresses() throws Exception {
+        route(1, 2, 3);
+    }
+    
+    @Test
+    public void sparseAddresses() throws Exception {
+        route(1, 50000, 100000);
+    }
+}
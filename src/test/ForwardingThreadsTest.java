@@ -0,0 +1,108 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import network.Interface;
+import network.KnownPort;
+import network.Message;
+import network.Node;
+import network.Simulator;
+import network.SimulatorFactory;
+import network.protocols.RIP;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Sends several flows through a router with more than one forwarding thread
+ * and checks that each arrives complete and in order.
+ */
+public class ForwardingThreadsTest extends AbstractTest {
+    private static final int HOSTS = 6, MESSAGES = 5000;
+    
+    @Test(timeOut = 60000)
+    public void flowsKeepOrder() throws Exception {
+        final Simulator sim = newSimulator();
+        
+        final List<Node> hostNodes = new ArrayList<Node>();
+        for (int ix = 0; ix < HOSTS; ix++)
+            hostNodes.add(createHost(sim, 1 + ix, "Host " + ix));
+        final Node router = sim.buildNode(100)
+            .name("Router")
+            .kernel(sim.createRouterKernel(3))
+            .create();
+        final List<Interface> hosts = new ArrayList<Interface>();
+        for (Node host : hostNodes)
+            hosts.add(sim.connect(host, router));
+        
+        sim.start();
+        // Give the kernel threads a moment to come up
+        TimeUnit.MILLISECONDS.sleep(100);
+        
+        // Introduce the hosts and wait for the router to take note
+        for (int ix = 0; ix < HOSTS; ix++)
+            hosts.get(ix).send(new Message<RIP.Datagram>(1 + ix, 100,
+                    KnownPort.KERNEL_WHO, KnownPort.KERNEL_WHO,
+                    RIP.Datagram.notARouter()));
+        TimeUnit.MILLISECONDS.sleep(2500);
+        
+        // Each host sends to the next one around
+        final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int ix = 0; ix < HOSTS; ix++) {
+            final int host = ix;
+            threads.add(new Thread("Sender " + ix) {
+                public void run() {
+                    try {
+                        for (int num = 0; num < MESSAGES; num++)
+                            hosts.get(host).send(new Message<Integer>(
+                                    1 + host, 1 + (host + 1) % HOSTS,
+                                    42, 42, num));
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+            threads.add(new Thread("Receiver " + ix) {
+                public void run() {
+                    try {
+                        int next = 0;
+                        while (next < MESSAGES) {
+                            final Message<?> message =
+                                hosts.get(host).receive(10, TimeUnit.SECONDS);
+                            Assert.assertNotNull(message,
+                                    "Lost messages; got " + next);
+                            // Skip the router's RIP broadcasts
+                            if (KnownPort.KERNEL_WHO.is(
+                                    message.destinationPort))
+                                continue;
+                            
+                            Assert.assertEquals(message.source,
+                                    1 + (host + HOSTS - 1) % HOSTS);
+                            Assert.assertEquals(message.data, next++);
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+        }
+        
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void noThreads() {
+        SimulatorFactory.instance().createSimulator().createRouterKernel(0);
+    }
+}
@@ -0,0 +1,195 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import network.Interface;
+import network.InterfaceSelector;
+import network.LinkOptions;
+import network.Message;
+import network.Node;
+import network.Simulator;
+import network.impl.kernel.KernelImpl;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link InterfaceSelector}.
+ */
+public class InterfaceSelectorTest extends AbstractTest {
+    private Node hub;
+    private final List<Interface> spokes = new ArrayList<Interface>();
+    
+    /**
+     * Connect a node with several interfaces to as many others.
+     */
+    private void createNodes(int count, LinkOptions options)
+            throws InterruptedException {
+        final Simulator sim = newSimulator();
+        
+        hub = createHost(sim, 1, "Hub");
+        spokes.clear();
+        for (int ix = 0; ix < count; ix++) {
+            final Node spoke = createHost(sim, 2 + ix, "Spoke " + ix);
+            spokes.add(sim.connect(spoke, hub, options));
+        }
+        
+        sim.start();
+        // Give the kernel threads a moment to come up
+        TimeUnit.MILLISECONDS.sleep(100);
+    }
+    
+    private static Message<Integer> message(int num) {
+        return new Message<Integer>(2, 1, 42, 42, num);
+    }
+    
+    private InterfaceSelector selectAll() {
+        final InterfaceSelector selector = new InterfaceSelector();
+        for (Interface iface : hub.interfaces())
+            selector.register(iface);
+        return selector;
+    }
+    
+    @Test(timeOut = 10000)
+    public void wakesOnArrival() throws Exception {
+        createNodes(4, new LinkOptions());
+        final InterfaceSelector selector = selectAll();
+        
+        new Thread() {
+            public void run() {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(200);
+                    spokes.get(2).send(message(2));
+                } catch (Exception e) {
+                    // The select below will never return
+                }
+            }
+        }.start();
+        
+        final List<Interface> ready = new ArrayList<Interface>();
+        Assert.assertEquals(selector.select(ready), 1);
+        Assert.assertEquals(ready.get(0).index(), 2);
+        Assert.assertEquals(ready.get(0).receive().data, 2);
+    }
+    
+    @Test
+    public void levelTriggered() throws Exception {
+        createNodes(3, new LinkOptions());
+        final InterfaceSelector selector = selectAll();
+        
+        spokes.get(0).send(message(0));
+        spokes.get(0).send(message(1));
+        spokes.get(1).send(message(2));
+        
+        final List<Interface> ready = new ArrayList<Interface>();
+        Assert.assertEquals(selector.selectNow(ready), 2);
+        
+        // Whatever's left behind is still ready next time
+        hub.interfaces().get(0).receive();
+        ready.clear();
+        Assert.assertEquals(selector.select(ready, 0, TimeUnit.SECONDS), 2);
+        
+        hub.interfaces().get(0).receive();
+        hub.interfaces().get(1).receive();
+        ready.clear();
+        Assert.assertEquals(
+                selector.select(ready, 100, TimeUnit.MILLISECONDS), 0);
+    }
+    
+    @Test(timeOut = 10000)
+    public void delayedArrival() throws Exception {
+        createNodes(2, new LinkOptions().delay(200, TimeUnit.MILLISECONDS));
+        final InterfaceSelector selector = selectAll();
+        
+        spokes.get(1).send(message(1));
+        
+        final List<Interface> ready = new ArrayList<Interface>();
+        Assert.assertEquals(selector.selectNow(ready), 0);
+        Assert.assertEquals(selector.select(ready), 1);
+        Assert.assertEquals(ready.get(0).index(), 1);
+    }
+    
+    @Test(timeOut = 10000)
+    public void wakeup() throws Exception {
+        createNodes(1, new LinkOptions());
+        final InterfaceSelector selector = selectAll();
+        
+        new Thread() {
+            public void run() {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(200);
+                } catch (InterruptedException e) {
+                    // Wake up early, then
+                }
+                selector.wakeup();
+            }
+        }.start();
+        
+        Assert.assertEquals(selector.select(new ArrayList<Interface>()), 0);
+    }
+    
+    @Test
+    public void unregister() throws Exception {
+        createNodes(2, new LinkOptions());
+        final InterfaceSelector selector = selectAll();
+        
+        selector.unregister(hub.interfaces().get(0));
+        spokes.get(0).send(message(0));
+        
+        Assert.assertEquals(
+                selector.select(new ArrayList<Interface>(),
+                        100, TimeUnit.MILLISECONDS), 0);
+        Assert.assertEquals(selector.interfaces().size(), 1);
+    }
+    
+    /**
+     * Idle routers should sleep rather than spin looking for messages.
+     */
+    @Test
+    public void idleRouters() throws Exception {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadCpuTimeSupported())
+            throw new SkipException("Can't measure CPU time on this JVM");
+        threads.setThreadCpuTimeEnabled(true);
+        
+        final Simulator sim = newSimulator();
+        Node previous = null;
+        for (int ix = 0; ix < 200; ix++) {
+            final Simulator.NodeBuilder builder = sim.buildNode()
+                .name("Router " + ix)
+                .kernel(new KernelImpl());
+            if (previous != null)
+                builder.connections(previous);
+            previous = builder.create();
+        }
+        sim.start();
+        // Let them settle down
+        TimeUnit.SECONDS.sleep(1);
+        
+        final long wallStart = System.nanoTime();
+        final long cpuStart = totalCpuTime(threads);
+        TimeUnit.SECONDS.sleep(2);
+        final long cpu = totalCpuTime(threads) - cpuStart;
+        final long wall = System.nanoTime() - wallStart;
+        
+        // Spinning, they'd use every core the whole time
+        Assert.assertTrue(cpu < wall / 2,
+                "Used " + TimeUnit.NANOSECONDS.toMillis(cpu) + "ms of CPU in " +
+                TimeUnit.NANOSECONDS.toMillis(wall) + "ms");
+    }
+    
+    private static long totalCpuTime(ThreadMXBean threads) {
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            final long time = threads.getThreadCpuTime(id);
+            if (time > 0)
+                total += time;
+        }
+        return total;
+    }
+}
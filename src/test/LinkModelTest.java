@@ -0,0 +1,97 @@
+package test;
+
+import java.util.concurrent.TimeUnit;
+
+import network.Interface;
+import network.LinkOptions;
+import network.Message;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for link delay, bandwidth, jitter and asymmetry.
+ */
+public class LinkModelTest extends AbstractTest {
+    private Interface aSide, bSide;
+    
+    private void connect(LinkOptions aToB, LinkOptions bToA) {
+        final Hosts hosts = startHosts(aToB, bToA);
+        aSide = hosts.aSide;
+        bSide = hosts.bSide;
+    }
+    
+    private static Message<Integer> message(int num) {
+        return new Message<Integer>(1, 2, 42, 42, num);
+    }
+    
+    /**
+     * @return The time the message took to arrive, in milliseconds.
+     */
+    private static long roundTrip(Interface from, Interface to)
+            throws Exception {
+        final long start = System.nanoTime();
+        from.send(message(0));
+        Assert.assertNotNull(to.receive(5, TimeUnit.SECONDS));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+    
+    @Test
+    public void delay() throws Exception {
+        final LinkOptions options =
+            new LinkOptions().delay(200, TimeUnit.MILLISECONDS);
+        connect(options, options);
+        
+        aSide.send(message(1));
+        Assert.assertNull(bSide.receive(0, TimeUnit.SECONDS),
+                "Message arrived before the delay was up");
+        Assert.assertEquals(bSide.receive(5, TimeUnit.SECONDS).data, 1);
+        
+        Assert.assertTrue(roundTrip(aSide, bSide) >= 200);
+        Assert.assertTrue(roundTrip(bSide, aSide) >= 200);
+    }
+    
+    @Test
+    public void bandwidth() throws Exception {
+        // 22-byte messages take 176 bits, or 22ms, each
+        final LinkOptions options = new LinkOptions().bandwidth(8000);
+        connect(options, options);
+        
+        final long start = System.nanoTime();
+        for (int num = 0; num < 10; num++)
+            aSide.send(message(num));
+        for (int num = 0; num < 10; num++)
+            Assert.assertEquals(bSide.receive(5, TimeUnit.SECONDS).data, num);
+        
+        Assert.assertTrue(
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                    >= 220);
+    }
+    
+    @Test
+    public void asymmetry() throws Exception {
+        connect(new LinkOptions().delay(300, TimeUnit.MILLISECONDS),
+                new LinkOptions());
+        
+        Assert.assertTrue(roundTrip(aSide, bSide) >= 300);
+        Assert.assertTrue(roundTrip(bSide, aSide) < 300);
+    }
+    
+    @Test
+    public void jitterKeepsOrder() throws Exception {
+        for (LinkOptions.Jitter distribution : LinkOptions.Jitter.values()) {
+            final LinkOptions options = new LinkOptions()
+                .delay(10, TimeUnit.MILLISECONDS)
+                .jitter(10, TimeUnit.MILLISECONDS, distribution);
+            connect(options, options);
+            
+            for (int num = 0; num < 100; num++)
+                aSide.send(message(num));
+            for (int num = 0; num < 100; num++)
+                Assert.assertEquals(
+                        bSide.receive(5, TimeUnit.SECONDS).data, num);
+            
+            destroySimulators();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package test;
+
+import java.util.concurrent.TimeUnit;
+
+import network.Kernel;
+import network.Simulator;
+import network.impl.kernel.LinkStateKernel;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link LinkStateKernel}: routes should be found quickly and
+ * rebuilt quickly when links fail, and nothing should be said when nothing
+ * changes.
+ */
+public class LinkStateTest extends AbstractTest {
+    private Ring startRing() throws Exception {
+        final Simulator sim = newSimulator();
+        return startRing(sim, new Simulator.KernelFactory() {
+            public Kernel createKernel(int index) {
+                return sim.createLinkStateRouterKernel();
+            }
+        });
+    }
+    
+    @Test
+    public void converges() throws Exception {
+        final Ring ring = startRing();
+        
+        Assert.assertTrue(ring.timeToDeliver(8000) < 5000);
+    }
+    
+    @Test
+    public void quietWhenStable() throws Exception {
+        final Ring ring = startRing();
+        ring.timeToDeliver(8000);
+        
+        // Drain anything left over from converging
+        TimeUnit.MILLISECONDS.sleep(500);
+        while (ring.host1.receive(0, TimeUnit.SECONDS) != null)
+            continue;
+        
+        // The next refresh is a while off yet
+        TimeUnit.SECONDS.sleep(2);
+        int count = 0;
+        while (ring.host1.receive(0, TimeUnit.SECONDS) != null)
+            count++;
+        Assert.assertEquals(count, 0, "Hellos while nothing changed");
+    }
+    
+    @Test
+    public void reroutes() throws Exception {
+        final Ring ring = startRing();
+        ring.timeToDeliver(8000);
+        
+        // Cut one side of the ring, then the other way around
+        ring.sim.disconnect(ring.routers[0].interfaces().get(0));
+        Assert.assertTrue(ring.timeToDeliver(8000) < 5000);
+        
+        ring.sim.connect(ring.routers[0], ring.routers[1]);
+        ring.sim.disconnect(ring.routers[0].interfaces().get(1));
+        Assert.assertTrue(ring.timeToDeliver(8000) < 5000);
+    }
+}
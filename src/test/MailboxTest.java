@@ -0,0 +1,406 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import network.AbstractProcess;
+import network.Interface;
+import network.MailboxOptions;
+import network.Message;
+import network.Node;
+import network.OperatingSystem;
+import network.OverflowPolicy;
+import network.Process;
+import network.Simulator;
+import network.UserKernel;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that messages reach the right ports' mailboxes.
+ */
+public class MailboxTest extends AbstractTest {
+    private UserKernel kernel;
+    
+    /**
+     * Receives one message on each of the given ports, in the given order.
+     */
+    private static final class Collector extends AbstractProcess {
+        final CountDownLatch done = new CountDownLatch(1);
+        private final int[] ports;
+        volatile boolean matched = true;
+        
+        Collector(int[] ports) {
+            this.ports = ports;
+        }
+        
+        protected void run() throws InterruptedException {
+            for (int port : ports) {
+                final Message<?> message = os().receive(port, 5,
+                        TimeUnit.SECONDS);
+                if (message == null || !message.data.equals(port))
+                    matched = false;
+            }
+            done.countDown();
+        }
+    }
+    
+    /**
+     * Binds a port, then once told to, receives everything waiting on it.
+     */
+    private static final class Drainer extends AbstractProcess {
+        final CountDownLatch bound = new CountDownLatch(1);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<Object> received =
+            Collections.synchronizedList(new ArrayList<Object>());
+        private final int port;
+        volatile long dropCount = -1;
+        
+        Drainer(int port) {
+            this.port = port;
+        }
+        
+        protected void run() throws InterruptedException {
+            os().bind(port);
+            bound.countDown();
+            go.await();
+            
+            Message<?> message;
+            while ((message = os().receive(port, 500,
+                    TimeUnit.MILLISECONDS)) != null)
+                received.add(message.data);
+            dropCount = os().dropCount(port);
+            done.countDown();
+        }
+    }
+    
+    /**
+     * Start a host with a plain kernel, linked to another running the given
+     * process.
+     * 
+     * @return The plain host's interface.
+     */
+    private Interface createHosts(Process process) {
+        return createHosts(process, new MailboxOptions());
+    }
+    
+    /**
+     * Start a host with a plain kernel, linked to another running the given
+     * process with the given limits.
+     * 
+     * @return The plain host's interface.
+     */
+    private Interface createHosts(Process process, MailboxOptions options) {
+        final Simulator sim = newSimulator();
+        kernel = sim.createUserKernel(process, options);
+        final Node host = createHost(sim, 1, "Host");
+        final Node server = sim.buildNode(2)
+            .kernel(kernel)
+            .create();
+        final Interface iface = sim.connect(host, server);
+        sim.start();
+        return iface;
+    }
+    
+    /**
+     * Send the given numbers to a port on the process's host.
+     */
+    private static void send(Interface iface, int port, int from, int to)
+            throws Exception {
+        for (int ix = from; ix < to; ix++)
+            iface.send(new Message<Integer>(1, 2, port, port, ix));
+    }
+    
+    /**
+     * Wait for the process's host to have dropped the given number of
+     * messages.
+     */
+    private void awaitDrops(long count) throws InterruptedException {
+        final long deadline = System.nanoTime() + 5000000000L;
+        while (kernel.dropCount() < count && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        Assert.assertEquals(kernel.dropCount(), count, "Dropped");
+    }
+    
+    /**
+     * Small ports and large ones, enough of the large ones that their table
+     * has to grow, all received in the opposite order to how they were sent.
+     */
+    @Test
+    public void manyPorts() throws Exception {
+        // Clear of the known ports, which the kernel may answer itself
+        final int[] ports = new int[200];
+        for (int ix = 0; ix < ports.length; ix++)
+            ports[ix] = ix % 2 == 0 ? 10 + ix / 2 : 40000 + 7 * ix;
+        final int[] reversed = new int[ports.length];
+        for (int ix = 0; ix < ports.length; ix++)
+            reversed[ix] = ports[ports.length - 1 - ix];
+        
+        final Collector collector = new Collector(reversed);
+        final Interface iface = createHosts(collector);
+        
+        for (int port : ports)
+            iface.send(new Message<Integer>(1, 2, port, port, port));
+        
+        Assert.assertTrue(collector.done.await(10, TimeUnit.SECONDS),
+                "Messages never arrived");
+        Assert.assertTrue(collector.matched, "Wrong message on a port");
+    }
+    
+    /**
+     * Waiting on several ports at once, for messages that arrive on some of
+     * them in no particular order, while others arrive on ports nobody's
+     * waiting on.
+     */
+    @Test
+    public void receiveAny() throws Exception {
+        final List<Integer> received = new ArrayList<Integer>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Interface iface = createHosts(new AbstractProcess() {
+            protected void run() throws InterruptedException {
+                for (int ix = 0; ix < 3; ix++) {
+                    final Message<?> message = os().receiveAny(5,
+                            TimeUnit.SECONDS, 10, 20, 30);
+                    if (message != null)
+                        received.add(message.destinationPort);
+                }
+                // Still waiting, having woken nobody
+                final Message<?> other = os().receive(99, 5,
+                        TimeUnit.SECONDS);
+                if (other != null)
+                    received.add(other.destinationPort);
+                done.countDown();
+            }
+        });
+        
+        iface.send(new Message<Integer>(1, 2, 99, 99, 0));
+        iface.send(new Message<Integer>(1, 2, 30, 30, 0));
+        iface.send(new Message<Integer>(1, 2, 10, 10, 0));
+        iface.send(new Message<Integer>(1, 2, 20, 20, 0));
+        
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS),
+                "Messages never arrived");
+        Assert.assertEquals(received.size(), 4, "Missing messages");
+        Assert.assertEquals(received.get(3), Integer.valueOf(99));
+    }
+    
+    /**
+     * Picking one message out of a queue, and waiting for one that never
+     * comes, without looking at any message twice or losing any.
+     */
+    @Test
+    public void selectiveReceive() throws Exception {
+        final int count = 100;
+        final AtomicInteger checks = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<Object> received = new ArrayList<Object>();
+        final Interface iface = createHosts(new AbstractProcess() {
+            protected void run() throws InterruptedException {
+                final Message<?> last = os().receive(10,
+                        new OperatingSystem.MessageFilter() {
+                            public boolean accept(Message<?> message) {
+                                return message.data.equals(count - 1);
+                            }
+                        }, 5, TimeUnit.SECONDS);
+                received.add(last == null ? null : last.data);
+                
+                // The rest are queued by now
+                final Message<?> none = os().receive(10,
+                        new OperatingSystem.MessageFilter() {
+                            public boolean accept(Message<?> message) {
+                                checks.incrementAndGet();
+                                return false;
+                            }
+                        }, 100, TimeUnit.MILLISECONDS);
+                received.add(none);
+                
+                for (int ix = 0; ix < count - 1; ix++) {
+                    final Message<?> message = os().receive(10, 5,
+                            TimeUnit.SECONDS);
+                    received.add(message == null ? null : message.data);
+                }
+                done.countDown();
+            }
+        });
+        
+        for (int ix = 0; ix < count; ix++)
+            iface.send(new Message<Integer>(1, 2, 10, 10, ix));
+        
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS),
+                "Messages never arrived");
+        Assert.assertEquals(received.get(0), count - 1);
+        Assert.assertNull(received.get(1));
+        Assert.assertEquals(checks.get(), count - 1,
+                "Each queued message should be checked exactly once");
+        for (int ix = 0; ix < count - 1; ix++)
+            Assert.assertEquals(received.get(ix + 2), ix, "Out of order");
+    }
+    
+    /**
+     * Receivers waiting for one class of payload each, alongside one with a
+     * filter of its own, each get the message meant for them.
+     */
+    @Test
+    public void payloadFilter() throws Exception {
+        final CountDownLatch done = new CountDownLatch(3);
+        final List<Object> received =
+            Collections.synchronizedList(new ArrayList<Object>());
+        final Interface iface = createHosts(new AbstractProcess() {
+            protected void run() throws InterruptedException {
+                os().fork(receiver(
+                        new OperatingSystem.PayloadFilter(String.class)));
+                os().fork(receiver(new OperatingSystem.MessageFilter() {
+                    public boolean accept(Message<?> message) {
+                        return message.data instanceof Number;
+                    }
+                }));
+                receiver(new OperatingSystem.PayloadFilter(Integer.class))
+                    .run();
+            }
+            
+            private Runnable receiver(
+                    final OperatingSystem.MessageFilter filter) {
+                return new Runnable() {
+                    public void run() {
+                        try {
+                            final Message<?> message = os().receive(10,
+                                    filter, 5, TimeUnit.SECONDS);
+                            if (message != null)
+                                received.add(message.data);
+                        } catch (InterruptedException e) {
+                            // Nothing more to receive
+                        }
+                        done.countDown();
+                    }
+                };
+            }
+        });
+        
+        // Give them all a moment to start waiting
+        TimeUnit.MILLISECONDS.sleep(200);
+        iface.send(new Message<Long>(1, 2, 10, 10, 7L));
+        iface.send(new Message<String>(1, 2, 10, 10, "Hi"));
+        iface.send(new Message<Integer>(1, 2, 10, 10, 3));
+        
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS),
+                "Messages never arrived");
+        Assert.assertEquals(received.size(), 3, "Missing messages");
+        Assert.assertTrue(received.containsAll(
+                Arrays.<Object>asList(7L, "Hi", 3)), received.toString());
+    }
+    
+    /**
+     * A full port drops what arrives.
+     */
+    @Test
+    public void tailDrop() throws Exception {
+        final Drainer drainer = new Drainer(10);
+        final Interface iface = createHosts(drainer, new MailboxOptions()
+                .capacity(4)
+                .overflowPolicy(OverflowPolicy.TAIL_DROP));
+        Assert.assertTrue(drainer.bound.await(5, TimeUnit.SECONDS));
+        
+        send(iface, 10, 0, 10);
+        awaitDrops(6);
+        drainer.go.countDown();
+        
+        Assert.assertTrue(drainer.done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(drainer.received, list(0, 4));
+        Assert.assertEquals(drainer.dropCount, 6);
+    }
+    
+    /**
+     * A full node drops the oldest of a port's messages for the newest.
+     */
+    @Test
+    public void headDrop() throws Exception {
+        final Drainer drainer = new Drainer(10);
+        final Interface iface = createHosts(drainer, new MailboxOptions()
+                .totalCapacity(4)
+                .overflowPolicy(OverflowPolicy.HEAD_DROP));
+        Assert.assertTrue(drainer.bound.await(5, TimeUnit.SECONDS));
+        
+        send(iface, 10, 0, 10);
+        awaitDrops(6);
+        drainer.go.countDown();
+        
+        Assert.assertTrue(drainer.done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(drainer.received, list(6, 10));
+    }
+    
+    /**
+     * A full port holds up delivery, but loses nothing.
+     */
+    @Test
+    public void backpressure() throws Exception {
+        final Drainer drainer = new Drainer(10);
+        final Interface iface = createHosts(drainer, new MailboxOptions()
+                .capacity(2)
+                .totalCapacity(3));
+        Assert.assertTrue(drainer.bound.await(5, TimeUnit.SECONDS));
+        
+        final int count = 500;
+        send(iface, 10, 0, count);
+        drainer.go.countDown();
+        
+        Assert.assertTrue(drainer.done.await(20, TimeUnit.SECONDS));
+        Assert.assertEquals(drainer.received, list(0, count));
+        Assert.assertEquals(kernel.dropCount(), 0);
+    }
+    
+    /**
+     * Ports nobody's bound, or that have been unbound, take nothing.
+     */
+    @Test
+    public void unbound() throws Exception {
+        final CountDownLatch bound = new CountDownLatch(1);
+        final CountDownLatch unbound = new CountDownLatch(1);
+        final List<Long> dropCounts =
+            Collections.synchronizedList(new ArrayList<Long>());
+        final Interface iface = createHosts(new AbstractProcess() {
+            protected void run() throws InterruptedException {
+                os().bind(10);
+                bound.countDown();
+                final Message<?> first = os().receive(10, 5, TimeUnit.SECONDS);
+                dropCounts.add(os().dropCount(99));
+                os().unbind(10);
+                unbound.countDown();
+                
+                os().sleep(500, TimeUnit.MILLISECONDS);
+                dropCounts.add(os().dropCount(10));
+                if (first != null)
+                    os().sendAsync(new Message<Integer>(2, 1, 10, 10, 0));
+            }
+        }, new MailboxOptions().rejectUnboundPorts(true));
+        Assert.assertTrue(bound.await(5, TimeUnit.SECONDS));
+        
+        send(iface, 99, 0, 3);
+        send(iface, 10, 0, 1);
+        Assert.assertTrue(unbound.await(5, TimeUnit.SECONDS));
+        send(iface, 10, 0, 2);
+        
+        Assert.assertNotNull(iface.receive(5, TimeUnit.SECONDS),
+                "Never got the first message");
+        Assert.assertEquals(dropCounts, Arrays.asList(0L, 2L));
+        Assert.assertEquals(kernel.dropCount(), 5);
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void noRed() {
+        new MailboxOptions().overflowPolicy(OverflowPolicy.RED);
+    }
+    
+    private static List<Object> list(int from, int to) {
+        final List<Object> ans = new ArrayList<Object>();
+        for (int ix = from; ix < to; ix++)
+            ans.add(ix);
+        return ans;
+    }
+}
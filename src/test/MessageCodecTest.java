@@ -0,0 +1,155 @@
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import network.Message;
+import network.impl.Codecs;
+import network.impl.MessageCodec;
+import network.protocols.HTTP;
+import network.protocols.RIP;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the binary wire format and the built-in {@link MessageCodec}s.
+ */
+public class MessageCodecTest extends AbstractTest {
+    private static Message<?> roundTrip(Serializable data) throws Exception {
+        final Message<Serializable> sent =
+            new Message<Serializable>(0x12, 0x345, 6, 7, data);
+        final Message<?> received = Codecs.decode(Codecs.encode(sent));
+        
+        Assert.assertEquals(received.source, sent.source);
+        Assert.assertEquals(received.destination, sent.destination);
+        Assert.assertEquals(received.sourcePort, sent.sourcePort);
+        Assert.assertEquals(received.destinationPort, sent.destinationPort);
+        
+        return received;
+    }
+    
+    private static int serializedSize(Message<?> message) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(message);
+        out.close();
+        return bytes.size();
+    }
+    
+    @Test
+    public void primitives() throws Exception {
+        final Serializable[] values = {
+            "Hello", "", "\u00e9t\u00e9 \u2603 \u0000", true, 'x',
+            (byte) -3, (short) 1234, -56789, 1L << 40, 1.5f, Math.PI,
+        };
+        
+        for (Serializable value : values)
+            Assert.assertEquals(roundTrip(value).data, value);
+        
+        Assert.assertNull(roundTrip(null).data);
+    }
+    
+    @Test
+    public void protocols() throws Exception {
+        final RIP.Datagram datagram = new RIP.Datagram(new RIP.Datagram.Entry[] {
+            new RIP.Datagram.Entry(1, (byte) 0),
+            new RIP.Datagram.Entry(0xabc, Byte.MAX_VALUE),
+        });
+        Assert.assertEquals(roundTrip(datagram).data.toString(),
+                datagram.toString());
+        
+        Assert.assertNull(roundTrip(RIP.Datagram.notARouter())
+                .dataAs(RIP.Datagram.class).entries);
+        
+        final HTTP.Request request =
+            new HTTP.Request(HTTP.Request.Method.POST, "/index.html");
+        final HTTP.Request requestCopy =
+            roundTrip(request).dataAs(HTTP.Request.class);
+        Assert.assertEquals(requestCopy.method, request.method);
+        Assert.assertEquals(requestCopy.resource, request.resource);
+        
+        final HTTP.Response response =
+            new HTTP.Response(HTTP.Response.Status.TEAPOT, null);
+        final HTTP.Response responseCopy =
+            roundTrip(response).dataAs(HTTP.Response.class);
+        Assert.assertEquals(responseCopy.status, response.status);
+        Assert.assertNull(responseCopy.content);
+    }
+    
+    @Test
+    public void serializationFallback() throws Exception {
+        final ArrayList<String> list =
+            new ArrayList<String>(Arrays.asList("a", "b"));
+        Assert.assertEquals(roundTrip(list).data, list);
+    }
+    
+    static final class Point implements Serializable {
+        final int x, y;
+        
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+        
+        private static final long serialVersionUID = 1L;
+    }
+    
+    @Test
+    public void customCodec() throws Exception {
+        Codecs.register(new MessageCodec<Point>() {
+            public Class<Point> type() {
+                return Point.class;
+            }
+            
+            public void encode(Point value, DataOutput out) throws IOException {
+                out.writeInt(value.x);
+                out.writeInt(value.y);
+            }
+            
+            public Point decode(DataInput in) throws IOException {
+                return new Point(in.readInt(), in.readInt());
+            }
+        });
+        
+        final Message<Point> message =
+            new Message<Point>(1, 2, 3, 4, new Point(5, 6));
+        Assert.assertEquals(Codecs.encode(message).length,
+                Codecs.HEADER_SIZE + 8);
+        
+        final Point copy = roundTrip(new Point(5, 6)).dataAs(Point.class);
+        Assert.assertEquals(copy.x, 5);
+        Assert.assertEquals(copy.y, 6);
+    }
+    
+    @Test
+    public void smallerThanSerialization() throws Exception {
+        final RIP.Datagram.Entry[] entries = new RIP.Datagram.Entry[50];
+        for (int ix = 0; ix < entries.length; ix++)
+            entries[ix] = new RIP.Datagram.Entry(ix + 1, (byte) (ix % 16));
+        
+        final Message<RIP.Datagram> rip = new Message<RIP.Datagram>(1, 255,
+                RIP.PORT, RIP.PORT, new RIP.Datagram(entries));
+        final Message<HTTP.Request> http = new Message<HTTP.Request>(1, 2, -1,
+                HTTP.PORT.number(),
+                new HTTP.Request(HTTP.Request.Method.GET, "/index.html"));
+        
+        for (Message<?> message : Arrays.asList(rip, http)) {
+            final int compact = Codecs.encode(message).length,
+                serialized = serializedSize(message);
+            
+            sim().logger().info(String.format("%s: %d bytes (was %d)",
+                    message.data.getClass().getSimpleName(),
+                    compact, serialized));
+            
+            Assert.assertTrue(compact * 3 < serialized,
+                    compact + " bytes is not much less than " + serialized);
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import network.AbstractProcess;
 import network.Node;
+import network.Simulator;
+import network.SimulatorFactory;
 import network.software.MultiProcess;
 
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
 /**
@@ -48,4 +56,50 @@ public class MultiProcessTest extends AbstractTest {
         
         sim().destroy();
     }
+    
+    /**
+     * Subprocesses that wait to hear from each other all get going, even if
+     * there are more of them than the fork pool has workers. In virtual
+     * time, the pool queues tasks beyond its workers itself, so one left
+     * waiting for a worker would never start.
+     */
+    @Test(timeOut = 10000)
+    public void morePeersThanForkWorkers() throws Exception {
+        final int workers = 2, peers = workers + 1;
+        final Simulator sim = destroyAfterTest(SimulatorFactory.instance()
+            .buildSimulator()
+            .forkPool(workers)
+            .virtualTime(true)
+            .create());
+        
+        final List<BlockingQueue<Integer>> inboxes =
+            new ArrayList<BlockingQueue<Integer>>();
+        for (int ix = 0; ix < peers; ix++)
+            inboxes.add(new LinkedBlockingQueue<Integer>());
+        final CountDownLatch done = new CountDownLatch(peers);
+        
+        final MultiProcess process = new MultiProcess();
+        for (int ix = 0; ix < peers; ix++) {
+            final int num = ix;
+            process.add(new AbstractProcess() {
+                protected void run() throws InterruptedException {
+                    // Greet everyone else, then wait to be greeted back
+                    for (int peer = 0; peer < peers; peer++)
+                        if (peer != num)
+                            inboxes.get(peer).add(num);
+                    for (int peer = 1; peer < peers; peer++)
+                        inboxes.get(num).take();
+                    done.countDown();
+                }
+            });
+        }
+        sim.buildNode(1)
+            .name("A")
+            .kernel(sim.createUserKernel(process))
+            .create();
+        sim.start();
+        
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS),
+                done.getCount() + " never heard from everyone");
+    }
 }
@@ -0,0 +1,94 @@
+package test;
+
+import java.util.concurrent.TimeUnit;
+
+import network.Interface;
+import network.Message;
+import network.Node;
+import network.Simulator;
+import network.SimulatorFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for routes computed from the topology: traffic should flow as soon
+ * as the simulator starts, and follow the topology as it changes.
+ */
+public class OracleRoutingTest extends AbstractTest {
+    private Simulator sim;
+    private Interface host1, host2;
+    /** Routers 3 to 6, in a ring */
+    private final Node[] routers = new Node[4];
+    
+    /**
+     * Hosts 1 and 2 on opposite sides of a ring of four routers, the
+     * routers given the kernel they'd have by default.
+     */
+    private void createRing() {
+        sim = destroyAfterTest(SimulatorFactory.instance().buildSimulator()
+            .oracleRouting(true)
+            .create());
+        
+        final Node a = createHost(sim, 1, "Host 1");
+        final Node b = createHost(sim, 2, "Host 2");
+        for (int ix = 0; ix < routers.length; ix++)
+            routers[ix] = sim.buildNode(3 + ix)
+                .name("Router " + (3 + ix))
+                .create();
+        for (int ix = 0; ix < routers.length; ix++)
+            sim.connect(routers[ix], routers[(ix + 1) % routers.length]);
+        host1 = sim.connect(a, routers[0]);
+        host2 = sim.connect(b, routers[2]);
+        
+        sim.start();
+    }
+    
+    /**
+     * Send one message, which should get through on the first try.
+     */
+    private void deliver(Interface from, Interface to, int destination)
+            throws Exception {
+        from.send(new Message<String>(1, destination, 42, 42, "Hi"));
+        
+        final Message<?> message = to.receive(2, TimeUnit.SECONDS);
+        Assert.assertNotNull(message, "Nothing arrived");
+        Assert.assertEquals(message.data, "Hi");
+    }
+    
+    @Test
+    public void routesAtStart() throws Exception {
+        createRing();
+        
+        deliver(host1, host2, 2);
+        deliver(host2, host1, 1);
+    }
+    
+    @Test
+    public void reroutes() throws Exception {
+        createRing();
+        
+        // Cut one side of the ring, then the other way around
+        sim.disconnect(routers[0].interfaces().get(0));
+        deliver(host1, host2, 2);
+        
+        sim.connect(routers[0], routers[1]);
+        sim.disconnect(routers[0].interfaces().get(1));
+        deliver(host1, host2, 2);
+    }
+    
+    @Test
+    public void nodesAddedLater() throws Exception {
+        createRing();
+        
+        final Node c = createHost(sim, 7, "Host 7");
+        final Node router = sim.buildNode(8)
+            .name("Router 8")
+            .connections(routers[1])
+            .create();
+        final Interface host7 = sim.connect(c, router);
+        
+        deliver(host1, host7, 7);
+        deliver(host7, host1, 1);
+    }
+}
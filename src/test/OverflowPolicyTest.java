@@ -0,0 +1,126 @@
+package test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import network.Interface;
+import network.LinkOptions;
+import network.Message;
+import network.OverflowPolicy;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for bounded interface queues and each {@link OverflowPolicy}.
+ */
+public class OverflowPolicyTest extends AbstractTest {
+    private Interface sender, receiver;
+    
+    private void connect(LinkOptions options) {
+        final Hosts hosts = startHosts(options);
+        sender = hosts.aSide;
+        receiver = hosts.bSide;
+    }
+    
+    private void send(int ... nums) throws Exception {
+        for (int num : nums)
+            sender.send(new Message<Integer>(1, 2, 42, 42, num));
+    }
+    
+    private void assertReceived(int ... nums) throws Exception {
+        for (int num : nums)
+            Assert.assertEquals(
+                    receiver.receive(0, TimeUnit.SECONDS).data, num);
+        Assert.assertNull(receiver.receive(0, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    public void tailDrop() throws Exception {
+        connect(new LinkOptions()
+                .capacity(3)
+                .overflowPolicy(OverflowPolicy.TAIL_DROP));
+        
+        send(1, 2, 3, 4, 5);
+        
+        Assert.assertEquals(receiver.dropCount(), 2);
+        assertReceived(1, 2, 3);
+    }
+    
+    @Test
+    public void headDrop() throws Exception {
+        connect(new LinkOptions()
+                .capacity(3)
+                .overflowPolicy(OverflowPolicy.HEAD_DROP));
+        
+        send(1, 2, 3, 4, 5);
+        
+        Assert.assertEquals(receiver.dropCount(), 2);
+        assertReceived(3, 4, 5);
+    }
+    
+    @Test
+    public void byteCapacity() throws Exception {
+        // Integer payloads encode to four bytes after the header
+        connect(new LinkOptions()
+                .byteCapacity(2 * 22)
+                .overflowPolicy(OverflowPolicy.TAIL_DROP));
+        
+        send(1, 2, 3);
+        
+        Assert.assertEquals(receiver.dropCount(), 1);
+        assertReceived(1, 2);
+    }
+    
+    @Test(timeOut = 10000)
+    public void block() throws Exception {
+        connect(new LinkOptions()
+                .capacity(2)
+                .overflowPolicy(OverflowPolicy.BLOCK));
+        
+        send(1, 2);
+        
+        final CountDownLatch sent = new CountDownLatch(1);
+        final Thread thread = new Thread() {
+            public void run() {
+                try {
+                    send(3);
+                    sent.countDown();
+                } catch (Exception e) {
+                    Assert.fail("Send failed", e);
+                }
+            }
+        };
+        thread.start();
+        
+        Assert.assertFalse(sent.await(200, TimeUnit.MILLISECONDS),
+                "Send should block while the queue is full");
+        
+        Assert.assertEquals(receiver.receive().data, 1);
+        Assert.assertTrue(sent.await(5, TimeUnit.SECONDS),
+                "Send should finish once there is room");
+        
+        Assert.assertEquals(receiver.dropCount(), 0);
+        assertReceived(2, 3);
+    }
+    
+    @Test
+    public void red() throws Exception {
+        connect(new LinkOptions()
+                .capacity(1000)
+                .overflowPolicy(OverflowPolicy.RED));
+        
+        // Exactly enough to fill the queue, so any drop is an early one
+        for (int num = 0; num < 1000; num++)
+            send(num);
+        
+        final long dropped = receiver.dropCount();
+        int received = 0;
+        while (receiver.receive(0, TimeUnit.SECONDS) != null)
+            received++;
+        
+        Assert.assertEquals(received + dropped, 1000);
+        Assert.assertTrue(dropped > 0,
+                "Expected random early drops, but queue filled up");
+    }
+}
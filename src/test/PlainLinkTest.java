@@ -0,0 +1,205 @@
+package test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import network.Interface;
+import network.LinkOptions;
+import network.Message;
+import network.Simulator;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for links with no limits and no delay, which use a lock-free queue
+ * that starts out single-producer and switches when a second thread sends.
+ */
+public class PlainLinkTest extends AbstractTest {
+    private static Message<Integer> message(int num) {
+        return new Message<Integer>(1, 2, 42, 42, num);
+    }
+    
+    @Test
+    public void singleProducer() throws Exception {
+        final Hosts hosts = startHosts();
+        final Interface sender = hosts.aSide;
+        final Interface receiver = hosts.bSide;
+        
+        // Enough to span several chunks
+        for (int num = 0; num < 10000; num++)
+            sender.send(message(num));
+        for (int num = 0; num < 10000; num++)
+            Assert.assertEquals(receiver.receive(0, TimeUnit.SECONDS).data, num);
+        Assert.assertNull(receiver.receive(0, TimeUnit.SECONDS));
+    }
+    
+    @Test(timeOut = 30000)
+    public void multipleProducers() throws Exception {
+        final Hosts hosts = startHosts();
+        final Interface sender = hosts.aSide;
+        final Interface receiver = hosts.bSide;
+        
+        final int producers = 4, perProducer = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+        
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread("Producer " + p) {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int num = 0; num < perProducer; num++)
+                            sender.send(
+                                    message(producer * perProducer + num));
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            }.start();
+        }
+        
+        // Have the main thread own the queue first, so the others force the
+        // switch while it's in use
+        sender.send(message(-1));
+        start.countDown();
+        
+        Assert.assertEquals(receiver.receive(5, TimeUnit.SECONDS).data, -1);
+        
+        // Each producer's messages must arrive complete and in order
+        final int[] next = new int[producers];
+        for (int count = 0; count < producers * perProducer; count++) {
+            final Message<?> message = receiver.receive(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(message, "Lost messages; got " + count);
+            
+            final int num = (Integer) message.data;
+            final int producer = num / perProducer;
+            Assert.assertEquals(num % perProducer, next[producer]++);
+        }
+        
+        Assert.assertNull(failure.get());
+        Assert.assertNull(receiver.receive(0, TimeUnit.SECONDS));
+    }
+    
+    @Test(timeOut = 10000)
+    public void blockedReceiverWakes() throws Exception {
+        final Hosts hosts = startHosts();
+        final Interface sender = hosts.aSide;
+        final Interface receiver = hosts.bSide;
+        
+        new Thread() {
+            public void run() {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(200);
+                    sender.send(message(7));
+                } catch (Exception e) {
+                    // The receive below will time out
+                }
+            }
+        }.start();
+        
+        Assert.assertEquals(receiver.receive().data, 7);
+    }
+    
+    /**
+     * A second receiver mustn't strand one that's already waiting.
+     */
+    @Test(timeOut = 10000)
+    public void waitingReceiversAllWake() throws Exception {
+        final Hosts hosts = startHosts();
+        final Interface sender = hosts.aSide;
+        final Interface receiver = hosts.bSide;
+        
+        final CountDownLatch received = new CountDownLatch(2);
+        for (int r = 0; r < 2; r++) {
+            new Thread("Receiver " + r) {
+                public void run() {
+                    try {
+                        receiver.receive();
+                        received.countDown();
+                    } catch (InterruptedException e) {
+                        // The test will fail on its own
+                    }
+                }
+            }.start();
+            // Let each one get as far as waiting
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        
+        sender.send(message(1));
+        sender.send(message(2));
+        Assert.assertTrue(received.await(5, TimeUnit.SECONDS),
+                "A receiver was never woken");
+    }
+    
+    @Test(timeOut = 30000)
+    public void multipleConsumers() throws Exception {
+        final Hosts hosts = startHosts();
+        final Interface sender = hosts.aSide;
+        final Interface receiver = hosts.bSide;
+        
+        final int consumers = 4, count = 50000;
+        final AtomicIntegerArray seen = new AtomicIntegerArray(count);
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+        
+        // Have the main thread own the consumer side first
+        sender.send(message(-1));
+        Assert.assertEquals(receiver.receive(5, TimeUnit.SECONDS).data, -1);
+        
+        final Thread[] threads = new Thread[consumers];
+        for (int c = 0; c < consumers; c++) {
+            threads[c] = new Thread("Consumer " + c) {
+                public void run() {
+                    try {
+                        while (true) {
+                            final Message<?> message = receiver.receive();
+                            seen.incrementAndGet((Integer) message.data);
+                            done.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                        // Done
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            };
+            threads[c].start();
+        }
+        
+        for (int num = 0; num < count; num++)
+            sender.send(message(num));
+        
+        Assert.assertTrue(done.await(20, TimeUnit.SECONDS),
+                done.getCount() + " never received");
+        for (Thread thread : threads)
+            thread.interrupt();
+        Assert.assertNull(failure.get());
+        for (int num = 0; num < count; num++)
+            Assert.assertEquals(seen.get(num), 1, "Message " + num);
+    }
+    
+    @Test
+    public void reconnect() throws Exception {
+        final Hosts hosts = startHosts();
+        final Simulator sim = hosts.sim;
+        final Interface receiver = hosts.bSide;
+        
+        // Plain, then bounded, then plain again, reusing the interfaces
+        sim.disconnect(hosts.aSide);
+        Interface sender =
+            sim.connect(hosts.a, hosts.b, new LinkOptions().capacity(10));
+        sender.send(message(1));
+        Assert.assertEquals(receiver.receive(1, TimeUnit.SECONDS).data, 1);
+        
+        sim.disconnect(sender);
+        sender = sim.connect(hosts.a, hosts.b);
+        sender.send(message(2));
+        Assert.assertEquals(receiver.receive(1, TimeUnit.SECONDS).data, 2);
+    }
+}
@@ -0,0 +1,52 @@
+package test;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the routers' RIP: changes should spread quickly, and little
+ * should be said when nothing changes.
+ */
+public class RIPTest extends AbstractTest {
+    @Test
+    public void converges() throws Exception {
+        final Ring ring = startRing(newSimulator(), null);
+        
+        // Without triggered updates, this took a full update per hop
+        Assert.assertTrue(ring.timeToDeliver(8000) < 5000);
+    }
+    
+    @Test
+    public void quietWhenStable() throws Exception {
+        final Ring ring = startRing(newSimulator(), null);
+        ring.timeToDeliver(8000);
+        
+        // Drain anything left over from converging
+        TimeUnit.MILLISECONDS.sleep(500);
+        while (ring.host1.receive(0, TimeUnit.SECONDS) != null)
+            continue;
+        
+        // The next full update is a while off yet
+        TimeUnit.SECONDS.sleep(2);
+        int count = 0;
+        while (ring.host1.receive(0, TimeUnit.SECONDS) != null)
+            count++;
+        Assert.assertEquals(count, 0, "RIP messages while nothing changed");
+    }
+    
+    @Test
+    public void reroutes() throws Exception {
+        final Ring ring = startRing(newSimulator(), null);
+        ring.timeToDeliver(8000);
+        
+        // Cut one side of the ring, then the other way around
+        ring.sim.disconnect(ring.routers[0].interfaces().get(0));
+        Assert.assertTrue(ring.timeToDeliver(8000) < 5000);
+        
+        ring.sim.connect(ring.routers[0], ring.routers[1]);
+        ring.sim.disconnect(ring.routers[0].interfaces().get(1));
+        Assert.assertTrue(ring.timeToDeliver(8000) < 5000);
+    }
+}
@@ -0,0 +1,105 @@
+package test;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import network.Interface;
+import network.Message;
+import network.MessageCodecException;
+import network.Node;
+import network.Simulator;
+import network.SimulatorFactory;
+import network.TransportMode;
+import network.protocols.HTTP;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Passes a message through a middle node using
+ * {@link Interface#receiveRaw()} and {@link Interface#forwardRaw}.
+ */
+public class RawForwardingTest extends AbstractTest {
+    private void forward(Simulator sim) throws Exception {
+        destroyAfterTest(sim);
+        final Node a = createHost(sim, 1, "A");
+        final Node b = createHost(sim, 2, "B");
+        final Node router = createHost(sim, 3, "Router");
+        final Interface fromA = sim.connect(router, a);
+        final Interface toB = sim.connect(router, b);
+        sim.start();
+        // Give the kernel threads a moment to come up
+        TimeUnit.MILLISECONDS.sleep(100);
+        
+        final Message<HTTP.Request> sent = new Message<HTTP.Request>(
+                1, 2, 1234, HTTP.PORT.number(),
+                new HTTP.Request(HTTP.Request.Method.GET, "/"));
+        
+        a.interfaces().get(0).send(sent);
+        
+        final Interface.RawMessage raw = fromA.receiveRaw();
+        Assert.assertEquals(raw.source(), 1);
+        Assert.assertEquals(raw.destination(), 2);
+        Assert.assertEquals(raw.sourcePort(), 1234);
+        Assert.assertEquals(raw.destinationPort(), HTTP.PORT.number());
+        
+        toB.forwardRaw(raw);
+        
+        final Message<?> received = b.interfaces().get(0).receive();
+        Assert.assertEquals(received.source, 1);
+        Assert.assertEquals(received.destination, 2);
+        Assert.assertEquals(received.dataAs(HTTP.Request.class).resource,
+                "/");
+    }
+    
+    /**
+     * Sends fine, but can't be read back.
+     */
+    static final class Undecodable implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        private void readObject(ObjectInputStream in) throws IOException {
+            throw new InvalidObjectException("Not today");
+        }
+    }
+    
+    @Test
+    public void undecodable() throws Exception {
+        final Hosts hosts = startHosts();
+        for (int ix = 0; ix < 2; ix++)
+            hosts.aSide.send(new Message<Undecodable>(
+                    1, 2, 42, 42, new Undecodable()));
+        
+        final Interface.RawMessage raw = hosts.bSide.receiveRaw();
+        try {
+            raw.decode();
+            Assert.fail("Decoded the undecodable");
+        } catch (MessageCodecException e) {
+            Assert.assertTrue(e.getCause() instanceof InvalidObjectException,
+                    "" + e.getCause());
+        }
+        
+        try {
+            hosts.bSide.receive();
+            Assert.fail("Decoded the undecodable");
+        } catch (MessageCodecException e) {
+            Assert.assertTrue(e.getCause() instanceof InvalidObjectException,
+                    "" + e.getCause());
+        }
+    }
+    
+    @Test
+    public void copyMode() throws Exception {
+        forward(SimulatorFactory.instance().createSimulator());
+    }
+    
+    @Test
+    public void byReferenceMode() throws Exception {
+        forward(SimulatorFactory.instance().buildSimulator()
+                .transportMode(TransportMode.BY_REFERENCE)
+                .create());
+    }
+}
@@ -0,0 +1,162 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import network.AbstractKernel;
+import network.Interface;
+import network.LinkOptions;
+import network.Message;
+import network.Node;
+import network.ReactiveKernel;
+import network.Simulator;
+import network.SimulatorFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for kernels driven by the simulator's event loops rather than
+ * threads of their own.
+ */
+public class ReactiveKernelTest extends AbstractTest {
+    /**
+     * Sends every message back where it came from, and notes which threads
+     * it was called in.
+     */
+    private static final class EchoKernel extends AbstractKernel
+            implements ReactiveKernel {
+        final CountDownLatch timerRan = new CountDownLatch(1);
+        volatile Thread startThread, messageThread, timerThread;
+        
+        public int parallelism() {
+            return 1;
+        }
+        
+        public void start() {
+            startThread = Thread.currentThread();
+            timer().schedule(new Runnable() {
+                public void run() {
+                    timerThread = Thread.currentThread();
+                    timerRan.countDown();
+                }
+            }, 10, TimeUnit.MILLISECONDS);
+        }
+        
+        public void onMessage(Interface iface, Interface.RawMessage message)
+                throws InterruptedException {
+            messageThread = Thread.currentThread();
+            final Message<?> received = message.decode();
+            try {
+                iface.send(new Message<String>(address(), received.source,
+                        received.destinationPort, received.sourcePort,
+                        (String) received.data));
+            } catch (Interface.DisconnectedException e) {
+                // Nobody to answer
+            }
+        }
+        
+        public void shutDown() {
+            // Nothing to stop
+        }
+    }
+    
+    @Test
+    public void callbacks() throws Exception {
+        final Simulator sim = newSimulator();
+        final EchoKernel echo = new EchoKernel();
+        final Node host = createHost(sim, 1, "Host");
+        final Node server = sim.buildNode(2)
+            .kernel(echo)
+            .create();
+        final Interface iface = sim.connect(host, server);
+        
+        sim.start();
+        iface.send(new Message<String>(1, 2, 42, 43, "Hi"));
+        
+        final Message<?> reply = iface.receive(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(reply, "No echo");
+        Assert.assertEquals(reply.data, "Hi");
+        Assert.assertEquals(reply.destinationPort, 42);
+        Assert.assertTrue(echo.timerRan.await(5, TimeUnit.SECONDS),
+                "Timer never went off");
+        
+        // Everything happens on the node's one event loop
+        Assert.assertTrue(echo.startThread.getName().startsWith("Event loop"),
+                echo.startThread.getName());
+        Assert.assertSame(echo.messageThread, echo.startThread);
+        Assert.assertSame(echo.timerThread, echo.startThread);
+    }
+    
+    /**
+     * A long line of routers should forward on a few shared threads rather
+     * than one each.
+     */
+    @Test(timeOut = 60000)
+    public void routersShareThreads() throws Exception {
+        final int before = ManagementFactory.getThreadMXBean().getThreadCount();
+        
+        final Simulator sim = destroyAfterTest(SimulatorFactory.instance()
+            .buildSimulator()
+            .oracleRouting(true)
+            .create());
+        final int routers = 1000;
+        final Node a = createHost(sim, 1, "A");
+        final Node b = createHost(sim, 2, "B");
+        Node previous = null;
+        for (int ix = 0; ix < routers; ix++) {
+            final Simulator.NodeBuilder builder = sim.buildNode(3 + ix)
+                .kernel(sim.createRouterKernel());
+            if (previous != null)
+                builder.connections(previous);
+            previous = builder.create();
+        }
+        final Interface from = sim.connect(a, sim.nodeAt(3));
+        final Interface to = sim.connect(b, previous);
+        
+        sim.start();
+        from.send(new Message<String>(1, 2, 42, 42, "Hi"));
+        
+        final Message<?> message = to.receive(30, TimeUnit.SECONDS);
+        Assert.assertNotNull(message, "Nothing arrived");
+        Assert.assertEquals(message.data, "Hi");
+        
+        // The hosts' kernel threads and the event loops, plus a few timers
+        final int threads =
+            ManagementFactory.getThreadMXBean().getThreadCount() - before;
+        Assert.assertTrue(threads <
+                Runtime.getRuntime().availableProcessors() + 10,
+                threads + " threads for " + routers + " routers");
+    }
+    
+    /**
+     * A full link between two routers on the same event loop mustn't hold
+     * the loop up, or the router that would make room never gets a turn.
+     */
+    @Test(timeOut = 60000)
+    public void fullLinkBetweenRouters() throws Exception {
+        final Simulator sim = destroyAfterTest(SimulatorFactory.instance()
+            .buildSimulator()
+            .oracleRouting(true)
+            .create());
+        final Node a = createHost(sim, 1, "A");
+        final Node b = createHost(sim, 2, "B");
+        final Node r1 = sim.buildNode(3).create();
+        final Node r2 = sim.buildNode(4).create();
+        final Interface from = sim.connect(a, r1);
+        sim.connect(r1, r2, new LinkOptions().capacity(2));
+        final Interface to = sim.connect(b, r2);
+        
+        sim.start();
+        final int count = 2000;
+        for (int ix = 0; ix < count; ix++)
+            from.send(new Message<Integer>(1, 2, 42, 42, ix));
+        
+        for (int ix = 0; ix < count; ix++) {
+            final Message<?> message = to.receive(10, TimeUnit.SECONDS);
+            Assert.assertNotNull(message, "Only " + ix + " arrived");
+            Assert.assertEquals(message.data, ix);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import network.AbstractProcess;
+import network.Interface;
+import network.Message;
+import network.Node;
+import network.Simulator;
+import network.SimulatorFactory;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that nodes run in threads from the simulator's thread factory, when
+ * it's given one.
+ */
+public class ThreadFactoryTest extends AbstractTest {
+    private static final int PORT = 42;
+    
+    /**
+     * Remembers every thread it makes.
+     */
+    private static final class RecordingFactory implements ThreadFactory {
+        final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+        private final ThreadFactory factory;
+        
+        RecordingFactory(ThreadFactory factory) {
+            this.factory = factory;
+        }
+        
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = factory.newThread(runnable);
+            threads.add(thread);
+            return thread;
+        }
+    }
+    
+    /**
+     * Forks a task, then waits for one message, noting down the threads
+     * each ran in.
+     */
+    private static final class Receiver extends AbstractProcess {
+        final CountDownLatch done = new CountDownLatch(2);
+        volatile Thread processThread, forkThread;
+        
+        protected void run() throws InterruptedException {
+            processThread = Thread.currentThread();
+            os().fork(new Runnable() {
+                public void run() {
+                    forkThread = Thread.currentThread();
+                    done.countDown();
+                }
+            });
+            
+            if (os().receive(PORT) != null)
+                done.countDown();
+        }
+    }
+    
+    /**
+     * Send a message from host 1 to a {@link Receiver} on host 2, by way of
+     * a router with two forwarding threads.
+     */
+    private Receiver deliver(ThreadFactory factory) throws Exception {
+        final Simulator sim = destroyAfterTest(SimulatorFactory.instance()
+            .buildSimulator()
+            .threadFactory(factory)
+            .oracleRouting(true)
+            .create());
+        
+        final Receiver receiver = new Receiver();
+        final Node a = createHost(sim, 1, "Host 1");
+        final Node b = sim.buildNode(2)
+            .name("Host 2")
+            .kernel(sim.createUserKernel(receiver))
+            .create();
+        final Node router = sim.buildNode(3)
+            .name("Router")
+            .kernel(sim.createRouterKernel(2))
+            .create();
+        final Interface host = sim.connect(a, router);
+        sim.connect(b, router);
+        
+        sim.start();
+        host.send(new Message<String>(1, 2, PORT, PORT, "Hi"));
+        
+        Assert.assertTrue(receiver.done.await(5, TimeUnit.SECONDS),
+                "Message never arrived");
+        return receiver;
+    }
+    
+    @Test
+    public void usesFactory() throws Exception {
+        final RecordingFactory factory =
+            new RecordingFactory(Executors.defaultThreadFactory());
+        final Receiver receiver = deliver(factory);
+        
+        Assert.assertTrue(factory.threads.contains(receiver.processThread));
+        Assert.assertTrue(factory.threads.contains(receiver.forkThread));
+        
+        final Map<String, Integer> names = new HashMap<String, Integer>();
+        for (Thread thread : factory.threads) {
+            final String name = thread.getName().startsWith("Event loop ") ?
+                "Event loop" : thread.getName();
+            final Integer count = names.get(name);
+            names.put(name, count == null ? 1 : count + 1);
+        }
+        // One kernel thread per host, even the one that doesn't use it; the
+        // router runs on the shared event loops
+        final int loops = Runtime.getRuntime().availableProcessors();
+        Assert.assertEquals(names.get("Kernel"), (Integer) 2);
+        Assert.assertEquals(names.get("Event loop"), (Integer) loops);
+        Assert.assertEquals(names.get("Process"), (Integer) 1);
+        // The kernel threads, the event loops, and the process's own and its
+        // fork; messages go straight to the process's mailboxes
+        Assert.assertEquals(factory.threads.size(), 4 + loops,
+                names.toString());
+    }
+    
+    @Test
+    public void virtualThreads() throws Exception {
+        final ThreadFactory factory;
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual")
+                .invoke(null);
+            factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                .getMethod("factory")
+                .invoke(builder);
+        } catch (NoSuchMethodException e) {
+            throw new SkipException("No virtual threads in this runtime");
+        }
+        
+        final Receiver receiver = deliver(factory);
+        
+        for (Thread thread : new Thread[] {
+                receiver.processThread, receiver.forkThread })
+            Assert.assertTrue((Boolean) Thread.class.getMethod("isVirtual")
+                    .invoke(thread), thread + " isn't virtual");
+    }
+}
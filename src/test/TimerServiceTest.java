@@ -0,0 +1,183 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import network.Interface;
+import network.LinkOptions;
+import network.Message;
+import network.Node;
+import network.Simulator;
+import network.TimerService;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the simulator's shared {@link TimerService}.
+ */
+public class TimerServiceTest extends AbstractTest {
+    /**
+     * Just hands out its timer service.
+     */
+    private static final class TimerKernel extends TrivialKernel {
+        TimerService timerService() {
+            return timer();
+        }
+    }
+    
+    private TimerService createTimer() {
+        final Simulator sim = newSimulator();
+        final TimerKernel kernel = new TimerKernel();
+        sim.buildNode().kernel(kernel).create();
+        return kernel.timerService();
+    }
+    
+    @Test(timeOut = 10000)
+    public void neverEarly() throws Exception {
+        final TimerService timer = createTimer();
+        
+        final CountDownLatch done = new CountDownLatch(3);
+        final long start = System.nanoTime();
+        final long[] delays = { 150, 20, 600 };
+        final long[] ran = new long[delays.length];
+        for (int ix = 0; ix < delays.length; ix++) {
+            final int task = ix;
+            timer.schedule(new Runnable() {
+                public void run() {
+                    ran[task] = System.nanoTime() - start;
+                    done.countDown();
+                }
+            }, delays[ix], TimeUnit.MILLISECONDS);
+        }
+        
+        done.await();
+        for (int ix = 0; ix < delays.length; ix++)
+            Assert.assertTrue(
+                    ran[ix] >= TimeUnit.MILLISECONDS.toNanos(delays[ix]),
+                    "Task " + ix + " ran early");
+    }
+    
+    /**
+     * Tasks sending onto a full link don't hold the workers up for everyone
+     * else's tasks; their messages go once there's room.
+     */
+    @Test(timeOut = 10000)
+    public void sendToFullLink() throws Exception {
+        final Simulator sim = newSimulator();
+        final TimerKernel kernel = new TimerKernel();
+        final Node a = sim.buildNode(1)
+            .kernel(kernel)
+            .create();
+        final Node b = createHost(sim, 2, "B");
+        final Interface iface = sim.connect(a, b,
+                new LinkOptions().capacity(1));
+        final Interface receiver = b.interfaces().get(0);
+        sim.start();
+        
+        final TimerService timer = kernel.timerService();
+        // More than there are workers
+        final int senders = 4 * Runtime.getRuntime().availableProcessors();
+        for (int ix = 0; ix < senders; ix++) {
+            final int num = ix;
+            timer.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        iface.send(new Message<Integer>(1, 2, 42, 42, num));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, 0, TimeUnit.MILLISECONDS);
+        }
+        final CountDownLatch later = new CountDownLatch(1);
+        timer.schedule(new Runnable() {
+            public void run() {
+                later.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        
+        Assert.assertTrue(later.await(5, TimeUnit.SECONDS),
+                "Timer held up by a full link");
+        for (int ix = 0; ix < senders; ix++)
+            Assert.assertNotNull(receiver.receive(5, TimeUnit.SECONDS),
+                    "Message " + ix + " missing");
+    }
+    
+    @Test
+    public void cancel() throws Exception {
+        final TimerService timer = createTimer();
+        
+        final AtomicInteger runs = new AtomicInteger();
+        final Runnable task = new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        final TimerService.Timeout once =
+            timer.schedule(task, 100, TimeUnit.MILLISECONDS);
+        final TimerService.Timeout periodic =
+            timer.scheduleWithFixedDelay(task, 100, 10, TimeUnit.MILLISECONDS);
+        
+        Assert.assertTrue(once.cancel());
+        Assert.assertTrue(periodic.cancel());
+        Assert.assertFalse(once.cancel());
+        
+        TimeUnit.MILLISECONDS.sleep(300);
+        Assert.assertEquals(runs.get(), 0);
+    }
+    
+    @Test
+    public void periodic() throws Exception {
+        final TimerService timer = createTimer();
+        
+        final AtomicInteger runs = new AtomicInteger();
+        final TimerService.Timeout timeout =
+            timer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            }, 0, 20, TimeUnit.MILLISECONDS);
+        
+        TimeUnit.SECONDS.sleep(1);
+        timeout.cancel();
+        // Let a run already under way finish
+        TimeUnit.MILLISECONDS.sleep(50);
+        final int count = runs.get();
+        // About 50, give or take jitter and a loaded machine
+        Assert.assertTrue(count > 20 && count <= 56, count + " runs");
+        
+        TimeUnit.MILLISECONDS.sleep(100);
+        Assert.assertEquals(runs.get(), count, "Ran after being cancelled");
+    }
+    
+    /**
+     * Routers shouldn't start threads of their own just to wait on timers.
+     */
+    @Test
+    public void threadsPerRouter() throws Exception {
+        final int before = ManagementFactory.getThreadMXBean().getThreadCount();
+        
+        final Simulator sim = newSimulator();
+        final int routers = 200;
+        Node previous = null;
+        for (int ix = 0; ix < routers; ix++) {
+            final Simulator.NodeBuilder builder = sim.buildNode()
+                .kernel(sim.createRouterKernel());
+            if (previous != null)
+                builder.connections(previous);
+            previous = builder.create();
+        }
+        sim.start();
+        TimeUnit.MILLISECONDS.sleep(500);
+        
+        // One kernel thread per node, plus a few shared ones
+        final int threads =
+            ManagementFactory.getThreadMXBean().getThreadCount() - before;
+        Assert.assertTrue(threads < routers + 2 *
+                Runtime.getRuntime().availableProcessors() + 10,
+                threads + " threads for " + routers + " routers");
+    }
+}
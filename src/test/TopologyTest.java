@@ -0,0 +1,112 @@
+package test;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import network.Interface;
+import network.Kernel;
+import network.Message;
+import network.Node;
+import network.Simulator;
+import network.SimulatorFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for building whole networks at once.
+ */
+public class TopologyTest extends AbstractTest {
+    /**
+     * A random graph, from its adjacency sets.
+     */
+    @Test
+    public void structure() throws Exception {
+        final Simulator sim = newSimulator();
+        final BitSet[] seed = { new BitSet(), new BitSet() };
+        seed[1].set(0);
+        final Graph graph = new Graph(seed, 256);
+        graph.growTo(200, new Random(1));
+        
+        final List<Node> nodes =
+            sim.buildTopology(graph.lowerAdjacencies(), null);
+        Assert.assertEquals(nodes.size(), 200);
+        
+        final Set<String> names = new HashSet<String>();
+        for (int ix = 0; ix < nodes.size(); ix++) {
+            final Node node = nodes.get(ix);
+            Assert.assertEquals(node.address(), nodes.get(0).address() + ix);
+            Assert.assertSame(sim.nodeAt(node.address()), node);
+            Assert.assertEquals(node.interfaces().size(), graph.degree(ix),
+                    "Interfaces on " + node);
+            Assert.assertTrue(names.add(node.name()), node.name());
+        }
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void badLink() {
+        final Simulator sim = newSimulator();
+        sim.buildTopology(3, new int[][] { { 0, 1 }, { 1, 3 } }, null);
+    }
+    
+    /**
+     * A line of routers with a host at each end, routed by the oracle as
+     * soon as the simulation starts.
+     */
+    @Test
+    public void line() throws Exception {
+        final Simulator sim = destroyAfterTest(SimulatorFactory.instance()
+            .buildSimulator()
+            .oracleRouting(true)
+            .create());
+        final int count = 50;
+        final int[][] links = new int[count - 1][];
+        for (int ix = 1; ix < count; ix++)
+            links[ix - 1] = new int[] { ix - 1, ix };
+        
+        final List<Node> nodes = sim.buildTopology(count, links,
+                new Simulator.KernelFactory() {
+                    public Kernel createKernel(int index) {
+                        return index == 0 || index == count - 1 ?
+                                new TrivialKernel() : null;
+                    }
+                });
+        final Node first = nodes.get(0), last = nodes.get(count - 1);
+        sim.start();
+        
+        final Interface from = first.interfaces().get(0);
+        from.send(new Message<String>(first.address(), last.address(),
+                42, 42, "Hi"));
+        
+        final Message<?> message =
+            last.interfaces().get(0).receive(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(message, "Nothing arrived");
+        Assert.assertEquals(message.data, "Hi");
+    }
+    
+    /**
+     * A big random tree, added to a simulation that's already running.
+     */
+    @Test(timeOut = 120000)
+    public void bigTree() throws Exception {
+        final Simulator sim = newSimulator();
+        sim.start();
+        
+        final int count = 20000;
+        final Random random = new Random(1);
+        final int[][] links = new int[count - 1][];
+        for (int ix = 1; ix < count; ix++)
+            links[ix - 1] = new int[] { ix, random.nextInt(ix) };
+        
+        final List<Node> nodes = sim.buildTopology(count, links, null);
+        Assert.assertEquals(nodes.size(), count);
+        int interfaces = 0;
+        for (Node node : nodes)
+            interfaces += node.interfaces().size();
+        Assert.assertEquals(interfaces, 2 * (count - 1));
+    }
+}
@@ -0,0 +1,87 @@
+package test;
+
+import java.util.ArrayList;
+
+import network.Message;
+import network.Simulator;
+import network.SimulatorFactory;
+import network.TransportMode;
+import network.protocols.HTTP;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Checks which messages are shared and which are copied under each
+ * {@link TransportMode}.
+ */
+public class TransportModeTest extends AbstractTest {
+    private Message<?> roundTrip(Simulator sim, Message<?> message)
+            throws Exception {
+        final Hosts hosts = startHosts(sim);
+        hosts.bSide.send(message);
+        return hosts.aSide.receive();
+    }
+    
+    private static Message<HTTP.Request> request() {
+        return new Message<HTTP.Request>(2, 1, -1, HTTP.PORT.number(),
+                new HTTP.Request(HTTP.Request.Method.GET, "/"));
+    }
+    
+    @Test
+    public void copyModeCopiesEverything() throws Exception {
+        final Message<HTTP.Request> sent = request();
+        final Message<?> received = roundTrip(
+                SimulatorFactory.instance().createSimulator(), sent);
+        
+        Assert.assertNotSame(received, sent);
+        Assert.assertEquals(received.dataAs(HTTP.Request.class).resource,
+                sent.data.resource);
+    }
+    
+    @Test
+    public void byReferenceModeSharesImmutablePayloads() throws Exception {
+        final Message<HTTP.Request> sent = request();
+        final Message<?> received = roundTrip(
+                SimulatorFactory.instance().buildSimulator()
+                    .transportMode(TransportMode.BY_REFERENCE)
+                    .create(),
+                sent);
+        
+        Assert.assertSame(received, sent);
+    }
+    
+    @Test
+    public void byReferenceModeCopiesMutablePayloads() throws Exception {
+        final ArrayList<String> list = new ArrayList<String>();
+        list.add("mutable");
+        
+        final Message<ArrayList<String>> sent =
+            new Message<ArrayList<String>>(2, 1, -1, 42, list);
+        final Message<?> received = roundTrip(
+                SimulatorFactory.instance().buildSimulator()
+                    .transportMode(TransportMode.BY_REFERENCE)
+                    .create(),
+                sent);
+        
+        Assert.assertNotSame(received, sent);
+        Assert.assertNotSame(received.data, list);
+        Assert.assertEquals(received.data, list);
+    }
+    
+    @Test
+    public void byReferenceModeHonorsRegisteredTypes() throws Exception {
+        final ArrayList<String> list = new ArrayList<String>();
+        
+        final Message<ArrayList<String>> sent =
+            new Message<ArrayList<String>>(2, 1, -1, 42, list);
+        final Message<?> received = roundTrip(
+                SimulatorFactory.instance().buildSimulator()
+                    .transportMode(TransportMode.BY_REFERENCE)
+                    .immutableTypes(ArrayList.class)
+                    .create(),
+                sent);
+        
+        Assert.assertSame(received, sent);
+    }
+}
@@ -0,0 +1,276 @@
+package test;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import network.AbstractProcess;
+import network.LinkOptions;
+import network.Message;
+import network.Node;
+import network.Simulator;
+import network.SimulatorFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for simulations in virtual time: waiting should take simulated time
+ * rather than real time.
+ */
+public class VirtualTimeTest extends AbstractTest {
+    private static final int PING_PORT = 42, PONG_PORT = 43;
+    
+    /**
+     * A process that does something and measures how long it took in
+     * simulated time.
+     */
+    private abstract static class Timed extends AbstractProcess {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile long elapsed = -1;
+        volatile boolean succeeded;
+        
+        protected final void run() throws InterruptedException {
+            final long start = os().nanoTime();
+            succeeded = work();
+            elapsed = os().nanoTime() - start;
+            done.countDown();
+        }
+        
+        protected abstract boolean work() throws InterruptedException;
+        
+        long elapsed(TimeUnit unit) throws InterruptedException {
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS),
+                    "Took too long in real time");
+            return unit.convert(elapsed, TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    /**
+     * Answers every ping with a pong.
+     */
+    private static final class Echo extends AbstractProcess {
+        protected void run() throws InterruptedException {
+            while (true) {
+                final Message<?> ping = os().receive(PING_PORT);
+                try {
+                    os().send(ping.source, PONG_PORT, PONG_PORT,
+                            (Integer) ping.data);
+                } catch (network.OperatingSystem.DisconnectedException e) {
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Pings the node at the given address until it has had the given number
+     * of answers, waiting at most a second for each.
+     */
+    private static final class Pinger extends Timed {
+        private final int destination, pongs;
+        
+        Pinger(int destination, int pongs) {
+            this.destination = destination;
+            this.pongs = pongs;
+        }
+        
+        protected boolean work() throws InterruptedException {
+            int answered = 0;
+            for (int ix = 0; answered < pongs && ix < 1000; ix++) {
+                try {
+                    os().send(destination, PING_PORT, PING_PORT, ix);
+                } catch (network.OperatingSystem.DisconnectedException e) {
+                    return false;
+                }
+                
+                final Message<?> pong =
+                    os().receive(PONG_PORT, 1, TimeUnit.SECONDS);
+                if (pong != null && pong.data.equals(ix))
+                    answered++;
+                else if (pong == null)
+                    // Give the routers a while to find each other
+                    os().sleep(1, TimeUnit.SECONDS);
+            }
+            return answered == pongs;
+        }
+    }
+    
+    private Simulator createSimulator() {
+        return destroyAfterTest(SimulatorFactory.instance().buildSimulator()
+            .virtualTime(true)
+            .create());
+    }
+    
+    @Test
+    public void sleep() throws Exception {
+        final Simulator sim = createSimulator();
+        final Timed sleeper = new Timed() {
+            protected boolean work() throws InterruptedException {
+                os().sleep(1, TimeUnit.HOURS);
+                return true;
+            }
+        };
+        final Node host = sim.buildNode(1)
+            .kernel(sim.createUserKernel(sleeper))
+            .create();
+        sim.buildNode(2).connections(host).create();
+        
+        sim.start();
+        
+        Assert.assertEquals(sleeper.elapsed(TimeUnit.MINUTES), 60);
+    }
+    
+    @Test
+    public void receiveTimesOut() throws Exception {
+        final Simulator sim = createSimulator();
+        final Timed receiver = new Timed() {
+            protected boolean work() throws InterruptedException {
+                return os().receive(PING_PORT, 30, TimeUnit.SECONDS) == null;
+            }
+        };
+        final Node host = sim.buildNode(1)
+            .kernel(sim.createUserKernel(receiver))
+            .create();
+        sim.buildNode(2).connections(host).create();
+        
+        sim.start();
+        
+        Assert.assertEquals(receiver.elapsed(TimeUnit.SECONDS), 30);
+        Assert.assertTrue(receiver.succeeded, "Received something");
+    }
+    
+    /**
+     * Waits on one of the timer's conditions until a deadline an hour off.
+     */
+    private static final class DeadlineKernel extends TrivialKernel {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile long elapsed = -1;
+        volatile boolean signalled = true;
+        
+        public void start() {
+            final Lock lock = new ReentrantLock();
+            final Condition condition = timer().newCondition(lock);
+            final long start = timer().nanoTime();
+            lock.lock();
+            try {
+                signalled = condition.awaitUntil(new Date(
+                        System.currentTimeMillis() +
+                        TimeUnit.HOURS.toMillis(1)));
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            elapsed = timer().nanoTime() - start;
+            done.countDown();
+        }
+    }
+    
+    @Test
+    public void conditionDeadline() throws Exception {
+        final Simulator sim = createSimulator();
+        final DeadlineKernel kernel = new DeadlineKernel();
+        sim.buildNode(1).kernel(kernel).create();
+        
+        sim.start();
+        
+        Assert.assertTrue(kernel.done.await(10, TimeUnit.SECONDS),
+                "Took too long in real time");
+        Assert.assertFalse(kernel.signalled, "Woke before the deadline");
+        // Less whatever real time passed on the way in
+        final long seconds = TimeUnit.NANOSECONDS.toSeconds(kernel.elapsed);
+        Assert.assertTrue(seconds > 3590 && seconds <= 3600, seconds + "s");
+    }
+    
+    /**
+     * Schedules a task that dies with an Error.
+     */
+    private static final class FailingKernel extends TrivialKernel {
+        public void start() {
+            timer().schedule(new Runnable() {
+                public void run() {
+                    throw new AssertionError("Meant to fail");
+                }
+            }, 1, TimeUnit.SECONDS);
+        }
+    }
+    
+    /**
+     * A task that throws an Error still lets the clock move on after it.
+     */
+    @Test
+    public void taskError() throws Exception {
+        final Simulator sim = createSimulator();
+        final Timed sleeper = new Timed() {
+            protected boolean work() throws InterruptedException {
+                os().sleep(1, TimeUnit.HOURS);
+                return true;
+            }
+        };
+        final Node host = sim.buildNode(1)
+            .kernel(sim.createUserKernel(sleeper))
+            .create();
+        sim.buildNode(2)
+            .kernel(new FailingKernel())
+            .connections(host)
+            .create();
+        
+        sim.start();
+        
+        Assert.assertEquals(sleeper.elapsed(TimeUnit.MINUTES), 60);
+    }
+    
+    /**
+     * Ping back and forth over a link that takes 400ms each way.
+     */
+    @Test
+    public void linkDelay() throws Exception {
+        final Simulator sim = createSimulator();
+        final Pinger pinger = new Pinger(2, 20);
+        final Node a = sim.buildNode(1)
+            .kernel(sim.createUserKernel(pinger))
+            .create();
+        final Node b = sim.buildNode(2)
+            .kernel(sim.createUserKernel(new Echo()))
+            .create();
+        sim.connect(a, b, new LinkOptions().delay(400, TimeUnit.MILLISECONDS));
+        
+        sim.start();
+        
+        // Each round trip takes exactly 800ms
+        Assert.assertEquals(pinger.elapsed(TimeUnit.MILLISECONDS), 16000);
+        Assert.assertTrue(pinger.succeeded, "Pongs went missing");
+    }
+    
+    /**
+     * Routers running RIP in virtual time should find routes as they would
+     * in real time, only faster.
+     */
+    @Test
+    public void routersConverge() throws Exception {
+        final Simulator sim = createSimulator();
+        final Pinger pinger = new Pinger(2, 5);
+        final Node a = sim.buildNode(1)
+            .kernel(sim.createUserKernel(pinger))
+            .create();
+        final Node b = sim.buildNode(2)
+            .kernel(sim.createUserKernel(new Echo()))
+            .create();
+        Node previous = a;
+        for (int ix = 0; ix < 5; ix++)
+            previous = sim.buildNode(3 + ix).connections(previous).create();
+        sim.connect(previous, b);
+        
+        final long start = System.nanoTime();
+        sim.start();
+        
+        pinger.elapsed(TimeUnit.SECONDS);
+        Assert.assertTrue(pinger.succeeded, "Never got through");
+        Assert.assertTrue(System.nanoTime() - start <
+                TimeUnit.SECONDS.toNanos(5), "Took too long in real time");
+    }
+}